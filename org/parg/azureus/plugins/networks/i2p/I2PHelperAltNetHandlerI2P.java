@@ -30,7 +30,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import net.i2p.data.Base32;
 import net.i2p.data.Destination;
 
 import com.biglybt.core.util.BEncoder;
@@ -39,6 +38,7 @@ import com.biglybt.core.util.SystemTime;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NID;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
 import org.parg.azureus.plugins.networks.i2p.vuzedht.DHTTransportContactI2P;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperB32Cache;
 
 import com.biglybt.core.dht.transport.DHTTransportAlternativeContact;
 import com.biglybt.core.dht.transport.DHTTransportAlternativeNetwork;
@@ -138,9 +138,7 @@ I2PHelperAltNetHandlerI2P
 			
 			if ( ni != null ){
 				
-				byte[]	peer_hash = ni.getDestination().calculateHash().getData();
-				
-				String peer_ip = Base32.encode( peer_hash ) + ".b32.i2p";
+				String peer_ip = I2PHelperB32Cache.getAddress( ni.getDestination().calculateHash());
 				
 				return( InetSocketAddress.createUnresolved(peer_ip, 6881 ));
 			}
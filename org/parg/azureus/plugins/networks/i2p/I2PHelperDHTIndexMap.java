@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.biglybt.core.util.HashWrapper;
+import com.biglybt.pif.download.Download;
+import com.biglybt.pif.download.DownloadAttributeListener;
+import com.biglybt.pif.download.DownloadManager;
+import com.biglybt.pif.download.DownloadManagerListener;
+import com.biglybt.pif.torrent.Torrent;
+import com.biglybt.pif.torrent.TorrentAttribute;
+
+/**
+ * Infohash to DHT index for every download, kept up to date from download add/remove and
+ * network attribute changes so that handshakes and announces can route with a single map lookup
+ * instead of finding the download and walking its networks each time. The index recorded is the one
+ * the plugin selects for the download's networks.
+ */
+
+public class
+I2PHelperDHTIndexMap
+	implements DownloadManagerListener, DownloadAttributeListener
+{
+	private final I2PHelperPlugin		plugin;
+	private final DownloadManager		download_manager;
+	private final TorrentAttribute		ta_networks;
+
+	private final Map<HashWrapper,Integer>	index_map = new ConcurrentHashMap<>();
+
+	protected
+	I2PHelperDHTIndexMap(
+		I2PHelperPlugin		_plugin )
+	{
+		plugin				= _plugin;
+
+		download_manager	= plugin.getPluginInterface().getDownloadManager();
+
+		ta_networks 		= plugin.getPluginInterface().getTorrentManager().getAttribute( TorrentAttribute.TA_NETWORKS );
+
+			// existing downloads are reported via downloadAdded
+
+		download_manager.addListener( this, true );
+	}
+
+	/**
+	 * @return the DHT index for the download or -1 if it isn't known
+	 */
+
+	public int
+	getIndex(
+		byte[]		torrent_hash )
+	{
+		if ( torrent_hash == null ){
+
+			return( -1 );
+		}
+
+		Integer	index = index_map.get( new HashWrapper( torrent_hash ));
+
+		return( index==null?-1:index );
+	}
+
+	public int
+	getIndex(
+		Download	download )
+	{
+		int	index = getIndex( getHash( download ));
+
+		if ( index == -1 ){
+
+				// not added yet or no torrent hash available
+
+			index = plugin.selectDHTIndex( download.getListAttribute( ta_networks ));
+		}
+
+		return( index );
+	}
+
+	@Override
+	public void
+	downloadAdded(
+		Download	download )
+	{
+		download.addAttributeListener( this, ta_networks, DownloadAttributeListener.WRITTEN );
+
+		update( download );
+	}
+
+	@Override
+	public void
+	downloadRemoved(
+		Download	download )
+	{
+		download.removeAttributeListener( this, ta_networks, DownloadAttributeListener.WRITTEN );
+
+		byte[]	hash = getHash( download );
+
+		if ( hash != null ){
+
+			index_map.remove( new HashWrapper( hash ));
+		}
+	}
+
+	@Override
+	public void
+	attributeEventOccurred(
+		Download 			download,
+		TorrentAttribute 	attribute,
+		int 				event_type )
+	{
+		if ( attribute == ta_networks ){
+
+			update( download );
+		}
+	}
+
+	private void
+	update(
+		Download	download )
+	{
+		byte[]	hash = getHash( download );
+
+		if ( hash != null ){
+
+			index_map.put( new HashWrapper( hash ), plugin.selectDHTIndex( download.getListAttribute( ta_networks )));
+		}
+	}
+
+	private static byte[]
+	getHash(
+		Download	download )
+	{
+		try{
+			Torrent	torrent = download.getTorrent();
+
+			return( torrent==null?null:torrent.getHash());
+
+		}catch( Throwable e ){
+
+			return( null );
+		}
+	}
+
+	public void
+	destroy()
+	{
+		download_manager.removeListener( this );
+
+		for ( Download download: download_manager.getDownloads()){
+
+			download.removeAttributeListener( this, ta_networks, DownloadAttributeListener.WRITTEN );
+		}
+
+		index_map.clear();
+	}
+
+	public String
+	getString()
+	{
+		return( "DHT index map: downloads=" + index_map.size());
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measurements of how incoming connections are handed to the core, one instance per path so the
+ * loopback socket and the in-JVM transport can be compared
+ */
+
+class
+I2PHelperHandoffStats
+{
+	static final I2PHelperHandoffStats	LOOPBACK	= new I2PHelperHandoffStats( "loopback" );
+	static final I2PHelperHandoffStats	INTERNAL	= new I2PHelperHandoffStats( "internal" );
+
+	private final String		name;
+
+	private final AtomicInteger	active			= new AtomicInteger();
+	private final AtomicLong	handoffs		= new AtomicLong();
+	private final AtomicLong	setup_time		= new AtomicLong();
+	private final AtomicLong	to_core			= new AtomicLong();
+	private final AtomicLong	from_core		= new AtomicLong();
+	private final AtomicLong	closed			= new AtomicLong();
+	private final AtomicLong	closed_time		= new AtomicLong();
+	private final AtomicLong	closed_bytes	= new AtomicLong();
+
+	private
+	I2PHelperHandoffStats(
+		String		_name )
+	{
+		name	= _name;
+	}
+
+	void
+	recordStarted()
+	{
+		active.incrementAndGet();
+	}
+
+	void
+	recordSetup(
+		long		elapsed )
+	{
+		handoffs.incrementAndGet();
+
+		setup_time.addAndGet( elapsed );
+	}
+
+	void
+	recordToCore(
+		long		bytes )
+	{
+		to_core.addAndGet( bytes );
+	}
+
+	void
+	recordFromCore(
+		long		bytes )
+	{
+		from_core.addAndGet( bytes );
+	}
+
+	void
+	recordClosed(
+		long		duration,
+		long		bytes )
+	{
+		active.decrementAndGet();
+
+		closed.incrementAndGet();
+
+		closed_time.addAndGet( duration );
+
+		closed_bytes.addAndGet( bytes );
+	}
+
+	String
+	getString()
+	{
+		long	h	= handoffs.get();
+		long	ct	= closed_time.get();
+
+		return( name + ": active=" + active.get() +
+				",handoffs=" + h +
+				",avg_setup=" + ( h==0?0:( setup_time.get()/h )) + "ms" +
+				",to_core=" + to_core.get() +
+				",from_core=" + from_core.get() +
+				",closed=" + closed.get() +
+				",avg_rate=" + ( ct==0?0:( closed_bytes.get()*1000/ct )) + "B/s" );
+	}
+}
@@ -0,0 +1,1019 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.biglybt.core.networkmanager.ConnectionEndpoint;
+import com.biglybt.core.networkmanager.ProtocolEndpoint;
+import com.biglybt.core.networkmanager.ProtocolEndpointFactory;
+import com.biglybt.core.networkmanager.Transport;
+import com.biglybt.core.networkmanager.TransportEndpoint;
+import com.biglybt.core.networkmanager.impl.IncomingConnectionManager;
+import com.biglybt.core.networkmanager.impl.ProtocolDecoder;
+import com.biglybt.core.networkmanager.impl.TransportCryptoManager;
+import com.biglybt.core.networkmanager.impl.TransportHelper;
+import com.biglybt.core.networkmanager.impl.TransportHelperFilter;
+import com.biglybt.core.networkmanager.impl.TransportImpl;
+import com.biglybt.core.networkmanager.impl.tcp.TCPNetworkManager;
+import com.biglybt.core.util.AERunnable;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.ThreadPool;
+
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.client.streaming.impl.MessageInputStream;
+
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperBufferPool;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperStreamWriter;
+
+/**
+ * Hands an incoming I2P stream straight to the core's incoming connection manager as a
+ * TransportHelper, the same extension point the UDP transport uses, rather than connecting a
+ * loopback socket to the TCP listener and forwarding every byte through I2PHelperSocketForwarder.
+ * <p>
+ * Reads are non-blocking against the stream's buffered data and read selects are driven by the
+ * stream's activity notifications. Writes into the stream block so they are copied into pooled
+ * buffers and run by a writer queue with one write in flight per connection, write selects firing
+ * as each completes.
+ * <p>
+ * There is no loopback socket for the core to apply a port mapping to, so the connection's notional
+ * address is set to what the loopback path's mapping resolves to: the peer's b32 address with our
+ * I2P listen port. The transport isn't presented as TCP as it has no socket channel.
+ * <p>
+ * Off by default until it has been run against a real core.
+ */
+
+public class
+I2PHelperInternalHandoff
+{
+	public static final String	PARAM_ENABLE			= "azi2phelper.handoff.internal";
+	public static final boolean	PARAM_ENABLE_DEFAULT	= false;
+
+	private static final int	CONNECT_TIMEOUT		= 60*1000;
+	private static final int	READ_TIMEOUT		= 2*60*1000;
+
+	private static final ThreadPool	select_pool = new ThreadPool( "I2PHandoff select", 32, true );
+
+	private static final I2PHelperStreamWriter	async_writer = new I2PHelperStreamWriter( "I2PHandoff write", 256 );
+
+	private static final I2PHelperBufferPool	buffer_pool = I2PHelperSocketForwarder.getBufferPool();
+
+		// cleared if the core doesn't support what we need, callers then stick with the loopback socket
+
+	private static volatile boolean	available = true;
+
+	/**
+	 * @param dht_index		DHT the connection arrived on, null if not a DHT's endpoint
+	 * @param target_port	core listen port whose handlers the connection is matched against
+	 * @return false if the handoff isn't available, the caller retains the socket
+	 */
+
+	static boolean
+	handoff(
+		I2PSocket			socket,
+		String				remote_host,
+		final Integer		dht_index,
+		final int			target_port )
+	{
+		if ( !available ){
+
+			return( false );
+		}
+
+		final long	setup_start = SystemTime.getMonotonousTime();
+
+			// same remote ip and port as the loopback path's port mapping reports
+
+		final InetSocketAddress	address = InetSocketAddress.createUnresolved( remote_host, socket.getLocalPort());
+
+		final Helper	helper;
+
+		final IncomingConnectionManager	incoming_manager;
+
+		try{
+			incoming_manager = IncomingConnectionManager.getSingleton();
+
+			helper = new Helper( socket, address );
+
+		}catch( Throwable e ){
+
+			if ( e instanceof LinkageError ){
+
+				available = false;
+			}
+
+			Debug.out( "In-JVM handoff unavailable", e );
+
+			return( false );
+		}
+
+		try{
+			TransportCryptoManager.getSingleton().manageCrypto(
+				helper,
+				null,
+				true,
+				null,
+				new TransportCryptoManager.HandshakeListener()
+				{
+					@Override
+					public void
+					handshakeSuccess(
+						ProtocolDecoder		decoder,
+						ByteBuffer			remaining_initial_data )
+					{
+						TransportHelperFilter	filter = decoder.getFilter();
+
+						ConnectionEndpoint	co_ep = new ConnectionEndpoint( address );
+
+						ProtocolEndpoint	pe = ProtocolEndpointFactory.createEndpoint( ProtocolEndpoint.PROTOCOL_TCP, co_ep, address );
+
+						InternalTransport	transport = new InternalTransport( pe, filter, dht_index );
+
+							// includes the crypto handshake, which the loopback path does after its setup
+
+						I2PHelperHandoffStats.INTERNAL.recordSetup( SystemTime.getMonotonousTime() - setup_start );
+
+						incoming_manager.addConnection( target_port, filter, transport );
+					}
+
+					@Override
+					public void
+					handshakeFailure(
+						Throwable		failure_msg )
+					{
+						helper.close( Debug.getNestedExceptionMessage( failure_msg ));
+					}
+
+					@Override
+					public void
+					gotSecret(
+						byte[]			session_secret )
+					{
+					}
+
+					@Override
+					public int
+					getMaximumPlainHeaderLength()
+					{
+						return( incoming_manager.getMaxMinMatchBufferSize());
+					}
+
+					@Override
+					public int
+					matchPlainHeader(
+						ByteBuffer		buffer )
+					{
+						Object[]	match_data = incoming_manager.checkForMatch( helper, target_port, buffer, true );
+
+						if ( match_data == null ){
+
+							return( TransportCryptoManager.HandshakeListener.MATCH_NONE );
+						}
+
+						IncomingConnectionManager.MatchListener match = (IncomingConnectionManager.MatchListener)match_data[0];
+
+						if ( match.autoCryptoFallback()){
+
+							return( TransportCryptoManager.HandshakeListener.MATCH_CRYPTO_AUTO_FALLBACK );
+						}
+
+						return( TransportCryptoManager.HandshakeListener.MATCH_CRYPTO_NO_AUTO_FALLBACK );
+					}
+				});
+
+		}catch( Throwable e ){
+
+			helper.close( Debug.getNestedExceptionMessage( e ));
+
+			if ( e instanceof LinkageError ){
+
+				available = false;
+			}
+
+			Debug.out( e );
+		}
+
+			// the socket belongs to the helper now, even if it failed
+
+		return( true );
+	}
+
+	static boolean
+	isInternal(
+		Transport	transport )
+	{
+		return( transport instanceof InternalTransport );
+	}
+
+	/**
+	 * @return null if the connection isn't tied to a DHT
+	 */
+
+	static Integer
+	getDHTIndex(
+		Transport	transport )
+	{
+		return(((InternalTransport)transport).dht_index );
+	}
+
+	private static class
+	InternalTransport
+		extends TransportImpl
+	{
+		private final ProtocolEndpoint		endpoint;
+		private final Integer				dht_index;
+
+		private int		transport_mode	= TRANSPORT_MODE_NORMAL;
+
+		private volatile boolean	closed;
+
+		private
+		InternalTransport(
+			ProtocolEndpoint		_endpoint,
+			TransportHelperFilter	_filter,
+			Integer					_dht_index )
+		{
+			endpoint	= _endpoint;
+			dht_index	= _dht_index;
+
+			setFilter( _filter );
+		}
+
+			// not TCP as far as the core is concerned, TCP transports are expected to have a
+			// socket channel
+
+		@Override
+		public boolean
+		isTCP()
+		{
+			return( false );
+		}
+
+		@Override
+		public String
+		getProtocol()
+		{
+			return( "I2P" );
+		}
+
+		@Override
+		public TransportEndpoint
+		getTransportEndpoint()
+		{
+			return(
+				new TransportEndpoint()
+				{
+					@Override
+					public ProtocolEndpoint
+					getProtocolEndpoint()
+					{
+						return( endpoint );
+					}
+				});
+		}
+
+		@Override
+		public int
+		getMssSize()
+		{
+			return( TCPNetworkManager.getTcpMssSize());
+		}
+
+		@Override
+		public String
+		getDescription()
+		{
+			return( "I2P: " + endpoint.getConnectionEndpoint().getNotionalAddress());
+		}
+
+		@Override
+		public void
+		setTransportMode(
+			int		mode )
+		{
+			transport_mode	= mode;
+		}
+
+		@Override
+		public int
+		getTransportMode()
+		{
+			return( transport_mode );
+		}
+
+		@Override
+		public void
+		connectOutbound(
+			ByteBuffer			initial_data,
+			ConnectListener		listener,
+			int					priority )
+		{
+			listener.connectFailure( new Exception( "Inbound only" ));
+		}
+
+		@Override
+		public void
+		close(
+			String		reason )
+		{
+			closed = true;
+
+			readyForRead( false );
+			readyForWrite( false );
+
+			TransportHelperFilter	filter = getFilter();
+
+			if ( filter != null ){
+
+				filter.getHelper().close( reason );
+
+				setFilter( null );
+			}
+		}
+
+		@Override
+		public boolean
+		isClosed()
+		{
+			return( closed );
+		}
+	}
+
+	private static class
+	Helper
+		implements TransportHelper
+	{
+		private final I2PSocket				socket;
+		private final InetSocketAddress		address;
+
+		private final MessageInputStream	input;
+		private final OutputStream			output;
+
+		private final I2PHelperStreamWriter.Queue	write_queue = async_writer.createQueue();
+
+		private final Object	lock = new Object();
+
+		private selectListener	read_listener;
+		private Object			read_attachment;
+		private boolean			read_paused;
+
+		private selectListener	write_listener;
+		private Object			write_attachment;
+		private boolean			write_paused;
+
+			// one write in flight, or waiting for the pool to drop below its ceiling
+
+		private boolean				write_pending;
+		private volatile boolean	write_waiting;
+
+		private Map<Object,Object>	user_data;
+
+		private final long	start_time	= SystemTime.getMonotonousTime();
+
+		private long		bytes_to_core;
+		private long		bytes_from_core;
+
+		private volatile boolean	closed;
+
+		private final I2PHelperBufferPool.Waiter	buffer_waiter =
+			()->{
+				if ( closed || !write_waiting ){
+
+					return( false );
+				}
+
+				write_waiting = false;
+
+					// can't take the lock here as the releaser may hold another connection's lock
+
+				select_pool.run(
+					new AERunnable()
+					{
+						@Override
+						public void
+						runSupport()
+						{
+							fireWriteSelect();
+						}
+					});
+
+				return( true );
+			};
+
+		private
+		Helper(
+			I2PSocket			_socket,
+			InetSocketAddress	_address )
+
+			throws IOException
+		{
+			socket		= _socket;
+			address		= _address;
+
+			input	= (MessageInputStream)socket.getInputStream();
+			output	= socket.getOutputStream();
+
+			input.setReadTimeout( 0 );	// non-blocking
+
+			input.setActivityListener( ()->fireReadSelect( true ));
+
+			I2PHelperHandoffStats.INTERNAL.recordStarted();
+		}
+
+		@Override
+		public InetSocketAddress
+		getAddress()
+		{
+			return( address );
+		}
+
+		@Override
+		public String
+		getName(
+			boolean		verbose )
+		{
+			return( verbose?( "I2P: " + address ):"I2P" );
+		}
+
+		@Override
+		public boolean
+		isTCP()
+		{
+			return( true );
+		}
+
+		@Override
+		public boolean
+		minimiseOverheads()
+		{
+			return( false );
+		}
+
+		@Override
+		public int
+		getConnectTimeout()
+		{
+			return( CONNECT_TIMEOUT );
+		}
+
+		@Override
+		public int
+		getReadTimeout()
+		{
+			return( READ_TIMEOUT );
+		}
+
+		@Override
+		public boolean
+		delayWrite(
+			ByteBuffer		buffer )
+		{
+			return( false );
+		}
+
+		@Override
+		public boolean
+		hasDelayedWrite()
+		{
+			return( false );
+		}
+
+		@Override
+		public int
+		write(
+			ByteBuffer		buffer,
+			boolean			partial_write )
+
+			throws IOException
+		{
+			return((int)write( new ByteBuffer[]{ buffer }, 0, 1 ));
+		}
+
+		@Override
+		public long
+		write(
+			ByteBuffer[]	buffers,
+			int				array_offset,
+			int				length )
+
+			throws IOException
+		{
+			final ByteBuffer	out;
+
+			synchronized( lock ){
+
+				if ( closed ){
+
+					throw( new IOException( "Transport closed" ));
+				}
+
+				if ( write_pending ){
+
+					return( 0 );
+				}
+
+				write_waiting = true;
+
+				out = buffer_pool.tryBorrow( buffer_waiter );
+
+				if ( out == null ){
+
+						// memory ceiling hit, buffer_waiter fires the write select
+
+					return( 0 );
+				}
+
+				write_waiting = false;
+
+				write_pending = true;
+			}
+
+			for ( int i=array_offset;i<array_offset+length && out.hasRemaining();i++){
+
+				ByteBuffer	buffer = buffers[i];
+
+				if ( buffer.remaining() <= out.remaining()){
+
+					out.put( buffer );
+
+				}else{
+
+					int	limit = buffer.limit();
+
+					buffer.limit( buffer.position() + out.remaining());
+
+					out.put( buffer );
+
+					buffer.limit( limit );
+				}
+			}
+
+			final int	len = out.position();
+
+			if ( len == 0 ){
+
+				synchronized( lock ){
+
+					write_pending = false;
+				}
+
+				buffer_pool.release( out );
+
+				return( 0 );
+			}
+
+			write_queue.run(
+				new AERunnable()
+				{
+					@Override
+					public void
+					runSupport()
+					{
+						boolean	ok = false;
+
+						try{
+							output.write( out.array(), 0, len );
+
+							I2PHelperHandoffStats.INTERNAL.recordFromCore( len );
+
+							synchronized( lock ){
+
+								bytes_from_core += len;
+							}
+
+							ok = true;
+
+						}catch( Throwable e ){
+
+							failed( e );
+
+						}finally{
+
+							buffer_pool.release( out );
+
+							synchronized( lock ){
+
+								write_pending = false;
+							}
+
+							if ( ok ){
+
+								fireWriteSelect();
+							}
+						}
+					}
+				});
+
+			return( len );
+		}
+
+		@Override
+		public int
+		read(
+			ByteBuffer		buffer )
+
+			throws IOException
+		{
+			if ( closed ){
+
+				throw( new IOException( "Transport closed" ));
+			}
+
+			int	rem = buffer.remaining();
+
+			if ( rem == 0 ){
+
+				return( 0 );
+			}
+
+			int	len;
+
+			if ( buffer.hasArray()){
+
+				len = input.read( buffer.array(), buffer.arrayOffset() + buffer.position(), rem );
+
+				if ( len > 0 ){
+
+					buffer.position( buffer.position() + len );
+				}
+			}else{
+
+				ByteBuffer	temp = buffer_pool.borrow();
+
+				try{
+					len = input.read( temp.array(), 0, Math.min( rem, temp.capacity()));
+
+					if ( len > 0 ){
+
+						temp.limit( len );
+
+						buffer.put( temp );
+					}
+				}finally{
+
+					buffer_pool.release( temp );
+				}
+			}
+
+			if ( len < 0 ){
+
+				throw( new IOException( "End of stream" ));
+			}
+
+			if ( len > 0 ){
+
+				I2PHelperHandoffStats.INTERNAL.recordToCore( len );
+
+				synchronized( lock ){
+
+					bytes_to_core += len;
+				}
+			}
+
+			return( len );
+		}
+
+		@Override
+		public long
+		read(
+			ByteBuffer[]	buffers,
+			int				array_offset,
+			int				length )
+
+			throws IOException
+		{
+			long	total = 0;
+
+			for ( int i=array_offset;i<array_offset+length;i++){
+
+				ByteBuffer	buffer = buffers[i];
+
+				int	rem = buffer.remaining();
+
+				if ( rem == 0 ){
+
+					continue;
+				}
+
+				int	len = read( buffer );
+
+				total += len;
+
+				if ( len < rem ){
+
+					break;
+				}
+			}
+
+			return( total );
+		}
+
+		private boolean
+		isReadable()
+		{
+			try{
+				return( input.available() > 0 );
+
+			}catch( Throwable e ){
+
+					// let the read pick up the failure
+
+				return( true );
+			}
+		}
+
+		/**
+		 * @param activity	true if the stream has just reported new data or closure
+		 */
+
+		private void
+		fireReadSelect(
+			boolean		activity )
+		{
+			final selectListener	listener;
+			final Object			attachment;
+
+			synchronized( lock ){
+
+				if ( closed || read_listener == null || read_paused ){
+
+					return;
+				}
+
+				listener	= read_listener;
+				attachment	= read_attachment;
+			}
+
+			if ( !( activity || isReadable())){
+
+				return;
+			}
+
+			select_pool.run(
+				new AERunnable()
+				{
+					@Override
+					public void
+					runSupport()
+					{
+						try{
+							listener.selectSuccess( Helper.this, attachment );
+
+						}catch( Throwable e ){
+
+							listener.selectFailure( Helper.this, attachment, e );
+						}
+					}
+				});
+		}
+
+		private void
+		fireWriteSelect()
+		{
+			final selectListener	listener;
+			final Object			attachment;
+
+			synchronized( lock ){
+
+				if ( closed || write_listener == null || write_paused || write_pending || write_waiting ){
+
+					return;
+				}
+
+					// writability is edge triggered so pause until the core asks again, as the write selector does
+
+				write_paused = true;
+
+				listener	= write_listener;
+				attachment	= write_attachment;
+			}
+
+			select_pool.run(
+				new AERunnable()
+				{
+					@Override
+					public void
+					runSupport()
+					{
+						try{
+							listener.selectSuccess( Helper.this, attachment );
+
+						}catch( Throwable e ){
+
+							listener.selectFailure( Helper.this, attachment, e );
+						}
+					}
+				});
+		}
+
+		@Override
+		public void
+		pauseReadSelects()
+		{
+			synchronized( lock ){
+
+				read_paused = true;
+			}
+		}
+
+		@Override
+		public void
+		pauseWriteSelects()
+		{
+			synchronized( lock ){
+
+				write_paused = true;
+			}
+		}
+
+		@Override
+		public void
+		resumeReadSelects()
+		{
+			synchronized( lock ){
+
+				read_paused = false;
+			}
+
+			fireReadSelect( false );
+		}
+
+		@Override
+		public void
+		resumeWriteSelects()
+		{
+			synchronized( lock ){
+
+				write_paused = false;
+			}
+
+			fireWriteSelect();
+		}
+
+		@Override
+		public void
+		registerForReadSelects(
+			selectListener		listener,
+			Object				attachment )
+		{
+			synchronized( lock ){
+
+				read_listener	= listener;
+				read_attachment	= attachment;
+				read_paused		= false;
+			}
+
+			fireReadSelect( false );
+		}
+
+		@Override
+		public void
+		registerForWriteSelects(
+			selectListener		listener,
+			Object				attachment )
+		{
+			synchronized( lock ){
+
+				write_listener		= listener;
+				write_attachment	= attachment;
+				write_paused		= false;
+			}
+
+			fireWriteSelect();
+		}
+
+		@Override
+		public void
+		cancelReadSelects()
+		{
+			synchronized( lock ){
+
+				read_listener	= null;
+				read_attachment	= null;
+			}
+		}
+
+		@Override
+		public void
+		cancelWriteSelects()
+		{
+			synchronized( lock ){
+
+				write_listener		= null;
+				write_attachment	= null;
+			}
+		}
+
+		@Override
+		public boolean
+		isClosed()
+		{
+			return( closed );
+		}
+
+		@Override
+		public void
+		close(
+			String		reason )
+		{
+			long	bytes;
+
+			synchronized( lock ){
+
+				if ( closed ){
+
+					return;
+				}
+
+				closed = true;
+
+				read_listener	= null;
+				write_listener	= null;
+
+				bytes = bytes_to_core + bytes_from_core;
+			}
+
+			buffer_pool.cancel( buffer_waiter );
+
+			try{
+				socket.close();
+
+			}catch( Throwable e ){
+			}
+
+			I2PHelperHandoffStats.INTERNAL.recordClosed( SystemTime.getMonotonousTime() - start_time, bytes );
+		}
+
+		@Override
+		public void
+		failed(
+			Throwable	reason )
+		{
+			close( Debug.getNestedExceptionMessage( reason ));
+		}
+
+		@Override
+		public void
+		setUserData(
+			Object	key,
+			Object	data )
+		{
+			synchronized( lock ){
+
+				if ( user_data == null ){
+
+					user_data = new HashMap<>();
+				}
+
+				user_data.put( key, data );
+			}
+		}
+
+		@Override
+		public Object
+		getUserData(
+			Object	key )
+		{
+			synchronized( lock ){
+
+				return( user_data==null?null:user_data.get( key ));
+			}
+		}
+
+		@Override
+		public void
+		setTrace(
+			boolean	on )
+		{
+		}
+
+		@Override
+		public void
+		setScatteringMode(
+			long	forBytes )
+		{
+		}
+	}
+}
@@ -27,7 +27,7 @@ import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 
-import net.i2p.data.Base32;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperB32Cache;
 
 import com.biglybt.core.util.AENetworkClassifier;
 import com.biglybt.core.util.BDecoder;
@@ -261,13 +261,24 @@ I2PHelperMessageHandler
 								
 								if ( connection.isIncoming()){
 								
-									TransportEndpointTCP ep = (TransportEndpointTCP)connection.getTransport().getTransportEndpoint();
-								
-									SocketChannel chan = ep.getSocketChannel();
+									Transport transport = connection.getTransport();
 									
-									if ( chan != null && !plugin.checkMixState( (InetSocketAddress)chan.socket().getRemoteSocketAddress(), torrent_hash )){
+									if ( I2PHelperInternalHandoff.isInternal( transport )){
 										
-										throw( new RuntimeException( "Incorrect mix" ));
+										if ( !plugin.checkMixState( I2PHelperInternalHandoff.getDHTIndex( transport ), torrent_hash )){
+											
+											throw( new RuntimeException( "Incorrect mix" ));
+										}
+									}else{
+										
+										TransportEndpointTCP ep = (TransportEndpointTCP)transport.getTransportEndpoint();
+									
+										SocketChannel chan = ep.getSocketChannel();
+										
+										if ( chan != null && !plugin.checkMixState( (InetSocketAddress)chan.socket().getRemoteSocketAddress(), torrent_hash )){
+											
+											throw( new RuntimeException( "Incorrect mix" ));
+										}
 									}
 								}else{
 								
@@ -765,11 +776,7 @@ I2PHelperMessageHandler
 			
 			for ( int i=0;i<hashes_len;i+=32 ){
 				
-				byte[]	bytes = new byte[32];
-				
-				System.arraycopy( hashes, i, bytes, 0, 32 );
-				
-				String host = Base32.encode( bytes ) + ".b32.i2p";
+				String host = I2PHelperB32Cache.getAddress( hashes, i );
 								
 				PeerItem peer = 
 					PeerItemFactory.createPeerItem( 
@@ -855,16 +862,9 @@ I2PHelperMessageHandler
 					
 					String host = peers[i].getAddressString();
 					
-					if ( host.endsWith( ".b32.i2p" )){
+					if ( I2PHelperB32Cache.getHash( host, hashes, pos )){
 						
-						byte[] h = Base32.decode( host.substring( 0, host.length() - 8 ));
-						
-						if ( h.length == 32 ){
-							
-							System.arraycopy( h, 0, hashes, pos, 32 );
-							
-							pos += 32;
-						}
+						pos += 32;
 					}
 				}
 				
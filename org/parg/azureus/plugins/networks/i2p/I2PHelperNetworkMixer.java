@@ -39,11 +39,15 @@ import com.biglybt.core.util.TorrentUtils;
 import com.biglybt.pif.PluginInterface;
 import com.biglybt.pif.download.Download;
 import com.biglybt.pif.download.DownloadAttributeListener;
+import com.biglybt.pif.download.DownloadListener;
 import com.biglybt.pif.download.DownloadManager;
 import com.biglybt.pif.download.DownloadManagerListener;
+import com.biglybt.pif.download.DownloadPeerListener;
 import com.biglybt.pif.download.DownloadScrapeResult;
 import com.biglybt.pif.peers.Peer;
 import com.biglybt.pif.peers.PeerManager;
+import com.biglybt.pif.peers.PeerManagerEvent;
+import com.biglybt.pif.peers.PeerManagerListener2;
 import com.biglybt.pif.peers.PeerStats;
 import com.biglybt.pif.torrent.Torrent;
 import com.biglybt.pif.torrent.TorrentAttribute;
@@ -115,6 +119,12 @@ I2PHelperNetworkMixer
 	
 	private AsyncDispatcher	dispatcher = new AsyncDispatcher( "i2pmixer", 5*1000 );
 	
+		// per-download state maintained from download and peer events so that the periodic checks
+		// only need to look at the downloads that have changed
+	
+	private Map<Download,MixDownload>	mix_downloads			= new HashMap<Download,MixDownload>();
+	private Set<MixDownload>			priority_check_pending	= new HashSet<MixDownload>();
+	
 	private boolean	destroyed;
 	
 	protected
@@ -190,6 +200,8 @@ I2PHelperNetworkMixer
 			}
 			
 			addSRCode( download );
+			
+			addMixDownload( download );
 		}
 		
 		recheck_timer = 
@@ -383,11 +395,16 @@ I2PHelperNetworkMixer
 		if ( existing_state != MS_MANUAL ){
 			
 			download.addAttributeListener( this, ta_networks, DownloadAttributeListener.WRITTEN );
-							
-			checkMixedDownloads();
 		}
 		
 		addSRCode( download );
+		
+		addMixDownload( download );
+		
+		if ( existing_state != MS_MANUAL ){
+			
+			checkMixedDownloads();
+		}
 	}
 	
 	@Override
@@ -395,6 +412,23 @@ I2PHelperNetworkMixer
 	downloadRemoved(
 		Download	download )
 	{
+		MixDownload	md;
+		
+		synchronized( mix_downloads ){
+			
+			md = mix_downloads.remove( download );
+			
+			if ( md != null ){
+				
+				priority_check_pending.remove( md );
+			}
+		}
+		
+		if ( md != null ){
+			
+			md.destroy();
+		}
+		
 		checkMixedDownloads();
 		
 		removeSRCode( download );
@@ -828,84 +862,70 @@ I2PHelperNetworkMixer
 	}
 	
 	private void
-	checkPriorityPeers()
+	addMixDownload(
+		Download	download )
 	{
-		DownloadManager dm = plugin_interface.getDownloadManager();
+		MixDownload	md = new MixDownload( download );
 		
-		Download[]	downloads = dm.getDownloads();
-				
-		for ( Download download: downloads ){
+		synchronized( mix_downloads ){
 			
-			if ( download.getState() == Download.ST_SEEDING ){
-				
-				String[] nets = PluginCoreUtils.unwrap( download ).getDownloadState().getNetworks();
-				
-				if ( nets.length == 1 ){
-					
-					continue;
-				}
-				
-				boolean	found_pub = false;
-				
-				for ( String net: nets ){
-					
-					if ( net == AENetworkClassifier.AT_PUBLIC ){
-						
-						found_pub = true;
-					}
-				}
-				
-				if ( !found_pub ){
-					
-					continue;
-				}
-				
-				PeerManager pm = download.getPeerManager();
-				
-				if ( pm == null ){
-					
-					continue;
-				}
+			if ( destroyed || mix_downloads.containsKey( download )){
 				
-				Peer[] peers = pm.getPeers();
-				
-				List<Peer> i2p_peers = new ArrayList<Peer>(peers.length);
-				
-				int	priority = 0;
+				return;
+			}
+			
+			mix_downloads.put( download, md );
+		}
+		
+		md.start();
+	}
+	
+	private MixDownload
+	getMixDownload(
+		Download	download )
+	{
+		synchronized( mix_downloads ){
+			
+			return( mix_downloads.get( download ));
+		}
+	}
+	
+	private void
+	priorityCheckRequired(
+		MixDownload		md )
+	{
+		synchronized( mix_downloads ){
+			
+			if ( mix_downloads.get( md.download ) == md ){
 				
-				for ( Peer peer: peers ){
-					
-					String cat =  AENetworkClassifier.categoriseAddress( peer.getIp());
-					
-					if ( cat != AENetworkClassifier.AT_PUBLIC ){
-						
-						i2p_peers.add( peer );
-						
-						if ( peer.isPriorityConnection()){
-							
-							priority++;
-						}
-					}
-				}
+				priority_check_pending.add( md );
+			}
+		}
+	}
+	
+	private void
+	checkPriorityPeers()
+	{
+			// only downloads that have had non-public peers come or go, or have started seeding or
+			// changed networks, since the last check need looking at
+		
+		List<MixDownload>	pending;
+		
+		synchronized( mix_downloads ){
+			
+			if ( priority_check_pending.isEmpty()){
 				
-				if ( i2p_peers.size() > 0 && priority < 2 ){
-					
-					for ( Peer peer: i2p_peers ){
-						
-						if ( !peer.isPriorityConnection()){
-							
-							peer.setPriorityConnection( true );
-							
-							priority++;
-							
-							if ( priority == 2 ){
-								
-								break;
-							}
-						}
-					}
-				}
+				return;
 			}
+			
+			pending = new ArrayList<MixDownload>( priority_check_pending );
+			
+			priority_check_pending.clear();
+		}
+		
+		for ( MixDownload md: pending ){
+			
+			md.checkPriorityPeers();
 		}
 	}
 	
@@ -992,7 +1012,11 @@ I2PHelperNetworkMixer
 			});
 	}
 	
-	private Comparator<Download> download_comparator =
+	private Comparator<Download>
+	getComparator(
+		final Map<Download,Integer>		seed_counts )
+	{
+		return(
 			new Comparator<Download>() 
 			{
 				@Override
@@ -1024,10 +1048,10 @@ I2PHelperNetworkMixer
 						}
 					}
 					
-					DownloadScrapeResult s1 = d1.getAggregatedScrapeResult();
-					DownloadScrapeResult s2 = d2.getAggregatedScrapeResult();
+					Integer s1 = seed_counts.get( d1 );
+					Integer s2 = seed_counts.get( d2 );
 					
-					if ( s1 == s2 ){
+					if ( s1 == null && s2 == null ){
 						
 						return( 0 );
 						
@@ -1041,60 +1065,87 @@ I2PHelperNetworkMixer
 						
 					}else{
 						
-						return( s2.getSeedCount() - s1.getSeedCount());
+						return( s2 - s1 );
 					}
 				}
-			};
-			
-	private void
-	checkMixedDownloadsSupport()
+			});
+	}
+	
+	private boolean
+	isMixCandidate(
+		Download		download )
 	{
-		DownloadManager dm = plugin_interface.getDownloadManager();
+		if ( 	download.getFlag( Download.FLAG_LOW_NOISE ) || 
+				download.getFlag( Download.FLAG_METADATA_DOWNLOAD )){
+			
+			return( false );
+		}
 		
-		Download[]	downloads = dm.getDownloads();
+		Torrent torrent = download.getTorrent();
 		
-		List<Download>	complete_downloads		= new ArrayList<Download>( downloads.length );
-		List<Download>	incomplete_downloads 	= new ArrayList<Download>( downloads.length );
+		if ( torrent == null ){
+			
+			return( false );
+		}
 		
-		for ( Download download: downloads ){
+		if ( TorrentUtils.isReallyPrivate( PluginCoreUtils.unwrap( torrent ))){
 			
-			if ( 	download.getFlag( Download.FLAG_LOW_NOISE ) || 
-					download.getFlag( Download.FLAG_METADATA_DOWNLOAD )){
-				
-				continue;
-			}
+			return( false );
+		}
+		
+		DownloadManagerState ds = PluginCoreUtils.unwrap( download ).getDownloadState();
+
+		if ( !ds.isNetworkEnabled( AENetworkClassifier.AT_PUBLIC )){
 			
-			Torrent torrent = download.getTorrent();
+			return( false );
+		}
+		
+		int	existing_state = download.getIntAttribute( ta_mixstate );
+		
+		if ( existing_state == MS_CHANGING || existing_state == MS_MANUAL ){
 			
-			if ( torrent == null ){
-				
-				continue;
-			}
+			return( false );
+		}
+		
+		int download_state = download.getState();
+	
+		if ( 	download_state == Download.ST_ERROR || 
+				download_state == Download.ST_STOPPING || 
+				download_state == Download.ST_STOPPED ){
 			
-			if ( TorrentUtils.isReallyPrivate( PluginCoreUtils.unwrap( torrent ))){
-				
-				continue;
-			}
+			return( false );
+		}
+		
+		return( true );
+	}
+	
+	private void
+	checkMixedDownloadsSupport()
+	{
+			// candidacy is maintained from state and attribute events so only the current candidates
+			// need re-validating here rather than every download
+		
+		List<MixDownload>	candidates = new ArrayList<MixDownload>();
+		
+		synchronized( mix_downloads ){
 			
-			DownloadManagerState ds = PluginCoreUtils.unwrap( download ).getDownloadState();
-
-			if ( !ds.isNetworkEnabled( AENetworkClassifier.AT_PUBLIC )){
+			for ( MixDownload md: mix_downloads.values()){
 				
-				continue;
+				if ( md.isCandidate()){
+					
+					candidates.add( md );
+				}
 			}
+		}
+		
+		List<Download>	complete_downloads		= new ArrayList<Download>( candidates.size());
+		List<Download>	incomplete_downloads 	= new ArrayList<Download>( candidates.size());
+		
+		for ( MixDownload md: candidates ){
 			
-			int	existing_state = download.getIntAttribute( ta_mixstate );
+			Download download = md.download;
 			
-			if ( existing_state == MS_CHANGING || existing_state == MS_MANUAL ){
-				
-				continue;
-			}
-			
-			int download_state = download.getState();
-		
-			if ( 	download_state == Download.ST_ERROR || 
-					download_state == Download.ST_STOPPING || 
-					download_state == Download.ST_STOPPED ){
+			if ( !md.updateCandidate( false )){
 				
 				continue;
 			}
@@ -1125,11 +1176,25 @@ I2PHelperNetworkMixer
 			active_limit = Integer.MAX_VALUE;
 		}
 				
+			// grab the scrape seed counts once up front rather than for every comparison
+		
+		Map<Download,Integer>	seed_counts = new HashMap<Download,Integer>( downloads.size()*2 );
+		
+		for ( Download download: downloads ){
+			
+			DownloadScrapeResult scrape = download.getAggregatedScrapeResult();
+			
+			if ( scrape != null ){
+				
+				seed_counts.put( download, scrape.getSeedCount());
+			}
+		}
+		
 		int	sr_count;
 		
 		synchronized( seed_request_downloads ){
 		
-			Collections.sort( downloads, download_comparator );
+			Collections.sort( downloads, getComparator( seed_counts ));
 		
 			sr_count = seed_request_downloads.size();
 		}
@@ -1376,6 +1441,15 @@ I2PHelperNetworkMixer
 			// user is manually configuring networks, don't touch from now on
 		
 		download.setIntAttribute( ta_mixstate, MS_MANUAL );
+		
+		MixDownload md = getMixDownload( download );
+		
+		if ( md != null ){
+			
+			md.updateCandidate( false );
+			
+			priorityCheckRequired( md );
+		}
 	}
 	
 	private void
@@ -1410,6 +1484,15 @@ I2PHelperNetworkMixer
 			
 			download.setIntAttribute( ta_mixstate, enabled?MS_ACTIVE:MS_NONE );
 		}
+		
+		MixDownload md = getMixDownload( download );
+		
+		if ( md != null ){
+			
+			md.updateCandidate( false );
+			
+			priorityCheckRequired( md );
+		}
 	}
 	
 	protected void
@@ -1442,5 +1525,310 @@ I2PHelperNetworkMixer
 			
 			download.removeAttributeListener( this, ta_networks, DownloadAttributeListener.WRITTEN );
 		}
+		
+		List<MixDownload>	mds;
+		
+		synchronized( mix_downloads ){
+			
+			mds = new ArrayList<MixDownload>( mix_downloads.values());
+			
+			mix_downloads.clear();
+			
+			priority_check_pending.clear();
+		}
+		
+		for ( MixDownload md: mds ){
+			
+			md.destroy();
+		}
+	}
+	
+	private class
+	MixDownload
+		implements DownloadListener, DownloadPeerListener, PeerManagerListener2
+	{
+		private final Download		download;
+		
+		private PeerManager			peer_manager;
+		
+			// non-public peers are categorised once as they are added
+		
+		private final Set<Peer>		non_public_peers = new HashSet<Peer>();
+		
+		private volatile boolean	candidate;
+		
+		private boolean				destroyed;
+		
+		private
+		MixDownload(
+			Download		_download )
+		{
+			download	= _download;
+		}
+		
+		private void
+		start()
+		{
+			updateCandidate( false );
+			
+			download.addListener( this );
+			
+			download.addPeerListener( this );
+			
+			priorityCheckRequired( this );
+		}
+		
+		private boolean
+		isCandidate()
+		{
+			return( candidate );
+		}
+		
+		/**
+		 * @param trigger	request a mix check if candidacy has changed
+		 * @return current candidacy
+		 */
+		
+		private boolean
+		updateCandidate(
+			boolean		trigger )
+		{
+			boolean	was_candidate = candidate;
+			
+			boolean	is_candidate = isMixCandidate( download );
+			
+			candidate = is_candidate;
+			
+			if ( trigger && is_candidate != was_candidate ){
+				
+				checkMixedDownloads();
+			}
+			
+			return( is_candidate );
+		}
+		
+		@Override
+		public void
+		stateChanged(
+			Download		download,
+			int				old_state,
+			int				new_state )
+		{
+			updateCandidate( true );
+			
+			if ( new_state == Download.ST_SEEDING ){
+				
+				priorityCheckRequired( this );
+			}
+		}
+
+		@Override
+		public void
+		positionChanged(
+			Download		download, 
+			int 			oldPosition,
+			int 			newPosition )
+		{
+		}
+		
+		@Override
+		public void
+		peerManagerAdded(
+			Download		download,
+			PeerManager		pm )
+		{
+			synchronized( this ){
+				
+				if ( destroyed || peer_manager == pm ){
+					
+					return;
+				}
+				
+				if ( peer_manager != null ){
+					
+					peer_manager.removeListener( this );
+				}
+				
+				peer_manager = pm;
+				
+				non_public_peers.clear();
+			}
+			
+			pm.addListener( this );
+			
+				// pick up any peers that were already connected
+			
+			for ( Peer peer: pm.getPeers()){
+				
+				peerAdded( peer );
+			}
+		}
+		
+		@Override
+		public void
+		peerManagerRemoved(
+			Download		download,
+			PeerManager		pm )
+		{
+			synchronized( this ){
+				
+				if ( peer_manager != pm ){
+					
+					return;
+				}
+				
+				peer_manager = null;
+				
+				non_public_peers.clear();
+			}
+			
+			pm.removeListener( this );
+		}
+		
+		@Override
+		public void
+		eventOccurred(
+			PeerManagerEvent	event )
+		{
+			int	type = event.getType();
+			
+			if ( type == PeerManagerEvent.ET_PEER_ADDED ){
+				
+				peerAdded( event.getPeer());
+				
+			}else if ( type == PeerManagerEvent.ET_PEER_REMOVED ){
+				
+				boolean	removed;
+				
+				synchronized( this ){
+					
+					removed = non_public_peers.remove( event.getPeer());
+				}
+				
+				if ( removed ){
+					
+					priorityCheckRequired( this );
+				}
+			}
+		}
+		
+		private void
+		peerAdded(
+			Peer		peer )
+		{
+			if ( AENetworkClassifier.categoriseAddress( peer.getIp()) == AENetworkClassifier.AT_PUBLIC ){
+				
+				return;
+			}
+			
+			boolean	added;
+			
+			synchronized( this ){
+				
+				added = !destroyed && non_public_peers.add( peer );
+			}
+			
+			if ( added ){
+				
+				priorityCheckRequired( this );
+			}
+		}
+		
+		private void
+		checkPriorityPeers()
+		{
+			if ( download.getState() != Download.ST_SEEDING ){
+				
+				return;
+			}
+			
+			String[] nets = PluginCoreUtils.unwrap( download ).getDownloadState().getNetworks();
+			
+			if ( nets.length == 1 ){
+				
+				return;
+			}
+			
+			boolean	found_pub = false;
+			
+			for ( String net: nets ){
+				
+				if ( net == AENetworkClassifier.AT_PUBLIC ){
+					
+					found_pub = true;
+				}
+			}
+			
+			if ( !found_pub ){
+				
+				return;
+			}
+			
+			List<Peer> i2p_peers;
+			
+			synchronized( this ){
+				
+				if ( destroyed || non_public_peers.isEmpty()){
+					
+					return;
+				}
+				
+				i2p_peers = new ArrayList<Peer>( non_public_peers );
+			}
+			
+			int	priority = 0;
+			
+			for ( Peer peer: i2p_peers ){
+				
+				if ( peer.isPriorityConnection()){
+					
+					priority++;
+				}
+			}
+			
+			if ( priority < 2 ){
+				
+				for ( Peer peer: i2p_peers ){
+					
+					if ( !peer.isPriorityConnection()){
+						
+						peer.setPriorityConnection( true );
+						
+						priority++;
+						
+						if ( priority == 2 ){
+							
+							break;
+						}
+					}
+				}
+			}
+		}
+		
+		private void
+		destroy()
+		{
+			PeerManager	pm;
+			
+			synchronized( this ){
+				
+				destroyed = true;
+				
+				pm = peer_manager;
+				
+				peer_manager = null;
+				
+				non_public_peers.clear();
+			}
+			
+			download.removeListener( this );
+			
+			download.removePeerListener( this );
+			
+			if ( pm != null ){
+				
+				pm.removeListener( this );
+			}
+		}
 	}
 }
@@ -56,6 +56,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 
 import net.i2p.client.streaming.I2PSocket;
@@ -64,6 +65,7 @@ import net.i2p.crypto.eddsa.EdDSAPublicKey;
 import net.i2p.data.Base32;
 import net.i2p.data.Base64;
 import net.i2p.data.Destination;
+import net.i2p.data.Hash;
 import net.i2p.router.Router;
 import net.i2p.util.NativeBigInteger;
 
@@ -136,6 +138,7 @@ import org.parg.azureus.plugins.networks.i2p.proxydht.TorProxyDHT;
 import org.parg.azureus.plugins.networks.i2p.router.I2PHelperRouter;
 import org.parg.azureus.plugins.networks.i2p.router.I2PHelperRouterDHT;
 import org.parg.azureus.plugins.networks.i2p.router.I2PHelperSocksProxy;
+import org.parg.azureus.plugins.networks.i2p.router.I2PHelperStartup;
 import org.parg.azureus.plugins.networks.i2p.router.I2PHelperUtils;
 import org.parg.azureus.plugins.networks.i2p.router.I2PHelperRouter.ServerInstance;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
@@ -149,6 +152,8 @@ import org.parg.azureus.plugins.networks.i2p.vuzedht.I2PHelperAZDHT;
 import org.parg.azureus.plugins.networks.i2p.vuzedht.I2PHelperAZDHT.DHTContact;
 import org.parg.azureus.plugins.networks.i2p.vuzedht.I2PHelperAZDHT.DHTValue;
 import org.parg.azureus.plugins.networks.i2p.vuzedht.I2PHelperDHTBridge;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperB32Cache;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperStreamWriter;
 
 import com.biglybt.core.CoreFactory;
 import com.biglybt.core.dht.transport.DHTTransportAlternativeContact;
@@ -443,11 +448,19 @@ I2PHelperPlugin
 	private boolean					dht_enabled;
 	private boolean					dht_secondaries_enabled;
 	
+	private volatile boolean		internal_handoff	= I2PHelperInternalHandoff.PARAM_ENABLE_DEFAULT;
+	
 	private volatile I2PHelperRouter		router;
 	private volatile I2PHelperTracker		tracker;
 	
 	private final AESemaphore		router_init_sem = new AESemaphore( "I2P:routerinit" );
 	
+		// plugin level start-up, as opposed to the start-up of each router
+	
+	private final I2PHelperStartup	plugin_startup = new I2PHelperStartup();
+	
+	private volatile I2PHelperRouter	first_router;
+	
 	private final AsyncDispatcher	lookup_dispatcher = new AsyncDispatcher( "I2P:lookup" );
 	
 	
@@ -468,6 +481,8 @@ I2PHelperPlugin
 	
 	private I2PHelperNetworkMixer		network_mixer;
 	
+	private volatile I2PHelperDHTIndexMap	dht_index_map;
+	
 	private MagnetURIHandlerListener	magnet_handler =
 		new MagnetURIHandlerListener()
 		{
@@ -535,13 +550,13 @@ I2PHelperPlugin
 		
 	private int DEST_HISTORY_MAX	= 100;
 	
-	private Map<String,Destination>		dest_map = 
-		new LinkedHashMap<String,Destination>(DEST_HISTORY_MAX,0.75f,true)
+	private Map<Hash,Destination>		dest_map = 
+		new LinkedHashMap<Hash,Destination>(DEST_HISTORY_MAX,0.75f,true)
 		{
 			@Override
 			protected boolean
 			removeEldestEntry(
-		   		Map.Entry<String,Destination> eldest) 
+		   		Map.Entry<Hash,Destination> eldest) 
 			{
 				return size() > DEST_HISTORY_MAX;
 			}
@@ -597,6 +612,8 @@ I2PHelperPlugin
 			
 			ta_networks 	= plugin_interface.getTorrentManager().getAttribute( TorrentAttribute.TA_NETWORKS );
 
+			dht_index_map	= new I2PHelperDHTIndexMap( this );
+			
 			setUnloadable( true );
 			
 			final File plugin_dir = pi.getPluginconfig().getPluginUserFile( "tmp.tmp" ).getParentFile();
@@ -670,6 +687,14 @@ I2PHelperPlugin
 			hostname_service = new I2PHelperHostnameService( this, plugin_dir );
 
 			plugin_config = plugin_interface.getPluginconfig();
+			
+			I2PHelperStreamWriter.setConfig(
+				plugin_config.getPluginStringParameter( I2PHelperStreamWriter.PARAM_MODE, I2PHelperStreamWriter.PARAM_MODE_DEFAULT ),
+				plugin_config.getPluginIntParameter( I2PHelperStreamWriter.PARAM_THREADS, I2PHelperStreamWriter.PARAM_THREADS_DEFAULT ));
+			
+			I2PHelperSocketForwarder.setBufferCeiling( plugin_config.getPluginIntParameter( I2PHelperSocketForwarder.PARAM_BUFFER_CEILING_MB, I2PHelperSocketForwarder.PARAM_BUFFER_CEILING_MB_DEFAULT ));
+			
+			internal_handoff = plugin_config.getPluginBooleanParameter( I2PHelperInternalHandoff.PARAM_ENABLE, I2PHelperInternalHandoff.PARAM_ENABLE_DEFAULT );
 						
 			config_model = ui_manager.createBasicPluginConfigModel( "plugins", "azi2phelper.name" );
 
@@ -1434,6 +1459,8 @@ I2PHelperPlugin
 						router_properties.put( I2PHelperRouter.PARAM_OTHER_OUTBOUND_HOPS, other_out_hops_param.getValue());
 						router_properties.put( I2PHelperRouter.PARAM_OTHER_OUTBOUND_QUANTITY, other_out_quant_param.getValue());
 
+						router_properties.put( I2PHelperRouter.PARAM_INTERNAL_I2CP, plugin_config.getPluginBooleanParameter( I2PHelperRouter.PARAM_INTERNAL_I2CP, I2PHelperRouter.PARAM_INTERNAL_I2CP_DEFAULT ));
+
 						I2PHelperRouter current_router = router;
 						
 						if ( current_router != null ){
@@ -1704,6 +1731,8 @@ I2PHelperPlugin
 									my_router = router = 
 											new I2PHelperRouter( I2PHelperPlugin.this, plugin_dir, router_properties, is_bootstrap_node, is_vuze_dht, new_i2p_id, dht_count, I2PHelperPlugin.this );
 									
+									routerAvailable( my_router );
+									
 									if ( ext_i2p_param.getValue()){
 											
 										my_router.initialiseRouter( ext_i2p_host_param.getValue(), ext_i2p_port_param.getValue());
@@ -1749,6 +1778,8 @@ I2PHelperPlugin
 											
 											try{
 												my_router.logInfo();
+												
+												logDHTInterfaceStats();
 											
 											}catch( Throwable e ){
 												
@@ -2845,6 +2876,30 @@ I2PHelperPlugin
 		return( router );
 	}
 	
+		/**
+		 * Invokes the listener with the router once one has been created, immediately if one
+		 * already has. Note that the router may still be initialising
+		 */
+	
+	public void
+	addRouterListener(
+		Consumer<I2PHelperRouter>		listener )
+	{
+		plugin_startup.getStage( I2PHelperStartup.STAGE_ROUTER ).addListener(( stage )->listener.accept( first_router ));
+	}
+	
+	private void
+	routerAvailable(
+		I2PHelperRouter		r )
+	{
+		if ( first_router == null ){
+			
+			first_router = r;
+		}
+		
+		plugin_startup.getStage( I2PHelperStartup.STAGE_ROUTER ).complete();
+	}
+	
 	private static Map<ServerInstance,DHTAZClient>	az_dht_client_map = new HashMap<ServerInstance, DHTAZClient>();
 	
 	private static DHTAZClient
@@ -3958,6 +4013,18 @@ I2PHelperPlugin
 						dht.ping( ni );
 					}
 					
+				}else if ( cmd.equals( "i2cp_test" )){
+					
+					if ( bits.length > 3 ){
+						
+						throw( new Exception( "usage: i2cp_test [count] [size]"));
+					}
+					
+					int	count	= bits.length>1?Integer.parseInt( bits[1] ):1000;
+					int	size	= bits.length>2?Integer.parseInt( bits[2] ):512;
+					
+					router.testI2CP( count, size );
+					
 				}else if ( cmd.equals( "bootstrap" )){
 					
 					dht.requestBootstrap();
@@ -4304,6 +4371,17 @@ I2PHelperPlugin
 	selectDHTIndex(
 		byte[]	torrent_hash )
 	{
+		I2PHelperDHTIndexMap map = dht_index_map;
+		
+		if ( map != null ){
+			
+				// unknown hashes have no download and therefore default to the mix
+			
+			int index = map.getIndex( torrent_hash );
+			
+			return( dht_count < 2 || index == -1 ?I2PHelperRouter.DHT_MIX:index );
+		}
+		
 		try{
 			Download download = plugin_interface.getDownloadManager().getDownload( torrent_hash );
 				
@@ -4325,7 +4403,14 @@ I2PHelperPlugin
 			return( selectDHTIndex());
 			
 		}else{
-						
+			
+			I2PHelperDHTIndexMap map = dht_index_map;
+			
+			if ( map != null ){
+				
+				return( dht_count < 2?I2PHelperRouter.DHT_MIX:map.getIndex( download ));
+			}
+			
 			return( selectDHTIndex( getNetworks( download )));
 		}
 	}
@@ -4393,11 +4478,30 @@ I2PHelperPlugin
 			return;	// invalid according to NodeInfo
 		}
 		
+		byte[] host_hash = I2PHelperB32Cache.getHash( host );
+		
+		if ( host_hash == null ){
+			
+			return;
+		}
+		
+		Hash hash = new Hash( host_hash );
+		
 		Destination dest;
 		
 		synchronized( dest_map ){
 			
-			dest = dest_map.get( host );
+			dest = dest_map.get( hash );
+		}
+		
+		if ( dest == null ){
+			
+			I2PHelperRouter current_router = router;
+			
+			if ( current_router != null ){
+				
+				dest = current_router.getDestinationCache().get( hash );
+			}
 		}
 		
 		if ( dest != null ){
@@ -4430,13 +4534,20 @@ I2PHelperPlugin
 		
 		if ( dest != null ){
 			
-			byte[]	peer_hash = dest.calculateHash().getData();
+				// keyed on the hash so no address string is needed here
+			
+			Hash	peer_hash = dest.calculateHash();
 			
-			String peer_ip = Base32.encode( peer_hash ) + ".b32.i2p";
-
 			synchronized( dest_map ){
 				
-				dest_map.put( peer_ip, dest );
+				dest_map.put( peer_hash, dest );
+			}
+			
+			I2PHelperRouter current_router = router;
+			
+			if ( current_router != null ){
+				
+				current_router.getDestinationCache().put( peer_hash, dest );
 			}
 		}
 	}
@@ -4469,11 +4580,7 @@ I2PHelperPlugin
 			
 		throws Exception
 	{		
-		Socket bigly_socket;
-		
-		SocketChannel channel = SocketChannel.open();
-
-		bigly_socket = channel.socket();
+		Socket bigly_socket = null;
 		
 		try{
 			Destination dest = i2p_socket.getPeerDestination();
@@ -4485,25 +4592,46 @@ I2PHelperPlugin
 				return;
 			}
 			
-			byte[]	remote_hash = dest.calculateHash().getData();
+			Hash	remote_hash = dest.calculateHash();
 			
-			String remote_ip = Base32.encode( remote_hash ) + ".b32.i2p";
+			String remote_ip = I2PHelperB32Cache.getAddress( remote_hash );
 			
 			
 			// System.out.println( "Incoming from " + peer_ip + ", port=" + i2p_socket.getLocalPort());
 			
 			if ( handle_maggots && i2p_socket.getLocalPort() == 80 ){
 				
-				handleMaggotRequest( i2p_socket, remote_hash );
+				handleMaggotRequest( i2p_socket, remote_hash.getData());
 				
 			}else{
 			
 				
 				synchronized( dest_map ){
 					
-					dest_map.put( remote_ip, dest );
+					dest_map.put( remote_hash, dest );
 				}
 				
+				I2PHelperRouter current_router = router;
+				
+				if ( current_router != null ){
+					
+					current_router.getDestinationCache().put( remote_hash, dest );
+				}
+				
+				final Integer dht_index = dht==null?null:dht.getDHTIndex();
+				
+					// peer connections go straight to the core, anything else (or if the core can't
+					// take them) via a loopback connection to the target port
+				
+				if ( dht != null && internal_handoff && I2PHelperInternalHandoff.handoff( i2p_socket, remote_ip, dht_index, target_port )){
+					
+					return;
+				}
+				
+				long	setup_start = SystemTime.getMonotonousTime();
+				
+				bigly_socket = SocketChannel.open().socket();
+				
 				bigly_socket.bind( null );
 				
 				final int proxy_port = bigly_socket.getLocalPort();
@@ -4514,7 +4642,7 @@ I2PHelperPlugin
 				
 					byte[]	local_hash = i2p_socket.getThisDestination().calculateHash().getData();
 				
-					local_ip = Base32.encode( local_hash ) + ".b32.i2p";
+					local_ip = I2PHelperB32Cache.getAddress( local_hash );
 					
 				}else{
 					
@@ -4532,8 +4660,6 @@ I2PHelperPlugin
 							remote_ip,
 							null );
 				
-				final Integer dht_index = dht==null?null:dht.getDHTIndex();
-				
 				if ( dht_index != null ){
 					
 					synchronized( local_port_map ){
@@ -4558,6 +4684,8 @@ I2PHelperPlugin
 				
 					bigly_socket.setTcpNoDelay( true );
 					
+					I2PHelperHandoffStats.LOOPBACK.recordSetup( SystemTime.getMonotonousTime() - setup_start );
+					
 					Runnable	on_complete = 
 						new Runnable()
 						{
@@ -4682,6 +4810,8 @@ I2PHelperPlugin
 		
 		try{
 								
+			long	setup_start = SystemTime.getMonotonousTime();
+			
 			bigly_socket.bind( null );
 			
 			final int proxy_port = bigly_socket.getLocalPort();
@@ -4722,6 +4852,8 @@ I2PHelperPlugin
 			
 				bigly_socket.setTcpNoDelay( true );
 				
+				I2PHelperHandoffStats.LOOPBACK.recordSetup( SystemTime.getMonotonousTime() - setup_start );
+				
 				Runnable	on_complete = 
 					new Runnable()
 					{
@@ -5560,6 +5692,39 @@ I2PHelperPlugin
 	private Map<Integer,I2PHelperDHTPluginInterface>	dht_pi_map 		= new HashMap<Integer, I2PHelperDHTPluginInterface>();
 	private Map<String,I2PHelperDHTPluginInterface>		dht_client_map 	= new HashMap<String, I2PHelperDHTPluginInterface>();
 	
+	private void
+	logDHTInterfaceStats()
+	{
+		List<I2PHelperDHTPluginInterface>	pis = new ArrayList<>();
+		
+		synchronized( dht_pi_map ){
+			
+			pis.addAll( dht_pi_map.values());
+		}
+		
+		synchronized( dht_client_map ){
+			
+			pis.addAll( dht_client_map.values());
+		}
+		
+		for ( I2PHelperDHTPluginInterface pi: pis ){
+			
+			String str = pi.getAdmissionStats();
+			
+			if ( str != null ){
+				
+				log( "DHT interface " + pi.getName() + ": " + str );
+			}
+		}
+		
+		I2PHelperDHTIndexMap map = dht_index_map;
+		
+		if ( map != null ){
+			
+			log( map.getString());
+		}
+	}
+	
 	public List<I2PHelperDHTPluginInterface>
 	getProxyDHTs()
 	{
@@ -6235,6 +6400,13 @@ I2PHelperPlugin
 					network_mixer = null;
 				}
 				
+				if ( dht_index_map != null ){
+					
+					dht_index_map.destroy();
+					
+					dht_index_map = null;
+				}
+				
 				if ( timer_event != null ){
 					
 					timer_event.cancel();
@@ -6284,22 +6456,46 @@ I2PHelperPlugin
 	checkMixState(
 		InetSocketAddress		source,
 		byte[]					hash )
+	{
+		Integer dht_index = null;
+		
+		if ( !source.isUnresolved()){
+			
+			synchronized( local_port_map ){
+				
+				dht_index = local_port_map.get( source.getPort());
+			}
+			
+			if ( dht_index == null ){
+				
+					// not one of ours, can't match any DHT
+				
+				dht_index = -1;
+			}
+		}
+		
+		return( checkMixState( dht_index, hash ));
+	}
+	
+	/**
+	 * @param dht_index		DHT the connection arrived on, null if it isn't to be checked
+	 */
+	
+	protected boolean
+	checkMixState(
+		Integer					dht_index,
+		byte[]					hash )
 	{
 		try{
 			Download download = plugin_interface.getDownloadManager().getDownload( hash );
 			
-			if ( !source.isUnresolved()){
+			if ( dht_index != null ){
 				
 				int required_dht = selectDHTIndex( download );
 					
-				synchronized( local_port_map ){
-					
-					Integer dht_index = local_port_map.get( source.getPort());
-					
-					if ( dht_index == null || dht_index != required_dht ){
+				if ( dht_index != required_dht ){
 						
-						return( false );
-					}
+					return( false );
 				}
 			}
 			
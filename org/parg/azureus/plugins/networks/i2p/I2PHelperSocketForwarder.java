@@ -42,6 +42,9 @@ import net.i2p.client.streaming.I2PSocket;
 import net.i2p.client.streaming.impl.MessageInputStream;
 import net.i2p.client.streaming.impl.MessageInputStream.ActivityListener;
 
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperBufferPool;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperStreamWriter;
+
 public class 
 I2PHelperSocketForwarder
 {
@@ -49,9 +52,59 @@ I2PHelperSocketForwarder
 	
 	private static ThreadPool			async_read_pool 	= new ThreadPool( "I2PSocket forward read", 32, true );
 	
-		// write pool is blocking as there is no non-blocking support for writes to I2P
+		// writes are blocking as there is no non-blocking support for writes to I2P
+	
+	private static I2PHelperStreamWriter	async_writer 	= new I2PHelperStreamWriter( "I2PSocket forward write", 256 );
+
+		// buffers are only borrowed while data is in flight. once the ceiling is reached reads are
+		// paused until a buffer is released rather than allocating more. heap buffers as the
+		// I2P streams are byte[] based
+	
+	public static final String	PARAM_BUFFER_CEILING_MB			= "azi2phelper.forwarder.buffer.max.mb";
+	public static final int		PARAM_BUFFER_CEILING_MB_DEFAULT	= 64;
+	
+	private static final int	BUFFER_SIZE			= 32*1024;
+	
+	private static final I2PHelperBufferPool	buffer_pool = 
+		new I2PHelperBufferPool( "Forwarder buffers", BUFFER_SIZE, 64, getMaxBuffers( PARAM_BUFFER_CEILING_MB_DEFAULT ), false );
+	
+	private static int
+	getMaxBuffers(
+		int		ceiling_mb )
+	{
+		return((int)Math.max( 16, Math.min( Integer.MAX_VALUE, ceiling_mb*1024L*1024/BUFFER_SIZE )));
+	}
+	
+	public static void
+	setBufferCeiling(
+		int		ceiling_mb )
+	{
+		buffer_pool.setMaxInUse( getMaxBuffers( ceiling_mb ));
+	}
 	
-	private static ThreadPool			async_write_pool 	= new ThreadPool( "I2PSocket forward write", 256, true );
+	public static String
+	getBufferStats()
+	{
+		return( buffer_pool.getString());
+	}
+	
+	public static String
+	getWriterStats()
+	{
+		return( async_writer.getString());
+	}
+	
+	static I2PHelperBufferPool
+	getBufferPool()
+	{
+		return( buffer_pool );
+	}
+	
+	public static String
+	getHandoffStats()
+	{
+		return( "Forwarder handoff: " + I2PHelperHandoffStats.LOOPBACK.getString() + "; " + I2PHelperHandoffStats.INTERNAL.getString());
+	}
 
 	private VirtualChannelSelector	read_selector;
 	private VirtualChannelSelector	write_selector;
@@ -124,6 +177,8 @@ I2PHelperSocketForwarder
 			
 			activities.add( activity );
 			
+			I2PHelperHandoffStats.LOOPBACK.recordStarted();
+			
 			if ( tidy_event != null ){
 				
 				tidy_event.cancel();
@@ -191,6 +246,8 @@ I2PHelperSocketForwarder
 			
 			activities.add( activity );
 			
+			I2PHelperHandoffStats.LOOPBACK.recordStarted();
+			
 			if ( tidy_event != null ){
 				
 				tidy_event.cancel();
@@ -367,22 +424,56 @@ I2PHelperSocketForwarder
 		private MessageInputStream 	i2p_input_stream;
 		private OutputStream		i2p_output_stream;
 		
-		private byte[]					i2p_input_buffer = new byte[16*1024];
+		private final I2PHelperStreamWriter.Queue	write_queue = async_writer.createQueue();
+		
+			// buffers are borrowed from the pool while data is in flight, null otherwise
+		
 		private volatile ByteBuffer		bigly_output_buffer;;
-
-		private byte[]					i2p_output_buffer = new byte[16*1024];
 		private volatile ByteBuffer		bigly_input_buffer;
 
 		private boolean		i2p_read_active;
 		private boolean		i2p_read_deferred;
 		private boolean 	i2p_read_dead;
 		
+			// set while a read is stalled waiting for the pool to drop below its ceiling
+		
+		private volatile boolean	i2p_read_waiting;
+		private volatile boolean	bigly_read_waiting;
+		
 		private Object		lock = new Object();
 		
 		private long		last_activity	= SystemTime.getMonotonousTime();
 		
-		private boolean		failed;
-		private boolean		destroyed;
+		private final long	start_time		= last_activity;
+		
+		private long		bytes_to_core;
+		private long		bytes_from_core;
+		
+		private boolean				failed;
+		private volatile boolean	destroyed;
+		
+		private final I2PHelperBufferPool.Waiter	buffer_waiter = 
+			()->{
+				if ( destroyed || !( i2p_read_waiting || bigly_read_waiting )){
+					
+					return( false );
+				}
+				
+					// can't take the lock here as the releaser may hold another activity's lock
+				
+				async_read_pool.run(
+					new AERunnable()
+					{
+						@Override
+						public void
+						runSupport()
+						{
+							bufferAvailable();
+						}
+					});
+				
+				return( true );
+			};
 		
 		protected
 		ForwardingActivityI2P(
@@ -498,6 +589,13 @@ I2PHelperSocketForwarder
 					return;
 				}
 				
+				if ( i2p_read_waiting ){
+					
+						// buffer_waiter will kick the read off
+					
+					return;
+				}
+				
 				i2p_read_active = true;
 			}
 			
@@ -513,6 +611,49 @@ I2PHelperSocketForwarder
 				});
 		}
 		
+		private void
+		bufferAvailable()
+		{
+			boolean	do_i2p;
+			boolean	do_bigly;
+			
+			synchronized( lock ){
+				
+				if ( destroyed ){
+					
+					return;
+				}
+				
+				do_i2p		= i2p_read_waiting;
+				do_bigly	= bigly_read_waiting;
+				
+				i2p_read_waiting	= false;
+				bigly_read_waiting	= false;
+			}
+			
+			if ( do_bigly ){
+				
+				try{
+					if ( read_selector_registered ){
+						
+						read_selector.resumeSelects( bigly_channel );
+						
+					}else{
+						
+						readFromBigly();
+					}
+				}catch( Throwable e ){
+					
+					failed( e );
+				}
+			}
+			
+			if ( do_i2p ){
+				
+				readFromI2P();
+			}
+		}
+		
 		private void
 		readFromI2PSupport()
 		{
@@ -521,7 +662,42 @@ I2PHelperSocketForwarder
 			try{											
 				while( !i2p_socket.isClosed()){
 				
-					int	len = i2p_input_stream.read( i2p_input_buffer );
+					ByteBuffer	buffer;
+					
+					synchronized( lock ){
+						
+						i2p_read_waiting = true;
+						
+						buffer = buffer_pool.tryBorrow( buffer_waiter );
+						
+						if ( buffer == null ){
+								
+								// memory ceiling hit, buffer_waiter restarts the read
+							
+							went_async = true;
+							
+							return;
+						}
+						
+						i2p_read_waiting = false;
+					}
+					
+					int	len;
+					
+					try{
+						len = i2p_input_stream.read( buffer.array());
+						
+					}catch( Throwable e ){
+						
+						buffer_pool.release( buffer );
+						
+						throw( e );
+					}
+					
+					if ( len <= 0 ){
+						
+						buffer_pool.release( buffer );
+					}
 					
 					if ( len == 0 ){
 						
@@ -545,14 +721,26 @@ I2PHelperSocketForwarder
 						throw( new IOException( "Connection closed" ));
 					}
 																					
-					if ( bigly_output_buffer != null ){
+					buffer.limit( len );
+					
+					synchronized( lock ){
 						
-						Debug.out("bigly_output_buffer must be null" );
+						if ( destroyed || bigly_output_buffer != null ){
+							
+							buffer_pool.release( buffer );
+							
+							if ( destroyed ){
+								
+								return;
+							}
+							
+							Debug.out("bigly_output_buffer must be null" );
+							
+							throw( new IOException( "Inconsistent" ));
+						}
 						
-						throw( new IOException( "Inconsistent" ));
+						bigly_output_buffer = buffer;
 					}
-														
-					bigly_output_buffer = ByteBuffer.wrap( i2p_input_buffer, 0, len );
 					
 					writeToBigly();
 					
@@ -623,32 +811,45 @@ I2PHelperSocketForwarder
 		writeToBigly()
 		
 			throws IOException
-		{						
-			int written = bigly_channel.write( bigly_output_buffer );
-																
-			if ( bigly_output_buffer.hasRemaining()){
+		{		
+				// non-blocking write so ok under the lock, stops destroy releasing the buffer while in use
 			
-				if ( write_selector_registered ){
-					
-					write_selector.resumeSelects( bigly_channel );
-					
-				}else{
+			synchronized( lock ){
 				
-					write_selector_registered = true;
+				if ( bigly_output_buffer == null ){
 					
-					write_selector.register( bigly_channel, bigly_listener, null  );
+					return( false );
 				}
-			}else{
 				
-				synchronized( lock ){
-			
+				int written = bigly_channel.write( bigly_output_buffer );
+				
+				bytes_to_core += written;
+				
+				I2PHelperHandoffStats.LOOPBACK.recordToCore( written );
+																	
+				if ( bigly_output_buffer.hasRemaining()){
+				
+					if ( write_selector_registered ){
+						
+						write_selector.resumeSelects( bigly_channel );
+						
+					}else{
+					
+						write_selector_registered = true;
+						
+						write_selector.register( bigly_channel, bigly_listener, null  );
+					}
+				}else{
+								
+					buffer_pool.release( bigly_output_buffer );
+					
 					bigly_output_buffer	= null;
 					
 					readFromI2P();
 				}
+				
+				return( written > 0 );
 			}
-			
-			return( written > 0 );
 		}
 		
 		protected boolean
@@ -663,14 +864,59 @@ I2PHelperSocketForwarder
 				throw( new IOException( "Inconsistent" ));
 			}
 			
-			bigly_input_buffer = ByteBuffer.wrap( i2p_output_buffer );
+			final ByteBuffer	buffer;
 			
-  			int read = bigly_channel.read( bigly_input_buffer );
-  			
-			if ( read == 0 ){
+			synchronized( lock ){
+				
+				if ( destroyed ){
+					
+					return( false );
+				}
+				
+				bigly_read_waiting = true;
+				
+				buffer = buffer_pool.tryBorrow( buffer_waiter );
+				
+				if ( buffer == null ){
+					
+						// memory ceiling hit, stop reading until buffer_waiter fires
+					
+					if ( read_selector_registered ){
+						
+						read_selector.pauseSelects( bigly_channel );
+					}
+					
+					return( false );
+				}
+				
+				bigly_read_waiting = false;
+			}
+			
+			bigly_input_buffer = buffer;
+			
+			final int read;
+			
+			try{
+				read = bigly_channel.read( buffer );
+				
+			}catch( IOException e ){
+				
+				bigly_input_buffer = null;
+				
+				buffer_pool.release( buffer );
+				
+				throw( e );
+			}
+			
+			if ( read <= 0 ){
 
 				bigly_input_buffer = null;
 				
+				buffer_pool.release( buffer );
+			}
+			
+			if ( read == 0 ){
+				
 				if ( !read_selector_registered ){
 						
 					read_selector_registered = true;
@@ -681,7 +927,7 @@ I2PHelperSocketForwarder
 				
 				read_selector.pauseSelects( bigly_channel );
 				
-				async_write_pool.run(
+				write_queue.run(
 					new AERunnable()
 					{
 						@Override
@@ -691,7 +937,11 @@ I2PHelperSocketForwarder
 							boolean	ok = false;
 							
 							try{
-								i2p_output_stream.write( i2p_output_buffer, 0, read );
+								i2p_output_stream.write( buffer.array(), 0, read );
+								
+								bytes_from_core += read;
+								
+								I2PHelperHandoffStats.LOOPBACK.recordFromCore( read );
 								
 								last_activity	= SystemTime.getMonotonousTime();
 								
@@ -707,6 +957,8 @@ I2PHelperSocketForwarder
 								
 								bigly_input_buffer = null;
 								
+								buffer_pool.release( buffer );
+								
 								if ( ok ){
 									
 									read_selector.resumeSelects( bigly_channel );
@@ -771,8 +1023,19 @@ I2PHelperSocketForwarder
 				}
 				
 				destroyed = true;
+				
+				buffer_pool.cancel( buffer_waiter );
+				
+				if ( bigly_output_buffer != null ){
+					
+					buffer_pool.release( bigly_output_buffer );
+					
+					bigly_output_buffer = null;
+				}
 			}
 			
+			I2PHelperHandoffStats.LOOPBACK.recordClosed( SystemTime.getMonotonousTime() - start_time, bytes_to_core + bytes_from_core );
+			
 			// System.out.println( "Forwarder end: " + i2p_socket.getPeerDestination());
 
 
@@ -842,15 +1105,50 @@ I2PHelperSocketForwarder
 		private boolean 	tor_write_selector_registered;
 		private boolean 	tor_read_selector_registered;
 		
+			// buffers are borrowed from the pool while data is in flight, null otherwise
+		
 		private volatile ByteBuffer		bigly_output_buffer;;
 		private volatile ByteBuffer		tor_output_buffer;;
 		
+			// set while a read is stalled waiting for the pool to drop below its ceiling
+		
+		private volatile boolean	tor_read_waiting;
+		private volatile boolean	bigly_read_waiting;
+		
 		private Object		lock = new Object();
 		
 		private long		last_activity	= SystemTime.getMonotonousTime();
 		
-		private boolean		failed;
-		private boolean		destroyed;
+		private final long	start_time		= last_activity;
+		
+		private long		bytes_to_core;
+		private long		bytes_from_core;
+		
+		private boolean				failed;
+		private volatile boolean	destroyed;
+		
+		private final I2PHelperBufferPool.Waiter	buffer_waiter = 
+			()->{
+				if ( destroyed || !( tor_read_waiting || bigly_read_waiting )){
+					
+					return( false );
+				}
+				
+					// can't take the lock here as the releaser may hold another activity's lock
+				
+				async_read_pool.run(
+					new AERunnable()
+					{
+						@Override
+						public void
+						runSupport()
+						{
+							bufferAvailable();
+						}
+					});
+				
+				return( true );
+			};
 		
 		protected
 		ForwardingActivityTor(
@@ -977,38 +1275,102 @@ I2PHelperSocketForwarder
 			readFromTor();
 		}
 	
+		private void
+		bufferAvailable()
+		{
+			boolean	do_tor;
+			boolean	do_bigly;
+			
+			synchronized( lock ){
+				
+				if ( destroyed ){
+					
+					return;
+				}
+				
+				do_tor		= tor_read_waiting;
+				do_bigly	= bigly_read_waiting;
+				
+				tor_read_waiting	= false;
+				bigly_read_waiting	= false;
+			}
+			
+			try{
+				if ( do_bigly ){
+					
+					if ( bigly_read_selector_registered ){
+						
+						read_selector.resumeSelects( bigly_channel );
+						
+					}else{
+						
+						readFromBigly();
+					}
+				}
+				
+				if ( do_tor ){
+					
+					if ( tor_read_selector_registered ){
+						
+						read_selector.resumeSelects( tor_channel );
+						
+					}else{
+						
+						readFromTor();
+					}
+				}
+			}catch( Throwable e ){
+				
+				failed( e );
+			}
+		}
+		
+			// the channel operations below are all non-blocking so are done under the lock, this
+			// stops destroy releasing a buffer while it is in use
+		
 		protected boolean
 		writeToBigly()
 		
 			throws IOException
-		{						
-			int written = bigly_channel.write( bigly_output_buffer );
-					
- 			//System.out.println( "bigly-write: " + written );
-
-			if ( bigly_output_buffer.hasRemaining()){
-			
-				if ( bigly_write_selector_registered ){
+		{	
+			synchronized( lock ){
+				
+				if ( bigly_output_buffer == null ){
 					
-					write_selector.resumeSelects( bigly_channel );
+					return( false );
+				}
+				
+				int written = bigly_channel.write( bigly_output_buffer );
+						
+	 			//System.out.println( "bigly-write: " + written );
+				
+				bytes_to_core += written;
+				
+				I2PHelperHandoffStats.LOOPBACK.recordToCore( written );
+	
+				if ( bigly_output_buffer.hasRemaining()){
+				
+					if ( bigly_write_selector_registered ){
+						
+						write_selector.resumeSelects( bigly_channel );
+						
+					}else{
 					
+						bigly_write_selector_registered = true;
+						
+						write_selector.register( bigly_channel, bigly_listener, null  );
+					}
 				}else{
 				
-					bigly_write_selector_registered = true;
+					buffer_pool.release( bigly_output_buffer );
 					
-					write_selector.register( bigly_channel, bigly_listener, null  );
-				}
-			}else{
-				
-				synchronized( lock ){
-			
 					bigly_output_buffer	= null;
 					
 					readFromTor();
 				}
+				
+				return( written > 0 );
 			}
-			
-			return( written > 0 );
 		}
 		
 		protected boolean
@@ -1016,80 +1378,120 @@ I2PHelperSocketForwarder
 		
 			throws IOException
 		{
-			if ( tor_output_buffer != null ){
+			synchronized( lock ){
 				
-				Debug.out( "tor_output_buffer must be null" );
+				if ( destroyed ){
+					
+					return( false );
+				}
 				
-				throw( new IOException( "Inconsistent" ));
-			}
-			
-			tor_output_buffer = ByteBuffer.allocate( 32*1024 );
-			
-  			int read = bigly_channel.read( tor_output_buffer );
-  			
- 			//System.out.println( "bigly-read: " + read );
-
-			if ( read == 0 ){
-
-				tor_output_buffer = null;
+				if ( tor_output_buffer != null ){
+					
+					Debug.out( "tor_output_buffer must be null" );
+					
+					throw( new IOException( "Inconsistent" ));
+				}
+				
+				bigly_read_waiting = true;
 				
-				if ( bigly_read_selector_registered ){
+				tor_output_buffer = buffer_pool.tryBorrow( buffer_waiter );
+				
+				if ( tor_output_buffer == null ){
 					
-					read_selector.resumeSelects( bigly_channel );
-				}else{
+						// memory ceiling hit, stop reading until buffer_waiter fires
 					
-					bigly_read_selector_registered = true;
+					if ( bigly_read_selector_registered ){
+						
+						read_selector.pauseSelects( bigly_channel );
+					}
 					
-					read_selector.register( bigly_channel, bigly_listener, null  );
+					return( false );
 				}
-			}else if ( read > 0 ){
 				
-				read_selector.pauseSelects( bigly_channel );
+				bigly_read_waiting = false;
 				
-				tor_output_buffer.flip();
+	  			int read = bigly_channel.read( tor_output_buffer );
+	  			
+	 			//System.out.println( "bigly-read: " + read );
+	
+				if ( read <= 0 ){
+					
+					buffer_pool.release( tor_output_buffer );
+					
+					tor_output_buffer = null;
+				}
 				
-				writeToTor();
-		
-			}else{
+				if ( read == 0 ){
+	
+					if ( bigly_read_selector_registered ){
+						
+						read_selector.resumeSelects( bigly_channel );
+					}else{
+						
+						bigly_read_selector_registered = true;
+						
+						read_selector.register( bigly_channel, bigly_listener, null  );
+					}
+				}else if ( read > 0 ){
+					
+					bytes_from_core += read;
+					
+					I2PHelperHandoffStats.LOOPBACK.recordFromCore( read );
+					
+					read_selector.pauseSelects( bigly_channel );
+					
+					tor_output_buffer.flip();
+					
+					writeToTor();
+			
+				}else{
+					
+					throw( new IOException( "End of stream" ));
+				}
 				
-				throw( new IOException( "End of stream" ));
+				return( read > 0 );
 			}
-			
-			return( read > 0 );
 		}
 		
 		protected boolean
 		writeToTor()
 		
 			throws IOException
-		{						
-			int written = tor_channel.write( tor_output_buffer );
-					
- 			//System.out.println( "tor-write: " + written );
- 			
-			if ( tor_output_buffer.hasRemaining()){
-			
-				if ( tor_write_selector_registered ){
+		{	
+			synchronized( lock ){
+				
+				if ( tor_output_buffer == null ){
 					
-					write_selector.resumeSelects( tor_channel );
+					return( false );
+				}
+				
+				int written = tor_channel.write( tor_output_buffer );
+						
+	 			//System.out.println( "tor-write: " + written );
+	 			
+				if ( tor_output_buffer.hasRemaining()){
+				
+					if ( tor_write_selector_registered ){
+						
+						write_selector.resumeSelects( tor_channel );
+						
+					}else{
 					
+						tor_write_selector_registered = true;
+						
+						write_selector.register( tor_channel, tor_listener, null  );
+					}
 				}else{
 				
-					tor_write_selector_registered = true;
+					buffer_pool.release( tor_output_buffer );
 					
-					write_selector.register( tor_channel, tor_listener, null  );
-				}
-			}else{
-				
-				synchronized( lock ){
-			
 					tor_output_buffer	= null;
 					
 					readFromBigly();
 				}
+				
+				return( written > 0 );
 			}
-			
-			return( written > 0 );
 		}
 		
 		protected boolean
@@ -1097,47 +1499,76 @@ I2PHelperSocketForwarder
 		
 			throws IOException
 		{
-			if ( bigly_output_buffer != null ){
-				
-				Debug.out( "bigly_output_buffer must be null" );
+			synchronized( lock ){
 				
-				throw( new IOException( "Inconsistent" ));
-			}
-			
-			bigly_output_buffer = ByteBuffer.allocate( 32*1024 );
-			
-  			int read = tor_channel.read( bigly_output_buffer );
-  			
-  			//System.out.println( "tor-read: " + read );
-  			
-			if ( read == 0 ){
-
-				bigly_output_buffer = null;
+				if ( destroyed ){
+					
+					return( false );
+				}
 				
-				if ( tor_read_selector_registered ){
+				if ( bigly_output_buffer != null ){
 					
-					read_selector.resumeSelects( tor_channel );
+					Debug.out( "bigly_output_buffer must be null" );
 					
-				}else{
+					throw( new IOException( "Inconsistent" ));
+				}
+				
+				tor_read_waiting = true;
+				
+				bigly_output_buffer = buffer_pool.tryBorrow( buffer_waiter );
+				
+				if ( bigly_output_buffer == null ){
 					
-					tor_read_selector_registered = true;
+						// memory ceiling hit, stop reading until buffer_waiter fires
+					
+					if ( tor_read_selector_registered ){
+						
+						read_selector.pauseSelects( tor_channel );
+					}
 					
-					read_selector.register( tor_channel, tor_listener, null  );
+					return( false );
 				}
-			}else if ( read > 0 ){
 				
-				read_selector.pauseSelects( tor_channel );
+				tor_read_waiting = false;
 				
-				bigly_output_buffer.flip();
+	  			int read = tor_channel.read( bigly_output_buffer );
+	  			
+	  			//System.out.println( "tor-read: " + read );
+	  			
+				if ( read <= 0 ){
+					
+					buffer_pool.release( bigly_output_buffer );
+					
+					bigly_output_buffer = null;
+				}
 				
-				writeToBigly();
-		
-			}else{
+				if ( read == 0 ){
+	
+					if ( tor_read_selector_registered ){
+						
+						read_selector.resumeSelects( tor_channel );
+						
+					}else{
+						
+						tor_read_selector_registered = true;
+						
+						read_selector.register( tor_channel, tor_listener, null  );
+					}
+				}else if ( read > 0 ){
+					
+					read_selector.pauseSelects( tor_channel );
+					
+					bigly_output_buffer.flip();
+					
+					writeToBigly();
+			
+				}else{
+					
+					throw( new IOException( "End of stream" ));
+				}
 				
-				throw( new IOException( "End of stream" ));
+				return( read > 0 );
 			}
-			
-			return( read > 0 );
 		}
 		
 		
@@ -1190,8 +1621,26 @@ I2PHelperSocketForwarder
 				}
 				
 				destroyed = true;
+				
+				buffer_pool.cancel( buffer_waiter );
+				
+				if ( bigly_output_buffer != null ){
+					
+					buffer_pool.release( bigly_output_buffer );
+					
+					bigly_output_buffer = null;
+				}
+				
+				if ( tor_output_buffer != null ){
+					
+					buffer_pool.release( tor_output_buffer );
+					
+					tor_output_buffer = null;
+				}
 			}
 			
+			I2PHelperHandoffStats.LOOPBACK.recordClosed( SystemTime.getMonotonousTime() - start_time, bytes_to_core + bytes_from_core );
+			
 			// System.out.println( "Forwarder end: " + i2p_socket.getPeerDestination());
 
 
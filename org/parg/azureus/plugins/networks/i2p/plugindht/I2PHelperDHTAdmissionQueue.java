@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.plugindht;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.biglybt.core.util.SystemTime;
+
+import org.parg.azureus.plugins.networks.i2p.vuzedht.I2PHelperAZDHT;
+
+/**
+ * Bounded admission for DHT operations that can't be run immediately because the DHT is still
+ * initialising or earlier operations are queued. There are separate high and low priority lanes,
+ * the high lane always being served first. Within a lane callers are served round-robin so that
+ * one caller's bulk operations don't starve the others, and each caller has its own limit. A request
+ * that can't be admitted is rejected outright and never run. A get for a key that already has an
+ * identical get queued is attached to it rather than queued again.
+ */
+
+public class
+I2PHelperDHTAdmissionQueue
+{
+	public static final int	ADMIT_QUEUED		= 0;
+	public static final int	ADMIT_COALESCED		= 1;
+	public static final int	ADMIT_REJECTED		= 2;
+
+	private static final int	MAX_HIGH			= 64;
+	private static final int	MAX_LOW				= 128;
+	private static final int	MAX_PER_CALLER		= 32;
+
+	private final Lane	high_lane	= new Lane( "high", MAX_HIGH );
+	private final Lane	low_lane	= new Lane( "low", MAX_LOW );
+
+	private long	total_coalesced;
+	private long	total_run;
+	private long	total_wait;
+	private long	max_wait;
+
+	/**
+	 * @return ADMIT_QUEUED if the request has been queued and the caller must arrange for a subsequent
+	 * call to next(), ADMIT_COALESCED if it has been attached to a queued request or ADMIT_REJECTED if
+	 * it has been dropped, in which case the caller must fail it
+	 */
+
+	public synchronized int
+	admit(
+		Request		request )
+	{
+		Lane	lane = request.high_priority?high_lane:low_lane;
+
+		if ( lane.coalesce( request )){
+
+			total_coalesced++;
+
+			return( ADMIT_COALESCED );
+		}
+
+		return( lane.add( request )?ADMIT_QUEUED:ADMIT_REJECTED );
+	}
+
+	/**
+	 * @return the next request to run, high priority first, or null if none
+	 */
+
+	public synchronized Request
+	next()
+	{
+		Request	request = high_lane.next();
+
+		if ( request == null ){
+
+			request = low_lane.next();
+		}
+
+		if ( request != null ){
+
+			long	wait = SystemTime.getMonotonousTime() - request.queue_time;
+
+			total_run++;
+			total_wait += wait;
+
+			if ( wait > max_wait ){
+
+				max_wait = wait;
+			}
+		}
+
+		return( request );
+	}
+
+	public synchronized boolean
+	isEmpty()
+	{
+		return( high_lane.size == 0 && low_lane.size == 0 );
+	}
+
+	/**
+	 * @return null if nothing has ever been queued
+	 */
+
+	public synchronized String
+	getString()
+	{
+		if ( high_lane.admitted + low_lane.admitted + total_coalesced + high_lane.rejected + low_lane.rejected == 0 ){
+
+			return( null );
+		}
+
+		return( high_lane.getString() + "; " + low_lane.getString() +
+				"; coalesced=" + total_coalesced +
+				",run=" + total_run +
+				",avg_wait=" + ( total_run==0?0:( total_wait/total_run )) +
+				",max_wait=" + max_wait );
+	}
+
+	private static class
+	Lane
+	{
+		private final String	name;
+		private final int		max;
+
+			// per-caller queues in service order, a caller moves to the back when served
+
+		private final LinkedHashMap<Object,ArrayDeque<Request>>	callers = new LinkedHashMap<>();
+
+		private int		size;
+		private int		max_depth;
+
+		private long	admitted;
+		private long	rejected;
+
+		private
+		Lane(
+			String		_name,
+			int			_max )
+		{
+			name	= _name;
+			max		= _max;
+		}
+
+		private boolean
+		coalesce(
+			Request		request )
+		{
+			for ( ArrayDeque<Request> queue: callers.values()){
+
+				for ( Request queued: queue ){
+
+					if ( queued.coalesce( request )){
+
+						return( true );
+					}
+				}
+			}
+
+			return( false );
+		}
+
+		private boolean
+		add(
+			Request		request )
+		{
+			ArrayDeque<Request>	queue = callers.get( request.caller );
+
+			if ( size >= max || ( queue != null && queue.size() >= MAX_PER_CALLER )){
+
+				rejected++;
+
+				return( false );
+			}
+
+			if ( queue == null ){
+
+				queue = new ArrayDeque<>();
+
+				callers.put( request.caller, queue );
+			}
+
+			queue.add( request );
+
+			size++;
+
+			admitted++;
+
+			if ( size > max_depth ){
+
+				max_depth = size;
+			}
+
+			return( true );
+		}
+
+		private Request
+		next()
+		{
+			Iterator<Map.Entry<Object,ArrayDeque<Request>>>	it = callers.entrySet().iterator();
+
+			if ( !it.hasNext()){
+
+				return( null );
+			}
+
+			Map.Entry<Object,ArrayDeque<Request>>	entry = it.next();
+
+			ArrayDeque<Request>	queue = entry.getValue();
+
+			Request	request = queue.removeFirst();
+
+			it.remove();
+
+			if ( !queue.isEmpty()){
+
+				callers.put( entry.getKey(), queue );
+			}
+
+			size--;
+
+			return( request );
+		}
+
+		private String
+		getString()
+		{
+			return( name + ": queued=" + size +
+					",callers=" + callers.size() +
+					",max_depth=" + max_depth +
+					",admitted=" + admitted +
+					",rejected=" + rejected );
+		}
+	}
+
+	public static abstract class
+	Request
+	{
+		private final Object		caller;
+		private final boolean		high_priority;
+
+		private final long			queue_time	= SystemTime.getMonotonousTime();
+
+		/**
+		 * @param _caller	identifies the caller for fairness, requests from the same caller are run in order
+		 */
+
+		protected
+		Request(
+			Object		_caller,
+			boolean		_high_priority )
+		{
+			caller			= _caller==null?"":_caller;
+			high_priority	= _high_priority;
+		}
+
+		/**
+		 * Called with the queue locked
+		 * @return true if the other request has been merged into this one
+		 */
+
+		protected boolean
+		coalesce(
+			Request		other )
+		{
+			return( false );
+		}
+
+		protected abstract void
+		run(
+			I2PHelperAZDHT		dht );
+
+		protected abstract void
+		fail();
+	}
+}
@@ -26,6 +26,7 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -37,12 +38,7 @@ import com.biglybt.core.util.AEThread2;
 import com.biglybt.core.util.AsyncDispatcher;
 import com.biglybt.core.util.Debug;
 import com.biglybt.core.util.HashWrapper;
-import com.biglybt.core.util.SimpleTimer;
-import com.biglybt.core.util.TimerEvent;
-import com.biglybt.core.util.TimerEventPerformer;
-import com.biglybt.core.util.TimerEventPeriodic;
 import org.parg.azureus.plugins.networks.i2p.*;
-import org.parg.azureus.plugins.networks.i2p.router.I2PHelperRouter;
 import org.parg.azureus.plugins.networks.i2p.router.I2PHelperRouterDHT;
 import org.parg.azureus.plugins.networks.i2p.vuzedht.I2PHelperAZDHT;
 
@@ -69,9 +65,9 @@ I2PHelperDHTPluginInterface
 	
 	private AsyncDispatcher		dispatcher = new AsyncDispatcher( "I2PHelperDHTPluginInterface" );
 	
-	private AESemaphore			init_sem = new AESemaphore( "I2PHelperDHTPluginInterface" );
+	private final I2PHelperDHTAdmissionQueue	admission_queue = new I2PHelperDHTAdmissionQueue();
 	
-	private volatile TimerEventPeriodic	init_event;
+	private AESemaphore			init_sem = new AESemaphore( "I2PHelperDHTPluginInterface" );
 	
 	private DHTPluginContact	local_contact = new LocalContact();
 	
@@ -87,31 +83,7 @@ I2PHelperDHTPluginInterface
 		dht			= _dht;
 		name		= _name;
 		
-		init_event = SimpleTimer.addPeriodicEvent(
-				"I2PHelperDHTPluginInterface",
-				1000,
-				new TimerEventPerformer() {
-					
-					@Override
-					public void 
-					perform(
-						TimerEvent event )
-					{
-						if ( init_event == null ){
-							
-							return;
-						}
-		
-						if ( dht.isInitialised()){
-							
-							init_event.cancel();
-							
-							init_event = null;
-							
-							init_sem.releaseForever();
-						}
-					}
-				});	
+		dht.addInitialisationListener(()->init_sem.releaseForever());
 	}
 	
 	public 
@@ -126,60 +98,40 @@ I2PHelperDHTPluginInterface
 		
 		final int dht_index = _dht_index;
 		
-		init_event = SimpleTimer.addPeriodicEvent(
-			"I2PHelperDHTPluginInterface",
-			1000,
-			new TimerEventPerformer() {
+		plugin.addRouterListener(
+			( router )->{
 				
-				@Override
-				public void 
-				perform(
-					TimerEvent event )
+				new AEThread2( "I2PHelperDHTPluginInterface" )
 				{
-					if ( init_event == null ){
-						
-						return;
-					}
-					
-					final I2PHelperRouter router = plugin.getRouter();
-					
-					if ( router != null ){
-						
-						init_event.cancel();
-						
-						new AEThread2( "I2PHelperDHTPluginInterface" )
-						{
-							@Override
-							public void
-							run()
-							{
-								try{
-									I2PHelperRouterDHT router_dht = router.selectDHT( dht_index );
+					@Override
+					public void
+					run()
+					{
+						try{
+							I2PHelperRouterDHT router_dht = router.selectDHT( dht_index );
+							
+							if ( router_dht != null ){
+								
+								I2PHelperDHT helper_dht = router_dht.getDHTBlocking();
+								
+								if ( helper_dht != null ){
+									
+									dht = helper_dht.getHelperAZDHT();
 									
-									if ( router_dht != null ){
-										
-										I2PHelperDHT helper_dht = router_dht.getDHTBlocking();
-										
-										if ( helper_dht != null ){
-											
-											dht = helper_dht.getHelperAZDHT();
-											
-										}else{
-											
-											Debug.out( "Helper DHT not available" );;
-										}
-									}else{
-										
-										Debug.out( "Router DHT not available" );
-									}
-								}finally{
+								}else{
 									
-									init_sem.releaseForever();
+									Debug.out( "Helper DHT not available" );;
 								}
+							}else{
+								
+								Debug.out( "Router DHT not available" );
 							}
-						}.start();
+						}finally{
+							
+							init_sem.releaseForever();
+						}
 					}
-				}
+				}.start();
 			});
 	}
 	
@@ -488,45 +440,13 @@ I2PHelperDHTPluginInterface
 		final boolean							high_priority,
 		final DHTPluginOperationListener		listener )
 	{	
-		if ( dht != null && dispatcher.getQueueSize() == 0 ){
+		if ( dht != null && isIdle()){
 			
 			dht.get( key, description, (short)(flags&0x00ff), max_values, timeout, exhaustive, high_priority, listener );
 		
 		}else{
 			
-			if ( dispatcher.getQueueSize() > 100 ){
-				
-				Debug.out( "Dispatch queue too large" );
-				
-				listener.complete( key, false );
-			}
-			
-			dispatcher.dispatch(
-				new AERunnable() {
-					
-					@Override
-					public void 
-					runSupport() 
-					{
-						I2PHelperAZDHT	dht_to_use = dht;
-						
-						if ( dht_to_use == null ){
-							
-							init_sem.reserve();
-							
-							dht_to_use = dht;
-						}
-						
-						if ( dht_to_use == null ){
-							
-							listener.complete( key, false );
-							
-						}else{
-							
-							dht_to_use.get( key, description, (short)(flags&0x00ff), max_values, timeout, exhaustive, high_priority, listener );
-						}
-					}
-				});
+			submit( new GetRequest( key, description, (short)(flags&0x00ff), max_values, timeout, exhaustive, high_priority, listener ));
 		}
 	}
 	
@@ -557,46 +477,33 @@ I2PHelperDHTPluginInterface
 			
 		}else{
 			
-			if ( dht != null && dispatcher.getQueueSize() == 0 ){
+			if ( dht != null && isIdle()){
 				
 				dht.put( key, description, value, (short)(flags&0x00ff), true, listener );
 			
 			}else{
 				
-				if ( dispatcher.getQueueSize() > 100 ){
-					
-					Debug.out( "Dispatch queue too large" );
-					
-					listener.complete( key, false );
-				}
+					// puts are bulk work so go in the low lane whatever their DHT priority
 				
-				dispatcher.dispatch(
-					new AERunnable() {
+				submit( 
+					new I2PHelperDHTAdmissionQueue.Request( getCaller( listener ), false )
+					{
+						@Override
+						protected void
+						run(
+							I2PHelperAZDHT		dht_to_use )
+						{
+							dht_to_use.put( key, description, value, flags, high_priority, listener );
+						}
 						
 						@Override
-						public void 
-						runSupport() 
+						protected void
+						fail()
 						{
-							I2PHelperAZDHT	dht_to_use = dht;
-							
-							if ( dht_to_use == null ){
-								
-								init_sem.reserve();
-								
-								dht_to_use = dht;
-							}
-							
-							if ( dht_to_use == null ){
-								
-								listener.complete( key, false );
-								
-							}else{
-								
-								dht.put( key, description, value, flags, high_priority, listener );
-							}
+							listener.complete( key, true );
 						}
 					});
-			};
+			}
 		}
 	}
 	
@@ -617,18 +524,62 @@ I2PHelperDHTPluginInterface
 		short						flags,
 		DHTPluginOperationListener	listener )
 	{
-		if ( dht != null && dispatcher.getQueueSize() == 0 ){
+		if ( dht != null && isIdle()){
 			
 			dht.remove( key, description, listener );
 		
 		}else{
 			
-			if ( dispatcher.getQueueSize() > 100 ){
-				
-				Debug.out( "Dispatch queue too large" );
-				
-				listener.complete( key, false );
-			}
+			submit( 
+				new I2PHelperDHTAdmissionQueue.Request( getCaller( listener ), false )
+				{
+					@Override
+					protected void
+					run(
+						I2PHelperAZDHT		dht_to_use )
+					{
+						dht_to_use.remove( key, description, listener );
+					}
+					
+					@Override
+					protected void
+					fail()
+					{
+						listener.complete( key, true );
+					}
+				});
+		}
+	}
+	
+	private boolean
+	isIdle()
+	{
+		return( dispatcher.getQueueSize() == 0 && admission_queue.isEmpty());
+	}
+	
+		// callers are told apart by their listener's class, which distinguishes the plugins and
+		// subsystems using the interface well enough for fairness
+	
+	private static Object
+	getCaller(
+		DHTPluginOperationListener		listener )
+	{
+		return( listener==null?null:listener.getClass());
+	}
+	
+	private void
+	submit(
+		I2PHelperDHTAdmissionQueue.Request		request )
+	{
+		int result = admission_queue.admit( request );
+		
+		if ( result == I2PHelperDHTAdmissionQueue.ADMIT_REJECTED ){
+			
+			request.fail();
+			
+		}else if ( result == I2PHelperDHTAdmissionQueue.ADMIT_QUEUED ){
+			
+				// one dispatch per queued request, the queue decides which request it runs
 			
 			dispatcher.dispatch(
 				new AERunnable() {
@@ -646,17 +597,40 @@ I2PHelperDHTPluginInterface
 							dht_to_use = dht;
 						}
 						
+						I2PHelperDHTAdmissionQueue.Request next = admission_queue.next();
+						
+						if ( next == null ){
+							
+							return;
+						}
+						
 						if ( dht_to_use == null ){
 							
-							listener.complete( key, false );
+							next.fail();
 							
 						}else{
 							
-							dht.remove( key, description, listener );
+							try{
+								next.run( dht_to_use );
+								
+							}catch( Throwable e ){
+								
+								Debug.out( e );
+							}
 						}
 					}
 				});
-		};	
+		}
+	}
+	
+	/**
+	 * @return null if no operations have had to be queued
+	 */
+	
+	public String
+	getAdmissionStats()
+	{
+		return( admission_queue.getString());
 	}
 	
 	@Override
@@ -1106,4 +1080,180 @@ I2PHelperDHTPluginInterface
 			return( contact.getString());	
 		}
 	}
+	
+	private static class
+	GetRequest
+		extends I2PHelperDHTAdmissionQueue.Request
+	{
+		private final byte[]			key;
+		private final String			description;
+		private final short				flags;
+		private final int				max_values;
+		private final long				timeout;
+		private final boolean			exhaustive;
+		private final boolean			high_priority;
+		
+		private final List<DHTPluginOperationListener>	listeners = new ArrayList<>( 1 );
+		
+		private
+		GetRequest(
+			byte[]							_key,
+			String							_description,
+			short							_flags,
+			int								_max_values,
+			long							_timeout,
+			boolean							_exhaustive,
+			boolean							_high_priority,
+			DHTPluginOperationListener		_listener )
+		{
+			super( getCaller( _listener ), _high_priority );
+			
+			key				= _key;
+			description		= _description;
+			flags			= _flags;
+			max_values		= _max_values;
+			timeout			= _timeout;
+			exhaustive		= _exhaustive;
+			high_priority	= _high_priority;
+			
+			listeners.add( _listener );
+		}
+		
+		private boolean
+		canShare()
+		{
+				// the AZ specific listener gets extra callbacks that can't be fanned out
+			
+			return( !( listeners.get(0) instanceof I2PHelperAZDHT.OperationListener ));
+		}
+		
+		@Override
+		protected boolean
+		coalesce(
+			I2PHelperDHTAdmissionQueue.Request		request )
+		{
+			if ( !( request instanceof GetRequest )){
+				
+				return( false );
+			}
+			
+			GetRequest	other = (GetRequest)request;
+			
+			if ( 	canShare() && other.canShare() &&
+					Arrays.equals( key, other.key ) &&
+					flags == other.flags &&
+					max_values == other.max_values &&
+					timeout == other.timeout &&
+					exhaustive == other.exhaustive &&
+					high_priority == other.high_priority ){
+				
+				listeners.addAll( other.listeners );
+				
+				return( true );
+			}
+			
+			return( false );
+		}
+		
+		@Override
+		protected void
+		run(
+			I2PHelperAZDHT		dht )
+		{
+			DHTPluginOperationListener	listener;
+			
+			if ( listeners.size() == 1 ){
+				
+				listener = listeners.get(0);
+				
+			}else{
+				
+				listener = 
+					new DHTPluginOperationListener()
+					{
+						@Override
+						public boolean
+						diversified()
+						{
+							boolean	result = true;
+							
+							for ( DHTPluginOperationListener l: listeners ){
+								
+								if ( !l.diversified()){
+									
+									result = false;
+								}
+							}
+							
+							return( result );
+						}
+						
+						@Override
+						public void
+						starts(
+							byte[]		key )
+						{
+							for ( DHTPluginOperationListener l: listeners ){
+								
+								l.starts( key );
+							}
+						}
+						
+						@Override
+						public void
+						valueRead(
+							DHTPluginContact	originator,
+							DHTPluginValue		value )
+						{
+							for ( DHTPluginOperationListener l: listeners ){
+								
+								l.valueRead( originator, value );
+							}
+						}
+						
+						@Override
+						public void
+						valueWritten(
+							DHTPluginContact	target,
+							DHTPluginValue		value )
+						{
+							for ( DHTPluginOperationListener l: listeners ){
+								
+								l.valueWritten( target, value );
+							}
+						}
+						
+						@Override
+						public void
+						complete(
+							byte[]		key,
+							boolean		timeout_occurred )
+						{
+							for ( DHTPluginOperationListener l: listeners ){
+								
+								try{
+									l.complete( key, timeout_occurred );
+									
+								}catch( Throwable e ){
+									
+									Debug.out( e );
+								}
+							}
+						}
+					};
+			}
+			
+			dht.get( key, description, flags, max_values, timeout, exhaustive, high_priority, listener );
+		}
+		
+		@Override
+		protected void
+		fail()
+		{
+			for ( DHTPluginOperationListener l: listeners ){
+				
+				l.complete( key, true );
+			}
+		}
+	}
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.router;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.biglybt.core.util.AERunnable;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.ThreadPool;
+
+import net.i2p.client.streaming.I2PSocket;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+
+/**
+ * Decouples the accept loop from the handling of accepted sockets. Handling can block (e.g. the
+ * loopback connect into the core) so it is run on a small pool, allowing the accept thread to go
+ * straight back to accepting. Admission is bounded both overall and per remote destination, sockets
+ * over either limit are closed immediately.
+ */
+
+public class
+I2PHelperAcceptDispatcher
+{
+	private static final int	MAX_QUEUED			= 64;
+	private static final int	MAX_PER_DEST		= 4;
+	private static final int	MAX_CONCURRENT		= 8;
+
+	private final String		name;
+	private final Handler		handler;
+
+	private final ThreadPool	pool;
+
+	private final Map<Hash,int[]>	dest_counts = new HashMap<>();
+
+	private final long			start_time	= SystemTime.getMonotonousTime();
+
+	private int		queued;
+	private int		active;
+
+	private long	total_accepted;
+	private long	total_rejected_full;
+	private long	total_rejected_dest;
+	private long	total_handled;
+	private long	total_failed;
+	private long	total_queue_time;
+	private long	total_handoff_time;
+
+	private boolean	destroyed;
+
+	public
+	I2PHelperAcceptDispatcher(
+		String		_name,
+		Handler		_handler )
+	{
+		name		= _name;
+		handler		= _handler;
+
+		pool	= new ThreadPool( name, MAX_CONCURRENT, true );
+	}
+
+	/**
+	 * Never blocks
+	 */
+
+	public void
+	dispatch(
+		final I2PSocket		socket )
+	{
+		Destination	dest = socket.getPeerDestination();
+
+		final Hash	hash = dest==null?null:dest.calculateHash();
+
+		boolean	reject;
+
+		synchronized( this ){
+
+			total_accepted++;
+
+			if ( destroyed || queued >= MAX_QUEUED ){
+
+				total_rejected_full++;
+
+				reject = true;
+
+			}else{
+
+				int[]	count = hash==null?null:dest_counts.get( hash );
+
+				if ( count != null && count[0] >= MAX_PER_DEST ){
+
+					total_rejected_dest++;
+
+					reject = true;
+
+				}else{
+
+					if ( hash != null ){
+
+						if ( count == null ){
+
+							dest_counts.put( hash, new int[]{ 1 });
+
+						}else{
+
+							count[0]++;
+						}
+					}
+
+					queued++;
+
+					reject = false;
+				}
+			}
+		}
+
+		if ( reject ){
+
+			closeSocket( socket );
+
+			return;
+		}
+
+		final long	queue_start = SystemTime.getMonotonousTime();
+
+		pool.run(
+			new AERunnable()
+			{
+				@Override
+				public void
+				runSupport()
+				{
+					long	handoff_start = SystemTime.getMonotonousTime();
+
+					boolean	skip;
+
+					synchronized( I2PHelperAcceptDispatcher.this ){
+
+						queued--;
+
+						total_queue_time += handoff_start - queue_start;
+
+						skip = destroyed;
+
+						if ( !skip ){
+
+							active++;
+						}
+					}
+
+					boolean	ok = false;
+
+					try{
+						if ( skip ){
+
+							closeSocket( socket );
+
+						}else{
+
+							try{
+								handler.handle( socket );
+
+								ok = true;
+
+							}catch( Throwable e ){
+
+								Debug.out( e );
+
+								closeSocket( socket );
+							}
+						}
+					}finally{
+
+						synchronized( I2PHelperAcceptDispatcher.this ){
+
+							if ( hash != null ){
+
+								int[]	count = dest_counts.get( hash );
+
+								if ( count != null && --count[0] <= 0 ){
+
+									dest_counts.remove( hash );
+								}
+							}
+
+							if ( !skip ){
+
+								active--;
+
+								total_handoff_time += SystemTime.getMonotonousTime() - handoff_start;
+
+								if ( ok ){
+
+									total_handled++;
+
+								}else{
+
+									total_failed++;
+								}
+							}
+						}
+					}
+				}
+			});
+	}
+
+	private void
+	closeSocket(
+		I2PSocket		socket )
+	{
+		try{
+			socket.close();
+
+		}catch( Throwable e ){
+		}
+	}
+
+	public void
+	destroy()
+	{
+		synchronized( this ){
+
+			destroyed = true;
+		}
+	}
+
+	public synchronized String
+	getString()
+	{
+		long	completed	= total_handled + total_failed;
+		long	elapsed		= SystemTime.getMonotonousTime() - start_time;
+
+		return( name + ": accepted=" + total_accepted +
+				",rate=" + ( elapsed<=0?0:( total_accepted*60*1000/elapsed )) + "/min" +
+				",queued=" + queued +
+				",active=" + active +
+				",handled=" + total_handled +
+				",failed=" + total_failed +
+				",rej_full=" + total_rejected_full +
+				",rej_dest=" + total_rejected_dest +
+				",avg_queue=" + ( completed==0?0:( total_queue_time/completed )) +
+				",avg_handoff=" + ( completed==0?0:( total_handoff_time/completed )));
+	}
+
+	public interface
+	Handler
+	{
+		public void
+		handle(
+			I2PSocket	socket )
+
+			throws Exception;
+	}
+}
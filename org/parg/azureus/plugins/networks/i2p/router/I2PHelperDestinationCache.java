@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.router;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SystemTime;
+
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperB32Cache;
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+
+/**
+ * Positive Hash->Destination cache shared by everything using the router (DHT transports, socks proxy,
+ * servers) so that destinations resolved via a leaseset lookup, or learnt from an incoming message,
+ * don't have to be looked up again. Bounded by the total encoded size of the destinations and
+ * persisted on close so that a restart doesn't start cold.
+ */
+
+public class
+I2PHelperDestinationCache
+{
+	private static final int	FILE_VERSION	= 1;
+
+	private static final int	MAX_BYTES		= 2*1024*1024;
+	private static final long	TTL				= 24*60*60*1000L;
+
+	private final File		file;
+
+	private final LinkedHashMap<Hash,Entry>	cache = new LinkedHashMap<>( 1024, 0.75f, true );
+
+		// the cache's keys, readable without the lock
+	
+	private final Set<Hash>		known = ConcurrentHashMap.newKeySet();
+
+	private int		total_bytes;
+
+	private long	hits;
+	private long	misses;
+	private long	evictions;
+
+		// changes not yet written out, only reduced once a save has succeeded
+
+	private int		unsaved_changes;
+
+	public
+	I2PHelperDestinationCache(
+		File		_file )
+	{
+		file	= _file;
+
+		load();
+	}
+
+	public Destination
+	get(
+		Hash		hash )
+	{
+		return( get( hash, true ));
+	}
+	
+	/**
+	 * As get but doesn't contribute to the hit/miss statistics
+	 */
+	
+	public Destination
+	peek(
+		Hash		hash )
+	{
+		return( get( hash, false ));
+	}
+	
+	private Destination
+	get(
+		Hash		hash,
+		boolean		record_stats )
+	{
+		synchronized( this ){
+
+			Entry entry = cache.get( hash );
+
+			if ( entry != null ){
+
+				if ( SystemTime.getCurrentTime() - entry.added > TTL ){
+
+					remove( hash, entry );
+
+				}else{
+
+					if ( record_stats ){
+					
+						hits++;
+					}
+					
+					return( entry.dest );
+				}
+			}
+
+			if ( record_stats ){
+			
+				misses++;
+			}
+
+			return( null );
+		}
+	}
+
+	/**
+	 * Doesn't take the cache lock so is cheap enough for paths that see the same destinations
+	 * over and over and only need to add them if missing. Expired entries are still reported
+	 * until removed
+	 */
+	
+	public boolean
+	contains(
+		Hash		hash )
+	{
+		return( known.contains( hash ));
+	}
+	
+	public Destination
+	get(
+		String		address )
+	{
+		Hash hash = decodeAddress( address );
+
+		if ( hash == null ){
+
+			return( null );
+		}
+
+		return( get( hash ));
+	}
+
+	public void
+	put(
+		Hash			hash,
+		Destination		dest )
+	{
+		if ( hash == null || dest == null ){
+
+			return;
+		}
+
+		int	size = dest.size();
+
+		synchronized( this ){
+
+			Entry existing = cache.get( hash );
+
+			if ( existing != null ){
+
+					// refresh the ttl and LRU position
+
+				existing.added = SystemTime.getCurrentTime();
+
+				return;
+			}
+
+			cache.put( hash, new Entry( dest, size, SystemTime.getCurrentTime()));
+
+			known.add( hash );
+			
+			total_bytes += size;
+
+			unsaved_changes++;
+
+			if ( total_bytes > MAX_BYTES ){
+
+				Iterator<Map.Entry<Hash,Entry>>	it = cache.entrySet().iterator();
+
+				while( total_bytes > MAX_BYTES && it.hasNext()){
+
+					Map.Entry<Hash,Entry> me = it.next();
+					
+					Entry e = me.getValue();
+
+					it.remove();
+
+					known.remove( me.getKey());
+
+					total_bytes -= e.size;
+
+					evictions++;
+				}
+			}
+		}
+	}
+
+	public void
+	put(
+		Destination		dest )
+	{
+		if ( dest != null ){
+
+			put( dest.calculateHash(), dest );
+		}
+	}
+
+	private void
+	remove(
+		Hash		hash,
+		Entry		entry )
+	{
+		cache.remove( hash );
+
+		known.remove( hash );
+		
+		total_bytes -= entry.size;
+
+		unsaved_changes++;
+	}
+
+	private static Hash
+	decodeAddress(
+		String		address )
+	{
+		byte[] bytes = I2PHelperB32Cache.getHash( address );
+
+		return( bytes==null?null:new Hash( bytes ));
+	}
+
+	private void
+	load()
+	{
+		if ( !file.exists()){
+
+			return;
+		}
+
+		long	now = SystemTime.getCurrentTime();
+
+		try{
+			DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file )));
+
+			try{
+				int	version = dis.readByte();
+
+				if ( version != FILE_VERSION ){
+
+					return;
+				}
+
+				int	num = dis.readInt();
+
+				synchronized( this ){
+
+					for ( int i=0;i<num;i++){
+
+						long	added = dis.readLong();
+
+						byte[]	hash_bytes = new byte[Hash.HASH_LENGTH];
+
+						dis.readFully( hash_bytes );
+
+						int	len = dis.readShort()&0xffff;
+
+						byte[]	dest_bytes = new byte[len];
+
+						dis.readFully( dest_bytes );
+
+						if ( now - added > TTL || total_bytes + len > MAX_BYTES ){
+
+							continue;
+						}
+
+						Destination dest = new Destination();
+
+						dest.fromByteArray( dest_bytes );
+
+						Hash hash = new Hash( hash_bytes );
+						
+						cache.put( hash, new Entry( dest, len, added ));
+
+						known.add( hash );
+
+						total_bytes += len;
+					}
+				}
+			}finally{
+
+				dis.close();
+			}
+		}catch( Throwable e ){
+
+			Debug.out( "Failed to load destination cache from " + file, e );
+		}
+	}
+
+	public void
+	save()
+	{
+		List<Object[]>	entries;
+
+		int	saving_changes;
+
+		synchronized( this ){
+
+			if ( unsaved_changes == 0 ){
+
+				return;
+			}
+
+			saving_changes = unsaved_changes;
+
+			entries = new ArrayList<>( cache.size());
+
+				// LRU order so the most recently used end up most recently used on reload
+
+			for ( Map.Entry<Hash,Entry> e: cache.entrySet()){
+
+				entries.add( new Object[]{ e.getKey(), e.getValue() });
+			}
+		}
+
+		File parent = file.getParentFile();
+		
+		if ( !parent.isDirectory()){
+			
+			return;
+		}
+		
+		File temp = new File( parent, file.getName() + ".tmp" );
+
+		try{
+			DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp )));
+
+			try{
+				dos.writeByte( FILE_VERSION );
+
+				dos.writeInt( entries.size());
+
+				for ( Object[] e: entries ){
+
+					Hash	hash	= (Hash)e[0];
+					Entry	entry	= (Entry)e[1];
+
+					byte[]	dest_bytes = entry.dest.toByteArray();
+
+					dos.writeLong( entry.added );
+
+					dos.write( hash.getData());
+
+					dos.writeShort( dest_bytes.length );
+
+					dos.write( dest_bytes );
+				}
+			}finally{
+
+				dos.close();
+			}
+
+			file.delete();
+
+			if ( !temp.renameTo( file )){
+
+				throw( new IOException( "Failed to rename " + temp + " to " + file ));
+			}
+
+				// anything changed while writing stays pending for the next save
+
+			synchronized( this ){
+
+				unsaved_changes -= saving_changes;
+			}
+		}catch( Throwable e ){
+
+			Debug.out( "Failed to save destination cache to " + file, e );
+
+			temp.delete();
+		}
+	}
+
+	public synchronized String
+	getString()
+	{
+		long	total = hits + misses;
+
+		return( "entries=" + cache.size() +
+				",bytes=" + total_bytes +
+				",hits=" + hits +
+				",misses=" + misses +
+				",hit%=" + ( total==0?0:(hits*100/total)) +
+				",evicted=" + evictions );
+	}
+
+	private static class
+	Entry
+	{
+		private final Destination	dest;
+		private final int			size;
+
+		private long				added;
+
+		private
+		Entry(
+			Destination		_dest,
+			int				_size,
+			long			_added )
+		{
+			dest	= _dest;
+			size	= _size;
+			added	= _added;
+		}
+	}
+}
@@ -23,6 +23,8 @@
 
 package org.parg.azureus.plugins.networks.i2p.router;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -37,10 +39,13 @@ import net.i2p.I2PAppContext;
 import net.i2p.client.I2PClient;
 import net.i2p.client.I2PClientFactory;
 import net.i2p.client.I2PSession;
+import net.i2p.client.I2PSessionMuxedListener;
 import net.i2p.client.streaming.I2PSocket;
 import net.i2p.client.streaming.I2PSocketManager;
 import net.i2p.client.streaming.I2PSocketManagerFactory;
 import net.i2p.client.streaming.I2PSocketOptions;
+import net.i2p.client.streaming.impl.I2PSocketManagerFull;
+import net.i2p.crypto.SigType;
 import net.i2p.data.Base32;
 import net.i2p.data.Destination;
 import net.i2p.router.Router;
@@ -54,11 +59,15 @@ import com.biglybt.core.util.AEThread2;
 import com.biglybt.core.util.Constants;
 import com.biglybt.core.util.Debug;
 import com.biglybt.core.util.DisplayFormatters;
+import com.biglybt.core.util.SimpleTimer;
 import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.TimerEventPeriodic;
 import com.biglybt.pif.download.Download;
 import org.parg.azureus.plugins.networks.i2p.I2PHelperAdapter;
 import org.parg.azureus.plugins.networks.i2p.I2PHelperDHT;
 import org.parg.azureus.plugins.networks.i2p.I2PHelperPlugin;
+import org.parg.azureus.plugins.networks.i2p.I2PHelperSocketForwarder;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperB32Cache;
 
 import com.biglybt.core.proxy.AEProxySelectorFactory;
 
@@ -93,6 +102,12 @@ I2PHelperRouter
 	public static final int		PARAM_FLOODFILL_CONTROL_ON		= 2;
 	public static final int		PARAM_FLOODFILL_CONTROL_OFF		= 3;
 	
+		// connect socket managers to an embedded router through its in-process client manager rather
+		// than a loopback I2CP socket. Not exposed in the UI, can be turned off to compare the two
+	
+	public static final String		PARAM_INTERNAL_I2CP			= "azi2phelper.i2cp.internal";
+	public static final boolean		PARAM_INTERNAL_I2CP_DEFAULT	= true;
+	
 	public static final int 	MAX_HOPS 	= 7;
 	public static final int 	MAX_TUNNELS = 16;
 	
@@ -153,6 +168,9 @@ I2PHelperRouter
 	private static final String[]	DHT_NAMES = { "Mixed", "Pure" };
 	
 	private static final boolean	FULL_STATS = false;
+	
+	private static final int		I2CP_TEST_PORT		= 1;
+	private static final int		I2CP_TEST_TIMEOUT	= 10*1000;
 
 	private final I2PHelperPlugin			plugin;
 	private final File						config_dir;
@@ -165,6 +183,8 @@ I2PHelperRouter
 	private final I2PHelperAdapter			adapter;
 	
 	private boolean		is_external_router;
+	
+	private volatile boolean	internal_i2cp_failed;
 	private String		i2p_host;
 	private int			i2p_port;
 	
@@ -181,7 +201,12 @@ I2PHelperRouter
 	
 	private Map<String,ServerInstance>		servers = new HashMap<String, ServerInstance>();
 	
-	private AESemaphore			init_sem	= new AESemaphore( "I2PRouterInit" );
+	
+	private final I2PHelperStartup	startup	= new I2PHelperStartup();
+	
+	private final I2PHelperDestinationCache	dest_cache;
+	
+	private TimerEventPeriodic	dest_cache_timer;
 	
 	private volatile boolean	destroyed;
 	
@@ -204,6 +229,19 @@ I2PHelperRouter
 		force_new_address	= _force_new_address;
 		adapter				= _adapter;
 		
+		dest_cache = new I2PHelperDestinationCache( new File( config_dir, "destcache.dat" ));
+		
+		dest_cache_timer = 
+			SimpleTimer.addPeriodicEvent(
+				"I2PDestCache:save",
+				10*60*1000,
+				(ev)->{
+					if ( !destroyed ){
+						
+						dest_cache.save();
+					}
+				});
+		
 		dhts 				= new I2PHelperRouterDHT[_dht_count ];
 		dhts_secondaries 	= new I2PHelperRouterDHT[_dht_count ];
 
@@ -246,6 +284,12 @@ I2PHelperRouter
 		return( plugin );
 	}
 	
+	public I2PHelperDestinationCache
+	getDestinationCache()
+	{
+		return( dest_cache );
+	}
+	
 	public int
 	getIntegerParameter(
 		String		name )
@@ -369,6 +413,10 @@ I2PHelperRouter
 			
 			def = PARAM_OTHER_ENABLED_DEFAULT;
 					
+		}else if ( name == PARAM_INTERNAL_I2CP ){
+			
+			def = PARAM_INTERNAL_I2CP_DEFAULT;
+			
 		}else{
 			
 			Debug.out( "Unknown parameter: " + name );
@@ -762,7 +810,14 @@ I2PHelperRouter
 			long start = SystemTime.getMonotonousTime();
 			
 			adapter.log( "Waiting for internal router startup on " + i2p_host + ":" + i2p_port );
-						
+			
+			I2PHelperStartup.Stage	router_stage = startup.getStage( I2PHelperStartup.STAGE_ROUTER );
+			
+			router_stage.begin();
+			
+				// the router doesn't tell us when it is ready but as it is in this JVM we can ask its
+				// client manager (which includes the I2CP listener) directly rather than probing the port
+			
 			while( true ){
 				
 				if ( destroyed ){
@@ -770,23 +825,16 @@ I2PHelperRouter
 					throw( new Exception( "Router has been shutdown" ));
 				}
 				
-				try{
-					Socket s = new Socket( Proxy.NO_PROXY );
+				if ( router_ctx.clientManager().isAlive()){
 					
-					s.connect( new InetSocketAddress( i2p_internal_host, i2p_internal_port ), 1000 );
-				
-					s.close();
-				
 					break;
+				}
+				
+				try{
+					Thread.sleep(50);
 					
-				}catch( Throwable e ){
+				}catch( Throwable f ){
 					
-					try{
-						Thread.sleep(250);
-						
-					}catch( Throwable f ){
-						
-					}
 				}
 			}
 				
@@ -794,10 +842,12 @@ I2PHelperRouter
             
 			adapter.log( "Router startup complete: version=" + CoreVersion.getVersion() + ", elapsed=" + (SystemTime.getMonotonousTime() - start ));
 
-			init_sem.releaseForever();
+			router_stage.complete();
 			
 		}catch( Throwable e ){
 			
+			startup.getStage( I2PHelperStartup.STAGE_ROUTER ).fail( e );
+			
 			destroy();
 			
 			throw( new Exception( "Initialisation failed", e ));
@@ -829,7 +879,13 @@ I2PHelperRouter
 			long start = SystemTime.getMonotonousTime();
 			
 			adapter.log( "Waiting for external router startup on " + i2p_host + ":" + i2p_port );
-						
+			
+			I2PHelperStartup.Stage	router_stage = startup.getStage( I2PHelperStartup.STAGE_ROUTER );
+			
+			router_stage.begin();
+
+				// nothing for it but to probe the I2CP port of an external router
+			
 			while( true ){
 				
 				if ( destroyed ){
@@ -861,10 +917,12 @@ I2PHelperRouter
 			
 			adapter.log( "Router startup complete, elapsed=" + (SystemTime.getMonotonousTime() - start ));
 			       
-			init_sem.releaseForever();
+			router_stage.complete();
 			
 		}catch( Throwable e ){
 			
+			startup.getStage( I2PHelperStartup.STAGE_ROUTER ).fail( e );
+			
 			destroy();
 			
 			throw( new Exception( "Initialisation failed", e ));	
@@ -876,14 +934,18 @@ I2PHelperRouter
 	
 		throws Exception
 	{
-		init_sem.reserve();
-		
-		if ( destroyed ){
+		if ( !startup.getStage( I2PHelperStartup.STAGE_ROUTER ).waitFor( 0 ) || destroyed ){
 			
 			throw( new Exception( "Router destroyed" ));
 		}
 	}
 	
+	public I2PHelperStartup
+	getStartup()
+	{
+		return( startup );
+	}
+	
 	public void
 	initialiseDHTs()
 	
@@ -898,34 +960,60 @@ I2PHelperRouter
 	initialiseDHT(
 		int		index )
 	{
-		I2PHelperRouterDHT[] to_do = new I2PHelperRouterDHT[]{ dhts[index], dhts_secondaries[ index ] };
-				
-		for ( I2PHelperRouterDHT dht: to_do ){
+			// the secondary has its own session so is brought up alongside the primary rather than after it
+		
+		I2PHelperRouterDHT secondary = dhts_secondaries[ index ];
+		
+		AESemaphore	secondary_sem = null;
+		
+		if ( secondary != null && !secondary.isDHTInitialised() && secondary.isEnabled()){
 			
-			if ( dht == null ){
-				
-				continue;
-			}
+			AESemaphore sem = secondary_sem = new AESemaphore( "I2PRouterDHTInit" );
 			
-			if ( !dht.isDHTInitialised()){
-				
-				if ( dht.isEnabled()){
-					
+			AEThread2.createAndStartDaemon(
+				"I2P:DHTInit " + secondary.getName(),
+				()->{
 					try{
-		
-						dht.initialiseDHT( i2p_host, i2p_port, DHT_NAMES[index], sm_properties );
-												
-					}catch( Throwable e ){
+						initialiseDHT( secondary, index );
 						
-						Debug.out( e );
+					}finally{
+						
+						sem.releaseForever();
 					}
-				}
-			}
+				});
+		}
+		
+		initialiseDHT( dhts[index], index );
+		
+		if ( secondary_sem != null ){
+			
+			secondary_sem.reserve();
 		}
 		
 		return( dhts[index] );
 	}
 	
+	private void
+	initialiseDHT(
+		I2PHelperRouterDHT		dht,
+		int						index )
+	{
+		if ( !dht.isDHTInitialised()){
+			
+			if ( dht.isEnabled()){
+				
+				try{
+	
+					dht.initialiseDHT( i2p_host, i2p_port, DHT_NAMES[index], sm_properties );
+											
+				}catch( Throwable e ){
+					
+					Debug.out( e );
+				}
+			}
+		}
+	}
+	
 	protected I2PSMHolder
 	getSocketManagerForSocks(
 		Map<String,Object>		options )
@@ -956,13 +1044,7 @@ I2PHelperRouter
 	{
 		if ( plugin != null ){
 					
-			try{
-				Download download = plugin.getPluginInterface().getDownloadManager().getDownload( torrent_hash );
-				
-				return( selectDHT( download ));
-			
-			}catch( Exception e ){
-			}
+			return( selectDHTForIndex( plugin.selectDHTIndex( torrent_hash )));
 		}
 		
 		return( selectDHT());
@@ -979,10 +1061,22 @@ I2PHelperRouter
 			
 		}else{
 			
-			return( selectDHT( plugin.getNetworks(download)));
+			return( selectDHTForIndex( plugin.selectDHTIndex( download )));
 		}
 	}
 	
+	private I2PHelperRouterDHT
+	selectDHTForIndex(
+		int		index )
+	{
+		if ( dhts.length < 2 || index == DHT_MIX ){
+			
+			return( dhts[DHT_MIX] );
+		}
+		
+		return( initialiseDHT( DHT_NON_MIX ));
+	}
+	
 	public I2PHelperRouterDHT
 	selectDHT(
 		Map<String,Object>		options )
@@ -1097,6 +1191,413 @@ I2PHelperRouter
 		return( I2PAppContext.getGlobalContext());
 	}
 	
+	/**
+	 * Creates a socket manager and connects its session. For a router running in this JVM the session
+	 * is created against the router's context so that it connects through the in-process client manager,
+	 * otherwise I2CP messages are serialised over a localhost socket and parsed again by this same JVM.
+	 * The factory would use the global context which isn't necessarily the router's. Uses TCP for an
+	 * external router, and falls back to TCP within the same call if the internal session can't be
+	 * created or connected, in which case internal is not tried again.
+	 * @param key_stream		private key stream, null for a new destination
+	 * @param on_connecting		run before each connect attempt, which returns once the tunnels are built, may be null
+	 */
+	
+	protected I2PSocketManager
+	createConnectedManager(
+		InputStream		key_stream,
+		Properties		sm_props,
+		String			name,
+		Runnable		on_connecting )
+	
+		throws Exception
+	{
+		Router	r = router;
+		
+		if ( r != null && useInternalI2CP()){
+			
+				// read the keys up front so that they are still available for TCP if internal fails
+			
+			byte[]	keys = null;
+			
+			if ( key_stream != null ){
+				
+				ByteArrayOutputStream baos = new ByteArrayOutputStream( 1024 );
+				
+				byte[]	buffer = new byte[1024];
+				
+				while( true ){
+					
+					int	len = key_stream.read( buffer );
+					
+					if ( len <= 0 ){
+						
+						break;
+					}
+					
+					baos.write( buffer, 0, len );
+				}
+				
+				keys = baos.toByteArray();
+				
+				key_stream = new ByteArrayInputStream( keys );
+			}
+			
+			I2PSocketManager	sm = null;
+			
+			try{
+				RouterContext	router_ctx = r.getContext();
+				
+				if ( router_ctx.internalClientManager() == null ){
+					
+					throw( new Exception( "Router isn't accepting internal connections" ));
+				}
+				
+				I2PClient	client = I2PClientFactory.createClient();
+				
+				if ( key_stream == null ){
+					
+					ByteArrayOutputStream baos = new ByteArrayOutputStream( 1024 );
+					
+					String sig_type = sm_props.getProperty( I2PClient.PROP_SIGTYPE );
+					
+					client.createDestination( baos, sig_type==null?I2PClient.DEFAULT_SIGTYPE:SigType.parseSigType( sig_type ));
+					
+					key_stream = new ByteArrayInputStream( baos.toByteArray());
+				}
+				
+				I2PSession session = client.createSession( router_ctx, key_stream, sm_props );
+				
+				sm = new I2PSocketManagerFull( router_ctx, session, sm_props, name, null );
+				
+				connectSession( sm, on_connecting );
+				
+				return( sm );
+				
+			}catch( Throwable e ){
+				
+				if ( sm != null ){
+					
+					sm.destroySocketManager();
+				}
+				
+				if ( !internal_i2cp_failed ){
+				
+					internal_i2cp_failed = true;
+					
+					Debug.out( "Internal I2CP session failed, falling back to TCP", e );
+				}
+				
+				key_stream = keys==null?null:new ByteArrayInputStream( keys );
+			}
+		}
+		
+		I2PSocketManager sm = I2PSocketManagerFactory.createDisconnectedManager( key_stream, i2p_host, i2p_port, sm_props );
+		
+		try{
+			connectSession( sm, on_connecting );
+			
+		}catch( Throwable e ){
+			
+			sm.destroySocketManager();
+			
+			throw( e );
+		}
+		
+		return( sm );
+	}
+	
+	private static void
+	connectSession(
+		I2PSocketManager		sm,
+		Runnable				on_connecting )
+	
+		throws Exception
+	{
+		if ( on_connecting != null ){
+			
+			on_connecting.run();
+		}
+		
+		sm.getSession().connect();
+	}
+	
+	private boolean
+	useInternalI2CP()
+	{
+		return( !is_external_router && !internal_i2cp_failed && getBooleanParameter( PARAM_INTERNAL_I2CP ));
+	}
+	
+	public String
+	getI2CPMode()
+	{
+		if ( is_external_router ){
+			
+			return( "tcp" );
+			
+		}else if ( internal_i2cp_failed ){
+			
+			return( "tcp (internal failed)" );
+			
+		}else{
+			
+			return( getBooleanParameter( PARAM_INTERNAL_I2CP )?"internal":"tcp" );
+		}
+	}
+	
+	/**
+	 * Times raw datagram round-trips between two throwaway destinations on the internal router, first
+	 * one at a time and then with all of them in flight, over internal I2CP sessions and then over the
+	 * I2CP TCP port. Both destinations are local so the router delivers without using tunnels and the
+	 * difference between the two modes is the I2CP transport.
+	 */
+	
+	public void
+	testI2CP(
+		int		count,
+		int		size )
+	
+		throws Exception
+	{
+		Router	r = router;
+		
+		if ( r == null || is_external_router ){
+			
+			throw( new Exception( "I2CP test requires the internal router" ));
+		}
+		
+		for ( boolean internal: new boolean[]{ true, false }){
+			
+			String	mode = internal?"internal":"tcp";
+			
+			I2PSession[]	sessions = new I2PSession[2];
+			
+			try{
+				for ( int i=0;i<sessions.length;i++){
+					
+					sessions[i] = createTestSession( r, internal );
+				}
+				
+				adapter.log( "I2CP " + mode + ": " + testI2CP( sessions[0], sessions[1], count, size ));
+				
+			}catch( Throwable e ){
+				
+				adapter.log( "I2CP " + mode + ": failed - " + Debug.getNestedExceptionMessage( e ));
+				
+			}finally{
+				
+				for ( I2PSession session: sessions ){
+					
+					if ( session != null ){
+						
+						try{
+							session.destroySession();
+							
+						}catch( Throwable e ){
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private I2PSession
+	createTestSession(
+		Router		r,
+		boolean		internal )
+	
+		throws Exception
+	{
+		I2PClient	client = I2PClientFactory.createClient();
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream( 1024 );
+		
+		client.createDestination( baos, I2PClient.DEFAULT_SIGTYPE );
+		
+		InputStream	key_stream = new ByteArrayInputStream( baos.toByteArray());
+		
+		Properties	props = new Properties();
+		
+			// local delivery doesn't use the tunnels, keep them cheap to build
+		
+		props.setProperty( "inbound.length", "0" );
+		props.setProperty( "outbound.length", "0" );
+		props.setProperty( "inbound.quantity", "1" );
+		props.setProperty( "outbound.quantity", "1" );
+		props.setProperty( "i2cp.dontPublishLeaseSet", "true" );
+		
+		I2PSession	session;
+		
+		if ( internal ){
+			
+			session = client.createSession( r.getContext(), key_stream, props );
+			
+		}else{
+			
+			props.setProperty( I2PClient.PROP_TCP_HOST, i2p_host );
+			props.setProperty( I2PClient.PROP_TCP_PORT, String.valueOf( i2p_port ));
+			
+			session = client.createSession( key_stream, props );
+		}
+		
+		session.connect();
+		
+		return( session );
+	}
+	
+	private static String
+	testI2CP(
+		I2PSession		sender,
+		I2PSession		echoer,
+		int				count,
+		int				size )
+	
+		throws Exception
+	{
+		I2CPTestListener	replies = new I2CPTestListener( null );
+		
+		sender.addMuxedSessionListener( replies, I2PSession.PROTO_DATAGRAM_RAW, I2CP_TEST_PORT + 1 );
+		echoer.addMuxedSessionListener( new I2CPTestListener( sender.getMyDestination()), I2PSession.PROTO_DATAGRAM_RAW, I2CP_TEST_PORT );
+		
+		Destination	target = echoer.getMyDestination();
+		
+		byte[]	payload = new byte[size];
+		
+		long	rtt_total	= 0;
+		long	rtt_min		= Long.MAX_VALUE;
+		long	rtt_max		= 0;
+		int		rtt_lost	= 0;
+		
+			// first pass warms up
+		
+		for ( int pass=0;pass<2;pass++){
+			
+			for ( int i=0;i<count;i++){
+				
+				long	start = System.nanoTime();
+				
+				sender.sendMessage( target, payload, 0, size, I2PSession.PROTO_DATAGRAM_RAW, I2CP_TEST_PORT + 1, I2CP_TEST_PORT );
+				
+				if ( !replies.received.reserve( I2CP_TEST_TIMEOUT )){
+					
+					rtt_lost++;
+					
+				}else if ( pass == 1 ){
+					
+					long	rtt = System.nanoTime() - start;
+					
+					rtt_total += rtt;
+					rtt_min	= Math.min( rtt_min, rtt );
+					rtt_max	= Math.max( rtt_max, rtt );
+				}
+			}
+		}
+		
+		long	start = System.nanoTime();
+		
+		for ( int i=0;i<count;i++){
+			
+			sender.sendMessage( target, payload, 0, size, I2PSession.PROTO_DATAGRAM_RAW, I2CP_TEST_PORT + 1, I2CP_TEST_PORT );
+		}
+		
+		int	burst_received = 0;
+		
+		while( burst_received < count && replies.received.reserve( I2CP_TEST_TIMEOUT )){
+			
+			burst_received++;
+		}
+		
+		long	burst_elapsed = System.nanoTime() - start;
+		
+		int		rtt_received = count - rtt_lost;
+		
+		return( "count=" + count + ",size=" + size + 
+				"; rtt avg=" + ( rtt_received<=0?"-":( rtt_total/rtt_received/1000 ) + "us" ) + 
+				",min=" + ( rtt_min==Long.MAX_VALUE?"-":( rtt_min/1000 ) + "us" ) + 
+				",max=" + ( rtt_max/1000 ) + "us,lost=" + rtt_lost +
+				"; burst " + burst_received + "/" + count + " in " + ( burst_elapsed/1000000 ) + "ms (" + 
+				( burst_elapsed<=0?"-":String.valueOf( burst_received*1000000000L/burst_elapsed )) + "/sec)" );
+	}
+	
+	private static class
+	I2CPTestListener
+		implements I2PSessionMuxedListener
+	{
+		private final Destination	echo_to;
+		private final AESemaphore	received = new AESemaphore( "I2CPTest" );
+		
+		private
+		I2CPTestListener(
+			Destination		_echo_to )
+		{
+			echo_to	= _echo_to;
+		}
+		
+		@Override
+		public void
+		messageAvailable(
+			I2PSession 		session, 
+			int 			msg_id, 
+			long 			size, 
+			int 			proto, 
+			int 			from_port, 
+			int 			to_port )
+		{
+			try{
+				byte[] payload = session.receiveMessage( msg_id );
+				
+				if ( payload == null ){
+					
+					return;
+				}
+				
+				if ( echo_to != null ){
+					
+					session.sendMessage( echo_to, payload, 0, payload.length, I2PSession.PROTO_DATAGRAM_RAW, to_port, from_port );
+					
+				}else{
+					
+					received.release();
+				}
+			}catch( Throwable e ){
+				
+				Debug.out( e );
+			}
+		}
+		
+		@Override
+		public void
+		messageAvailable(
+			I2PSession 		session, 
+			int 			msg_id, 
+			long 			size )
+		{
+		}
+		
+		@Override
+		public void
+		reportAbuse(
+			I2PSession 		session,
+			int 			severity )
+		{
+		}
+		
+		@Override
+		public void
+		disconnected(
+			I2PSession 		session )
+		{
+		}
+		
+		@Override
+		public void
+		errorOccurred(
+			I2PSession 		session,
+			String 			message,
+			Throwable 		error )
+		{
+		}
+	}
+	
 	public ServerInstance 
 	createServer(
 		final String			server_id,
@@ -1165,7 +1666,9 @@ I2PHelperRouter
 			
 			destroyed	= true;
 			
-			init_sem.releaseForever();
+				// releases anything waiting on initialisation
+			
+			startup.destroy();
 			
 			try{
 				if ( router != null ){
@@ -1205,6 +1708,10 @@ I2PHelperRouter
 			
 			servers.clear();
 		}
+		
+		dest_cache_timer.cancel();
+		
+		dest_cache.save();
 	}
 	
 	public boolean
@@ -1248,8 +1755,48 @@ I2PHelperRouter
 			str += (str.length()==0?"":": ") + dht_str;
 							
 			adapter.log( str );
+			
+			String accept_str = dhts[i].getAcceptStats();
+			
+			if ( accept_str != null ){
+				
+				adapter.log( accept_str );
+			}
+		}
+		
+		List<ServerInstance>	server_list;
+		
+		synchronized( this ){
+			
+			server_list = new ArrayList<>( servers.values());
+		}
+		
+		for ( ServerInstance server: server_list ){
+			
+			String accept_str = server.getAcceptStats();
+			
+			if ( accept_str != null ){
+				
+				adapter.log( accept_str );
+			}
 		}
 		
+		adapter.log( "Start-up: " + startup.getString());
+		
+		adapter.log( "Destination cache: " + dest_cache.getString());
+		
+		adapter.log( I2PHelperB32Cache.getString());
+		
+		adapter.log( I2PHelperSocksProxy.getRelayBufferStats());
+		
+		adapter.log( I2PHelperSocketForwarder.getBufferStats());
+		
+		adapter.log( I2PHelperSocksProxy.getRelayWriterStats());
+		
+		adapter.log( I2PHelperSocketForwarder.getWriterStats());
+		
+		adapter.log( I2PHelperSocketForwarder.getHandoffStats());
+		
 		if ( router == null ){
 			
 			if ( !is_external_router ){
@@ -1386,6 +1933,8 @@ I2PHelperRouter
 		private String					b32_dest;
 		
 		private volatile I2PSMHolder	sm_holder;
+		
+		private volatile I2PHelperAcceptDispatcher	accept_dispatcher;
 
 		private volatile boolean		server_destroyed;
 		
@@ -1504,9 +2053,7 @@ I2PHelperRouter
 							    		setupSMExplicitOpts( sm_props, Constants.APP_NAME + ": " + server_id, sm_type );
 							    		
 							    		try{
-							    			sm = I2PSocketManagerFactory.createDisconnectedManager( is, i2p_host, i2p_port, sm_props );
-							    	
-							    			sm.getSession().connect();
+							    			sm = createConnectedManager( is, sm_props, server_id, null );
 							    			
 							    		}catch( Throwable e ){
 							    			
@@ -1616,6 +2163,13 @@ I2PHelperRouter
 				
 				log( "Socket manager startup complete" );					
 				
+				final I2PHelperAcceptDispatcher dispatcher = 
+					new I2PHelperAcceptDispatcher(
+						"I2P:accept dispatch (" + server_id + ")",
+						( socket )->server_adapter.incomingConnection( ServerInstance.this, socket ));
+				
+				accept_dispatcher = dispatcher;
+				
 				new AEThread2( "I2P:accepter (server)" )
 				{
 					@Override
@@ -1638,20 +2192,8 @@ I2PHelperRouter
 										Thread.sleep(500);
 									}
 								}else{
-									try{
-									
-										server_adapter.incomingConnection( ServerInstance.this, socket );
 									
-									}catch( Throwable e ){
-										
-										Debug.out( e );
-										
-										try{
-											socket.close();
-											
-										}catch( Throwable f ){
-										}
-									}
+									dispatcher.dispatch( socket );
 								}
 							}catch( Throwable e ){
 								
@@ -1694,6 +2236,12 @@ I2PHelperRouter
 			}			
 		}
 		
+		public String
+		getServerID()
+		{
+			return( server_id );
+		}
+		
 		public I2PHelperRouter
 		getRouter()
 		{
@@ -1745,6 +2293,14 @@ I2PHelperRouter
 			return( b32_dest );
 		}
 		
+		public String
+		getAcceptStats()
+		{
+			I2PHelperAcceptDispatcher dispatcher = accept_dispatcher;
+			
+			return( dispatcher==null?null:dispatcher.getString());
+		}
+		
 		public void
 		setUserProperty(
 			String	key,
@@ -1778,6 +2334,11 @@ I2PHelperRouter
 				
 				server_destroyed	= true;
 				
+				if ( accept_dispatcher != null ){
+					
+					accept_dispatcher.destroy();
+				}
+				
 				if ( sm_holder != null ){
 					
 					sm_holder.destroy();
@@ -34,7 +34,6 @@ import net.i2p.I2PAppContext;
 import net.i2p.client.I2PSession;
 import net.i2p.client.streaming.I2PSocket;
 import net.i2p.client.streaming.I2PSocketManager;
-import net.i2p.client.streaming.I2PSocketManagerFactory;
 import net.i2p.data.Base32;
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
@@ -60,6 +59,8 @@ I2PHelperRouterDHT
 	private final I2PHelperAdapter			adapter;
 	
 	private volatile I2PSMHolder			sm_holder;
+	
+	private volatile I2PHelperAcceptDispatcher	accept_dispatcher;
 	private volatile Properties				dht_socket_manager_properties;
 
 	private String				b32_dest = "";
@@ -195,6 +196,13 @@ I2PHelperRouterDHT
 			
 				router.waitForInitialisation();
 				
+				I2PHelperStartup startup = router.getStartup();
+				
+				I2PHelperStartup.Stage	session_stage	= startup.getStage( I2PHelperStartup.getStageName( getName(), I2PHelperStartup.STAGE_SESSION ));
+				I2PHelperStartup.Stage	tunnels_stage	= startup.getStage( I2PHelperStartup.getStageName( getName(), I2PHelperStartup.STAGE_TUNNELS ));
+				
+				session_stage.begin();
+				
 				try{
 					long start = SystemTime.getMonotonousTime();
 					
@@ -245,9 +253,7 @@ I2PHelperRouterDHT
 									    		InputStream is = new FileInputStream( dest_key_file );
 									    	
 									    		try{
-									    			sm = I2PSocketManagerFactory.createDisconnectedManager( is, i2p_host, i2p_port, sm_properties );
-									    	
-									    			sm.getSession().connect();
+									    			sm = createConnectedManager( is );
 									    			
 									    		}finally{
 									    		
@@ -255,9 +261,7 @@ I2PHelperRouterDHT
 									    		}
 									        }else{
 									        	
-									        	sm = I2PSocketManagerFactory.createDisconnectedManager( null, i2p_host, i2p_port, sm_properties );
-									        	
-									        	sm.getSession().connect();
+									        	sm = createConnectedManager( null );
 									        }
 							        	}catch( Throwable e ){
 							        		
@@ -315,6 +319,30 @@ I2PHelperRouterDHT
 						        return( sm );
 							}
 							
+							private I2PSocketManager
+							createConnectedManager(
+								InputStream		key_stream )
+							
+								throws Exception
+							{
+									// connect returns once the tunnels are built and the lease set is published
+								
+								I2PSocketManager sm = 
+									router.createConnectedManager( 
+										key_stream, 
+										sm_properties, 
+										getName(),
+										()->{
+											session_stage.complete();
+											
+											tunnels_stage.begin();
+										});
+								
+								tunnels_stage.complete();
+								
+								return( sm );
+							}
+							
 							@Override
 							protected I2PSession
 							getSession(
@@ -370,7 +398,17 @@ I2PHelperRouterDHT
 					b32_dest	= Base32.encode( my_dest.calculateHash().getData()) + ".b32.i2p";
 					
 					adapter.stateChanged( this, false );
-										
+					
+						// handing off an incoming connection can block so it is done by the dispatcher
+						// to keep the accepter free to accept
+					
+					final I2PHelperAcceptDispatcher dispatcher = 
+						new I2PHelperAcceptDispatcher(
+							"I2P:accept dispatch (dht " + dht_index + ")",
+							( socket )->adapter.incomingConnection( I2PHelperRouterDHT.this, socket ));
+					
+					accept_dispatcher = dispatcher;
+					
 					new AEThread2( "I2P:accepter (dht)" )
 					{
 						@Override
@@ -393,20 +431,8 @@ I2PHelperRouterDHT
 											Thread.sleep(500);
 										}
 									}else{
-										try{
-										
-											adapter.incomingConnection( I2PHelperRouterDHT.this, socket );
 										
-										}catch( Throwable e ){
-											
-											Debug.out( e );
-											
-											try{
-												socket.close();
-												
-											}catch( Throwable f ){
-											}
-										}
+										dispatcher.dispatch( socket );
 									}
 								}catch( Throwable e ){
 									
@@ -506,7 +532,18 @@ I2PHelperRouterDHT
 						log( "        " + b32_dest  + ":" + dht_port + ", existing=" + use_existing_key[0] );
 						log( "MyNID:  " + Base32.encode( dht_nid.getData()) + ", existing=" + use_existing_nid );
 			
-						dht = new DHTI2P( config_dir, dht_index, sm_holder, my_node_info, is_bootstrap_node?null:boot_ninf, adapter );						
+						I2PHelperStartup.Stage	dht_stage		= startup.getStage( I2PHelperStartup.getStageName( getName(), I2PHelperStartup.STAGE_DHT ));
+						I2PHelperStartup.Stage	seeded_stage	= startup.getStage( I2PHelperStartup.getStageName( getName(), I2PHelperStartup.STAGE_SEEDED ));
+						
+						dht_stage.begin();
+						
+						DHTI2P dht_i2p = new DHTI2P( config_dir, dht_index, sm_holder, my_node_info, is_bootstrap_node?null:boot_ninf, seeded_stage, adapter );
+						
+						dht_stage.complete();
+						
+						seeded_stage.begin();
+						
+						dht = dht_i2p;
 					}
 					
 					initialized = true;
@@ -515,6 +552,15 @@ I2PHelperRouterDHT
 					
 					e.printStackTrace();
 					
+					session_stage.fail( e );
+					tunnels_stage.fail( e );
+					
+					if ( !is_secondary ){
+						
+						startup.getStage( I2PHelperStartup.getStageName( getName(), I2PHelperStartup.STAGE_DHT )).fail( e );
+						startup.getStage( I2PHelperStartup.getStageName( getName(), I2PHelperStartup.STAGE_SEEDED )).fail( e );
+					}
+					
 					closeStuff();
 					
 					throw( new Exception( "Initialisation failed", e ));	
@@ -733,6 +779,14 @@ I2PHelperRouterDHT
 		}
 	}
 	
+	public String
+	getAcceptStats()
+	{
+		I2PHelperAcceptDispatcher dispatcher = accept_dispatcher;
+		
+		return( dispatcher==null?null:dispatcher.getString());
+	}
+	
 	private void
 	closeStuff()
 	{
@@ -769,6 +823,11 @@ I2PHelperRouterDHT
 			
 			destroyed	= true;
 			
+			if ( accept_dispatcher != null ){
+				
+				accept_dispatcher.destroy();
+			}
+			
 			try{
 				closeStuff();
 				
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.router;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.biglybt.core.util.AEThread2;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SystemTime;
+
+import net.i2p.client.SendMessageOptions;
+import net.i2p.data.Destination;
+
+/**
+ * Queues outgoing datagrams by priority and releases them to the session at a paced rate so that
+ * the fan-out from parallel lookups doesn't hit the tunnels as a single burst. Pacing is a token
+ * bucket in bytes. Datagrams that can't be queued, or that have been queued too long to be of any
+ * use, are dropped and counted, the optional SendListener being told of the outcome of the ones that
+ * were queued. SendMessageOptions are shared per message class as they're only
+ * touched by the sender thread.
+ */
+
+public class
+I2PHelperSendScheduler
+{
+	public static final int	PRIORITY_HIGH		= 0;
+	public static final int	PRIORITY_NORMAL		= 1;
+
+	private static final int	PRIORITY_COUNT		= 2;
+
+		// message class flags
+
+	public static final int	FLAG_ADHOC			= 0x01;		// send crypto tags as we're unlikely to have any
+	public static final int	FLAG_NO_LEASESET	= 0x02;
+
+	private static final int	SEND_CRYPTO_TAGS 	= 8;
+	private static final int	LOW_CRYPTO_TAGS 	= 4;
+
+	private static final int	MESSAGE_EXPIRY		= 60*1000;
+
+	private static final int	MAX_QUEUED			= 256;		// per priority
+	private static final int	MAX_QUEUE_TIME		= 10*1000;
+
+	private static final int	RATE_SHARE_PERCENT	= 50;		// of the router's send limit
+	private static final int	MIN_RATE			= 16*1024;
+	private static final int	UNLIMITED_RATE		= 256*1024;
+
+	private static final int	BURST_MILLIS		= 250;
+	private static final int	MIN_BURST			= 32*1024;	// must allow at least one max size datagram
+
+	private final String		name;
+	private final Transmitter	transmitter;
+
+	private final Object		lock = new Object();
+
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<Message>[]	queues = new ArrayDeque[PRIORITY_COUNT];
+
+	private final SendMessageOptions[]	options = new SendMessageOptions[4];
+
+	private volatile int	rate;
+	private long			tokens;
+	private long			last_refill	= SystemTime.getMonotonousTime();
+
+	private int		queued;
+
+	private long	total_queued;
+	private long	total_sent;
+	private long	total_bytes;
+	private long	total_failed;
+	private long	total_dropped_full;
+	private long	total_dropped_expired;
+	private long	total_queue_time;
+	private long	total_transmit_time;	// nanos spent handing datagrams to the session
+	private int		max_depth;
+
+	private boolean	destroyed;
+
+	public
+	I2PHelperSendScheduler(
+		String			_name,
+		Transmitter		_transmitter,
+		int				send_kbs )
+	{
+		name			= _name;
+		transmitter		= _transmitter;
+
+		for ( int i=0;i<PRIORITY_COUNT;i++){
+
+			queues[i] = new ArrayDeque<>();
+		}
+
+		for ( int i=0;i<options.length;i++){
+
+			SendMessageOptions opts = new SendMessageOptions();
+
+			if (( i & FLAG_ADHOC ) != 0 ){
+
+				opts.setTagsToSend( SEND_CRYPTO_TAGS );
+				opts.setTagThreshold( LOW_CRYPTO_TAGS );
+			}
+
+			if (( i & FLAG_NO_LEASESET ) != 0 ){
+
+				opts.setSendLeaseSet( false );
+			}
+
+			options[i] = opts;
+		}
+
+		setSendRate( send_kbs );
+
+		tokens = getBurst();
+
+		new AEThread2( "I2PSendScheduler:" + name )
+		{
+			@Override
+			public void
+			run()
+			{
+				sendLoop();
+			}
+		}.start();
+	}
+
+	/**
+	 * @param send_kbs	router send limit in KB/sec, <= 0 for unlimited
+	 */
+
+	public void
+	setSendRate(
+		int		send_kbs )
+	{
+		int	r;
+
+		if ( send_kbs <= 0 ){
+
+			r = UNLIMITED_RATE;
+
+		}else{
+
+			r = (int)Math.min( UNLIMITED_RATE, Math.max( MIN_RATE, send_kbs*1024L*RATE_SHARE_PERCENT/100 ));
+		}
+
+		rate = r;
+	}
+
+	private long
+	getBurst()
+	{
+		return( Math.max( MIN_BURST, (long)rate*BURST_MILLIS/1000 ));
+	}
+
+	/**
+	 * Never blocks
+	 * @param listener	null if not required, informed once the datagram has been sent or dropped
+	 * @return false if the datagram was dropped as the queue is full, the listener isn't informed
+	 */
+
+	public boolean
+	queue(
+		Destination			dest,
+		byte[]				payload,
+		int					offset,
+		int					size,
+		int					proto,
+		int					from_port,
+		int					to_port,
+		int					flags,
+		int					priority,
+		SendListener		listener )
+	{
+		Message	message = new Message( dest, payload, offset, size, proto, from_port, to_port, flags, listener );
+
+		synchronized( lock ){
+
+			if ( destroyed ){
+
+				return( false );
+			}
+
+			ArrayDeque<Message>	queue = queues[priority];
+
+			if ( queue.size() >= MAX_QUEUED ){
+
+				total_dropped_full++;
+
+				return( false );
+			}
+
+			queue.add( message );
+
+			queued++;
+
+			total_queued++;
+
+			if ( queued > max_depth ){
+
+				max_depth = queued;
+			}
+
+			lock.notify();
+		}
+
+		return( true );
+	}
+
+	private void
+	sendLoop()
+	{
+		while( true ){
+
+			Message	message = null;
+
+			try{
+				synchronized( lock ){
+
+					while( true ){
+
+						if ( destroyed ){
+
+							return;
+						}
+
+						long	now = SystemTime.getMonotonousTime();
+
+						refill( now );
+
+						message = next( now );
+
+						if ( message != null ){
+
+							if ( message.expired ){
+
+								break;
+							}
+
+								// a full bucket always allows a send so oversized datagrams can't stall the queue
+
+							if ( tokens >= message.size || tokens >= getBurst()){
+
+								tokens -= message.size;
+
+								queued--;
+
+								total_queue_time += now - message.queue_time;
+
+								break;
+							}
+
+								// put it back and wait for enough tokens
+
+							queues[message.priority].addFirst( message );
+
+							long	wait = Math.max( 1, (( message.size - tokens ) * 1000 ) / rate );
+
+							message = null;
+
+							lock.wait( wait );
+
+						}else{
+
+							lock.wait();
+						}
+					}
+				}
+
+				if ( message.expired ){
+
+					message.failed( "Queued too long" );
+
+					continue;
+				}
+
+				long	transmit_start = System.nanoTime();
+
+				boolean	ok;
+
+				String	error;
+
+				try{
+					ok = transmitter.transmit(
+							message.dest, message.payload, message.offset, message.size,
+							message.proto, message.from_port, message.to_port, getOptions( message.flags ));
+
+					error = "Session send failed";
+
+				}catch( Throwable e ){
+
+					ok = false;
+
+					error = Debug.getNestedExceptionMessage( e );
+				}
+
+				if ( ok ){
+
+					long	elapsed = System.nanoTime() - transmit_start;
+
+					synchronized( lock ){
+
+						total_sent++;
+
+						total_bytes += message.size;
+
+						total_transmit_time += elapsed;
+					}
+
+					message.sent();
+
+				}else{
+
+					synchronized( lock ){
+
+						total_failed++;
+					}
+
+					message.failed( error );
+				}
+			}catch( Throwable e ){
+
+				Debug.out( e );
+			}
+		}
+	}
+
+	/**
+	 * lock held, returns the next message, leaving it removed from its queue. A message that has
+	 * been queued too long is returned marked as expired so its listener can be told
+	 */
+
+	private Message
+	next(
+		long		now )
+	{
+		for ( int i=0;i<PRIORITY_COUNT;i++){
+
+			ArrayDeque<Message>	queue = queues[i];
+
+			while( !queue.isEmpty()){
+
+				Message	message = queue.removeFirst();
+
+				if ( now - message.queue_time > MAX_QUEUE_TIME ){
+
+					queued--;
+
+					total_dropped_expired++;
+
+					message.expired = true;
+				}
+
+				message.priority = i;
+
+				return( message );
+			}
+		}
+
+		return( null );
+	}
+
+	private void
+	refill(
+		long		now )
+	{
+		long	elapsed = now - last_refill;
+
+		if ( elapsed > 0 ){
+
+			tokens = Math.min( getBurst(), tokens + elapsed*rate/1000 );
+
+			last_refill = now;
+		}
+	}
+
+	private SendMessageOptions
+	getOptions(
+		int		flags )
+	{
+		SendMessageOptions	opts = options[flags & 0x03];
+
+			// only the sender thread gets here, the options are copied into the I2CP message by the send
+
+		opts.setDate( SystemTime.getCurrentTime() + MESSAGE_EXPIRY );
+
+		return( opts );
+	}
+
+	public void
+	destroy()
+	{
+		List<Message>	dropped = new ArrayList<>();
+
+		synchronized( lock ){
+
+			destroyed = true;
+
+			for ( ArrayDeque<Message> queue: queues ){
+
+				dropped.addAll( queue );
+
+				queue.clear();
+			}
+
+			queued = 0;
+
+			lock.notify();
+		}
+
+		for ( Message message: dropped ){
+
+			message.failed( "Scheduler destroyed" );
+		}
+	}
+
+	public String
+	getString()
+	{
+		synchronized( lock ){
+
+			return( "send " + name + ": rate=" + rate/1024 + "KB/s" +
+					",queued=" + queued +
+					",max_depth=" + max_depth +
+					",total=" + total_queued +
+					",sent=" + total_sent +
+					",bytes=" + total_bytes +
+					",failed=" + total_failed +
+					",drop_full=" + total_dropped_full +
+					",drop_expired=" + total_dropped_expired +
+					",avg_queue=" + ( total_sent==0?0:( total_queue_time/total_sent )) +
+					",avg_transmit_us=" + ( total_sent==0?0:( total_transmit_time/total_sent/1000 )));
+		}
+	}
+
+	public interface
+	Transmitter
+	{
+		public boolean
+		transmit(
+			Destination			dest,
+			byte[]				payload,
+			int					offset,
+			int					size,
+			int					proto,
+			int					from_port,
+			int					to_port,
+			SendMessageOptions	options )
+
+			throws Exception;
+	}
+
+	public interface
+	SendListener
+	{
+		public void
+		sent(
+			int			size );
+
+		public void
+		failed(
+			String		reason );
+	}
+
+	private static class
+	Message
+	{
+		private final Destination	dest;
+		private final byte[]		payload;
+		private final int			offset;
+		private final int			size;
+		private final int			proto;
+		private final int			from_port;
+		private final int			to_port;
+		private final int			flags;
+		private final SendListener	listener;
+
+		private final long			queue_time = SystemTime.getMonotonousTime();
+
+		private int					priority;
+		private boolean				expired;
+
+		private
+		Message(
+			Destination		_dest,
+			byte[]			_payload,
+			int				_offset,
+			int				_size,
+			int				_proto,
+			int				_from_port,
+			int				_to_port,
+			int				_flags,
+			SendListener	_listener )
+		{
+			dest		= _dest;
+			payload		= _payload;
+			offset		= _offset;
+			size		= _size;
+			proto		= _proto;
+			from_port	= _from_port;
+			to_port		= _to_port;
+			flags		= _flags;
+			listener	= _listener;
+		}
+
+		private void
+		sent()
+		{
+			if ( listener != null ){
+
+				try{
+					listener.sent( size );
+
+				}catch( Throwable e ){
+
+					Debug.out( e );
+				}
+			}
+		}
+
+		private void
+		failed(
+			String		reason )
+		{
+			if ( listener != null ){
+
+				try{
+					listener.failed( reason );
+
+				}catch( Throwable e ){
+
+					Debug.out( e );
+				}
+			}
+		}
+	}
+}
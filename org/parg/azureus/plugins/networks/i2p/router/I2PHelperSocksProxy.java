@@ -65,6 +65,8 @@ import com.biglybt.pif.download.Download;
 import com.biglybt.pif.torrent.Torrent;
 import com.biglybt.pif.torrent.TorrentAnnounceURLListSet;
 import org.parg.azureus.plugins.networks.i2p.I2PHelperAdapter;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperBufferPool;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperStreamWriter;
 
 import com.biglybt.core.proxy.AEProxyConnection;
 import com.biglybt.core.proxy.AEProxyException;
@@ -405,9 +407,25 @@ I2PHelperSocksProxy
 	
 	protected static ThreadPool			async_read_pool 	= new ThreadPool( "I2PSocket relay read", 32, true );
 	
-		// write pool is blocking as there is no non-blocking support for writes to I2P
+		// writes are blocking as there is no non-blocking support for writes to I2P
 	
-	protected static ThreadPool			async_write_pool 	= new ThreadPool( "I2PSocket relay write", 256, true );
+	protected static I2PHelperStreamWriter	async_writer 	= new I2PHelperStreamWriter( "I2PSocket relay write", 256 );
+	
+		// relay buffers are only held while data is in flight. always heap, see I2PHelperBufferPool
+	
+	private static final I2PHelperBufferPool	relay_buffer_pool = new I2PHelperBufferPool( "Socks relay buffers", SOCKSProxyConnection.RELAY_BUFFER_SIZE, 32, false );
+	
+	public static String
+	getRelayBufferStats()
+	{
+		return( relay_buffer_pool.getString());
+	}
+	
+	public static String
+	getRelayWriterStats()
+	{
+		return( async_writer.getString());
+	}
 	
 	private class
 	SOCKSProxyConnection
@@ -697,7 +715,11 @@ I2PHelperSocksProxy
 			private static final boolean LOG_CONTENT = false;
 			
 			AEProxyConnection		connection;
-			ByteBuffer				source_buffer;
+			
+				// both buffers are borrowed from the relay pool while data is in flight and
+				// are null otherwise
+			
+			volatile ByteBuffer		source_buffer;
 			
 			volatile ByteBuffer		target_buffer;
 			
@@ -706,14 +728,17 @@ I2PHelperSocksProxy
 			MessageInputStream		input_stream;
 			OutputStream			output_stream;
 			
+			I2PHelperStreamWriter.Queue	write_queue = async_writer.createQueue();
+			
 			long					outward_bytes	= 0;
 			long					inward_bytes	= 0;
 				
-			byte[]		i2p_input_buffer = new byte[RELAY_BUFFER_SIZE];
 			boolean		i2p_read_active;
 			boolean		i2p_read_deferred;
 			
 			boolean 	i2p_read_dead;
+			
+			boolean		relay_closed;
 
 			Object lock = new Object();
 			
@@ -729,8 +754,6 @@ I2PHelperSocksProxy
 				
 				source_channel	= connection.getSourceChannel();
 				
-				source_buffer	= ByteBuffer.allocate( RELAY_BUFFER_SIZE );
-				
 				input_stream 	= (MessageInputStream)socket.getInputStream();
 				output_stream 	= socket.getOutputStream();
 
@@ -808,7 +831,24 @@ I2PHelperSocksProxy
 	
 										long	start = System.currentTimeMillis();
 										
-										int	len = input_stream.read( i2p_input_buffer );
+										ByteBuffer	buffer = relay_buffer_pool.borrow();
+										
+										int	len;
+										
+										try{
+											len = input_stream.read( buffer.array());
+											
+										}catch( Throwable e ){
+											
+											relay_buffer_pool.release( buffer );
+											
+											throw( e );
+										}
+										
+										if ( len <= 0 ){
+											
+											relay_buffer_pool.release( buffer );
+										}
 										
 										if ( len == 0 ){
 											
@@ -834,15 +874,25 @@ I2PHelperSocksProxy
 																	
 										trace( "I2PCon: " + getStateName() + " : read Done <- I2P - " + len + ", elapsed = " + ( System.currentTimeMillis() - start ));
 										
-										if ( target_buffer != null ){
+										buffer.limit( len );
+										
+										synchronized( lock ){
+											
+											if ( relay_closed ){
+												
+												relay_buffer_pool.release( buffer );
+												
+												break;
+											}
+											
+											if ( target_buffer != null ){
+												
+												Debug.out("I2PluginConnection: target buffer should be null" );
+											}
 											
-											Debug.out("I2PluginConnection: target buffer should be null" );
+											target_buffer = buffer;
 										}
 										
-										// System.out.println( new String( buffer, 0, len ));
-										
-										target_buffer = ByteBuffer.wrap( i2p_input_buffer, 0, len );
-										
 										read();
 											
 										if ( target_buffer != null ){
@@ -928,6 +978,28 @@ I2PHelperSocksProxy
 				// System.out.println( "Relay end: " + socket.getPeerDestination());
 				
 				trace( "I2PCon: " + getStateName() + " close" );
+				
+				synchronized( lock ){
+					
+					relay_closed = true;
+					
+					releaseTargetBuffer();
+				}
+			}
+			
+			private void
+			releaseTargetBuffer()
+			{
+					// called with lock held
+				
+				ByteBuffer	buffer = target_buffer;
+				
+				if ( buffer != null ){
+					
+					target_buffer = null;
+					
+					relay_buffer_pool.release( buffer );
+				}
 			}
 			
 			protected void
@@ -939,23 +1011,34 @@ I2PHelperSocksProxy
 				
 				connection.setTimeStamp();
 			
-				if ( LOG_CONTENT ){
-					System.out.println( new String( target_buffer.array(), target_buffer.arrayOffset(), target_buffer.remaining()));
-				}
+					// channel is non-blocking so ok to write under the lock, this prevents the buffer
+					// being returned to the pool by a concurrent close while in use
 				
-				int written = source_channel.write( target_buffer );
+				synchronized( lock ){
 					
-				trace( "I2PCon: " + getStateName() + " : write -> AZ - " + written );
-				
-				inward_bytes += written;
-				
-				if ( target_buffer.hasRemaining()){
-				
-					connection.requestWriteSelect( source_channel );
+					if ( target_buffer == null ){
+						
+						return;
+					}
 					
-				}else{
-				
-					target_buffer	= null;
+					if ( LOG_CONTENT ){
+						System.out.println( new String( target_buffer.array(), target_buffer.arrayOffset(), target_buffer.remaining()));
+					}
+					
+					int written = source_channel.write( target_buffer );
+						
+					trace( "I2PCon: " + getStateName() + " : write -> AZ - " + written );
+					
+					inward_bytes += written;
+					
+					if ( target_buffer.hasRemaining()){
+					
+						connection.requestWriteSelect( source_channel );
+						
+					}else{
+					
+						releaseTargetBuffer();
+					}
 				}
 			}
 			
@@ -966,17 +1049,36 @@ I2PHelperSocksProxy
 			
 				throws IOException
 			{
-				if ( source_buffer.position() != 0 ){
+				if ( source_buffer != null ){
+					
+					Debug.out( "I2PluginConnection: source buffer in use" );
 					
-					Debug.out( "I2PluginConnection: source buffer position invalid" );
+					return( false );
 				}
 				
 					// data read from source
 				
 				connection.setTimeStamp();
-																
-				final int	len = sc.read( source_buffer );
+				
+				final ByteBuffer	buffer = relay_buffer_pool.borrow();
+				
+				final int	len;
+				
+				try{
+					len = sc.read( buffer );
+					
+				}catch( IOException e ){
+					
+					relay_buffer_pool.release( buffer );
+					
+					throw( e );
+				}
 		
+				if ( len <= 0 ){
+					
+					relay_buffer_pool.release( buffer );
+				}
+				
 				if ( len == 0 ){
 					
 					return( false );
@@ -988,7 +1090,9 @@ I2PHelperSocksProxy
 					
 				}else{
 					
-					if ( source_buffer.position() > 0 ){
+					source_buffer = buffer;
+					
+					if ( buffer.position() > 0 ){
 						
 						connection.cancelReadSelect( source_channel );
 						
@@ -997,7 +1101,7 @@ I2PHelperSocksProxy
 							// offload the write to separate thread as can't afford to block the
 							// proxy
 					
-						async_write_pool.run(
+						write_queue.run(
 							new AERunnable()
 							{
 								@Override
@@ -1005,7 +1109,7 @@ I2PHelperSocksProxy
 								runSupport()
 								{
 									try{					
-										source_buffer.flip();
+										buffer.flip();
 										
 										long	start = System.currentTimeMillis();
 										
@@ -1043,7 +1147,7 @@ I2PHelperSocksProxy
 											// gonna be lazy here and assume that if this is an HTTP request then the
 											// headers are present in the initial buffer read
 										
-										byte[] 	array 			= source_buffer.array();
+										byte[] 	array 			= buffer.array();
 										int		array_offset	= 0;
 										
 										if ( outward_bytes == 0 ){
@@ -1316,20 +1420,20 @@ I2PHelperSocksProxy
 											output_stream.write( array, array_offset, rem );
 										}
 										
-										source_buffer.position( 0 );
-										
-										source_buffer.limit( source_buffer.capacity());
-										
 										output_stream.flush();
 										
 										trace( "I2PCon: " + getStateName() + " : write done -> I2P - " + len + ", elapsed = " + ( System.currentTimeMillis() - start ));
 										
 										outward_bytes += len;
 										
+										releaseSourceBuffer( buffer );
+										
 										connection.requestReadSelect( source_channel );								
 
 									}catch( Throwable e ){
 										
+										releaseSourceBuffer( buffer );
+										
 										setError( e );
 										
 										connection.failed( e );
@@ -1342,6 +1446,18 @@ I2PHelperSocksProxy
 				return( true );
 			}
 			
+			private void
+			releaseSourceBuffer(
+				ByteBuffer		buffer )
+			{
+				if ( source_buffer == buffer ){
+					
+					source_buffer = null;
+					
+					relay_buffer_pool.release( buffer );
+				}
+			}
+			
 			@Override
 			public boolean
 			write(
@@ -1351,32 +1467,37 @@ I2PHelperSocksProxy
 			{
 				
 				try{
-					if ( LOG_CONTENT ){
-						System.out.println( new String( target_buffer.array(), target_buffer.arrayOffset(), target_buffer.remaining()));
-					}
-					
-					int written = source_channel.write( target_buffer );
+					synchronized( lock ){
 						
-					inward_bytes += written;
+						if ( target_buffer == null ){
+							
+							return( false );
+						}
 						
-					trace( "I2PCon: " + getStateName() + " write -> AZ: " + written );
-					
-					if ( target_buffer.hasRemaining()){
-										
-						connection.requestWriteSelect( source_channel );
+						if ( LOG_CONTENT ){
+							System.out.println( new String( target_buffer.array(), target_buffer.arrayOffset(), target_buffer.remaining()));
+						}
 						
-					}else{
+						int written = source_channel.write( target_buffer );
+							
+						inward_bytes += written;
+							
+						trace( "I2PCon: " + getStateName() + " write -> AZ: " + written );
 						
-						synchronized( lock ){
+						if ( target_buffer.hasRemaining()){
+											
+							connection.requestWriteSelect( source_channel );
 							
-							target_buffer = null;
+						}else{
+							
+							releaseTargetBuffer();
 							
 							readFromI2P();
 						}
+						
+						return( written > 0 );
 					}
 					
-					return( written > 0 );
-					
 				}catch( Throwable e ){
 										
 					if (e instanceof IOException ){
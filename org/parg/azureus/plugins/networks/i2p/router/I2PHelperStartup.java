@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.router;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.core.util.AESemaphore;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SystemTime;
+
+/**
+ * Tracks the router's start-up as a set of named stages (router ready, then per DHT session connected,
+ * tunnels built, DHT initialised and DHT seeded, and per server instance DHT client initialised). Each stage completes once, waiters and listeners
+ * are released as soon as it does rather than polling for it, and the time each took relative to
+ * the start of the router's start-up is kept for reporting.
+ */
+
+public class
+I2PHelperStartup
+{
+	public static final String	STAGE_ROUTER	= "router";
+
+	public static final String	STAGE_SESSION	= "session";
+	public static final String	STAGE_TUNNELS	= "tunnels";
+	public static final String	STAGE_DHT		= "dht";
+	public static final String	STAGE_SEEDED	= "seeded";
+
+	public static final String	STAGE_CLIENT	= "client";		// per server instance DHT client
+
+	private final long	start_time = SystemTime.getMonotonousTime();
+
+	private final Map<String,Stage>	stages = new LinkedHashMap<>();
+
+	public static String
+	getStageName(
+		String		owner,
+		String		stage )
+	{
+		return( owner + ":" + stage );
+	}
+
+	public Stage
+	getStage(
+		String		name )
+	{
+		synchronized( stages ){
+
+			Stage	stage = stages.get( name );
+
+			if ( stage == null ){
+
+				stage = new Stage( name );
+
+				stages.put( name, stage );
+			}
+
+			return( stage );
+		}
+	}
+
+	/**
+	 * Fails any incomplete stages so that nothing is left waiting on a router that has gone
+	 */
+
+	public void
+	destroy()
+	{
+		List<Stage>	to_fail;
+
+		synchronized( stages ){
+
+			to_fail = new ArrayList<>( stages.values());
+		}
+
+		Throwable	error = new Exception( "Router destroyed" );
+
+		for ( Stage stage: to_fail ){
+
+			stage.fail( error );
+		}
+	}
+
+	public String
+	getString()
+	{
+		List<Stage>	list;
+
+		synchronized( stages ){
+
+			list = new ArrayList<>( stages.values());
+		}
+
+		StringBuilder	str = new StringBuilder( 256 );
+
+		for ( Stage stage: list ){
+
+			if ( str.length() > 0 ){
+
+				str.append( ", " );
+			}
+
+			str.append( stage.getString());
+		}
+
+		return( str.toString());
+	}
+
+	public class
+	Stage
+	{
+		private final String		name;
+		private final AESemaphore	sem;
+
+		private long		begin_time	= -1;
+		private long		end_time	= -1;
+
+		private Throwable	error;
+
+		private List<StageListener>	listeners = new ArrayList<>( 1 );
+
+		private
+		Stage(
+			String		_name )
+		{
+			name	= _name;
+			sem		= new AESemaphore( "I2PStartup:" + name );
+		}
+
+		public String
+		getName()
+		{
+			return( name );
+		}
+
+		/**
+		 * Optionally marks when work on the stage started so that the report shows its own duration
+		 * as well as when it completed
+		 */
+
+		public synchronized void
+		begin()
+		{
+			if ( begin_time == -1 ){
+
+				begin_time = SystemTime.getMonotonousTime();
+			}
+		}
+
+		public void
+		complete()
+		{
+			done( null );
+		}
+
+		public void
+		fail(
+			Throwable	e )
+		{
+			done( e );
+		}
+
+		private void
+		done(
+			Throwable	e )
+		{
+			List<StageListener>	to_inform;
+
+			synchronized( this ){
+
+				if ( listeners == null ){
+
+					return;
+				}
+
+				end_time	= SystemTime.getMonotonousTime();
+				error		= e;
+
+				to_inform	= listeners;
+
+				listeners	= null;
+			}
+
+			sem.releaseForever();
+
+			for ( StageListener l: to_inform ){
+
+				try{
+					l.stageComplete( this );
+
+				}catch( Throwable f ){
+
+					Debug.out( f );
+				}
+			}
+		}
+
+		public synchronized boolean
+		isComplete()
+		{
+			return( listeners == null );
+		}
+
+		/**
+		 * @return null if the stage hasn't completed or completed successfully
+		 */
+
+		public synchronized Throwable
+		getError()
+		{
+			return( error );
+		}
+
+		/**
+		 * @return true if the stage completed successfully within the time
+		 */
+
+		public boolean
+		waitFor(
+			long		max_millis )
+		{
+			if ( max_millis <= 0 ){
+
+				sem.reserve();
+
+			}else if ( !sem.reserve( max_millis )){
+
+				return( false );
+			}
+
+			return( getError() == null );
+		}
+
+		/**
+		 * Invokes the listener when the stage completes, immediately if it already has
+		 */
+
+		public void
+		addListener(
+			StageListener	listener )
+		{
+			synchronized( this ){
+
+				if ( listeners != null ){
+
+					listeners.add( listener );
+
+					return;
+				}
+			}
+
+			listener.stageComplete( this );
+		}
+
+		private synchronized String
+		getString()
+		{
+			String	str = name + "=";
+
+			if ( end_time == -1 ){
+
+				str += "pending";
+
+			}else{
+
+				str += ( end_time - start_time ) + "ms";
+
+				if ( begin_time != -1 ){
+
+					str += "(" + ( end_time - begin_time ) + ")";
+				}
+
+				if ( error != null ){
+
+					str += " failed";
+				}
+			}
+
+			return( str );
+		}
+	}
+
+	public interface
+	StageListener
+	{
+		public void
+		stageComplete(
+			Stage		stage );
+	}
+}
@@ -32,7 +32,6 @@ import com.biglybt.core.util.TimerEventPeriodic;
 import net.i2p.I2PAppContext;
 import net.i2p.client.I2PSession;
 import net.i2p.client.I2PSessionMuxedListener;
-import net.i2p.client.SendMessageOptions;
 import net.i2p.client.datagram.I2PDatagramMaker;
 import net.i2p.client.naming.NamingService;
 import net.i2p.client.streaming.I2PServerSocket;
@@ -81,6 +80,10 @@ I2PSMHolder
 	
 	private TimerEventPeriodic		timer_event;
 	
+		// created on demand as only the DHT sessions send datagrams
+	
+	private volatile I2PHelperSendScheduler	send_scheduler;
+	
 	private boolean reconnecting;
 	
 	private volatile boolean	destroyed;
@@ -128,6 +131,15 @@ I2PSMHolder
 				30*1000,
 				(e)->{
 					isSessionClosedSupport();
+					
+						// pick up any change to the router's send limit
+					
+					I2PHelperSendScheduler scheduler = send_scheduler;
+					
+					if ( scheduler != null ){
+					
+						scheduler.setSendRate( router.getIntegerParameter( I2PHelperRouter.PARAM_SEND_KBS ));
+					}
 				});
 	}
 	
@@ -278,6 +290,28 @@ I2PSMHolder
 		new PrivateKeyFile( file, session ).write();
 	}
 	
+	public Destination
+	getCachedDestination(
+		Hash		hash )
+	{
+		return( router.getDestinationCache().get( hash ));
+	}
+	
+	public void
+	cacheDestination(
+		Hash			hash,
+		Destination		dest )
+	{
+		I2PHelperDestinationCache cache = router.getDestinationCache();
+		
+			// called for every inbound query, only take the cache lock for destinations it doesn't have
+		
+		if ( !cache.contains( hash )){
+		
+			cache.put( hash, dest );
+		}
+	}
+	
 	public Destination
 	lookupDest(
 		String		address,
@@ -285,6 +319,15 @@ I2PSMHolder
 	
 		throws Exception
 	{
+		I2PHelperDestinationCache cache = router.getDestinationCache();
+		
+		Destination cached = cache.get( address );
+		
+		if ( cached != null ){
+			
+			return( cached );
+		}
+		
 		isSessionClosedSupport( true );
 			
 		long start = SystemTime.getMonotonousTime();
@@ -296,6 +339,11 @@ I2PSMHolder
 		
 			ok = result != null;
 			
+			if ( ok ){
+				
+				cache.put( result );
+			}
+			
 			return( result );
 			
 		}finally{
@@ -311,6 +359,18 @@ I2PSMHolder
 	
 		throws Exception
 	{
+		I2PHelperDestinationCache cache = router.getDestinationCache();
+
+			// peek rather than get as callers on the hot path have already checked the
+			// cache (and recorded the miss) before deciding to do a lookup
+		
+		Destination cached = cache.peek( address );
+		
+		if ( cached != null ){
+			
+			return( cached );
+		}
+		
 		isSessionClosedSupport( true );
 
 		long start = SystemTime.getMonotonousTime();
@@ -323,6 +383,11 @@ I2PSMHolder
 			
 			ok = result != null;
 			
+			if ( ok ){
+				
+				cache.put( address, result );
+			}
+			
 			return( result );
 		
 		}finally{
@@ -472,6 +537,14 @@ I2PSMHolder
 		}
 	}
 	
+	/**
+	 * Queues the datagram for paced sending
+	 * @param flags		I2PHelperSendScheduler.FLAG_ values
+	 * @param priority	I2PHelperSendScheduler.PRIORITY_ value
+	 * @param listener	informed when the datagram is sent or dropped after queueing, null if not required
+	 * @return false if the datagram was dropped as the send queue is full
+	 */
+	
 	public boolean
 	sendMessage(
 		Destination			dest,
@@ -481,13 +554,62 @@ I2PSMHolder
 		int					proto,
 		int					fromPort,
 		int					toPort,
-		SendMessageOptions	options )
+		int					flags,
+		int					priority,
+		I2PHelperSendScheduler.SendListener	listener )
 	
 		throws Exception
 	{
 		isSessionClosedSupport( true );
 
-		return( session.sendMessage( dest, payload, offset, size, proto, fromPort, toPort, options ));
+		return( getSendScheduler().queue( dest, payload, offset, size, proto, fromPort, toPort, flags, priority, listener ));
+	}
+	
+	private I2PHelperSendScheduler
+	getSendScheduler()
+	{
+		I2PHelperSendScheduler scheduler = send_scheduler;
+		
+		if ( scheduler == null ){
+			
+			synchronized( this ){
+				
+				scheduler = send_scheduler;
+				
+				if ( scheduler == null ){
+					
+					scheduler = 
+						new I2PHelperSendScheduler( 
+							getName(),
+							(dest, payload, offset, size, proto, fromPort, toPort, options )->{
+								
+								isSessionClosedSupport( true );
+								
+								return( session.sendMessage( dest, payload, offset, size, proto, fromPort, toPort, options ));
+							},
+							router.getIntegerParameter( I2PHelperRouter.PARAM_SEND_KBS ));
+					
+					if ( destroyed ){
+						
+						scheduler.destroy();
+						
+					}else{
+						
+						send_scheduler = scheduler;
+					}
+				}
+			}
+		}
+		
+		return( scheduler );
+	}
+	
+	public String
+	getSendStats()
+	{
+		I2PHelperSendScheduler scheduler = send_scheduler;
+		
+		return( "i2cp=" + router.getI2CPMode() + "; " + ( scheduler==null?"send: none":scheduler.getString()));
 	}
 	
 	public I2PSocket
@@ -594,5 +716,19 @@ I2PSMHolder
 			
 			timer_event.cancel();
 		}
+		
+		I2PHelperSendScheduler scheduler;
+		
+		synchronized( this ){
+			
+			scheduler = send_scheduler;
+			
+			send_scheduler = null;
+		}
+		
+		if ( scheduler != null ){
+		
+			scheduler.destroy();
+		}
 	}
 }
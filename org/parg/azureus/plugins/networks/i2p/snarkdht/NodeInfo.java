@@ -3,6 +3,8 @@ package org.parg.azureus.plugins.networks.i2p.snarkdht;
  *  From zzzot, modded and relicensed to GPLv2
  */
 
+import java.util.Arrays;
+
 import net.i2p.data.Base64;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
@@ -83,17 +85,16 @@ public class NodeInfo extends SimpleDataStructure {
      */
     public NodeInfo(byte[] compactInfo, int offset) {
         super();
+        // validate in place so that bad entries don't allocate
+        this.port = (int) DataHelper.fromLong(compactInfo, offset + NID.HASH_LENGTH + Hash.HASH_LENGTH, 2);
+        if (port <= 0 || port >= 65535)
+            throw new IllegalArgumentException("Bad port");
+        verify(compactInfo, offset, offset + NID.HASH_LENGTH, port);
         byte[] d = new byte[LENGTH];
         System.arraycopy(compactInfo, offset, d, 0, LENGTH);
         setData(d);
-        byte[] ndata = new byte[NID.HASH_LENGTH];
-        System.arraycopy(d, 0, ndata, 0, NID.HASH_LENGTH);
-        this.nID = new NID(ndata);
+        this.nID = new NID(Arrays.copyOf(d, NID.HASH_LENGTH));
         this.hash = Hash.create(d, NID.HASH_LENGTH);
-        this.port = (int) DataHelper.fromLong(d, NID.HASH_LENGTH + Hash.HASH_LENGTH, 2);
-        if (port <= 0 || port >= 65535)
-            throw new IllegalArgumentException("Bad port");
-        verify();
     }
 
     /**
@@ -164,13 +165,19 @@ public class NodeInfo extends SimpleDataStructure {
      * @throws IllegalArgumentException on mismatch
      */
     private void verify() {
+        verify(nID.getData(), 0, hash.getData(), 0, port);
+    }
+
+    private static void verify(byte[] compactInfo, int nOffset, int hOffset, int port) {
+        verify(compactInfo, nOffset, compactInfo, hOffset, port);
+    }
+
+    private static void verify(byte[] nb, int nOffset, byte[] hb, int hOffset, int port) {
         if (!SECURE_NID)
             return;
-        byte[] nb = nID.getData();
-        byte[] hb = hash.getData();
-        if ((!DataHelper.eq(nb, 0, hb, 0, 4)) ||
-            ((nb[4] ^ (port >> 8)) & 0xff) != (hb[4] & 0xff) ||
-            ((nb[5] ^ port) & 0xff) != (hb[5] & 0xff))
+        if ((!DataHelper.eq(nb, nOffset, hb, hOffset, 4)) ||
+            ((nb[nOffset + 4] ^ (port >> 8)) & 0xff) != (hb[hOffset + 4] & 0xff) ||
+            ((nb[nOffset + 5] ^ port) & 0xff) != (hb[hOffset + 5] & 0xff))
             throw new IllegalArgumentException("NID/Hash mismatch");
     }
 
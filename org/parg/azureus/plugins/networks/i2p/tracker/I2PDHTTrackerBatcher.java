@@ -0,0 +1,486 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.tracker;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.biglybt.core.util.AERunnable;
+import com.biglybt.core.util.AsyncDispatcher;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SystemTime;
+
+import org.parg.azureus.plugins.networks.i2p.I2PHelperDHT;
+import org.parg.azureus.plugins.networks.i2p.I2PHelperDHTListener;
+import org.parg.azureus.plugins.networks.i2p.vuzedht.DHTTransportContactI2P;
+
+/**
+ * Batches the tracker's DHT puts and gets. Operations queued during a registration pass are
+ * started in key order, continuing on from the last key started, so traversals for nearby
+ * infohashes run back to back and each starts from the closest contacts that the previous one
+ * has just added to the router. A put for a key/dht/flags that is already queued is merged with
+ * it rather than causing another traversal. The number of concurrent traversals is capped across
+ * all downloads.
+ */
+
+public class
+I2PDHTTrackerBatcher
+{
+	private static final int	MAX_CONCURRENT		= 8;
+	private static final int	MAX_OP_TIME			= 5*60*1000;	// slot is reclaimed if an op never completes
+
+		// number of leading bits shared with the previous key for a traversal to count as nearby
+
+	private static final int	NEARBY_PREFIX_BITS	= 8;
+
+	private final AsyncDispatcher	dispatcher = new AsyncDispatcher( "I2PTrackerBatcher", 5*1000 );
+
+		// ordered by key then sequence so that equal keys are kept distinct
+
+	private final TreeMap<byte[],Operation>	pending = new TreeMap<>( ( k1, k2 )->compareKeys( k1, k2 ));
+
+	private final List<Operation>	active = new ArrayList<>();
+
+	private byte[]	last_key;
+	private long	next_seq;
+
+	private long	total_queued;
+	private long	total_started;
+	private long	total_merged;
+	private long	total_nearby;
+	private long	total_completed;
+	private long	total_expired;
+	private long	total_latency;
+	private long	total_queue_time;
+
+	private boolean	destroyed;
+
+	public void
+	put(
+		I2PHelperDHT				dht,
+		byte[]						hash,
+		String						reason,
+		short						flags,
+		I2PHelperDHTListener		listener )
+	{
+		queue( new Operation( dht, hash, reason, flags, true, 0, 0, listener ));
+	}
+
+	public void
+	get(
+		I2PHelperDHT				dht,
+		byte[]						hash,
+		String						reason,
+		short						flags,
+		int							max,
+		long						max_wait,
+		I2PHelperDHTListener		listener )
+	{
+		queue( new Operation( dht, hash, reason, flags, false, max, max_wait, listener ));
+	}
+
+	private void
+	queue(
+		Operation		op )
+	{
+		boolean	rejected;
+
+		synchronized( this ){
+
+			rejected = destroyed;
+
+			if ( !rejected ){
+
+				total_queued++;
+
+				if ( op.is_put ){
+
+					for ( Operation existing: pending.values()){
+
+						if ( existing.canMerge( op )){
+
+							existing.merge( op );
+
+							total_merged++;
+
+							return;
+						}
+					}
+				}
+
+				pending.put( op.getQueueKey( next_seq++ ), op );
+			}
+		}
+
+		if ( rejected ){
+
+			op.complete( true );
+
+			return;
+		}
+
+			// dispatch asynchronously so that the rest of the current registration pass gets queued
+			// and sorted along with this one
+
+		dispatch();
+	}
+
+	private void
+	dispatch()
+	{
+		dispatcher.dispatch(
+			new AERunnable()
+			{
+				@Override
+				public void
+				runSupport()
+				{
+					startOperations();
+				}
+			});
+	}
+
+	private void
+	startOperations()
+	{
+		List<Operation>	to_start = new ArrayList<>();
+
+		synchronized( this ){
+
+			long	now = SystemTime.getMonotonousTime();
+
+			Iterator<Operation> it = active.iterator();
+
+			while( it.hasNext()){
+
+				Operation op = it.next();
+
+				if ( now - op.start_time > MAX_OP_TIME ){
+
+					it.remove();
+
+					total_expired++;
+				}
+			}
+
+			while( active.size() < MAX_CONCURRENT && !pending.isEmpty()){
+
+					// carry on in key order from the last key started, wrapping around
+
+				Map.Entry<byte[],Operation>	entry = last_key==null?null:pending.higherEntry( last_key );
+
+				if ( entry == null ){
+
+					entry = pending.firstEntry();
+				}
+
+				pending.remove( entry.getKey());
+
+				Operation op = entry.getValue();
+
+				if ( last_key != null && commonPrefixBits( last_key, op.hash ) >= NEARBY_PREFIX_BITS ){
+
+					total_nearby++;
+				}
+
+				last_key = entry.getKey();
+
+				op.start_time = now;
+
+				total_queue_time += now - op.queue_time;
+
+				total_started++;
+
+				active.add( op );
+
+				to_start.add( op );
+			}
+		}
+
+		for ( Operation op: to_start ){
+
+			op.start();
+		}
+	}
+
+	private void
+	operationComplete(
+		Operation		op )
+	{
+		boolean	start_more;
+
+		synchronized( this ){
+
+			if ( !active.remove( op )){
+
+				return;
+			}
+
+			total_completed++;
+
+			total_latency += SystemTime.getMonotonousTime() - op.queue_time;
+
+			start_more = !pending.isEmpty();
+		}
+
+		if ( start_more ){
+
+			dispatch();
+		}
+	}
+
+	public void
+	destroy()
+	{
+		List<Operation>	to_fail;
+
+		synchronized( this ){
+
+			destroyed = true;
+
+			to_fail = new ArrayList<>( pending.values());
+
+			pending.clear();
+		}
+
+		for ( Operation op: to_fail ){
+
+			op.complete( true );
+		}
+	}
+
+	public synchronized String
+	getString()
+	{
+		return( "queued=" + total_queued +
+				",pending=" + pending.size() +
+				",active=" + active.size() +
+				",started=" + total_started +
+				",merged=" + total_merged +
+				",nearby=" + total_nearby +
+				",completed=" + total_completed +
+				",expired=" + total_expired +
+				",avg_queue=" + ( total_started==0?0:( total_queue_time/total_started )) +
+				",avg_latency=" + ( total_completed==0?0:( total_latency/total_completed )));
+	}
+
+	private static int
+	compareKeys(
+		byte[]		k1,
+		byte[]		k2 )
+	{
+		int	len = Math.min( k1.length, k2.length );
+
+		for ( int i=0;i<len;i++){
+
+			int	b1 = k1[i]&0xff;
+			int	b2 = k2[i]&0xff;
+
+			if ( b1 != b2 ){
+
+				return( b1 - b2 );
+			}
+		}
+
+		return( k1.length - k2.length );
+	}
+
+	private static int
+	commonPrefixBits(
+		byte[]		k1,
+		byte[]		k2 )
+	{
+		int	len = Math.min( k1.length, k2.length );
+
+		for ( int i=0;i<len;i++){
+
+			int	diff = ( k1[i] ^ k2[i] ) & 0xff;
+
+			if ( diff != 0 ){
+
+				return( i*8 + Integer.numberOfLeadingZeros( diff ) - 24 );
+			}
+		}
+
+		return( len*8 );
+	}
+
+	private class
+	Operation
+		implements I2PHelperDHTListener
+	{
+		private final I2PHelperDHT		dht;
+		private final byte[]			hash;
+		private final String			reason;
+		private final short				flags;
+		private final boolean			is_put;
+		private final int				max;
+		private final long				max_wait;
+
+		private final List<I2PHelperDHTListener>	listeners = new ArrayList<>( 1 );
+
+		private final long				queue_time	= SystemTime.getMonotonousTime();
+		private long					start_time;
+
+		private boolean					done;
+
+		private
+		Operation(
+			I2PHelperDHT			_dht,
+			byte[]					_hash,
+			String					_reason,
+			short					_flags,
+			boolean					_is_put,
+			int						_max,
+			long					_max_wait,
+			I2PHelperDHTListener	_listener )
+		{
+			dht			= _dht;
+			hash		= _hash;
+			reason		= _reason;
+			flags		= _flags;
+			is_put		= _is_put;
+			max			= _max;
+			max_wait	= _max_wait;
+
+			listeners.add( _listener );
+		}
+
+		private byte[]
+		getQueueKey(
+			long		seq )
+		{
+			byte[]	key = new byte[hash.length+8];
+
+			System.arraycopy( hash, 0, key, 0, hash.length );
+
+			for ( int i=0;i<8;i++){
+
+				key[hash.length+i] = (byte)( seq >>> ( 56 - i*8 ));
+			}
+
+			return( key );
+		}
+
+		private boolean
+		canMerge(
+			Operation		other )
+		{
+			return( is_put && other.is_put &&
+					dht == other.dht &&
+					flags == other.flags &&
+					compareKeys( hash, other.hash ) == 0 );
+		}
+
+		private void
+		merge(
+			Operation		other )
+		{
+			synchronized( listeners ){
+
+				listeners.addAll( other.listeners );
+			}
+		}
+
+		private List<I2PHelperDHTListener>
+		getListeners()
+		{
+			synchronized( listeners ){
+
+				return( new ArrayList<>( listeners ));
+			}
+		}
+
+		private void
+		start()
+		{
+			try{
+				if ( is_put ){
+
+					dht.put( hash, reason, flags, this );
+
+				}else{
+
+					dht.get( hash, reason, flags, max, max_wait, this );
+				}
+			}catch( Throwable e ){
+
+				Debug.out( e );
+
+				complete( true );
+			}
+		}
+
+		@Override
+		public void
+		searching(
+			String		host )
+		{
+			for ( I2PHelperDHTListener l: getListeners()){
+
+				l.searching( host );
+			}
+		}
+
+		@Override
+		public void
+		valueRead(
+			DHTTransportContactI2P		contact,
+			String						host,
+			int							contact_state )
+		{
+			for ( I2PHelperDHTListener l: getListeners()){
+
+				l.valueRead( contact, host, contact_state );
+			}
+		}
+
+		@Override
+		public void
+		complete(
+			boolean		timeout )
+		{
+			synchronized( listeners ){
+
+				if ( done ){
+
+					return;
+				}
+
+				done = true;
+			}
+
+			operationComplete( this );
+
+			for ( I2PHelperDHTListener l: getListeners()){
+
+				try{
+					l.complete( timeout );
+
+				}catch( Throwable e ){
+
+					Debug.out( e );
+				}
+			}
+		}
+	}
+}
@@ -185,10 +185,12 @@ I2PDHTTrackerPlugin
 	private Map<Download,RegistrationDetails>	registered_downloads 	= new HashMap<Download,RegistrationDetails>();
 	
 	private Map<Download,Boolean>	limited_online_tracking	= new HashMap<Download,Boolean>();
-	private Map<Download,Long>		query_map			 	= new HashMap<Download,Long>();
+	private QueryQueue				query_map			 	= new QueryQueue();
 	
 	private Map<Download,Integer>	in_progress				= new HashMap<Download,Integer>();
 	
+	private I2PDHTTrackerBatcher	batcher					= new I2PDHTTrackerBatcher();
+	
 		// external config to limit plugin op to pure decentralised only
 	
 	private boolean				track_only_decentralsed = COConfigurationManager.getBooleanParameter( "dhtplugin.track.only.decentralised", false );
@@ -265,6 +267,11 @@ I2PDHTTrackerPlugin
 						
 						processNonRegistrations();
 					}
+					
+					if ( ticks%40 == 0 ){
+						
+						adapter.log( "Tracker DHT batcher: " + batcher.getString());
+					}
 				}
 			});
 	}
@@ -281,6 +288,8 @@ I2PDHTTrackerPlugin
 			timer = null;
 		}
 		
+		batcher.destroy();
+		
 		com.biglybt.pif.download.DownloadManager dm = plugin_interface.getDownloadManager();
 		
 		dm.removeListener( I2PDHTTrackerPlugin.this );
@@ -800,13 +809,20 @@ I2PDHTTrackerPlugin
   	    
 		putDetails	put_details = new putDetails( value_to_put, override_ip, 6881, udp_port );
 		
-		ArrayList<Download>	rds;
+			// snapshot the running downloads and their registration types in one go rather than
+			// re-entering the monitor for each download
+		
+		Map<Download,Integer>	rds;
 		
 		try{
 			this_mon.enter();
 
-			rds = new ArrayList<Download>(running_downloads.keySet());
+			rds = new HashMap<Download,Integer>( running_downloads.size()*2 );
 			
+			for ( Map.Entry<Download,int[]> entry: running_downloads.entrySet()){
+				
+				rds.put( entry.getKey(), entry.getValue()[0] );
+			}
 		}finally{
 			
 			this_mon.exit();
@@ -817,132 +833,100 @@ I2PDHTTrackerPlugin
 		
 		if ( full_processing ){
 			
-			Iterator<Download>	rds_it = rds.iterator();
+				// only the top DL_DERIVED_MAX_TRACK downloads with a positive metric are tracked so
+				// select these with a bounded heap rather than sorting everything
 			
-			List<Object[]> interesting = new ArrayList<Object[]>();
+			PriorityQueue<Object[]> top = 
+				new PriorityQueue<Object[]>(
+					DL_DERIVED_MAX_TRACK + 1,
+					new Comparator<Object[]>()
+					{
+						@Override
+						public int
+						compare(
+							Object[] entry1, 
+							Object[] entry2) 
+						{						
+							return( Long.compare((Long)entry1[1], (Long)entry2[1] ));
+						}
+					});
 			
-			while( rds_it.hasNext()){
-				
-				Download	dl = rds_it.next();
+			for ( Map.Entry<Download,Integer> entry: rds.entrySet()){
 				
-				int	reg_type = REG_TYPE_NONE;
-				
-				try{ 
-					this_mon.enter();
+				Download	dl = entry.getKey();
 				
-					int[] run_data = running_downloads.get( dl );
-					
-					if ( run_data != null ){
-						
-						reg_type = run_data[0];
-					}
-				}finally{
-					
-					this_mon.exit();
-				}
-					
-		  		if ( reg_type == REG_TYPE_NONE ){
+		  		if ( entry.getValue() == REG_TYPE_NONE ){
 
 		  			continue;
 		  		}
 		  		
 		  		long metric = getDerivedTrackMetric( dl );
 		  		
-		  		interesting.add( new Object[]{ dl, new Long( metric )} );
+		  		if ( metric > 0 ){
+		  			
+		  			top.add( new Object[]{ dl, metric } );
+		  			
+		  			if ( top.size() > DL_DERIVED_MAX_TRACK ){
+		  				
+		  				top.poll();
+		  			}
+		  		}
 			}
 			
-			Collections.sort(
-				interesting,
-				new Comparator<Object[]>()
-				{
-					@Override
-					public int
-					compare(
-						Object[] entry1, 
-						Object[] entry2) 
-					{						
-						long	res = ((Long)entry2[1]).longValue() - ((Long)entry1[1]).longValue();
-						
-						if( res < 0 ){
-							
-							return( -1 );
-							
-						}else if ( res > 0 ){
-							
-							return( 1 );
-							
-						}else{
-							
-							return( 0 );
-						}
-					}
-				});
-			
-			Iterator<Object[]> it	= interesting.iterator();
+			Map<Download,Long>	selected = new HashMap<Download,Long>();
 			
-			int	num = 0;
+			int	num = top.size();
 			
-			while( it.hasNext()){
+			while( !top.isEmpty()){
+				
+					// heap yields lowest first so ranks count down
 				
-				Object[] entry = it.next();
+				Object[] entry = top.poll();
 				
 				Download	dl 		= (Download)entry[0];
 				long		metric	= ((Long)entry[1]).longValue();
 				
-				num++;
-				
-				if ( metric > 0 ){
+				if ( num <= DL_DERIVED_MIN_TRACK ){
 					
-					if ( num <= DL_DERIVED_MIN_TRACK ){
-						
-							// leave as is
-						
-					}else if ( num <= DL_DERIVED_MAX_TRACK ){
-						
-							// scale metric between limits
-						
-						metric = ( metric * ( DL_DERIVED_MAX_TRACK - num )) / ( DL_DERIVED_MAX_TRACK - DL_DERIVED_MIN_TRACK );
-						
-					}else{
-						
-						metric = 0;
-					}
+						// leave as is
+					
+				}else{
+					
+						// scale metric between limits
+					
+					metric = ( metric * ( DL_DERIVED_MAX_TRACK - num )) / ( DL_DERIVED_MAX_TRACK - DL_DERIVED_MIN_TRACK );
 				}
 				
+				num--;
+				
 				if ( metric > 0 ){
 					
-					dl.setUserData( DL_DERIVED_METRIC_KEY, new Long( metric ));
-					
-				}else{
-					
-					dl.setUserData( DL_DERIVED_METRIC_KEY, null );
+					selected.put( dl, metric );
 				}
 			}
+			
+			for ( Map.Entry<Download,Integer> entry: rds.entrySet()){
+				
+				Download	dl = entry.getKey();
+				
+		  		if ( entry.getValue() == REG_TYPE_NONE ){
+
+		  			continue;
+		  		}
+		  		
+				Long	metric = selected.get( dl );
+				
+				dl.setUserData( DL_DERIVED_METRIC_KEY, metric );
+			}
 		}
 		
-		Iterator<Download>	rds_it = rds.iterator();
-		
 			// first off do any puts
 		
-		while( rds_it.hasNext()){
-			
-			Download	dl = rds_it.next();
-			
-			int	reg_type = REG_TYPE_NONE;
+		for ( Map.Entry<Download,Integer> rd_entry: rds.entrySet()){
 			
-			try{ 
-				this_mon.enter();
+			Download	dl = rd_entry.getKey();
 			
-				int[] run_data = running_downloads.get( dl );
-				
-				if ( run_data != null ){
-					
-					reg_type = run_data[0];
-				}
-			}finally{
-				
-				this_mon.exit();
-			}
+			int	reg_type = rd_entry.getValue();
 				
 	  		if ( reg_type == REG_TYPE_NONE ){
 
@@ -1031,16 +1015,22 @@ I2PDHTTrackerPlugin
 			
 			final Download	dl = entry.getKey();
 
-			boolean	unregister;
+				// anything no longer running will have been missing from the snapshot, only
+				// those need checking against the current state
 			
-			try{ 
-				this_mon.enter();
-
-				unregister = !running_downloads.containsKey( dl );
-				
-			}finally{
+			boolean	unregister = false;
+			
+			if ( !rds.containsKey( dl )){
 				
-				this_mon.exit();
+				try{ 
+					this_mon.enter();
+	
+					unregister = !running_downloads.containsKey( dl );
+					
+				}finally{
+					
+					this_mon.exit();
+				}
 			}
 			
 			if ( unregister ){
@@ -1082,104 +1072,95 @@ I2PDHTTrackerPlugin
 			}
 		}
 		
-			// lastly gets
+			// lastly gets, the queue is ordered by next query time so only the due entries are visited
 		
-		rds_it = rds.iterator();
+		List<Download>	due = new ArrayList<Download>();
+		List<Integer>	due_types = new ArrayList<Integer>();
 		
-		while( rds_it.hasNext()){
-			
-			final Download	dl = (Download)rds_it.next();
-			
-			Long	next_time;
-			
-			try{
-				this_mon.enter();
-	
-				next_time = (Long)query_map.get( dl );
+		try{
+			this_mon.enter();
+
+			for ( Download dl: query_map.removeDue( now )){
 				
-			}finally{
+					// entries for downloads that aren't running are dropped, they get rescheduled
+					// if the download starts running again
 				
-				this_mon.exit();
-			}
-			
-			if ( next_time != null && now >= next_time.longValue()){
-			
-				int	reg_type = REG_TYPE_NONE;
+				int[] run_data = running_downloads.get( dl );
 				
-				try{
-					this_mon.enter();
-		
-					query_map.remove( dl );
-					
-					int[] run_data = running_downloads.get( dl );
-					
-					if ( run_data != null ){
-						
-						reg_type = run_data[0];
-					}
-				}finally{
+				if ( run_data != null ){
 					
-					this_mon.exit();
+					due.add( dl );
+					due_types.add( run_data[0] );
 				}
+			}
+		}finally{
+			
+			this_mon.exit();
+		}
+		
+		for ( int i=0;i<due.size();i++){
+			
+			final Download	dl = due.get( i );
+			
+			int	reg_type = due_types.get( i );
+			
+			final long	start = SystemTime.getCurrentTime();
 				
-				final long	start = SystemTime.getCurrentTime();
-					
-					// if we're already connected to > NUM_WANT peers then don't bother with the main announce
-				
-				PeerManager	pm = dl.getPeerManager();
-				
-					// don't query if this download already has an active DHT operation
-				
-				boolean	skip	= isActive( dl ) || reg_type == REG_TYPE_NONE;
-				
-				if ( skip ){
-					
-					log( dl, "Deferring announce as activity outstanding" );
-				}
+				// if we're already connected to > NUM_WANT peers then don't bother with the main announce
+			
+			PeerManager	pm = dl.getPeerManager();
+			
+				// don't query if this download already has an active DHT operation
+			
+			boolean	skip	= isActive( dl ) || reg_type == REG_TYPE_NONE;
+			
+			if ( skip ){
 				
-				RegistrationDetails	registration = (RegistrationDetails)registered_downloads.get( dl );
+				log( dl, "Deferring announce as activity outstanding" );
+			}
+			
+			RegistrationDetails	registration = (RegistrationDetails)registered_downloads.get( dl );
 
-				if ( registration == null ){
-					
-					Debug.out( "Inconsistent, registration should be non-null" );
-					
-					continue;
-				}
+			if ( registration == null ){
 				
-				boolean	derived_only = false;
+				Debug.out( "Inconsistent, registration should be non-null" );
 				
-				if ( pm != null && !skip ){
-					
-					int	con = pm.getStats().getConnectedLeechers() + pm.getStats().getConnectedSeeds();
+				continue;
+			}
+			
+			boolean	derived_only = false;
+			
+			if ( pm != null && !skip ){
 				
-					derived_only = con >= NUM_WANT;
-				}
+				int	con = pm.getStats().getConnectedLeechers() + pm.getStats().getConnectedSeeds();
+			
+				derived_only = con >= NUM_WANT;
+			}
+			
+			if ( !skip ){
 				
-				if ( !skip ){
-					
-					skip = trackerGet( dl, registration, derived_only ) == 0;
-					
-				}
+				skip = trackerGet( dl, registration, derived_only ) == 0;
 				
-					// if we didn't kick off a get then we have to reschedule here as normally
-					// the get operation will do the rescheduling when it receives a result
+			}
+			
+				// if we didn't kick off a get then we have to reschedule here as normally
+				// the get operation will do the rescheduling when it receives a result
+			
+			if ( skip ){
 				
-				if ( skip ){
-					
-					try{
-						this_mon.enter();
-					
-						if ( running_downloads.containsKey( dl )){
-							
-								// use "min" here as we're just deferring it
-							
-							query_map.put( dl, new Long( start + ANNOUNCE_MIN_DEFAULT ));
-						}
+				try{
+					this_mon.enter();
+				
+					if ( running_downloads.containsKey( dl )){
 						
-					}finally{
+							// use "min" here as we're just deferring it
 						
-						this_mon.exit();
+						query_map.put( dl, new Long( start + ANNOUNCE_MIN_DEFAULT ));
 					}
+					
+				}finally{
+					
+					this_mon.exit();
 				}
 			}
 		}
@@ -1356,7 +1337,8 @@ I2PDHTTrackerPlugin
 
 					}else{
 						
-						dht.put( 
+						batcher.put( 
+							dht,
 							hash,
 							"Tracker reg of '" + download.getName() + "'" + target.getDesc() + " -> " + encoded,
 							flags,
@@ -1537,7 +1519,8 @@ I2PDHTTrackerPlugin
 					
 					GetAdapter get_adapter = new GetAdapter( rdht, download, details, target, derived_only, max_retry, complete_count, false );
 					
-					dht.get(
+					batcher.get(
+							dht,
 							hash, 
 							"Tracker announce for '" + download.getName() + "'" + target.getDesc(),
 							(byte)( is_complete?DHT.FLAG_SEEDING:DHT.FLAG_DOWNLOADING),
@@ -1763,7 +1746,7 @@ I2PDHTTrackerPlugin
 								}
 							};
 							
-						DHTOperationListener awesome_listener =	new DHTI2P.GetCacheEntry( listener_wrapper );
+						DHTOperationListener awesome_listener =	new DHTI2P.GetCacheEntry( listener_wrapper, NUM_WANT, LOOKUP_TIMEOUT );
 						
 						dht.get(
 								torrent_hash, 
@@ -2571,14 +2554,7 @@ I2PDHTTrackerPlugin
 		try{
 			this_mon.enter();
 
-			Iterator<Map.Entry<Download,Long>> it = query_map.entrySet().iterator();
-			
-			while( it.hasNext()){
-				
-				Map.Entry<Download,Long>	entry = it.next();
-				
-				entry.setValue( now );
-			}
+			query_map.setAll( now );
 		}finally{
 			
 			this_mon.exit();
@@ -2860,6 +2836,137 @@ I2PDHTTrackerPlugin
 	}
 	
 
+	/**
+	 * Next query time for each download, also ordered by time so that the due ones can be found
+	 * without visiting every download. Not thread safe, guarded by this_mon.
+	 */
+	
+	private static class
+	QueryQueue
+	{
+		private final Map<Download,QueryEntry>	entries = new HashMap<Download,QueryEntry>();
+		
+		private final TreeSet<QueryEntry>		queue 	= new TreeSet<QueryEntry>();
+		
+		private long	next_seq;
+		
+		private Long
+		get(
+			Download	download )
+		{
+			QueryEntry entry = entries.get( download );
+			
+			return( entry==null?null:entry.time );
+		}
+		
+		private void
+		put(
+			Download	download,
+			Long		time )
+		{
+			QueryEntry entry = new QueryEntry( download, time, next_seq++ );
+			
+			QueryEntry old = entries.put( download, entry );
+			
+			if ( old != null ){
+				
+				queue.remove( old );
+			}
+			
+			queue.add( entry );
+		}
+		
+		private void
+		remove(
+			Download	download )
+		{
+			QueryEntry old = entries.remove( download );
+			
+			if ( old != null ){
+				
+				queue.remove( old );
+			}
+		}
+		
+		private void
+		setAll(
+			Long		time )
+		{
+			List<Download> downloads = new ArrayList<Download>( entries.keySet());
+			
+			for ( Download download: downloads ){
+				
+				put( download, time );
+			}
+		}
+		
+		private List<Download>
+		removeDue(
+			long		now )
+		{
+			List<Download>	result = new ArrayList<Download>();
+			
+			while( !queue.isEmpty()){
+				
+				QueryEntry first = queue.first();
+				
+				if ( first.time.longValue() > now ){
+					
+					break;
+				}
+				
+				queue.pollFirst();
+				
+				entries.remove( first.download );
+				
+				result.add( first.download );
+			}
+			
+			return( result );
+		}
+		
+		private int
+		size()
+		{
+			return( entries.size());
+		}
+	}
+	
+	private static class
+	QueryEntry
+		implements Comparable<QueryEntry>
+	{
+		private final Download		download;
+		private final Long			time;
+		private final long			seq;
+		
+		private
+		QueryEntry(
+			Download	_download,
+			Long		_time,
+			long		_seq )
+		{
+			download	= _download;
+			time		= _time;
+			seq			= _seq;
+		}
+		
+		@Override
+		public int
+		compareTo(
+			QueryEntry	other )
+		{
+			int	res = Long.compare( time, other.time );
+			
+			if ( res == 0 ){
+				
+				res = Long.compare( seq, other.seq );
+			}
+			
+			return( res );
+		}
+	}
+	
 	protected static class
 	putDetails
 	{
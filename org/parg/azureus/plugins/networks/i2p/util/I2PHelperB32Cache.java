@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.data.Base32;
+import net.i2p.data.Hash;
+
+/**
+ * Shared, bounded mapping between 32 byte destination hashes and their canonical "xxx.b32.i2p"
+ * address strings, in both directions. A peer's address ends up being derived over and over as it
+ * passes through PEX, the DHT and connection handling, each time allocating a new string; this
+ * way it is encoded once and every user shares the same instance.
+ * <p>
+ * Each direction is split into independently locked stripes, each evicting least recently used
+ * first. Lookups by hash read the caller's bytes in place, they are only copied when a new entry
+ * is added.
+ */
+
+public class
+I2PHelperB32Cache
+{
+	public static final String	SUFFIX		= ".b32.i2p";
+
+	private static final int	HASH_LENGTH	= Hash.HASH_LENGTH;
+	private static final int	MAX_ENTRIES	= 4096;
+
+	private static final int	STRIPE_COUNT	= 16;		// power of 2
+	private static final int	STRIPE_MAX		= MAX_ENTRIES / STRIPE_COUNT;
+
+	private static final Stripe[]	addresses	= createStripes();	// Key -> Mapping
+	private static final Stripe[]	hashes		= createStripes();	// String -> Mapping
+
+	private static final AtomicLong	address_hits	= new AtomicLong();
+	private static final AtomicLong	address_misses	= new AtomicLong();
+	private static final AtomicLong	hash_hits		= new AtomicLong();
+	private static final AtomicLong	hash_misses		= new AtomicLong();
+
+	private static Stripe[]
+	createStripes()
+	{
+		Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+		for ( int i=0;i<STRIPE_COUNT;i++){
+
+			stripes[i] = new Stripe();
+		}
+
+		return( stripes );
+	}
+
+	public static String
+	getAddress(
+		Hash		hash )
+	{
+		return( getAddress( hash.getData()));
+	}
+
+	/**
+	 * @param hash	not retained, can be reused by the caller
+	 */
+
+	public static String
+	getAddress(
+		byte[]		hash )
+	{
+		if ( hash.length != HASH_LENGTH ){
+
+				// not a destination hash, nothing worth sharing
+
+			return( Base32.encode( hash ) + SUFFIX );
+		}
+
+		return( getAddress( hash, 0 ));
+	}
+
+	/**
+	 * Avoids the caller having to extract the hash from a packed array first
+	 *
+	 * @param buffer	not retained, can be reused by the caller
+	 */
+
+	public static String
+	getAddress(
+		byte[]		buffer,
+		int			offset )
+	{
+		Key	key = new Key( buffer, offset );
+
+		Stripe	stripe = addresses[key.getStripe()];
+
+		synchronized( stripe ){
+
+			Mapping	mapping = stripe.get( key );
+
+			if ( mapping != null ){
+
+				address_hits.incrementAndGet();
+
+				return( mapping.address );
+			}
+		}
+
+		address_misses.incrementAndGet();
+
+		byte[]	hash = Arrays.copyOfRange( buffer, offset, offset + HASH_LENGTH );
+
+		Mapping	mapping = new Mapping( hash, Base32.encode( hash ) + SUFFIX );
+
+		synchronized( stripe ){
+
+			Mapping	existing = stripe.get( key );
+
+			if ( existing != null ){
+
+				return( existing.address );
+			}
+
+			stripe.put( mapping.key, mapping );
+		}
+
+		stripe = hashes[getStripe( mapping.address )];
+
+		synchronized( stripe ){
+
+			if ( !stripe.containsKey( mapping.address )){
+
+				stripe.put( mapping.address, mapping );
+			}
+		}
+
+		return( mapping.address );
+	}
+
+	/**
+	 * @return the 32 byte hash for a "xxx.b32.i2p" address or null if it isn't one. The array is
+	 * shared and must not be modified
+	 */
+
+	public static byte[]
+	getHash(
+		String		address )
+	{
+		Mapping	mapping = getMapping( address );
+
+		return( mapping==null?null:mapping.hash );
+	}
+
+	/**
+	 * Writes the hash for a "xxx.b32.i2p" address straight into a packed array
+	 *
+	 * @return false if the address isn't a b32 one, in which case the buffer is untouched
+	 */
+
+	public static boolean
+	getHash(
+		String		address,
+		byte[]		buffer,
+		int			offset )
+	{
+		Mapping	mapping = getMapping( address );
+
+		if ( mapping == null ){
+
+			return( false );
+		}
+
+		System.arraycopy( mapping.hash, 0, buffer, offset, HASH_LENGTH );
+
+		return( true );
+	}
+
+	private static Mapping
+	getMapping(
+		String		address )
+	{
+		if ( address == null || !address.endsWith( SUFFIX )){
+
+			return( null );
+		}
+
+		Stripe	stripe = hashes[getStripe( address )];
+
+		synchronized( stripe ){
+
+			Mapping	mapping = stripe.get( address );
+
+			if ( mapping != null ){
+
+				hash_hits.incrementAndGet();
+
+				return( mapping );
+			}
+		}
+
+		hash_misses.incrementAndGet();
+
+		byte[]	hash;
+
+		try{
+			hash = Base32.decode( address.substring( 0, address.length() - SUFFIX.length()));
+
+		}catch( Throwable e ){
+
+			return( null );
+		}
+
+		if ( hash == null || hash.length != HASH_LENGTH ){
+
+			return( null );
+		}
+
+		Mapping	mapping = new Mapping( hash, address );
+
+		synchronized( stripe ){
+
+			Mapping	existing = stripe.get( address );
+
+			if ( existing != null ){
+
+				return( existing );
+			}
+
+			stripe.put( address, mapping );
+		}
+
+		stripe = addresses[mapping.key.getStripe()];
+
+		synchronized( stripe ){
+
+			if ( !stripe.containsKey( mapping.key )){
+
+				stripe.put( mapping.key, mapping );
+			}
+		}
+
+		return( mapping );
+	}
+
+	private static int
+	getStripe(
+		String		address )
+	{
+		int	h = address.hashCode();
+
+		return(( h ^ ( h >>> 16 )) & ( STRIPE_COUNT-1 ));
+	}
+
+	public static String
+	getString()
+	{
+		return( "b32 cache: addresses=" + size( addresses ) +
+				",hashes=" + size( hashes ) +
+				",encode_hits=" + address_hits.get() +
+				",encodes=" + address_misses.get() +
+				",decode_hits=" + hash_hits.get() +
+				",decodes=" + hash_misses.get());
+	}
+
+	private static int
+	size(
+		Stripe[]	stripes )
+	{
+		int	size = 0;
+
+		for ( Stripe stripe: stripes ){
+
+			synchronized( stripe ){
+
+				size += stripe.size();
+			}
+		}
+
+		return( size );
+	}
+
+		/**
+		 * Looks up random hashes from a population of destinations through the cache and directly
+		 * through Base32, in both directions, and prints the time and bytes allocated per lookup.
+		 * Arguments: population, lookups
+		 */
+
+	public static void
+	main(
+		String[]		args )
+	{
+		try{
+			int	population	= args.length<1?1000:Integer.parseInt( args[0] );
+			int	lookups		= args.length<2?1000000:Integer.parseInt( args[1] );
+
+			Random	random = new Random( 0 );
+
+			byte[][]	dests 		= new byte[population][HASH_LENGTH];
+			String[]	addresses	= new String[population];
+
+			for ( int i=0;i<population;i++){
+
+				random.nextBytes( dests[i] );
+
+					// separate instances, as when parsed from separate messages
+
+				addresses[i] = new String( Base32.encode( dests[i] ) + SUFFIX );
+			}
+
+			int[]	order = new int[lookups];
+
+			for ( int i=0;i<lookups;i++){
+
+				order[i] = random.nextInt( population );
+			}
+
+			ThreadMXBean	tmx = ManagementFactory.getThreadMXBean();
+
+			boolean	alloc = tmx instanceof com.sun.management.ThreadMXBean;
+
+			long	thread_id = Thread.currentThread().getId();
+
+			String[]	names = { "Base32.encode", "getAddress", "Base32.decode", "getHash" };
+
+			long	sink = 0;
+
+				// first pass warms up
+
+			for ( int pass=0;pass<2;pass++){
+
+				for ( int which=0;which<4;which++){
+
+					long	a_start = alloc?((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes( thread_id ):0;
+					long	t_start = System.nanoTime();
+
+					for ( int i=0;i<lookups;i++){
+
+						int	index = order[i];
+
+						switch( which ){
+							case 0:{
+								sink += ( Base32.encode( dests[index] ) + SUFFIX ).length();
+								break;
+							}
+							case 1:{
+								sink += getAddress( dests[index] ).length();
+								break;
+							}
+							case 2:{
+								String	address = addresses[index];
+
+								sink += Base32.decode( address.substring( 0, address.length() - SUFFIX.length()))[0];
+								break;
+							}
+							default:{
+								sink += getHash( addresses[index] )[0];
+								break;
+							}
+						}
+					}
+
+					long	elapsed	= System.nanoTime() - t_start;
+					long	bytes	= alloc?((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes( thread_id ) - a_start:-1;
+
+					if ( pass == 1 ){
+
+						System.out.println( names[which] + ": " + ( elapsed/lookups ) + "ns, " + ( bytes<0?"?":String.valueOf( bytes/lookups )) + "B" );
+					}
+				}
+			}
+
+			System.out.println( getString() + " - population=" + population + ",sink=" + sink );
+
+		}catch( Throwable e ){
+
+			e.printStackTrace();
+		}
+	}
+
+	private static class
+	Stripe
+		extends LinkedHashMap<Object,Mapping>
+	{
+		private
+		Stripe()
+		{
+			super( STRIPE_MAX, 0.75f, true );
+		}
+
+		@Override
+		protected boolean
+		removeEldestEntry(
+	   		Map.Entry<Object,Mapping> eldest)
+		{
+			return( size() > STRIPE_MAX );
+		}
+	}
+
+	private static class
+	Mapping
+	{
+		private final byte[]	hash;
+		private final String	address;
+		private final Key		key;
+
+		private
+		Mapping(
+			byte[]		_hash,
+			String		_address )
+		{
+			hash	= _hash;
+			address	= _address;
+			key		= new Key( hash, 0 );
+		}
+	}
+
+	/**
+	 * A view of a hash in place within a larger array. Hashes are random so the leading bytes
+	 * are used for the hash code and stripe as is
+	 */
+
+	private static final class
+	Key
+	{
+		private final byte[]	bytes;
+		private final int		offset;
+		private final int		hash_code;
+
+		private
+		Key(
+			byte[]		_bytes,
+			int			_offset )
+		{
+			bytes	= _bytes;
+			offset	= _offset;
+
+			hash_code = ((bytes[offset] & 0xff) << 24) | ((bytes[offset+1] & 0xff) << 16) |
+						((bytes[offset+2] & 0xff) << 8)  | (bytes[offset+3] & 0xff);
+		}
+
+		private int
+		getStripe()
+		{
+			return( bytes[offset+4] & ( STRIPE_COUNT-1 ));
+		}
+
+		@Override
+		public int
+		hashCode()
+		{
+			return( hash_code );
+		}
+
+		@Override
+		public boolean
+		equals(
+			Object		other )
+		{
+			if ( other == this ){
+
+				return( true );
+			}
+
+			if ( !( other instanceof Key )){
+
+				return( false );
+			}
+
+			Key	o = (Key)other;
+
+			if ( o.hash_code != hash_code ){
+
+				return( false );
+			}
+
+			for ( int i=0;i<HASH_LENGTH;i++){
+
+				if ( bytes[offset+i] != o.bytes[o.offset+i] ){
+
+					return( false );
+				}
+			}
+
+			return( true );
+		}
+	}
+}
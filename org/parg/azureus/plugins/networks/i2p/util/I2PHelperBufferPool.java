@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import com.biglybt.core.util.Debug;
+
+/**
+ * Pool of fixed size buffers for relaying data. Buffers are borrowed only while data is in flight
+ * and returned once drained so that idle connections don't pin memory. Up to 'max_pooled' free
+ * buffers are retained for reuse, anything beyond that is left to the GC.
+ * <p>
+ * If a ceiling is set then tryBorrow fails once that many buffers are in use and the caller is
+ * queued to be told when one is released, allowing it to apply backpressure rather than allocate.
+ * <p>
+ * Buffers are heap or direct per pool. The relay pools are heap and deliberately not configurable:
+ * the I2P streams only read and write byte[]s, so a direct buffer would need a heap staging copy on
+ * every I2P read and write as well as the buffer itself, doubling the memory in flight. With heap
+ * buffers the only copy is the JDK's into its per-thread direct buffer on the socket channel side.
+ */
+
+public class
+I2PHelperBufferPool
+{
+	private final String		name;
+	private final int			buffer_size;
+	private final int			max_pooled;
+	private final boolean		direct;
+
+	private int		max_in_use;
+
+	private final ArrayDeque<ByteBuffer>	free 	= new ArrayDeque<>();
+	private final ArrayDeque<Waiter>		waiters	= new ArrayDeque<>();
+
+	private int		in_use;
+	private int		high_water;
+
+	private long	total_borrows;
+	private long	total_allocations;
+	private long	total_deferred;
+
+	public
+	I2PHelperBufferPool(
+		String		_name,
+		int			_buffer_size,
+		int			_max_pooled,
+		boolean		_direct )
+	{
+		this( _name, _buffer_size, _max_pooled, 0, _direct );
+	}
+
+	/**
+	 * @param _max_in_use	ceiling on buffers in use for tryBorrow, 0 = unlimited
+	 */
+
+	public
+	I2PHelperBufferPool(
+		String		_name,
+		int			_buffer_size,
+		int			_max_pooled,
+		int			_max_in_use,
+		boolean		_direct )
+	{
+		name			= _name;
+		buffer_size		= _buffer_size;
+		max_pooled		= _max_pooled;
+		max_in_use		= _max_in_use;
+		direct			= _direct;
+	}
+
+	/**
+	 * @param _max_in_use	new ceiling on buffers in use for tryBorrow, 0 = unlimited
+	 */
+
+	public void
+	setMaxInUse(
+		int		_max_in_use )
+	{
+		synchronized( this ){
+
+			max_in_use = _max_in_use;
+		}
+
+			// a raised ceiling may allow waiters to proceed
+
+		wakeWaiters();
+	}
+
+	public int
+	getBufferSize()
+	{
+		return( buffer_size );
+	}
+
+	public boolean
+	isDirect()
+	{
+		return( direct );
+	}
+
+	/**
+	 * @return a cleared buffer of getBufferSize() capacity
+	 */
+
+	public ByteBuffer
+	borrow()
+	{
+		synchronized( this ){
+
+			return( borrowSupport());
+		}
+	}
+
+	/**
+	 * Borrows a buffer unless the ceiling has been reached in which case the waiter is queued
+	 * and informed when a buffer is released
+	 * @return null if at the ceiling
+	 */
+
+	public ByteBuffer
+	tryBorrow(
+		Waiter		waiter )
+	{
+		synchronized( this ){
+
+			if ( max_in_use > 0 && in_use >= max_in_use ){
+
+				total_deferred++;
+
+				if ( !waiters.contains( waiter )){
+
+					waiters.addLast( waiter );
+				}
+
+				return( null );
+			}
+
+			return( borrowSupport());
+		}
+	}
+
+	public void
+	cancel(
+		Waiter		waiter )
+	{
+		synchronized( this ){
+
+			waiters.remove( waiter );
+		}
+	}
+
+	private ByteBuffer
+	borrowSupport()
+	{
+			// called with monitor held
+
+		total_borrows++;
+
+		in_use++;
+
+		if ( in_use > high_water ){
+
+			high_water = in_use;
+		}
+
+		ByteBuffer	buffer = free.pollFirst();
+
+		if ( buffer == null ){
+
+			total_allocations++;
+
+			buffer = direct?ByteBuffer.allocateDirect( buffer_size ):ByteBuffer.allocate( buffer_size );
+		}
+
+		return( buffer );
+	}
+
+	public void
+	release(
+		ByteBuffer		buffer )
+	{
+		if ( buffer == null ){
+
+			return;
+		}
+
+		buffer.clear();
+
+		synchronized( this ){
+
+			in_use--;
+
+			if ( free.size() < max_pooled ){
+
+				free.addFirst( buffer );
+			}
+		}
+
+		wakeWaiters();
+	}
+
+	private void
+	wakeWaiters()
+	{
+		while( true ){
+
+			Waiter	waiter;
+
+			synchronized( this ){
+
+				if ( max_in_use > 0 && in_use >= max_in_use ){
+
+					return;
+				}
+
+				waiter = waiters.pollFirst();
+			}
+
+			if ( waiter == null ){
+
+				return;
+			}
+
+			try{
+				if ( waiter.bufferAvailable()){
+
+					return;
+				}
+			}catch( Throwable e ){
+
+				Debug.out( e );
+			}
+		}
+	}
+
+	public synchronized int
+	getInUse()
+	{
+		return( in_use );
+	}
+
+	public synchronized int
+	getHighWater()
+	{
+		return( high_water );
+	}
+
+	public synchronized String
+	getString()
+	{
+		return( name + ": size=" + buffer_size + (direct?"/direct":"") +
+				",in_use=" + in_use +
+				",high=" + high_water +
+				",pooled=" + free.size() +
+				",borrows=" + total_borrows +
+				",allocs=" + total_allocations +
+				( max_in_use>0?(",max=" + max_in_use + ",deferred=" + total_deferred + ",waiting=" + waiters.size()):""));
+	}
+
+	public interface
+	Waiter
+	{
+			/**
+			 * Called once a buffer may be available. Must not block.
+			 * @return false if the waiter is no longer interested, in which case the next waiter is tried
+			 */
+
+		public boolean
+		bufferAvailable();
+	}
+}
@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.LineNumberReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.biglybt.core.util.Debug;
+
+/**
+ * Read-only hostname index built from one or more 'host=value' text files, later files overriding
+ * earlier ones. Within a file either the last entry for a host wins, for append-only feeds where a
+ * later line is an update, or the first does, matching a lookup that scans the file from the start.
+ * The index file holds a table of (hash-of-hostname, record offset) sorted by hash followed by the
+ * records themselves and is memory-mapped, so lookups are a binary search over the mapping with no
+ * locking and nothing held on the heap. The index records the length and modification time of each
+ * source and is rebuilt when opened if any of them have changed.
+ * <p>
+ * A mapped file can't be deleted or replaced on some platforms (Windows) so each build is written to
+ * a new generation, "name.N", and older generations are only deleted once the caller has swapped to
+ * the new index and the old mapping has been released.
+ */
+
+public class
+I2PHelperHostnameIndex
+{
+	private static final int	MAGIC		= 0x49324849;	// I2HI
+	private static final int	VERSION		= 1;
+
+	private static final int	ENTRY_SIZE	= 12;			// long hash + int offset
+
+	private static final I2PHelperHostnameIndex	EMPTY = new I2PHelperHostnameIndex( null, null, null, 0, 0 );
+
+	private final File			index_file;
+	private final File			generation_file;
+
+	private final ByteBuffer	buffer;
+	private final int			table_pos;
+	private final int			count;
+
+	private
+	I2PHelperHostnameIndex(
+		File			_index_file,
+		File			_generation_file,
+		ByteBuffer		_buffer,
+		int				_table_pos,
+		int				_count )
+	{
+		index_file		= _index_file;
+		generation_file	= _generation_file;
+		buffer			= _buffer;
+		table_pos		= _table_pos;
+		count			= _count;
+	}
+
+	/**
+	 * Opens the index, building a new generation from the sources first if it is missing or out of
+	 * date. Never returns null, on error an empty index is returned.
+	 *
+	 * @param last_wins		true if the last entry for a host within a source wins, otherwise the first
+	 */
+
+	public static I2PHelperHostnameIndex
+	open(
+		File		index_file,
+		File[]		sources,
+		boolean		last_wins )
+	{
+		try{
+			File	latest = getLatestGeneration( index_file );
+
+			if ( latest == null || !isCurrentSupport( latest, sources )){
+
+				latest = new File( index_file.getParentFile(), index_file.getName() + "." + ( getGeneration( index_file, latest ) + 1 ));
+
+				build( latest, sources, last_wins );
+			}
+
+			return( map( index_file, latest ));
+
+		}catch( Throwable e ){
+
+			Debug.out( "Failed to open hostname index " + index_file, e );
+
+			return( EMPTY );
+		}
+	}
+
+	public static boolean
+	isCurrent(
+		File		index_file,
+		File[]		sources )
+	{
+		File	latest = getLatestGeneration( index_file );
+
+		return( latest != null && isCurrentSupport( latest, sources ));
+	}
+
+	private static File[]
+	getGenerations(
+		File		index_file )
+	{
+		File[]	files = index_file.getParentFile().listFiles(
+			( dir, name )->
+				name.startsWith( index_file.getName() + "." ) &&
+				getGeneration( index_file, new File( dir, name )) > 0 );
+
+		return( files==null?new File[0]:files );
+	}
+
+	private static File
+	getLatestGeneration(
+		File		index_file )
+	{
+		File	latest = null;
+
+		for ( File file: getGenerations( index_file )){
+
+			if ( getGeneration( index_file, file ) > getGeneration( index_file, latest )){
+
+				latest = file;
+			}
+		}
+
+		return( latest );
+	}
+
+	/**
+	 * @return the file's generation, 0 if it isn't a generation of the index
+	 */
+
+	private static long
+	getGeneration(
+		File		index_file,
+		File		file )
+	{
+		if ( file == null ){
+
+			return( 0 );
+		}
+
+		String	suffix = file.getName().substring( index_file.getName().length() + 1 );
+
+		try{
+			return( Math.max( 0, Long.parseLong( suffix )));
+
+		}catch( Throwable e ){
+
+			return( 0 );
+		}
+	}
+
+	/**
+	 * Deletes this index's other generations, to be called once this index has replaced any
+	 * previous one. A generation that is still mapped may not be deletable yet, it is retried on
+	 * the next call
+	 */
+
+	public void
+	deleteOtherGenerations()
+	{
+		if ( generation_file == null ){
+
+			return;
+		}
+
+			// the single file written before generations were used
+
+		index_file.delete();
+
+		for ( File file: getGenerations( index_file )){
+
+			if ( !file.equals( generation_file )){
+
+				file.delete();
+			}
+		}
+	}
+
+	private static boolean
+	isCurrentSupport(
+		File		index_file,
+		File[]		sources )
+	{
+		try{
+			DataInputStream dis = new DataInputStream( new FileInputStream( index_file ));
+
+			try{
+				if ( dis.readInt() != MAGIC || dis.readInt() != VERSION ){
+
+					return( false );
+				}
+
+				int	num_sources = dis.readInt();
+
+				if ( num_sources != sources.length ){
+
+					return( false );
+				}
+
+				for ( File source: sources ){
+
+					if ( dis.readLong() != getLength( source ) || dis.readLong() != source.lastModified()){
+
+						return( false );
+					}
+				}
+
+				return( true );
+
+			}finally{
+
+				dis.close();
+			}
+		}catch( Throwable e ){
+
+			return( false );
+		}
+	}
+
+	private static long
+	getLength(
+		File		file )
+	{
+		return( file.exists()?file.length():-1 );
+	}
+
+	private static void
+	build(
+		File		index_file,
+		File[]		sources,
+		boolean		last_wins )
+
+		throws Exception
+	{
+			// capture the source state before reading so that a concurrent append results in a
+			// rebuild next time rather than being missed
+
+		long[]	lengths	= new long[sources.length];
+		long[]	mtimes	= new long[sources.length];
+
+		for ( int i=0;i<sources.length;i++){
+
+			lengths[i]	= getLength( sources[i] );
+			mtimes[i]	= sources[i].lastModified();
+		}
+
+		Map<String,String>	map = new HashMap<>();
+
+		for ( File source: sources ){
+
+			if ( source.exists()){
+
+					// later files override
+
+				Map<String,String>	source_map = new HashMap<>();
+
+				read( source, source_map, last_wins );
+
+				map.putAll( source_map );
+			}
+		}
+
+		Record[]	records = new Record[map.size()];
+
+		int	pos = 0;
+
+		for ( Map.Entry<String,String> entry: map.entrySet()){
+
+			byte[]	host	= entry.getKey().getBytes( StandardCharsets.UTF_8 );
+			byte[]	value	= entry.getValue().getBytes( StandardCharsets.UTF_8 );
+
+			if ( host.length > 0xffff || value.length > 0xffff ){
+
+				continue;
+			}
+
+			records[pos++] = new Record( hash( host ), host, value );
+		}
+
+		records = Arrays.copyOf( records, pos );
+
+		Arrays.sort( records, ( r1, r2 )->Long.compare( r1.hash, r2.hash ));
+
+		int	header_size = 4 + 4 + 4 + sources.length*16 + 4;
+
+		int	record_pos	= header_size + records.length*ENTRY_SIZE;
+
+		File	temp = new File( index_file.getParentFile(), index_file.getName() + ".tmp" );
+
+		DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp )));
+
+		try{
+			dos.writeInt( MAGIC );
+			dos.writeInt( VERSION );
+
+			dos.writeInt( sources.length );
+
+			for ( int i=0;i<sources.length;i++){
+
+				dos.writeLong( lengths[i] );
+				dos.writeLong( mtimes[i] );
+			}
+
+			dos.writeInt( records.length );
+
+			for ( Record r: records ){
+
+				dos.writeLong( r.hash );
+				dos.writeInt( record_pos );
+
+				record_pos += 2 + r.host.length + 2 + r.value.length;
+			}
+
+			for ( Record r: records ){
+
+				dos.writeShort( r.host.length );
+				dos.write( r.host );
+				dos.writeShort( r.value.length );
+				dos.write( r.value );
+			}
+		}finally{
+
+			dos.close();
+		}
+
+			// a new generation so there is never a live mapping in the way
+
+		if ( !temp.renameTo( index_file )){
+
+			temp.delete();
+
+			throw( new Exception( "Failed to rename " + temp + " to " + index_file ));
+		}
+	}
+
+	private static void
+	read(
+		File				file,
+		Map<String,String>	map,
+		boolean				last_wins )
+
+		throws Exception
+	{
+		LineNumberReader	lnr = new LineNumberReader( new FileReader( file ));
+
+		try{
+			while( true ){
+
+				String line = lnr.readLine();
+
+				if ( line == null ){
+
+					break;
+				}
+
+				line = line.trim();
+
+				if ( line.startsWith( "#" )){
+
+					continue;
+				}
+
+				String[] bits = line.split( "=", 2 );
+
+				if ( bits.length == 2 ){
+
+					if ( last_wins ){
+
+						map.put( bits[0], bits[1] );
+
+					}else{
+
+						map.putIfAbsent( bits[0], bits[1] );
+					}
+				}
+			}
+		}finally{
+
+			lnr.close();
+		}
+	}
+
+	private static I2PHelperHostnameIndex
+	map(
+		File		index_file,
+		File		generation_file )
+
+		throws Exception
+	{
+		RandomAccessFile raf = new RandomAccessFile( generation_file, "r" );
+
+		try{
+			FileChannel	channel = raf.getChannel();
+
+			ByteBuffer	buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			int	num_sources = buffer.getInt( 8 );
+
+			int	count_pos	= 12 + num_sources*16;
+
+			int	count		= buffer.getInt( count_pos );
+
+			return( new I2PHelperHostnameIndex( index_file, generation_file, buffer, count_pos + 4, count ));
+
+		}finally{
+
+				// mapping remains valid after the channel is closed
+
+			raf.close();
+		}
+	}
+
+	private static long
+	hash(
+		byte[]		bytes )
+	{
+			// FNV-1a
+
+		long	h = 0xcbf29ce484222325L;
+
+		for ( byte b: bytes ){
+
+			h ^= ( b & 0xff );
+
+			h *= 0x100000001b3L;
+		}
+
+		return( h );
+	}
+
+	public int
+	size()
+	{
+		return( count );
+	}
+
+	/**
+	 * @return the value for the host or null if not present
+	 */
+
+	public String
+	lookup(
+		String		host )
+	{
+		if ( count == 0 ){
+
+			return( null );
+		}
+
+		byte[]	host_bytes = host.getBytes( StandardCharsets.UTF_8 );
+
+		long	h = hash( host_bytes );
+
+		int	low		= 0;
+		int	high	= count - 1;
+
+		while( low <= high ){
+
+			int	mid = ( low + high ) >>> 1;
+
+			long	mid_hash = buffer.getLong( table_pos + mid*ENTRY_SIZE );
+
+			if ( mid_hash < h ){
+
+				low = mid + 1;
+
+			}else if ( mid_hash > h ){
+
+				high = mid - 1;
+
+			}else{
+
+					// back up to the first entry with this hash and check each, collisions are rare
+
+				while( mid > 0 && buffer.getLong( table_pos + ( mid-1 )*ENTRY_SIZE ) == h ){
+
+					mid--;
+				}
+
+				for ( int i=mid; i<count && buffer.getLong( table_pos + i*ENTRY_SIZE ) == h; i++ ){
+
+					String	value = getValue( buffer.getInt( table_pos + i*ENTRY_SIZE + 8 ), host_bytes );
+
+					if ( value != null ){
+
+						return( value );
+					}
+				}
+
+				return( null );
+			}
+		}
+
+		return( null );
+	}
+
+	private String
+	getValue(
+		int			pos,
+		byte[]		host_bytes )
+	{
+		int	host_len = buffer.getShort( pos ) & 0xffff;
+
+		if ( host_len != host_bytes.length ){
+
+			return( null );
+		}
+
+		pos += 2;
+
+		for ( int i=0;i<host_len;i++){
+
+			if ( buffer.get( pos + i ) != host_bytes[i] ){
+
+				return( null );
+			}
+		}
+
+		pos += host_len;
+
+		int	value_len = buffer.getShort( pos ) & 0xffff;
+
+		pos += 2;
+
+		byte[]	value = new byte[value_len];
+
+		for ( int i=0;i<value_len;i++){
+
+			value[i] = buffer.get( pos + i );
+		}
+
+		return( new String( value, StandardCharsets.UTF_8 ));
+	}
+
+	private static class
+	Record
+	{
+		private final long		hash;
+		private final byte[]	host;
+		private final byte[]	value;
+
+		private
+		Record(
+			long		_hash,
+			byte[]		_host,
+			byte[]		_value )
+		{
+			hash	= _hash;
+			host	= _host;
+			value	= _value;
+		}
+	}
+}
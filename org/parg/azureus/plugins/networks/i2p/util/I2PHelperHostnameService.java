@@ -24,6 +24,7 @@ package org.parg.azureus.plugins.networks.i2p.util;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.*;
 
 import org.gudy.bouncycastle.util.encoders.Base64;
@@ -57,9 +58,22 @@ I2PHelperHostnameService
 	private File				dnsfeed_base_file;
 	private File				dnsfeed_file;
 	
-	private Map<String,String>	result_cache = new HashMap<String, String>();
+	private File				i2hostetag_index_file;
+	private File				dnsfeed_index_file;
 	
-	private Map<String,String>	dnsfeed_cache = null;
+	private Map<String,String>	result_cache = new ConcurrentHashMap<>();
+	
+		// lookups go to the memory-mapped indexes which are built on first use. feed entries received 
+		// after the feed index was built are held in the overflow map until it fills, at which point
+		// the index is rebuilt from the feed file
+	
+	private static final int	MAX_DNSFEED_OVERFLOW	= 1024;
+	
+	private volatile I2PHelperHostnameIndex	i2hostetag_index;
+	private volatile I2PHelperHostnameIndex	dnsfeed_index;
+	
+	private Map<String,String>	dnsfeed_overflow = new ConcurrentHashMap<>();
+	private int					dnsfeed_rebuild_at	= MAX_DNSFEED_OVERFLOW;
 	
 	public
 	I2PHelperHostnameService(
@@ -71,6 +85,9 @@ I2PHelperHostnameService
 		dnsfeed_base_file	= new File( plugin_dir, "dnsfeed_base.txt" );
 		dnsfeed_file	 	= new File( plugin_dir, "dnsfeed.txt" );
 		
+		i2hostetag_index_file	= new File( plugin_dir, "i2hostetag.b32.idx" );
+		dnsfeed_index_file		= new File( plugin_dir, "dnsfeed.idx" );
+		
 		SimpleTimer.addEvent(
 			"init",
 			SystemTime.getOffsetTime( 60*1000 ),
@@ -121,21 +138,6 @@ I2PHelperHostnameService
 					}
 				}
 			});
-		
-		SimpleTimer.addPeriodicEvent(
-			"tidy",
-			2*60*1000,
-			new TimerEventPerformer(){
-				
-				@Override
-				public void perform(TimerEvent event){
-				
-					synchronized( I2PHelperHostnameService.this ){
-						
-						dnsfeed_cache = null;
-					}
-				}
-			});
 	}
 
 	public String
@@ -159,199 +161,223 @@ I2PHelperHostnameService
 		return( lookupI2hostetag( hostname ));
 	}
 	
-	private Map<String,String>
-	loadDNSFeedCache()
+	private I2PHelperHostnameIndex
+	getDNSFeedIndex()
 	{
+		I2PHelperHostnameIndex	index = dnsfeed_index;
+		
+		if ( index != null ){
+			
+			return( index );
+		}
+		
 		synchronized( this ){
-						
-			if ( dnsfeed_cache == null ){
+			
+			if ( dnsfeed_index == null ){
 				
-				dnsfeed_cache = new HashMap<>();
+				dnsfeed_index = openDNSFeedIndex();
 				
-				if ( dnsfeed_base_file.exists()){
-					
-					try{
-						LineNumberReader	lnr = new LineNumberReader( new FileReader( dnsfeed_base_file ));
+				dnsfeed_index.deleteOtherGenerations();
+			}
+			
+			return( dnsfeed_index );
+		}
+	}
+	
+	private I2PHelperHostnameIndex
+	openDNSFeedIndex()
+	{
+			// called with monitor held
+		
+		File[]	sources = { dnsfeed_base_file, dnsfeed_file };
+		
+		if ( !I2PHelperHostnameIndex.isCurrent( dnsfeed_index_file, sources )){
+			
+			removeDuplicateLines();
+		}
+		
+			// the feed is append-only so a later line for a host is an update
+		
+		return( I2PHelperHostnameIndex.open( dnsfeed_index_file, sources, true ));
+	}
+	
+	private void
+	rebuildDNSFeedIndex()
+	{
+			// called with monitor held. the new index is in place before the overflow is trimmed so
+			// lookups always find an entry in one or the other. it is a new generation so the old
+			// one can carry on serving lookups until the swap and is only deleted afterwards
+		
+		final I2PHelperHostnameIndex index = openDNSFeedIndex();
+		
+		dnsfeed_index = index;
+		
+		index.deleteOtherGenerations();
+		
+		dnsfeed_overflow.entrySet().removeIf( e -> e.getValue().equals( index.lookup( e.getKey())));
+		
+		dnsfeed_rebuild_at = dnsfeed_overflow.size() + MAX_DNSFEED_OVERFLOW;
+		
+		plugin.log( "DNS feed index rebuilt, overflow=" + dnsfeed_overflow.size());
+	}
+	
+	private I2PHelperHostnameIndex
+	getI2hostetagIndex()
+	{
+		I2PHelperHostnameIndex	index = i2hostetag_index;
+		
+		if ( index != null ){
+			
+			return( index );
+		}
+		
+		synchronized( this ){
+			
+			if ( i2hostetag_index == null ){
+				
+					// first entry wins, as it did when the file was scanned for each lookup
+				
+				i2hostetag_index = I2PHelperHostnameIndex.open( i2hostetag_index_file, new File[]{ i2hostetag_file }, false );
+				
+				i2hostetag_index.deleteOtherGenerations();
+			}
+			
+			return( i2hostetag_index );
+		}
+	}
+	
+	private void
+	removeDuplicateLines()
+	{
+		if ( dnsfeed_file.exists()){				
+
+			Set<String>		dup_set		= new HashSet<>();
+			Set<Integer>	dup_lines 	= new HashSet<>();
+			
+			try{
+				int	line_number = 0;
+				
+				LineNumberReader	lnr = new LineNumberReader( new FileReader( dnsfeed_file ));
+				
+				try{
+					while( true ){
 						
-						try{
-							while( true ){
-								
-								String line = lnr.readLine();
-								
-								if ( line == null ){
-									
-									break;
-								}
-																
-								line = line.trim();
-								
-								if ( line.startsWith( "#" )){
+						String line = lnr.readLine();
+						
+						if ( line == null ){
+							
+							break;
+						}
+						
+						line_number++;
+						
+						line = line.trim();
+						
+						if ( line.startsWith( "#" )){
+							
+							continue;
+						}
+						
+						String[] bits = line.split( "=", 2 );
+						
+						if ( bits.length == 2 ){
+							
+							if ( dup_set.contains( line )){
 									
-									continue;
-								}
+								dup_lines.add( line_number );
 								
-								String[] bits = line.split( "=", 2 );
+							}else{
 								
-								if ( bits.length == 2 ){
-									
-									String host = bits[0];
-									String dest	= bits[1];
-									
-									dnsfeed_cache.put( host,  dest );
-								}
+								dup_set.add( line );
 							}
-						}catch( Throwable e ){
-							
-							Debug.out( e );
-							
-						}finally{
-							
-							lnr.close();
 						}
-					}catch( Throwable e ){
-						
-						Debug.out( e );
 					}
+				}catch( Throwable e ){
+					
+					Debug.out( e );
+					
+				}finally{
+					
+					lnr.close();
 				}
 				
-				if ( dnsfeed_file.exists()){				
-
-					Set<String>		dup_set		= new HashSet<>();
-					Set<Integer>	dup_lines 	= new HashSet<>();
+				if ( !dup_lines.isEmpty()){
 					
-					try{
-						int	line_number = 0;
+					line_number = 0;
+				
+					File tmp_file = new File( dnsfeed_file.getParentFile(), dnsfeed_file.getName() + ".tmp" );
+					
+					tmp_file.delete();
+													
+					lnr = new LineNumberReader( new FileReader( dnsfeed_file ));
 						
-						LineNumberReader	lnr = new LineNumberReader( new FileReader( dnsfeed_file ));
+					PrintWriter pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tmp_file, false ), "UTF-8" ));
 						
-						try{
-							while( true ){
-								
-								String line = lnr.readLine();
-								
-								if ( line == null ){
-									
-									break;
-								}
-								
-								line_number++;
-								
-								line = line.trim();
-								
-								if ( line.startsWith( "#" )){
-									
-									continue;
-								}
-								
-								String[] bits = line.split( "=", 2 );
+					try{
+						while( true ){
+							
+							String line = lnr.readLine();
+							
+							if ( line == null ){
 								
-								if ( bits.length == 2 ){
-									
-									String host = bits[0];
-									String dest	= bits[1];
-									
-									dnsfeed_cache.put( host,  dest );
-									
-									if ( dup_set.contains( line )){
-											
-										dup_lines.add( line_number );
-										
-									}else{
-										
-										dup_set.add( line );
-									}
-								}
+								break;
 							}
-						}catch( Throwable e ){
 							
-							Debug.out( e );
+							line_number++;
 							
-						}finally{
+							line = line.trim();
 							
-							lnr.close();
+							if ( !dup_lines.contains( line_number )){
+								
+								pw.println( line );
+							}
 						}
 						
-						if ( !dup_lines.isEmpty()){
-							
-							line_number = 0;
 						
-							File tmp_file = new File( dnsfeed_file.getParentFile(), dnsfeed_file.getName() + ".tmp" );
-							
-							tmp_file.delete();
-															
-							lnr = new LineNumberReader( new FileReader( dnsfeed_file ));
-								
-							PrintWriter pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tmp_file, false ), "UTF-8" ));
-								
+						pw.close();
+						
+						pw = null;
+						
+						lnr.close();
+						
+						lnr = null;
+
+						dnsfeed_file.delete();
+						
+						tmp_file.renameTo( dnsfeed_file );
+						
+					}catch( Throwable e ){
+						
+						Debug.out( e );
+						
+					}finally{
+						
+						if ( lnr != null ){
 							try{
-								while( true ){
-									
-									String line = lnr.readLine();
-									
-									if ( line == null ){
-										
-										break;
-									}
-									
-									line_number++;
-									
-									line = line.trim();
-									
-									if ( !dup_lines.contains( line_number )){
-										
-										pw.println( line );
-									}
-								}
-								
-								
-								pw.close();
-								
-								pw = null;
-								
 								lnr.close();
-								
-								lnr = null;
-
-								dnsfeed_file.delete();
-								
-								tmp_file.renameTo( dnsfeed_file );
-								
 							}catch( Throwable e ){
-								
 								Debug.out( e );
-								
-							}finally{
-								
-								if ( lnr != null ){
-									try{
-										lnr.close();
-									}catch( Throwable e ){
-										Debug.out( e );
-									}
-								}
-								
-								if ( pw != null ){
-									try{
-										pw.close();
-									}catch( Throwable e ){
-										Debug.out( e );
-									}
-								}
-								
-								if ( tmp_file.exists()){
-									
-									tmp_file.delete();
-								}
 							}
 						}
-					}catch( Throwable e ){
 						
-						Debug.out( e );
+						if ( pw != null ){
+							try{
+								pw.close();
+							}catch( Throwable e ){
+								Debug.out( e );
+							}
+						}
+						
+						if ( tmp_file.exists()){
+							
+							tmp_file.delete();
+						}
 					}
 				}
+			}catch( Throwable e ){
+				
+				Debug.out( e );
 			}
-			
-			return( dnsfeed_cache );
 		}
 	}
 	
@@ -382,9 +408,7 @@ I2PHelperHostnameService
 				
 				synchronized( this ){
 					
-					Map<String,String> cache = loadDNSFeedCache();
-					
-					String existing = cache.get( host );
+					String existing = lookupDNSFeedEntry( host );
 					
 					if ( existing != null && existing.equals( dest_str )){
 						
@@ -397,9 +421,14 @@ I2PHelperHostnameService
 						
 					pw.close();
 						
-					cache.put( host, dest_str );
+					dnsfeed_overflow.put( host, dest_str );
 					
 					result_cache.put( host, dest_str );
+					
+					if ( dnsfeed_overflow.size() >= dnsfeed_rebuild_at ){
+						
+						rebuildDNSFeedIndex();
+					}
 				}
 			}
 			
@@ -409,39 +438,48 @@ I2PHelperHostnameService
 		}
 	}
 	
+	private String
+	lookupDNSFeedEntry(
+		String	host )
+	{
+		String result = dnsfeed_overflow.get( host );
+		
+		if ( result != null ){
+			
+			return( result );
+		}
+		
+		return( getDNSFeedIndex().lookup( host ));
+	}
+	
 	private String
 	lookupDNSFeed(
 		String	hostname )
 	{
-		synchronized( this ){
+		if ( !dnsfeed_file.exists()){
 			
-			if ( !dnsfeed_file.exists()){
-				
-				return( null );
-			}
-				
-			hostname = hostname.substring( 0, hostname.length() - 4 );
+			return( null );
+		}
+			
+		hostname = hostname.substring( 0, hostname.length() - 4 );
+	
+		String result = result_cache.get( hostname );
 		
-			String result = result_cache.get( hostname );
+		if ( result != null ){
 			
-			if ( result != null ){
-				
-				return( result );
-			}
+			return( result );
+		}
+		
+		result = lookupDNSFeedEntry( hostname );
 			
-			Map<String,String> cache = loadDNSFeedCache();
-				
-			result = cache.get( hostname );
-				
-			if ( result != null ){
-							
-				result_cache.put( hostname, result );
-				
-				plugin.log( "Resolved " + hostname + " to " + result.substring( 0, 32 ) + "..." );
-			}
+		if ( result != null ){
+						
+			result_cache.put( hostname, result );
 			
-			return( result );
+			plugin.log( "Resolved " + hostname + " to " + result.substring( 0, 32 ) + "..." );
 		}
+		
+		return( result );
 	}
 	
 	private String
@@ -455,60 +493,24 @@ I2PHelperHostnameService
 		
 		hostname = hostname.substring( 0, hostname.length() - 4 );
 		
-		synchronized( this ){
+		String existing = result_cache.get( hostname );
+		
+		if ( existing != null ){
 			
-			String existing = result_cache.get( hostname );
+			return( existing );
+		}
+		
+		String b32 = getI2hostetagIndex().lookup( hostname );
+		
+		if ( b32 != null ){
 			
-			if ( existing != null ){
-				
-				return( existing );
-			}
+			String result = b32 + ".b32.i2p";
 			
-			try{
-				LineNumberReader	lnr = new LineNumberReader( new FileReader( i2hostetag_file ));
-				
-				try{
-					while( true ){
-						
-						String line = lnr.readLine();
-						
-						if ( line == null ){
-							
-							break;
-						}
-						
-						line = line.trim();
-						
-						if ( line.startsWith( "#" )){
-							
-							continue;
-						}
-						
-						String[] bits = line.split( "=", 2 );
-						
-						if ( bits.length == 2 ){
-							
-							String 	lhs = bits[0];
-							
-							if ( lhs.equals( hostname )){
-								
-								String result = bits[1] + ".b32.i2p";
-								
-								result_cache.put( hostname, result );
-								
-								plugin.log( "Resolved " + hostname + " to " + result );
-								
-								return( result );
-							}
-						}
-					}
-				}finally{
-					
-					lnr.close();
-				}
-			}catch( Throwable e ){
-				
-			}
+			result_cache.put( hostname, result );
+			
+			plugin.log( "Resolved " + hostname + " to " + result );
+			
+			return( result );
 		}
 		
 		return( null );
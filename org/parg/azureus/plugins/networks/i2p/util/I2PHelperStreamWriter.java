@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.biglybt.core.util.AERunnable;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.ThreadPool;
+
+/**
+ * Runs the blocking writes into I2P streams. Each connection gets its own Queue whose tasks are
+ * run in order, one at a time, and a Queue only occupies a thread while it has work. The
+ * threads come from one of
+ * <ul>
+ * <li>pool - a large thread pool, the original behaviour</li>
+ * <li>fixed - a small fixed set of writer threads shared by all queues</li>
+ * <li>virtual - a virtual thread per active queue, if the JVM supports them, otherwise fixed</li>
+ * </ul>
+ * selected via the azi2phelper.writer.mode plugin parameter. The mode is fixed when a writer is
+ * first used.
+ */
+
+public class
+I2PHelperStreamWriter
+{
+	public static final String	MODE_POOL		= "pool";
+	public static final String	MODE_FIXED		= "fixed";
+	public static final String	MODE_VIRTUAL	= "virtual";
+
+	public static final String	PARAM_MODE				= "azi2phelper.writer.mode";
+	public static final String	PARAM_MODE_DEFAULT		= MODE_POOL;
+	public static final String	PARAM_THREADS			= "azi2phelper.writer.threads";
+	public static final int		PARAM_THREADS_DEFAULT	= 8;
+
+	private static volatile String	config_mode		= PARAM_MODE_DEFAULT;
+	private static volatile int		fixed_threads	= PARAM_THREADS_DEFAULT;
+
+	private static Executor		virtual_executor;
+	private static boolean		virtual_executor_tried;
+
+	private final String		name;
+	private final int			requested_pool_size;
+
+	private volatile boolean	initialised;
+
+	private String				mode;
+	private ThreadPool			pool;
+	private int					pool_size;
+	private Executor			executor;
+
+	private final AtomicInteger	active		= new AtomicInteger();
+	private final AtomicInteger	max_active	= new AtomicInteger();
+
+	private final AtomicLong	total_tasks	= new AtomicLong();
+	private final AtomicLong	total_runs	= new AtomicLong();
+
+	/**
+	 * @param _pool_size	number of threads to use in 'pool' mode
+	 */
+
+	public
+	I2PHelperStreamWriter(
+		String		_name,
+		int			_pool_size )
+	{
+		name				= _name;
+		requested_pool_size	= _pool_size;
+	}
+
+	/**
+	 * Writers are mostly created during class initialisation, before the plugin's configuration is
+	 * available, so this should be called before any writer is used
+	 */
+
+	public static void
+	setConfig(
+		String		mode,
+		int			threads )
+	{
+		config_mode		= mode==null?PARAM_MODE_DEFAULT:mode.toLowerCase();
+		fixed_threads	= threads;
+	}
+
+	private void
+	initialise()
+	{
+		if ( initialised ){
+
+			return;
+		}
+
+		synchronized( this ){
+
+			if ( !initialised ){
+
+				initialiseSupport();
+
+				initialised = true;
+			}
+		}
+	}
+
+	private void
+	initialiseSupport()
+	{
+		String		config_mode = I2PHelperStreamWriter.config_mode;
+
+		Executor	ve = null;
+
+		if ( config_mode.equals( MODE_VIRTUAL )){
+
+			ve = getVirtualExecutor();
+		}
+
+		if ( ve != null ){
+
+			mode		= MODE_VIRTUAL;
+			pool		= null;
+			pool_size	= 0;
+			executor	= ve;
+
+		}else{
+
+			if ( config_mode.equals( MODE_POOL )){
+
+				mode		= MODE_POOL;
+				pool_size	= requested_pool_size;
+
+			}else{
+
+				mode		= MODE_FIXED;
+				pool_size	= Math.max( 1, fixed_threads );
+			}
+
+			pool	= new ThreadPool( name, pool_size, true );
+
+			executor	= null;
+		}
+	}
+
+	private static synchronized Executor
+	getVirtualExecutor()
+	{
+		if ( !virtual_executor_tried ){
+
+			virtual_executor_tried = true;
+
+			try{
+					// reflection as we still support JVMs without virtual threads
+
+				Method method = java.util.concurrent.Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+
+				virtual_executor = (Executor)method.invoke( null );
+
+			}catch( Throwable e ){
+			}
+		}
+
+		return( virtual_executor );
+	}
+
+	public String
+	getMode()
+	{
+		initialise();
+
+		return( mode );
+	}
+
+	public Queue
+	createQueue()
+	{
+		return( new Queue());
+	}
+
+	private void
+	schedule(
+		final Queue		queue )
+	{
+		initialise();
+
+		total_runs.incrementAndGet();
+
+		if ( executor != null ){
+
+			executor.execute(
+				new Runnable()
+				{
+					@Override
+					public void
+					run()
+					{
+						queue.drain();
+					}
+				});
+
+		}else{
+
+			pool.run(
+				new AERunnable()
+				{
+					@Override
+					public void
+					runSupport()
+					{
+						queue.drain();
+					}
+				});
+		}
+	}
+
+	public String
+	getString()
+	{
+		initialise();
+
+		return( name + ": mode=" + mode + ( pool==null?"":( ",threads=" + pool_size )) +
+				",active=" + active.get() +
+				",max_active=" + max_active.get() +
+				",tasks=" + total_tasks.get() +
+				",runs=" + total_runs.get());
+	}
+
+	public class
+	Queue
+	{
+		private final LinkedList<Runnable>	tasks = new LinkedList<>();
+
+		private boolean		scheduled;
+
+		private
+		Queue()
+		{
+		}
+
+		/**
+		 * Queues the task to run after any others already queued on this Queue
+		 */
+
+		public void
+		run(
+			Runnable	task )
+		{
+			total_tasks.incrementAndGet();
+
+			synchronized( this ){
+
+				tasks.add( task );
+
+				if ( scheduled ){
+
+					return;
+				}
+
+				scheduled = true;
+			}
+
+			schedule( this );
+		}
+
+		private void
+		drain()
+		{
+			int	a = active.incrementAndGet();
+
+			while( true ){
+
+				int	ma = max_active.get();
+
+				if ( a <= ma || max_active.compareAndSet( ma, a )){
+
+					break;
+				}
+			}
+
+			try{
+				while( true ){
+
+					Runnable	task;
+
+					synchronized( this ){
+
+						task = tasks.poll();
+
+						if ( task == null ){
+
+							scheduled = false;
+
+							return;
+						}
+					}
+
+					try{
+						task.run();
+
+					}catch( Throwable e ){
+
+						Debug.out( e );
+					}
+				}
+			}finally{
+
+				active.decrementAndGet();
+			}
+		}
+	}
+
+		/**
+		 * Runs the same load through each mode and prints the throughput, the threads created and
+		 * whether any connection saw its writes out of order. The writes park for the given time to stand
+		 * in for an I2P stream blocked on its send window.
+		 * Arguments: connections, writes per connection, microseconds per write
+		 */
+
+	public static void
+	main(
+		String[]		args )
+	{
+		try{
+			final int	connections		= args.length<1?200:Integer.parseInt( args[0] );
+			final int	writes			= args.length<2?100:Integer.parseInt( args[1] );
+			final long	delay_nanos		= ( args.length<3?200:Long.parseLong( args[2] ))*1000;
+
+			ThreadMXBean	tmx = ManagementFactory.getThreadMXBean();
+
+				// first pass warms up
+
+			for ( int pass=0;pass<2;pass++){
+
+				for ( String m: new String[]{ MODE_POOL, MODE_FIXED, MODE_VIRTUAL }){
+
+					setConfig( m, PARAM_THREADS_DEFAULT );
+
+					I2PHelperStreamWriter	writer = new I2PHelperStreamWriter( "test:" + m, 256 );
+
+					final CountDownLatch	done	= new CountDownLatch( connections );
+					final AtomicInteger		errors	= new AtomicInteger();
+
+					int	base_threads = tmx.getThreadCount();
+
+					tmx.resetPeakThreadCount();
+
+					long	start = System.nanoTime();
+
+					for ( int c=0;c<connections;c++){
+
+						Queue	queue = writer.createQueue();
+
+						final int[]	next = { 0 };
+
+						for ( int i=0;i<writes;i++){
+
+							final int	seq = i;
+
+							queue.run(
+								new Runnable()
+								{
+									@Override
+									public void
+									run()
+									{
+										if ( next[0]++ != seq ){
+
+											errors.incrementAndGet();
+										}
+
+										if ( delay_nanos > 0 ){
+
+											LockSupport.parkNanos( delay_nanos );
+										}
+
+										if ( seq == writes-1 ){
+
+											done.countDown();
+										}
+									}
+								});
+						}
+					}
+
+					done.await();
+
+					long	elapsed = System.nanoTime() - start;
+
+					if ( pass == 0 ){
+
+						continue;
+					}
+
+					System.out.println(
+						writer.getString() + ": writes/sec=" + ((long)connections*writes*1000000000L/elapsed ) +
+						",elapsed=" + ( elapsed/1000000 ) + "ms,new_threads=" + ( tmx.getPeakThreadCount() - base_threads ) +
+						",order_errors=" + errors.get());
+				}
+			}
+		}catch( Throwable e ){
+
+			e.printStackTrace();
+		}
+	}
+}
@@ -25,13 +25,14 @@ package org.parg.azureus.plugins.networks.i2p.vuzedht;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.biglybt.core.util.AESemaphore;
 import com.biglybt.core.util.AEThread2;
 import com.biglybt.core.util.Debug;
 import com.biglybt.pif.PluginInterface;
 import org.parg.azureus.plugins.networks.i2p.I2PHelperAdapter;
 import org.parg.azureus.plugins.networks.i2p.router.I2PHelperRouter;
+import org.parg.azureus.plugins.networks.i2p.router.I2PHelperStartup;
 import org.parg.azureus.plugins.networks.i2p.router.I2PSMHolder;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NID;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
@@ -71,7 +72,9 @@ DHTAZClient
 	extends I2PHelperAZDHT
 	implements DHTLogger
 {
-	private AESemaphore	init_sem = new AESemaphore( "" );
+	private static final AtomicInteger	next_id = new AtomicInteger();
+	
+	private final I2PHelperStartup.Stage	init_stage;
 	
 	private I2PHelperAdapter		adapter;
 	
@@ -88,6 +91,14 @@ DHTAZClient
 	
 	{	adapter = _adapter;
 	
+			// reported with the router's start-up, there can be more than one client per server
+	
+		init_stage = 
+			inst.getRouter().getStartup().getStage( 
+				I2PHelperStartup.getStageName( inst.getServerID() + "#" + next_id.incrementAndGet(), I2PHelperStartup.STAGE_CLIENT ));
+		
+		init_stage.begin();
+		
 		new AEThread2( "init" )
 		{
 			@Override
@@ -216,7 +227,14 @@ DHTAZClient
 					}
 				}finally{
 					
-					init_sem.releaseForever();
+					if ( init_error == null ){
+						
+						init_stage.complete();
+						
+					}else{
+						
+						init_stage.fail( init_error );
+					}
 				}
 			}
 		}.start();
@@ -226,7 +244,7 @@ DHTAZClient
 	public boolean
 	isInitialised()
 	{
-		return( init_sem.isReleasedForever());
+		return( init_stage.isComplete());
 	}
 	
 	@Override
@@ -234,7 +252,19 @@ DHTAZClient
 	waitForInitialisation(
 		long	max_millis )
 	{
-		return( init_sem.reserve( max_millis ));
+			// completion rather than success as for isInitialised
+		
+		init_stage.waitFor( max_millis );
+		
+		return( init_stage.isComplete());
+	}
+	
+	@Override
+	public void
+	addInitialisationListener(
+		Runnable	listener )
+	{
+		init_stage.addListener(( stage )->listener.run());
 	}
 	
 	@Override
@@ -57,6 +57,14 @@ DHTAZFull
 		return( true );
 	}
 	
+	@Override
+	public void
+	addInitialisationListener(
+		Runnable	listener )
+	{
+		listener.run();
+	}
+	
 	public DHTAZ
 	getAZDHT()
 	{
@@ -27,7 +27,6 @@ import java.io.File;
 import java.util.*;
 
 import net.i2p.client.I2PSession;
-import net.i2p.data.Base32;
 import net.i2p.data.Destination;
 import net.i2p.data.Hash;
 
@@ -35,6 +34,7 @@ import com.biglybt.core.util.AESemaphore;
 import com.biglybt.core.util.AEThread2;
 import com.biglybt.core.util.ByteFormatter;
 import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.HashWrapper;
 import com.biglybt.core.util.RandomUtils;
 import com.biglybt.core.util.SimpleTimer;
 import com.biglybt.core.util.SystemTime;
@@ -45,9 +45,11 @@ import com.biglybt.pif.PluginInterface;
 import org.parg.azureus.plugins.networks.i2p.I2PHelperDHT;
 import org.parg.azureus.plugins.networks.i2p.I2PHelperAdapter;
 import org.parg.azureus.plugins.networks.i2p.I2PHelperDHTListener;
+import org.parg.azureus.plugins.networks.i2p.router.I2PHelperStartup;
 import org.parg.azureus.plugins.networks.i2p.router.I2PSMHolder;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NID;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperB32Cache;
 
 import com.biglybt.core.dht.DHT;
 import com.biglybt.core.dht.DHTFactory;
@@ -96,6 +98,7 @@ DHTI2P
 	final int cache_check_ticks		= cache_check_period / timer_period;
 
 	final int get_cache_expiry		= 1*60*1000;
+	final int get_cache_max			= 512;
 	
 	private int		bootstrap_check_tick_count	= 1;
 	private boolean	force_bootstrap;
@@ -107,7 +110,39 @@ DHTI2P
 	private int refresh_find_node_ok;
 	private int refresh_find_node_fail;
 	
-	private Map<String,GetCacheEntry>	get_cache = new HashMap<String, GetCacheEntry>();
+		// keyed on infohash alone, insertion ordered so the eldest entries are at the head
+	
+	private Map<HashWrapper,GetCacheEntry>	get_cache = 
+		new LinkedHashMap<HashWrapper,GetCacheEntry>( get_cache_max, 0.75f, false )
+		{
+			@Override
+			protected boolean
+			removeEldestEntry(
+		   		Map.Entry<HashWrapper,GetCacheEntry> eldest )
+			{
+				if ( size() > get_cache_max ){
+					
+					get_cache_evictions++;
+					
+					return( true );
+				}
+				
+				return( false );
+			}
+		};
+		
+	private long	get_cache_requests;
+	private long	get_cache_hits;
+	private long	get_cache_coalesced;
+	private long	get_cache_evictions;
+	private long	get_cache_expired;
+	
+	private DHTI2PSnapshot	snapshot;
+	
+	private final long		start_time	= SystemTime.getMonotonousTime();
+	private volatile long	seeded_time	= -1;
+	
+	private final I2PHelperStartup.Stage	seeded_stage;
 	
 	private NodeInfo	my_node;
 	private String		my_address;
@@ -121,12 +156,14 @@ DHTI2P
 		I2PSMHolder			sm_holder,
 		NodeInfo			_my_node,
 		NodeInfo			boot_node,
+		I2PHelperStartup.Stage	_seeded_stage,
 		I2PHelperAdapter	_adapter )
 	{
-		dir			= _dir;
-		dht_index	= _dht_index;
-		my_node		= _my_node;
-		adapter		= _adapter;
+		dir				= _dir;
+		dht_index		= _dht_index;
+		my_node			= _my_node;
+		seeded_stage	= _seeded_stage;
+		adapter			= _adapter;
 		
 		File storage_dir = new File( dir, "dhtdata" + (dht_index==0?"":String.valueOf(dht_index)));
 		
@@ -135,7 +172,7 @@ DHTI2P
 			storage_dir.mkdirs();
 		}
 	
-		my_address = Base32.encode( my_node.getHash().getData()) + ".b32.i2p";
+		my_address = I2PHelperB32Cache.getAddress( my_node.getHash());
 		
 		bootstrap_node	= boot_node;
 		
@@ -165,6 +202,16 @@ DHTI2P
 		
 		az_dht_helper = new DHTAZFull( az_dht );
 		
+			// snapshot nodes are pinged alongside the general contact import and integration,
+			// responders are imported as they reply
+		
+		snapshot = new DHTI2PSnapshot( storage_dir );
+		
+		if ( !transport.isDisabled()){
+		
+			snapshot.bootstrap( transport );
+		}
+		
 		storage_manager.importContacts( dht );
 		
 		DHTTransportContactI2P boot_contact = boot_node==null?null:transport.importContact( boot_node, true );
@@ -207,7 +254,13 @@ DHTI2P
 					
 							seeded = true;
 							
+							seeded_time = SystemTime.getMonotonousTime() - start_time;
+							
+							log( "Seeded in " + seeded_time + "ms; " + snapshot.getString());
+							
 							az_dht.setSeeded();
+							
+							seeded_stage.complete();
 						}
 					}
 					
@@ -219,6 +272,8 @@ DHTI2P
 					if ( tick_count % save_ticks == 0 ){
 						
 						storage_manager.exportContacts( dht );
+						
+						snapshot.save( dht );
 					}
 					
 					if ( tick_count % bootstrap_check_tick_count == 0 ){
@@ -422,7 +477,7 @@ DHTI2P
 				new DHTTransportContactI2P( 
 						transport, 
 						new NodeInfo( destination, port ), 
-						DHTUtilsI2P.PROTOCOL_VERSION,
+						DHTUtilsI2P.PROTOCOL_VERSION_ASSUMED,
 						0,
 						0,
 						(byte)0 );
@@ -491,7 +546,7 @@ DHTI2P
 				new DHTTransportContactI2P( 
 						transport, 
 						new NodeInfo( destination, port ), 
-						DHTUtilsI2P.PROTOCOL_VERSION,
+						DHTUtilsI2P.PROTOCOL_VERSION_ASSUMED,
 						0,
 						0,
 						(byte)0 );
@@ -510,7 +565,7 @@ DHTI2P
 				new DHTTransportContactI2P( 
 						transport, 
 						new NodeInfo( destination, port ), 
-						DHTUtilsI2P.PROTOCOL_VERSION,
+						DHTUtilsI2P.PROTOCOL_VERSION_ASSUMED,
 						0,
 						0,
 						(byte)0 );
@@ -530,7 +585,7 @@ DHTI2P
 				new DHTTransportContactI2P( 
 						transport, 
 						new NodeInfo( destination, port ), 
-						DHTUtilsI2P.PROTOCOL_VERSION,
+						DHTUtilsI2P.PROTOCOL_VERSION_ASSUMED,
 						0,
 						0,
 						(byte)0 );
@@ -551,22 +606,48 @@ DHTI2P
 	{
 		synchronized( get_cache ){
 			
-			if ( get_cache.size() > 0 ){
+			expireCache( SystemTime.getMonotonousTime());
+		}
+	}
+	
+	/**
+	 * get_cache must be locked on entry. Entries are in creation order so this stops at the first one
+	 * that hasn't expired. In-progress gets that have run beyond the expiry are dropped too, they
+	 * still complete but new requests don't join them.
+	 */
+	
+	private void
+	expireCache(
+		long		now )
+	{
+		Iterator<GetCacheEntry>	it = get_cache.values().iterator();
+		
+		while( it.hasNext()){
 			
-				long now = SystemTime.getMonotonousTime();
-				
-				Iterator<GetCacheEntry>	it = get_cache.values().iterator();
+			GetCacheEntry entry = it.next();
+			
+			if ( now - entry.getCreateTime() <= get_cache_expiry ){
 				
-				while( it.hasNext()){
-					
-					GetCacheEntry entry = it.next();
-					
-					if ( entry.isComplete() && now - entry.getCreateTime() > get_cache_expiry ){
-						
-						it.remove();
-					}
-				}
+				break;
 			}
+			
+			it.remove();
+			
+			get_cache_expired++;
+		}
+	}
+	
+	private String
+	getCacheStats()
+	{
+		synchronized( get_cache ){
+			
+			return( "get_cache: entries=" + get_cache.size() +
+					",requests=" + get_cache_requests +
+					",hit=" + ( get_cache_requests==0?0:( get_cache_hits*100/get_cache_requests )) + "%" +
+					",coalesced=" + ( get_cache_requests==0?0:( get_cache_coalesced*100/get_cache_requests )) + "%" +
+					",evicted=" + get_cache_evictions +
+					",expired=" + get_cache_expired );
 		}
 	}
 	
@@ -590,17 +671,39 @@ DHTI2P
 	{		
 		flags |= I2PHelperAZDHT.FLAG_HIGH_PRIORITY;
 		
-		String key = ByteFormatter.encodeString( ih ) + "/" + max + "/" + maxWait;
+		HashWrapper key = new HashWrapper( ih );
 		
 		GetCacheEntry 	cache_entry;
 		
 		synchronized( get_cache ){
 			
+			get_cache_requests++;
+			
+			expireCache( SystemTime.getMonotonousTime());
+			
 			cache_entry = get_cache.get( key );
 			
-			if ( cache_entry != null && cache_entry.isComplete()){
+			if ( cache_entry != null ){
+				
+					// any get for the hash can be used if it is for at least as many values or has 
+					// completed having found fewer than it asked for, and it waits at least as long or
+					// completed without timing out. otherwise a new get replaces it using the larger of
+					// the requested limits
 				
-				if ( SystemTime.getMonotonousTime() - cache_entry.getCreateTime() > get_cache_expiry ){
+				if ( cache_entry.canServe( max, maxWait )){
+					
+					if ( cache_entry.isComplete()){
+						
+						get_cache_hits++;
+						
+					}else{
+						
+						get_cache_coalesced++;
+					}
+				}else{
+					
+					max		= Math.max( max, cache_entry.getMax());
+					maxWait	= Math.max( maxWait, cache_entry.getMaxWait());
 					
 					cache_entry = null;
 				}
@@ -608,7 +711,11 @@ DHTI2P
 			
 			if ( cache_entry == null ){
 				
-				cache_entry = new GetCacheEntry( listener );
+				cache_entry = new GetCacheEntry( listener, max, maxWait );
+				
+					// remove first so that the replacement goes to the end of the age order
+				
+				get_cache.remove( key );
 				
 				get_cache.put( key, cache_entry );
 				
@@ -1262,6 +1369,8 @@ DHTI2P
 		
 		storage_manager.exportContacts( dht );
 		
+		snapshot.save( dht );
+		
 		dht.destroy();
 		
 		az_dht.destroy();
@@ -1285,11 +1394,12 @@ DHTI2P
 		return( "" );
 	}
 	
+	
 	@Override
 	public String
 	getStats()
 	{
-		return( transport.getStats().getString() + "/" + az_dht.getDHT().getTransport().getStats().getString() + ":" + az_dht.getDHT().getRouter().getStats().getStats()[DHTRouterStats.ST_CONTACTS]);
+		return( transport.getStats().getString() + "/" + az_dht.getDHT().getTransport().getStats().getString() + ":" + az_dht.getDHT().getRouter().getStats().getStats()[DHTRouterStats.ST_CONTACTS] + "; " + transport.getExtendedStats() + "; " + getCacheStats() + "; seeded=" + seeded_time + "; " + snapshot.getString());
 	}
 	
 	@Override
@@ -1319,6 +1429,9 @@ DHTI2P
 	{
 		private long						create_time = SystemTime.getMonotonousTime();
 		
+		private final int					max;
+		private final long					max_wait;
+		
 		private Map<String,Object[]>		contacts 			= new HashMap<String, Object[]>();
 		
 		private CopyOnWriteList<I2PHelperDHTListener>	listeners 	= new CopyOnWriteList<I2PHelperDHTListener>();
@@ -1328,8 +1441,13 @@ DHTI2P
 		
 		public
 		GetCacheEntry(
-			I2PHelperDHTListener		listener )
+			I2PHelperDHTListener		listener,
+			int							_max,
+			long						_max_wait )
 		{
+			max			= _max;
+			max_wait	= _max_wait;
+			
 			listeners.add( listener );
 		}
 		
@@ -1339,6 +1457,34 @@ DHTI2P
 			return( create_time );
 		}
 		
+		private int
+		getMax()
+		{
+			return( max );
+		}
+		
+		private long
+		getMaxWait()
+		{
+			return( max_wait );
+		}
+		
+		private boolean
+		canServe(
+			int		required,
+			long	required_wait )
+		{
+			synchronized( this ){
+				
+				if ( required > max && !( complete && contacts.size() < max )){
+					
+					return( false );
+				}
+				
+				return( required_wait <= max_wait || ( complete && !timeout ));
+			}
+		}
+		
 		private boolean
 		isComplete()
 		{
@@ -1369,12 +1515,14 @@ DHTI2P
 					// deal with the fact that a 'complete' event might sneak in before we've informed
 					// the listener of the pending 'valueRead' events...
 				
-				for ( Object[] entry: contacts.values()){
+				for ( Map.Entry<String,Object[]> contact_entry: contacts.entrySet()){
+					
+					Object[] entry = contact_entry.getValue();
 					
 					DHTTransportContactI2P 	contact = (DHTTransportContactI2P)entry[0];
 					DHTTransportValue 		value	= (DHTTransportValue)entry[1];
 					
-					String 	host 	=  Base32.encode( value.getValue()) + ".b32.i2p";
+					String 	host 	= contact_entry.getKey();
 					boolean	is_seed = ( value.getFlags() & DHT.FLAG_SEEDING ) != 0;
 
 					int	state = is_seed?I2PHelperDHTListener.CS_SEED:(contact.getProtocolVersion()==DHTUtilsI2P.PROTOCOL_VERSION_NON_VUZE?I2PHelperDHTListener.CS_UNKNOWN:I2PHelperDHTListener.CS_LEECH );
@@ -1416,7 +1564,7 @@ DHTI2P
 			DHTTransportContact 	_contact, 
 			DHTTransportValue 		value)
 		{
-			String host =  Base32.encode( value.getValue()) + ".b32.i2p";
+			String host = I2PHelperB32Cache.getAddress( value.getValue());
 			
 			synchronized( this ){
 			
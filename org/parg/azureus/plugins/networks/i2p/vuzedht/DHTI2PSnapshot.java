@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.vuzedht;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.i2p.data.Destination;
+
+import com.biglybt.core.dht.DHT;
+import com.biglybt.core.dht.control.DHTControlContact;
+import com.biglybt.core.dht.router.DHTRouter;
+import com.biglybt.core.dht.router.DHTRouterContact;
+import com.biglybt.core.util.AERunnable;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.HashWrapper;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.ThreadPool;
+
+import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
+
+/**
+ * Compact snapshot of the routing table (node info, destination, protocol version and when the
+ * node was last seen alive) written periodically and on shutdown. At start-up the freshest entries
+ * are pinged in parallel with the general contact import and integration, and those that respond are
+ * imported as they reply so that the routing table picks up nodes known to be reachable without
+ * start-up waiting on them.
+ */
+
+public class
+DHTI2PSnapshot
+{
+	private static final int	MAGIC			= 0x44485453;	// DHTS
+	private static final int	VERSION			= 1;
+
+	private static final int	MAX_ENTRIES		= 256;
+
+	private static final int	PING_MAX		= 64;
+	private static final int	PING_CONCURRENT	= 8;
+
+	private final File		file;
+
+		// last-alive times from the loaded snapshot, carried over for nodes that aren't alive right
+		// now so that they don't lose their position immediately
+
+	private final Map<HashWrapper,Long>	last_alive_map = new HashMap<>();
+
+	private int		loaded;
+	private int		pinged;
+	private int		responded;
+	private long	first_response	= -1;
+	private long	ping_time		= -1;
+	private int		saved;
+
+	public
+	DHTI2PSnapshot(
+		File		dir )
+	{
+		file	= new File( dir, "rtsnapshot.dat" );
+	}
+
+	public void
+	save(
+		DHT			dht )
+	{
+		try{
+			long	now = SystemTime.getCurrentTime();
+
+			DHTRouter	router = dht.getRouter();
+
+			List<Entry>	entries = new ArrayList<>();
+
+			for ( DHTRouterContact r_contact: router.getAllContacts()){
+
+				if ( router.isID( r_contact.getID()) || r_contact.isFailing()){
+
+					continue;
+				}
+
+				DHTTransportContactI2P t_cn = (DHTTransportContactI2P)((DHTControlContact)r_contact.getAttachment()).getTransportContact();
+
+				NodeInfo	node = t_cn.getNode();
+
+				long	last_alive;
+
+				if ( r_contact.isAlive()){
+
+					last_alive = now;
+
+				}else{
+
+					Long	l;
+
+					synchronized( last_alive_map ){
+
+						l = last_alive_map.get( new HashWrapper( node.getNID().getData()));
+					}
+
+					last_alive = l==null?0:l;
+				}
+
+				entries.add( new Entry( node, t_cn.getProtocolVersion(), last_alive ));
+			}
+
+			Collections.sort( entries, ( e1, e2 )->Long.compare( e2.last_alive, e1.last_alive ));
+
+			if ( entries.size() > MAX_ENTRIES ){
+
+				entries = entries.subList( 0, MAX_ENTRIES );
+			}
+
+			File	temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+
+			DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp )));
+
+			try{
+				dos.writeInt( MAGIC );
+				dos.writeInt( VERSION );
+
+				dos.writeInt( entries.size());
+
+				for ( Entry entry: entries ){
+
+					dos.write( entry.node.getData());
+
+					Destination dest = entry.node.getDestination();
+
+					byte[]	b_dest = dest==null?new byte[0]:dest.toByteArray();
+
+					dos.writeShort( b_dest.length );
+					dos.write( b_dest );
+
+					dos.writeByte( entry.version );
+					dos.writeLong( entry.last_alive );
+				}
+			}finally{
+
+				dos.close();
+			}
+
+			file.delete();
+
+			if ( !temp.renameTo( file )){
+
+				temp.delete();
+
+			}else{
+
+				synchronized( this ){
+
+					saved = entries.size();
+				}
+			}
+		}catch( Throwable e ){
+
+			Debug.out( "Failed to save routing table snapshot", e );
+		}
+	}
+
+	private List<Entry>
+	load()
+	{
+		List<Entry>	entries = new ArrayList<>();
+
+		if ( !file.exists()){
+
+			return( entries );
+		}
+
+		try{
+			DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file )));
+
+			try{
+				if ( dis.readInt() != MAGIC || dis.readInt() != VERSION ){
+
+					return( entries );
+				}
+
+				int	num = Math.min( dis.readInt(), MAX_ENTRIES );
+
+				byte[]	b_node = new byte[NodeInfo.LENGTH];
+
+				for ( int i=0;i<num;i++){
+
+					dis.readFully( b_node );
+
+					byte[]	b_dest = new byte[ dis.readUnsignedShort()];
+
+					dis.readFully( b_dest );
+
+					byte	version		= dis.readByte();
+					long	last_alive	= dis.readLong();
+
+					try{
+						NodeInfo	node = new NodeInfo( b_node, 0 );
+
+						if ( b_dest.length > 0 ){
+
+							Destination dest = new Destination();
+
+							dest.fromByteArray( b_dest );
+
+							node = new NodeInfo( node.getNID(), dest, node.getPort());
+						}
+
+						entries.add( new Entry( node, version, last_alive ));
+
+					}catch( Throwable e ){
+
+							// skip invalid entry
+					}
+				}
+			}finally{
+
+				dis.close();
+			}
+		}catch( Throwable e ){
+
+			Debug.out( "Failed to load routing table snapshot", e );
+		}
+
+		synchronized( last_alive_map ){
+
+			for ( Entry entry: entries ){
+
+				if ( entry.last_alive > 0 ){
+
+					last_alive_map.put( new HashWrapper( entry.node.getNID().getData()), entry.last_alive );
+				}
+			}
+		}
+
+		return( entries );
+	}
+
+	/**
+	 * Starts pinging the freshest snapshot entries in parallel, importing responders as they reply.
+	 * Doesn't wait for them.
+	 */
+
+	public void
+	bootstrap(
+		final DHTTransportI2P		transport )
+	{
+		final long	start = SystemTime.getMonotonousTime();
+
+		List<Entry>	entries = load();
+
+		if ( entries.isEmpty()){
+
+			return;
+		}
+
+			// already in last-alive order
+
+		if ( entries.size() > PING_MAX ){
+
+			entries = entries.subList( 0, PING_MAX );
+		}
+
+		synchronized( this ){
+
+			loaded	= entries.size();
+		}
+
+		final int[]	outstanding	= { entries.size() };
+
+		ThreadPool	pool = new ThreadPool( "DHTI2P:snapshotping", PING_CONCURRENT, true );
+
+		for ( final Entry entry: entries ){
+
+			pool.run(
+				new AERunnable()
+				{
+					@Override
+					public void
+					runSupport()
+					{
+						boolean	ok = false;
+
+						try{
+							synchronized( DHTI2PSnapshot.this ){
+
+								pinged++;
+							}
+
+							ok = !transport.isDisabled() && transport.sendPing( entry.node );
+
+							if ( ok ){
+
+								transport.importContact( entry.node, entry.version, false );
+							}
+						}catch( Throwable e ){
+
+						}finally{
+
+							synchronized( DHTI2PSnapshot.this ){
+
+								if ( ok ){
+
+									responded++;
+
+									if ( first_response == -1 ){
+
+										first_response = SystemTime.getMonotonousTime() - start;
+									}
+								}
+
+								outstanding[0]--;
+
+								if ( outstanding[0] == 0 ){
+
+									ping_time = SystemTime.getMonotonousTime() - start;
+								}
+							}
+						}
+					}
+				});
+		}
+	}
+
+	public synchronized String
+	getString()
+	{
+		return( "snapshot: loaded=" + loaded +
+				",pinged=" + pinged +
+				",responded=" + responded +
+				",first=" + first_response +
+				",ping_time=" + ping_time +
+				",saved=" + saved );
+	}
+
+	private static class
+	Entry
+	{
+		private final NodeInfo		node;
+		private final byte			version;
+		private final long			last_alive;
+
+		private
+		Entry(
+			NodeInfo	_node,
+			int			_version,
+			long		_last_alive )
+		{
+			node		= _node;
+			version		= (byte)_version;
+			last_alive	= _last_alive;
+		}
+	}
+}
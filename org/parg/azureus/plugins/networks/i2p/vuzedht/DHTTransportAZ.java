@@ -29,8 +29,10 @@ import java.util.*;
 
 import net.i2p.data.Base32;
 
+import com.biglybt.core.util.BEncoder;
 import com.biglybt.core.util.ByteFormatter;
 import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.HashWrapper;
 import com.biglybt.core.util.RandomUtils;
 import com.biglybt.core.util.SystemTime;
 
@@ -72,6 +74,11 @@ DHTTransportAZ
 	
 	private static final int	MAX_DATA_SIZE	= 10*1024;
 	
+		// compact encoding of contacts and values, used when the other end is PROTOCOL_VERSION_COMPACT_AZ+
+	
+	private static final int	COMPACT_FORMAT				= 1;
+	private static final int	COMPACT_CONTACT_SIZE		= 1 + 32 + 2 + 20;		// version, hash, port, nid
+	
 		// skew our time randomly so that multiple transports don't show the same clock times in requests
 	
 	private final int	TIME_OFFSET = RandomUtils.SECURE_RANDOM.nextInt( 4*60*1000 ) - 2*60*1000;
@@ -446,9 +453,7 @@ DHTTransportAZ
 
 					stats.findNodeOK();
 					
-					List<Map<String,Object>>	l_contacts = (List<Map<String,Object>>)map.get("c");
-					
-					DHTTransportContact[] contacts = decodeContacts( l_contacts );
+					DHTTransportContact[] contacts = decodeContacts( map );
 					
 					handler.findNodeReply(
 						contact,
@@ -484,11 +489,9 @@ DHTTransportAZ
 		
 		DHTTransportContact[] contacts = request_handler.findNodeRequest( contact, hash );
 		
-		List<Map<String,Object>>	l_contacts = encodeContacts( contacts );
-		
 		Map<String,Object> reply = new HashMap<String,Object>();
 		
-		reply.put( "c", l_contacts );
+		encodeContacts( contact, contacts, reply );
 		
 		return( reply );
 	}
@@ -545,13 +548,11 @@ DHTTransportAZ
 						
 						handler.failed( contact, new Throwable( "key blocked" ));
 						
-					}else if ( map.containsKey( "c" )){
+					}else if ( map.containsKey( "c" ) || map.containsKey( "C" )){
 					
 						if ( TRACE ) trace( "AZ: sendFindValue to " + contact.getString() + " OK - contacts reply" );
 
-						List<Map<String,Object>>	l_contacts = (List<Map<String,Object>>)map.get("c");
-					
-						DHTTransportContact[] contacts = decodeContacts( l_contacts );
+						DHTTransportContact[] contacts = decodeContacts( map );
 					
 						handler.findValueReply(
 							contact,
@@ -561,9 +562,20 @@ DHTTransportAZ
 						
 						if ( TRACE ) trace( "AZ: sendFindValue to " + contact.getString() + " OK - values reply" );
 
-						List<Map<String,Object>>	l_values = (List<Map<String,Object>>)map.get("v");
+						DHTTransportValue[] values;
+						
+						byte[]	compact_values = (byte[])map.get( "V" );
 						
-						DHTTransportValue[] values = decodeValues( l_values, 0 );
+						if ( compact_values != null ){
+							
+							values = decodeValuesCompact( compact_values, 0 );
+							
+						}else{
+							
+							List<Map<String,Object>>	l_values = (List<Map<String,Object>>)map.get("v");
+						
+							values = decodeValues( l_values, 0 );
+						}
 						
 						byte div = ((Number)map.get( "d")).byteValue();
 						
@@ -616,16 +628,22 @@ DHTTransportAZ
 			
 		}else if ( fv_reply.hit()){
 			
-			List<Map<String,Object>>	l_values = encodeValues( fv_reply.getValues(), -contact.getClockSkew());
+			if ( supportsCompact( contact )){
+				
+				reply.put( "V", encodeValuesCompact( fv_reply.getValues(), -contact.getClockSkew()));
+				
+			}else{
+				
+				List<Map<String,Object>>	l_values = encodeValues( fv_reply.getValues(), -contact.getClockSkew());
+			
+				reply.put( "v", l_values );
+			}
 			
-			reply.put( "v", l_values );
 			reply.put( "d", (long)(fv_reply.getDiversificationType()&0xff));
 			
 		}else{
 			
-			List<Map<String,Object>>	l_contacts = encodeContacts( fv_reply.getContacts());
-			
-			reply.put( "c", l_contacts );
+			encodeContacts( contact, fv_reply.getContacts(), reply );
 		}
 		
 		return( reply );
@@ -670,15 +688,31 @@ DHTTransportAZ
 		
 		payload.put( "k", keys_l );
 		
-		List<List<Map<String,Object>>> values_l = new ArrayList<List<Map<String,Object>>>( value_sets.length );
+			// skew is 0 when sending store as we are the originator
 		
-		for ( DHTTransportValue[] values: value_sets ){
+		if ( supportsCompact( contact )){
+			
+			List<byte[]> values_l = new ArrayList<byte[]>( value_sets.length );
 			
-			values_l.add( encodeValues( values, 0 ));	// skew is 0 when sending store as we are the originator
+			for ( DHTTransportValue[] values: value_sets ){
+				
+				values_l.add( encodeValuesCompact( values, 0 ));
+			}
+			
+			payload.put( "V", values_l );
+			
+		}else{
+			
+			List<List<Map<String,Object>>> values_l = new ArrayList<List<Map<String,Object>>>( value_sets.length );
+			
+			for ( DHTTransportValue[] values: value_sets ){
+				
+				values_l.add( encodeValues( values, 0 ));
+			}
+			
+			payload.put( "v", values_l );
 		}
 		
-		payload.put( "v", values_l );
-		
 		sendRequest(
 			new AZReplyHandlerAdapter()
 			{	
@@ -744,13 +778,28 @@ DHTTransportAZ
 			keys[i] = keys_l.get(i);
 		}
 		
-		List<List<Map<String,Object>>> values_l =  (List<List<Map<String,Object>>>)payload.get( "v" );
+		DHTTransportValue[][]	value_sets;
 		
-		DHTTransportValue[][]	value_sets = new DHTTransportValue[values_l.size()][];
+		List<byte[]> compact_l = (List<byte[]>)payload.get( "V" );
 		
-		for ( int i=0;i<value_sets.length;i++){
+		if ( compact_l != null ){
+			
+			value_sets = new DHTTransportValue[compact_l.size()][];
 			
-			value_sets[i] = decodeValues( values_l.get(i), contact.getClockSkew());
+			for ( int i=0;i<value_sets.length;i++){
+				
+				value_sets[i] = decodeValuesCompact( compact_l.get(i), contact.getClockSkew());
+			}
+		}else{
+			
+			List<List<Map<String,Object>>> values_l =  (List<List<Map<String,Object>>>)payload.get( "v" );
+		
+			value_sets = new DHTTransportValue[values_l.size()][];
+		
+			for ( int i=0;i<value_sets.length;i++){
+			
+				value_sets[i] = decodeValues( values_l.get(i), contact.getClockSkew());
+			}
 		}
 
 		DHTTransportStoreReply store_reply = request_handler.storeRequest(contact, keys, value_sets);
@@ -891,7 +940,44 @@ DHTTransportAZ
 	
 		// --------------
 	
-	private List<Map<String,Object>>
+	private static boolean
+	supportsCompact(
+		DHTTransportContact		contact )
+	{
+		return( contact.getProtocolVersion() >= DHTUtilsI2P.PROTOCOL_VERSION_COMPACT_AZ );
+	}
+	
+	private void
+	encodeContacts(
+		DHTTransportContact			target,
+		DHTTransportContact[]		contacts,
+		Map<String,Object>			map )
+	{
+		if ( supportsCompact( target )){
+			
+			map.put( "C", encodeContactsCompact( contacts ));
+			
+		}else{
+			
+			map.put( "c", encodeContacts( contacts ));
+		}
+	}
+	
+	private DHTTransportContact[]
+	decodeContacts(
+		Map<String,Object>			map )
+	{
+		byte[]	compact = (byte[])map.get( "C" );
+		
+		if ( compact != null ){
+			
+			return( decodeContactsCompact( compact ));
+		}
+		
+		return( decodeContacts((List<Map<String,Object>>)map.get("c")));
+	}
+	
+	private static List<Map<String,Object>>
 	encodeContacts(
 		DHTTransportContact[]		contacts )
 	{
@@ -924,7 +1010,7 @@ DHTTransportAZ
 		return( contacts.toArray( new DHTTransportContact[contacts.size()]));
 	}
 	
-	private Map<String,Object>
+	private static Map<String,Object>
 	encodeContact(
 		DHTTransportContact		c )
 	{
@@ -979,7 +1065,7 @@ DHTTransportAZ
 		return( new DHTTransportContactAZ( this, base_contact ));
 	}
 	
-	private List<Map<String,Object>>
+	private static List<Map<String,Object>>
 	encodeValues(
 		DHTTransportValue[]		values,
 		long					skew )
@@ -1009,7 +1095,7 @@ DHTTransportAZ
 		return( result );
 	}
 			
-	private Map<String,Object>
+	private static Map<String,Object>
 	encodeValue(
 		DHTTransportValue		value,
 		long					skew )
@@ -1046,7 +1132,18 @@ DHTTransportAZ
 		final int	flags		= ((Number)map.get( "f" )).intValue();
 		final int 	life_hours 	= ((Number)map.get( "l" )).intValue();
 
-		
+		return( createValue( version, created, value_bytes, originator, flags, life_hours ));
+	}
+	
+	private static DHTTransportValue
+	createValue(
+		final int					version,
+		final long					created,
+		final byte[]				value_bytes,
+		final DHTTransportContact	originator,
+		final int					flags,
+		final int					life_hours )
+	{
 		DHTTransportValue value = 
 			new DHTTransportValue()
 			{
@@ -1134,6 +1231,290 @@ DHTTransportAZ
 		return( value );
 	}
 	
+		// compact encodings, contacts are fixed size records and values reference their originator
+		// in a table at the start so that multiple values from the same originator share it
+	
+	private static byte[]
+	encodeContactsCompact(
+		DHTTransportContact[]		contacts )
+	{
+		try{
+			ByteArrayOutputStream	baos = new ByteArrayOutputStream( 8 + contacts.length*COMPACT_CONTACT_SIZE );
+			
+			DataOutputStream	dos = new DataOutputStream( baos );
+			
+			dos.writeByte( COMPACT_FORMAT );
+			
+			DHTUtilsI2P.serialiseVarLong( dos, contacts.length );
+			
+			for ( DHTTransportContact c: contacts ){
+				
+				writeContactCompact( dos, c );
+			}
+			
+			dos.flush();
+			
+			return( baos.toByteArray());
+			
+		}catch( IOException e ){
+			
+			throw( new RuntimeException( e ));
+		}
+	}
+	
+	private DHTTransportContact[]
+	decodeContactsCompact(
+		byte[]		bytes )
+	{
+		List<DHTTransportContact> contacts = new ArrayList<DHTTransportContact>();
+		
+		try{
+			DataInputStream	dis = new DataInputStream( new ByteArrayInputStream( bytes ));
+			
+			checkCompactFormat( dis );
+			
+			int	num = DHTUtilsI2P.deserialiseVarLength( dis, bytes.length/COMPACT_CONTACT_SIZE );
+			
+			for ( int i=0;i<num;i++){
+				
+				try{
+					contacts.add( readContactCompact( dis ));
+					
+				}catch( IOException e ){
+					
+					throw( e );
+					
+				}catch( Throwable e ){
+					
+						// as for map decoding, skip contacts that fail to import
+				}
+			}
+		}catch( IOException e ){
+			
+				// truncated, return what we have
+		}
+		
+		return( contacts.toArray( new DHTTransportContact[contacts.size()]));
+	}
+	
+	private static byte[]
+	encodeValuesCompact(
+		DHTTransportValue[]		values,
+		long					skew )
+	{
+		try{
+			Map<HashWrapper,Integer>	originator_map 	= new HashMap<HashWrapper,Integer>();
+			List<byte[]>				originators		= new ArrayList<byte[]>();
+			
+			int[]	originator_indexes = new int[values.length];
+			
+			for ( int i=0;i<values.length;i++){
+				
+				byte[]	originator = encodeContactCompact( values[i].getOriginator());
+				
+				HashWrapper	key = new HashWrapper( originator );
+				
+				Integer	index = originator_map.get( key );
+				
+				if ( index == null ){
+					
+					index = originators.size();
+					
+					originator_map.put( key, index );
+					
+					originators.add( originator );
+				}
+				
+				originator_indexes[i] = index;
+			}
+			
+			ByteArrayOutputStream	baos = new ByteArrayOutputStream( 256 );
+			
+			DataOutputStream	dos = new DataOutputStream( baos );
+			
+			dos.writeByte( COMPACT_FORMAT );
+			
+			DHTUtilsI2P.serialiseVarLong( dos, originators.size());
+			
+			for ( byte[] originator: originators ){
+				
+				dos.write( originator );
+			}
+			
+			DHTUtilsI2P.serialiseVarLong( dos, values.length );
+			
+			if ( values.length > 0 ){
+				
+					// creation times are sent relative to the first one
+				
+				long	base_time = values[0].getCreationTime() + skew;
+				
+				dos.writeLong( base_time );
+				
+				for ( int i=0;i<values.length;i++){
+					
+					DHTTransportValue	value = values[i];
+					
+					byte[]	value_bytes = value.getValue();
+					
+					DHTUtilsI2P.serialiseSignedVarLong( dos, value.getVersion());
+					DHTUtilsI2P.serialiseSignedVarLong( dos, value.getCreationTime() + skew - base_time );
+					DHTUtilsI2P.serialiseVarLong( dos, value.getFlags()&0xffffffffL );
+					DHTUtilsI2P.serialiseVarLong( dos, value.getLifeTimeHours()&0xffffffffL );
+					DHTUtilsI2P.serialiseVarLong( dos, originator_indexes[i] );
+					DHTUtilsI2P.serialiseVarLong( dos, value_bytes.length );
+					
+					dos.write( value_bytes );
+				}
+			}
+			
+			dos.flush();
+			
+			return( baos.toByteArray());
+			
+		}catch( IOException e ){
+			
+			throw( new RuntimeException( e ));
+		}
+	}
+	
+	private DHTTransportValue[]
+	decodeValuesCompact(
+		byte[]		bytes,
+		long		skew )
+	{
+		try{
+			DataInputStream	dis = new DataInputStream( new ByteArrayInputStream( bytes ));
+			
+			checkCompactFormat( dis );
+			
+			int	num_originators = DHTUtilsI2P.deserialiseVarLength( dis, bytes.length/COMPACT_CONTACT_SIZE );
+			
+			DHTTransportContact[]	originators = new DHTTransportContact[num_originators];
+			
+			for ( int i=0;i<num_originators;i++){
+				
+				originators[i] = readContactCompact( dis );
+			}
+			
+			int	num_values = DHTUtilsI2P.deserialiseVarLength( dis, bytes.length );
+			
+			DHTTransportValue[]	result = new DHTTransportValue[num_values];
+			
+			if ( num_values > 0 ){
+				
+				long	base_time = dis.readLong();
+				
+				for ( int i=0;i<num_values;i++){
+					
+					int		version		= (int)DHTUtilsI2P.deserialiseSignedVarLong( dis );
+					long	created		= base_time + DHTUtilsI2P.deserialiseSignedVarLong( dis ) + skew;
+					int		flags		= (int)DHTUtilsI2P.deserialiseVarLong( dis );
+					int		life_hours	= (int)DHTUtilsI2P.deserialiseVarLong( dis );
+					int		originator	= DHTUtilsI2P.deserialiseVarLength( dis, num_originators-1 );
+					int		len			= DHTUtilsI2P.deserialiseVarLength( dis, MAX_DATA_SIZE );
+					
+					byte[]	value_bytes = new byte[len];
+					
+					dis.readFully( value_bytes );
+					
+					result[i] = createValue( version, created, value_bytes, originators[originator], flags, life_hours );
+				}
+			}
+			
+			return( result );
+			
+		}catch( IOException e ){
+			
+			throw( new RuntimeException( e ));
+		}
+	}
+	
+	private void
+	checkCompactFormat(
+		DataInputStream		dis )
+	
+		throws IOException
+	{
+		int	format = dis.readByte()&0xff;
+		
+		if ( format != COMPACT_FORMAT ){
+			
+			throw( new IOException( "Unsupported compact format: " + format ));
+		}
+	}
+	
+	private static byte[]
+	encodeContactCompact(
+		DHTTransportContact		c )
+	
+		throws IOException
+	{
+		ByteArrayOutputStream	baos = new ByteArrayOutputStream( COMPACT_CONTACT_SIZE );
+		
+		DataOutputStream	dos = new DataOutputStream( baos );
+		
+		writeContactCompact( dos, c );
+		
+		dos.flush();
+		
+		return( baos.toByteArray());
+	}
+	
+	private static void
+	writeContactCompact(
+		DataOutputStream		dos,
+		DHTTransportContact		c )
+	
+		throws IOException
+	{
+		if ( c instanceof DHTTransportContactAZ ){
+			
+			NodeInfo node_info = ((DHTTransportContactAZ)c).getBasis().getNode();
+			
+			dos.writeByte( c.getProtocolVersion());
+			dos.write( node_info.getHash().getData());
+			dos.writeShort( node_info.getPort());
+			dos.write( node_info.getNID().getData());
+			
+		}else{
+			
+				// anonymous contact, same as encodeContact
+			
+			int		p	= 1;
+			byte[] 	n	= new byte[20];
+	       
+	        n[4] ^= (byte) (p >> 8);
+	        n[5] ^= (byte) p;
+	        
+			dos.writeByte( 0 );
+			dos.write( new byte[32] );
+			dos.writeShort( p );
+			dos.write( n );
+		}
+	}
+	
+	private DHTTransportContact
+	readContactCompact(
+		DataInputStream		dis )
+	
+		throws IOException
+	{
+		int		ver		= dis.readByte()&0xff;
+		byte[]	hash	= new byte[32];
+		
+		dis.readFully( hash );
+		
+		int		port	= dis.readShort()&0xffff;
+		byte[]	id		= new byte[20];
+		
+		dis.readFully( id );
+		
+		DHTTransportContactI2P base_contact = base_transport.importContact( hash, port, id, ver );
+		
+		return( new DHTTransportContactAZ( this, base_contact ));
+	}
+	
 		// --------------
 	
 	private void
@@ -1333,7 +1714,7 @@ DHTTransportAZ
 	{
 			// NID is encoded into the address - <nid>.<dest>
 		
-		byte version = DHTUtilsI2P.PROTOCOL_VERSION;
+		byte version = DHTUtilsI2P.PROTOCOL_VERSION_ASSUMED;
 		
 		String host_name = address.getHostName();
 		
@@ -1522,6 +1903,84 @@ DHTTransportAZ
 		System.out.println( str );
 	}
 	
+		/**
+		 * Prints the encoded size of contacts and values in map and compact form for various counts, and the
+		 * time to encode each. Anonymous contacts are used, their records are the same size as real ones
+		 * apart from the port digits in the map form. All values share one originator; each further distinct
+		 * originator adds a COMPACT_CONTACT_SIZE record to the compact form and nothing to the map form.
+		 */
+	
+	public static void
+	main(
+		String[]		args )
+	{
+		try{
+			int	iterations	= args.length<1?20000:Integer.parseInt( args[0] );
+			int	value_size	= args.length<2?32:Integer.parseInt( args[1] );
+			
+			for ( int num: new int[]{ 1, 8, 20, 50 }){
+				
+				DHTTransportContact[]	contacts 	= new DHTTransportContact[num];
+				DHTTransportValue[]		values		= new DHTTransportValue[num];
+				
+				long	now = System.currentTimeMillis();
+				
+				for ( int i=0;i<num;i++){
+					
+					values[i] = createValue( 1, now - i*60*1000L, new byte[value_size], null, DHT.FLAG_DOWNLOADING, 24 );
+				}
+				
+				Map<String,Object>	contacts_map		= Collections.singletonMap( "c", (Object)encodeContacts( contacts ));
+				Map<String,Object>	contacts_compact	= Collections.singletonMap( "C", (Object)encodeContactsCompact( contacts ));
+				Map<String,Object>	values_map			= Collections.singletonMap( "v", (Object)encodeValues( values, 0 ));
+				Map<String,Object>	values_compact		= Collections.singletonMap( "V", (Object)encodeValuesCompact( values, 0 ));
+				
+				long[]	times = new long[4];
+				
+				for ( int pass=0;pass<2;pass++){
+					
+					for ( int which=0;which<4;which++){
+						
+						long	start = System.nanoTime();
+						
+						for ( int i=0;i<iterations;i++){
+							
+							switch( which ){
+								case 0:{
+									BEncoder.encode( Collections.singletonMap( "c", (Object)encodeContacts( contacts )));
+									break;
+								}
+								case 1:{
+									BEncoder.encode( Collections.singletonMap( "C", (Object)encodeContactsCompact( contacts )));
+									break;
+								}
+								case 2:{
+									BEncoder.encode( Collections.singletonMap( "v", (Object)encodeValues( values, 0 )));
+									break;
+								}
+								default:{
+									BEncoder.encode( Collections.singletonMap( "V", (Object)encodeValuesCompact( values, 0 )));
+									break;
+								}
+							}
+						}
+						
+						times[which] = ( System.nanoTime() - start )/iterations;
+					}
+				}
+				
+				System.out.println( 
+					num + ": contacts map=" + BEncoder.encode( contacts_map ).length + "B/" + times[0] + "ns" +
+					", compact=" + BEncoder.encode( contacts_compact ).length + "B/" + times[1] + "ns" +
+					"; values map=" + BEncoder.encode( values_map ).length + "B/" + times[2] + "ns" +
+					", compact=" + BEncoder.encode( values_compact ).length + "B/" + times[3] + "ns" );
+			}
+		}catch( Throwable e ){
+			
+			e.printStackTrace();
+		}
+	}
+	
 	private abstract class
 	AZReplyHandlerAdapter
 		implements DHTTransportI2P.AZReplyHandler
@@ -29,12 +29,12 @@ import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
 
-import net.i2p.data.Base32;
 
 import com.biglybt.core.util.ByteFormatter;
 import com.biglybt.core.util.Debug;
 import com.biglybt.core.util.SystemTime;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
+import org.parg.azureus.plugins.networks.i2p.util.I2PHelperB32Cache;
 
 import com.biglybt.core.dht.netcoords.DHTNetworkPosition;
 import com.biglybt.core.dht.transport.DHTTransport;
@@ -58,7 +58,7 @@ DHTTransportContactI2P
 	private long						skew;
 	private byte						generic_flags;
 	
-	private InetSocketAddress	address;
+	private volatile InetSocketAddress	address;		// created on demand as many contacts are discarded unused
 	
 	private byte[]				id;
 	
@@ -82,10 +82,6 @@ DHTTransportContactI2P
 		skew			= _skew;
 		generic_flags	= _generic_flags;
 		
-		String 	host = Base32.encode( node.getHash().getData())  + ".b32.i2p";
-		
-		address = InetSocketAddress.createUnresolved( host, node.getPort());
-
 		id		= node.getNID().getData();
 	}
 	
@@ -232,11 +228,28 @@ DHTTransportContactI2P
 		return( random_id );
 	}
 	
+	private InetSocketAddress
+	getAddressSupport()
+	{
+		InetSocketAddress	result = address;
+		
+		if ( result == null ){
+			
+				// benign race, worst case it is created more than once
+			
+			String 	host = I2PHelperB32Cache.getAddress( node.getHash());
+			
+			result = address = InetSocketAddress.createUnresolved( host, node.getPort());
+		}
+		
+		return( result );
+	}
+	
 	@Override
 	public String
 	getName()
 	{
-		return( address.toString());
+		return( getAddressSupport().toString());
 	}
 	
 	@Override
@@ -250,21 +263,21 @@ DHTTransportContactI2P
 	public InetSocketAddress
 	getAddress()
 	{
-		return( address );
+		return( getAddressSupport());
 	}
 	
 	@Override
 	public InetSocketAddress
 	getTransportAddress()
 	{
-		return( address );
+		return( getAddressSupport());
 	}
 	
 	@Override
 	public InetSocketAddress
 	getExternalAddress()
 	{
-		return( address );
+		return( getAddressSupport());
 	}
 	
 	@Override
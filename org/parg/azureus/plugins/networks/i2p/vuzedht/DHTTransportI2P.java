@@ -134,6 +134,9 @@ DHTTransportI2P
 	getFullStats(
 		DHTTransportContactI2P	contact );
 	
+	public String
+	getExtendedStats();
+	
 	public DHTTransportValue
 	createValue(
 		DHTTransportContact		originator,
@@ -157,6 +160,12 @@ DHTTransportI2P
 		NodeInfo		node,
 		boolean			is_bootstrap );
 	
+	public DHTTransportContactI2P
+	importContact(
+		NodeInfo		node,
+		int				version,
+		boolean			is_bootstrap );
+	
 	public DHTTransportContactI2P
 	importContact(
 		byte[]		hash,
@@ -0,0 +1,1727 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.vuzedht;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
+
+import com.biglybt.core.util.BDecoder;
+import com.biglybt.core.util.BEncoder;
+import com.biglybt.util.MapUtils;
+
+/**
+ * Codec for the KRPC messages (ping, find_node, get_peers, announce_peer and azrequest). Messages are
+ * flat {@link Message} objects with a field per key. Encoding writes the fields in key order straight into
+ * a per-thread buffer and decoding is a single pass over the payload that fills in the fields, so no maps
+ * are built other than for the opaque azrequest payload and error lists.
+ * A payload with a key this doesn't know, or with values of an unexpected type, is decoded by BDecoder
+ * and the map converted, messages that can't be written directly go through BEncoder.
+ */
+
+public class
+DHTTransportI2PCodec
+{
+	public static final String	TYPE_QUERY		= "q";
+	public static final String	TYPE_REPLY		= "r";
+	public static final String	TYPE_ERROR		= "e";
+
+	public static final String	METHOD_PING				= "ping";
+	public static final String	METHOD_FIND_NODE		= "find_node";
+	public static final String	METHOD_GET_PEERS		= "get_peers";
+	public static final String	METHOD_ANNOUNCE_PEER	= "announce_peer";
+	public static final String	METHOD_AZ_REQUEST		= "azrequest";
+
+	private static final String[]	TYPES	= { TYPE_QUERY, TYPE_REPLY, TYPE_ERROR };
+	private static final String[]	METHODS	= { METHOD_PING, METHOD_FIND_NODE, METHOD_GET_PEERS, METHOD_ANNOUNCE_PEER, METHOD_AZ_REQUEST };
+
+		// top level keys, in bencoding order
+
+	private static final int	TK_A	= 0;
+	private static final int	TK_E	= 1;
+	private static final int	TK_Q	= 2;
+	private static final int	TK_R	= 3;
+	private static final int	TK_T	= 4;
+	private static final int	TK_Y	= 5;
+	private static final int	TK_Z	= 6;
+
+	private static final String[]	TOP_KEYS = { "a", "e", "q", "r", "t", "y", "z" };
+
+		// query args/reply keys, in bencoding order
+
+	private static final int	BK_V			= 0;
+	private static final int	BK_FLAGS		= 1;
+	private static final int	BK_ID			= 2;
+	private static final int	BK_INFO_HASH	= 3;
+	private static final int	BK_NODES		= 4;
+	private static final int	BK_NOSEED		= 5;
+	private static final int	BK_P			= 6;
+	private static final int	BK_PORT			= 7;
+	private static final int	BK_SEED			= 8;
+	private static final int	BK_TARGET		= 9;
+	private static final int	BK_TOKEN		= 10;
+	private static final int	BK_VALUES		= 11;
+
+	private static final String[]	BODY_KEYS = { "_v", "flags", "id", "info_hash", "nodes", "noseed", "p", "port", "seed", "target", "token", "values" };
+
+	private static final byte[][]	TOP_KEY_BYTES	= getKeyBytes( TOP_KEYS );
+	private static final byte[][]	BODY_KEY_BYTES	= getKeyBytes( BODY_KEYS );
+
+	private static final int	MAX_DEPTH			= 32;
+	private static final int	MAX_RETAINED_BUFFER	= 64*1024;
+
+	private static final ThreadLocal<Encoder>	encoders = ThreadLocal.withInitial( Encoder::new );
+
+	private static final AtomicLong	encodes				= new AtomicLong();
+	private static final AtomicLong	encode_fallbacks	= new AtomicLong();
+	private static final AtomicLong	decodes				= new AtomicLong();
+	private static final AtomicLong	decode_fallbacks	= new AtomicLong();
+
+	private static byte[][]
+	getKeyBytes(
+		String[]	keys )
+	{
+		byte[][] result = new byte[keys.length][];
+
+		for ( int i=0;i<keys.length;i++){
+
+			result[i] = keys[i].getBytes( StandardCharsets.ISO_8859_1 );
+		}
+
+		return( result );
+	}
+
+	public static byte[]
+	encode(
+		Message		message )
+
+		throws IOException
+	{
+		encodes.incrementAndGet();
+
+		Encoder	encoder = encoders.get();
+
+		byte[] result = encoder.encode( message );
+
+		if ( result == null ){
+
+			encode_fallbacks.incrementAndGet();
+
+			result = BEncoder.encode( message.toMap());
+		}
+
+		return( result );
+	}
+
+	public static Message
+	decode(
+		byte[]		payload )
+
+		throws IOException
+	{
+		decodes.incrementAndGet();
+
+		Message message = new Decoder( payload ).decode();
+
+		if ( message == null ){
+
+			decode_fallbacks.incrementAndGet();
+
+			message = Message.fromMap( BDecoder.decode( payload ));
+		}
+
+		return( message );
+	}
+
+	public static String
+	getString()
+	{
+		return( "enc=" + encodes.get() + "/" + encode_fallbacks.get() + ",dec=" + decodes.get() + "/" + decode_fallbacks.get());
+	}
+
+	private static String
+	getKnownString(
+		byte[]		bytes,
+		int			offset,
+		int			len,
+		String[]	known )
+	{
+		for ( String k: known ){
+
+			if ( matches( k, bytes, offset, len )){
+
+				return( k );
+			}
+		}
+
+		return( new String( bytes, offset, len, StandardCharsets.UTF_8 ));
+	}
+
+	private static boolean
+	matches(
+		String		str,
+		byte[]		bytes,
+		int			offset,
+		int			len )
+	{
+		if ( str.length() != len ){
+
+			return( false );
+		}
+
+		for ( int i=0;i<len;i++){
+
+			if ( str.charAt( i ) != bytes[offset+i] ){
+
+				return( false );
+			}
+		}
+
+		return( true );
+	}
+
+	private static int
+	decodeVersion(
+		byte[]		bytes )
+	{
+			// "AZ" + decimal version
+
+		if ( bytes == null || bytes.length < 3 || bytes.length > 11 || bytes[0] != 'A' || bytes[1] != 'Z' ){
+
+			return( 0 );
+		}
+
+		int	version = 0;
+
+		for ( int i=2;i<bytes.length;i++){
+
+			int	digit = bytes[i] - '0';
+
+			if ( digit < 0 || digit > 9 ){
+
+				return( 0 );
+			}
+
+			version = version*10 + digit;
+		}
+
+		return( version );
+	}
+
+	public static class
+	Message
+	{
+		private String				type;
+		private String				method;
+		private byte[]				id;
+		private boolean				override_sleeping;
+		private List<Object>		error;
+
+			// query args or reply
+
+		private byte[]				v;
+		private int					version;
+		private byte[]				nid;
+		private byte[]				target;
+		private byte[]				info_hash;
+		private byte[]				token;
+		private byte[]				nodes;
+		private byte[]				flags;
+		private List<byte[]>		values;
+		private long				port		= -1;
+		private long				noseed		= -1;
+		private long				seed		= -1;
+		private Map<String,Object>	payload;
+
+		public static Message
+		createQuery(
+			String		method )
+		{
+			Message message = new Message();
+
+			message.type	= TYPE_QUERY;
+			message.method	= method;
+
+			return( message );
+		}
+
+		public static Message
+		createReply()
+		{
+			Message message = new Message();
+
+			message.type	= TYPE_REPLY;
+
+			return( message );
+		}
+
+		private
+		Message()
+		{
+		}
+
+		/**
+		 * @return the transaction id
+		 */
+
+		public byte[]
+		getID()
+		{
+			return( id );
+		}
+
+		public void
+		setID(
+			byte[]		_id )
+		{
+			id	= _id;
+		}
+
+		public String
+		getType()
+		{
+			return( type );
+		}
+
+		/**
+		 * @return the method for queries, otherwise null
+		 */
+
+		public String
+		getMethod()
+		{
+			return( method );
+		}
+
+		public boolean
+		isOverrideSleeping()
+		{
+			return( override_sleeping );
+		}
+
+		public void
+		setOverrideSleeping()
+		{
+			override_sleeping	= true;
+		}
+
+		public List<Object>
+		getError()
+		{
+			return( error );
+		}
+
+		/**
+		 * @return the AZ version of the sender, 0 if not an AZ client
+		 */
+
+		public int
+		getVersion()
+		{
+			return( version );
+		}
+
+		public void
+		setVersion(
+			String		str )
+		{
+			v		= str.getBytes( StandardCharsets.ISO_8859_1 );
+			version	= decodeVersion( v );
+		}
+
+		public byte[]
+		getNID()
+		{
+			return( nid );
+		}
+
+		public void
+		setNID(
+			byte[]		_nid )
+		{
+			nid	= _nid;
+		}
+
+		public byte[]
+		getTarget()
+		{
+			return( target );
+		}
+
+		public void
+		setTarget(
+			byte[]		_target )
+		{
+			target	= _target;
+		}
+
+		public byte[]
+		getInfoHash()
+		{
+			return( info_hash );
+		}
+
+		public void
+		setInfoHash(
+			byte[]		_info_hash )
+		{
+			info_hash	= _info_hash;
+		}
+
+		public byte[]
+		getToken()
+		{
+			return( token );
+		}
+
+		public void
+		setToken(
+			byte[]		_token )
+		{
+			token	= _token;
+		}
+
+		public byte[]
+		getNodes()
+		{
+			return( nodes );
+		}
+
+		public void
+		setNodes(
+			byte[]		_nodes )
+		{
+			nodes	= _nodes;
+		}
+
+		public byte[]
+		getFlags()
+		{
+			return( flags );
+		}
+
+		public void
+		setFlags(
+			byte[]		_flags )
+		{
+			flags	= _flags;
+		}
+
+		public List<byte[]>
+		getValues()
+		{
+			return( values );
+		}
+
+		public void
+		setValues(
+			List<byte[]>	_values )
+		{
+			values	= _values;
+		}
+
+		public void
+		setPort(
+			int		_port )
+		{
+			port	= _port;
+		}
+
+		public boolean
+		isNoSeed()
+		{
+			return( noseed > 0 );
+		}
+
+		public void
+		setNoSeed(
+			boolean		b )
+		{
+			noseed	= b?1:0;
+		}
+
+		public boolean
+		isSeed()
+		{
+			return( seed > 0 );
+		}
+
+		public void
+		setSeed(
+			boolean		b )
+		{
+			seed	= b?1:0;
+		}
+
+		/**
+		 * @return the azrequest payload
+		 */
+
+		public Map<String,Object>
+		getPayload()
+		{
+			return( payload );
+		}
+
+		public void
+		setPayload(
+			Map<String,Object>		_payload )
+		{
+			payload	= _payload;
+		}
+
+		/**
+		 * Map form as used by BEncoder/BDecoder
+		 */
+
+		private Map<String,Object>
+		toMap()
+		{
+			Map<String,Object>	map = new HashMap<>();
+
+			map.put( "y", type );
+
+			if ( method != null ){
+
+				map.put( "q", method );
+			}
+
+			if ( id != null ){
+
+				map.put( "t", id );
+			}
+
+			if ( override_sleeping ){
+
+				map.put( "z", 0L );
+			}
+
+			if ( error != null ){
+
+				map.put( "e", error );
+			}
+
+			if ( type.equals( TYPE_QUERY ) || type.equals( TYPE_REPLY )){
+
+				Map<String,Object>	body = new HashMap<>();
+
+				map.put( type.equals( TYPE_QUERY )?"a":"r", body );
+
+				if ( v != null ){
+
+					body.put( "_v", v );
+				}
+
+				if ( nid != null ){
+
+					body.put( "id", nid );
+				}
+
+				if ( target != null ){
+
+					body.put( "target", target );
+				}
+
+				if ( info_hash != null ){
+
+					body.put( "info_hash", info_hash );
+				}
+
+				if ( token != null ){
+
+					body.put( "token", token );
+				}
+
+				if ( nodes != null ){
+
+					body.put( "nodes", nodes );
+				}
+
+				if ( flags != null ){
+
+					body.put( "flags", flags );
+				}
+
+				if ( values != null ){
+
+					body.put( "values", values );
+				}
+
+				if ( port >= 0 ){
+
+					body.put( "port", port );
+				}
+
+				if ( noseed >= 0 ){
+
+					body.put( "noseed", noseed );
+				}
+
+				if ( seed >= 0 ){
+
+					body.put( "seed", seed );
+				}
+
+				if ( payload != null ){
+
+					body.put( "p", payload );
+				}
+			}
+
+			return( map );
+		}
+
+		/**
+		 * Picks the known keys out of a BDecoder map, anything else is ignored
+		 */
+
+		private static Message
+		fromMap(
+			Map<String,Object>		map )
+		{
+			Message	message = new Message();
+
+			message.id		= (byte[])map.get( "t" );
+			message.type	= MapUtils.getMapString( map, "y", "" );
+
+			message.override_sleeping = map.containsKey( "z" );
+
+			Map<String,Object>	body;
+
+			if ( message.type.equals( TYPE_QUERY )){
+
+				message.method	= MapUtils.getMapString( map, "q", "" );
+
+				body = (Map<String,Object>)map.get( "a" );
+
+			}else if ( message.type.equals( TYPE_REPLY )){
+
+				body = (Map<String,Object>)map.get( "r" );
+
+			}else{
+
+				message.error = (List<Object>)map.get( "e" );
+
+				body = null;
+			}
+
+			if ( body != null ){
+
+				Object	obj = body.get( "_v" );
+
+				if ( obj instanceof byte[] ){
+
+					message.v = (byte[])obj;
+
+				}else if ( obj instanceof String ){
+
+					message.v = ((String)obj).getBytes( StandardCharsets.UTF_8 );
+				}
+
+				message.version		= decodeVersion( message.v );
+				message.nid			= (byte[])body.get( "id" );
+				message.target		= (byte[])body.get( "target" );
+				message.info_hash	= (byte[])body.get( "info_hash" );
+				message.token		= (byte[])body.get( "token" );
+				message.nodes		= (byte[])body.get( "nodes" );
+				message.flags		= (byte[])body.get( "flags" );
+				message.values		= (List<byte[]>)body.get( "values" );
+				message.payload		= (Map<String,Object>)body.get( "p" );
+
+				message.port	= getLong( body, "port" );
+				message.noseed	= getLong( body, "noseed" );
+				message.seed	= getLong( body, "seed" );
+			}
+
+			return( message );
+		}
+
+		private static long
+		getLong(
+			Map<String,Object>		map,
+			String					key )
+		{
+			Number	n = (Number)map.get( key );
+
+			return( n==null?-1:n.longValue());
+		}
+
+		public String
+		getString()
+		{
+			return( String.valueOf( toMap()));
+		}
+	}
+
+	private static class
+	Encoder
+	{
+		private byte[]	buffer	= new byte[1024];
+		private int		pos;
+
+		/**
+		 * @return null if the message contains something not handled here
+		 */
+
+		private byte[]
+		encode(
+			Message		message )
+		{
+			pos	= 0;
+
+			try{
+				boolean	query	= message.type.equals( TYPE_QUERY );
+				boolean	reply	= message.type.equals( TYPE_REPLY );
+
+				write((byte)'d' );
+
+				if ( query ){
+
+					writeKey( TOP_KEY_BYTES[TK_A] );
+
+					if ( !writeBody( message )){
+
+						return( null );
+					}
+				}
+
+				if ( message.error != null ){
+
+					writeKey( TOP_KEY_BYTES[TK_E] );
+
+					if ( !writeObject( message.error, 0 )){
+
+						return( null );
+					}
+				}
+
+				if ( message.method != null ){
+
+					writeKey( TOP_KEY_BYTES[TK_Q] );
+
+					writeString( message.method );
+				}
+
+				if ( reply ){
+
+					writeKey( TOP_KEY_BYTES[TK_R] );
+
+					if ( !writeBody( message )){
+
+						return( null );
+					}
+				}
+
+				if ( message.id != null ){
+
+					writeKey( TOP_KEY_BYTES[TK_T] );
+
+					writeBytes( message.id );
+				}
+
+				writeKey( TOP_KEY_BYTES[TK_Y] );
+
+				writeString( message.type );
+
+				if ( message.override_sleeping ){
+
+					writeKey( TOP_KEY_BYTES[TK_Z] );
+
+					writeInt( 0 );
+				}
+
+				write((byte)'e' );
+
+				return( Arrays.copyOf( buffer, pos ));
+
+			}finally{
+
+				if ( buffer.length > MAX_RETAINED_BUFFER ){
+
+					buffer = new byte[1024];
+				}
+			}
+		}
+
+		private boolean
+		writeBody(
+			Message		message )
+		{
+			write((byte)'d' );
+
+			writeBytes( BODY_KEY_BYTES[BK_V], message.v );
+			writeBytes( BODY_KEY_BYTES[BK_FLAGS], message.flags );
+			writeBytes( BODY_KEY_BYTES[BK_ID], message.nid );
+			writeBytes( BODY_KEY_BYTES[BK_INFO_HASH], message.info_hash );
+			writeBytes( BODY_KEY_BYTES[BK_NODES], message.nodes );
+			writeInt( BODY_KEY_BYTES[BK_NOSEED], message.noseed );
+
+			if ( message.payload != null ){
+
+				writeKey( BODY_KEY_BYTES[BK_P] );
+
+				if ( !writeObject( message.payload, 1 )){
+
+					return( false );
+				}
+			}
+
+			writeInt( BODY_KEY_BYTES[BK_PORT], message.port );
+			writeInt( BODY_KEY_BYTES[BK_SEED], message.seed );
+			writeBytes( BODY_KEY_BYTES[BK_TARGET], message.target );
+			writeBytes( BODY_KEY_BYTES[BK_TOKEN], message.token );
+
+			if ( message.values != null ){
+
+				writeKey( BODY_KEY_BYTES[BK_VALUES] );
+
+				write((byte)'l' );
+
+				for ( byte[] value: message.values ){
+
+					writeBytes( value );
+				}
+
+				write((byte)'e' );
+			}
+
+			write((byte)'e' );
+
+			return( true );
+		}
+
+		private void
+		ensure(
+			int		len )
+		{
+			if ( pos + len > buffer.length ){
+
+				buffer = Arrays.copyOf( buffer, Math.max( buffer.length*2, pos + len ));
+			}
+		}
+
+		private void
+		write(
+			byte	b )
+		{
+			ensure( 1 );
+
+			buffer[pos++] = b;
+		}
+
+		private void
+		writeKey(
+			byte[]		key )
+		{
+			writeBytes( key );
+		}
+
+		private void
+		writeBytes(
+			byte[]		key,
+			byte[]		value )
+		{
+			if ( value != null ){
+
+				writeBytes( key );
+
+				writeBytes( value );
+			}
+		}
+
+		private void
+		writeInt(
+			byte[]		key,
+			long		value )
+		{
+			if ( value >= 0 ){
+
+				writeBytes( key );
+
+				writeInt( value );
+			}
+		}
+
+		private void
+		writeInt(
+			long		value )
+		{
+			write((byte)'i' );
+
+			writeLong( value );
+
+			write((byte)'e' );
+		}
+
+			// generic form for the azrequest payload and error lists
+
+		private boolean
+		writeObject(
+			Object		obj,
+			int			depth )
+		{
+			if ( depth > MAX_DEPTH ){
+
+				return( false );
+			}
+
+			if ( obj instanceof byte[] ){
+
+				writeBytes((byte[])obj );
+
+			}else if ( obj instanceof String ){
+
+				writeString((String)obj );
+
+			}else if ( obj instanceof Long || obj instanceof Integer || obj instanceof Short || obj instanceof Byte ){
+
+				long	l = ((Number)obj).longValue();
+
+				if ( l == Long.MIN_VALUE ){
+
+					return( false );
+				}
+
+				writeInt( l );
+
+			}else if ( obj instanceof Map ){
+
+				Map<Object,Object>	map = (Map<Object,Object>)obj;
+
+				String[]	keys = new String[map.size()];
+
+				int	num = 0;
+
+				for ( Object key: map.keySet()){
+
+					if ( !( key instanceof String )){
+
+						return( false );
+					}
+
+					String	str = (String)key;
+
+					for ( int i=0;i<str.length();i++){
+
+						if ( str.charAt( i ) >= 0x80 ){
+
+							return( false );
+						}
+					}
+
+					keys[num++] = str;
+				}
+
+					// ASCII so String order is the same as the byte order bencoding requires
+
+				Arrays.sort( keys );
+
+				write((byte)'d' );
+
+				for ( String key: keys ){
+
+					writeString( key );
+
+					if ( !writeObject( map.get( key ), depth+1 )){
+
+						return( false );
+					}
+				}
+
+				write((byte)'e' );
+
+			}else if ( obj instanceof List ){
+
+				write((byte)'l' );
+
+				for ( Object o: (List<Object>)obj ){
+
+					if ( !writeObject( o, depth+1 )){
+
+						return( false );
+					}
+				}
+
+				write((byte)'e' );
+
+			}else{
+
+				return( false );
+			}
+
+			return( true );
+		}
+
+		private void
+		writeBytes(
+			byte[]		bytes )
+		{
+			writeLong( bytes.length );
+
+			write((byte)':' );
+
+			ensure( bytes.length );
+
+			System.arraycopy( bytes, 0, buffer, pos, bytes.length );
+
+			pos += bytes.length;
+		}
+
+		private void
+		writeString(
+			String		str )
+		{
+			int	len = str.length();
+
+			for ( int i=0;i<len;i++){
+
+				if ( str.charAt( i ) >= 0x80 ){
+
+					writeBytes( str.getBytes( StandardCharsets.UTF_8 ));
+
+					return;
+				}
+			}
+
+			writeLong( len );
+
+			write((byte)':' );
+
+			ensure( len );
+
+			for ( int i=0;i<len;i++){
+
+				buffer[pos++] = (byte)str.charAt( i );
+			}
+		}
+
+		private void
+		writeLong(
+			long		l )
+		{
+			if ( l < 0 ){
+
+				write((byte)'-' );
+
+				l = -l;
+			}
+
+			int	digits = 1;
+
+			for ( long x = l; x >= 10; x /= 10 ){
+
+				digits++;
+			}
+
+			ensure( digits );
+
+			for ( int i=digits-1;i>=0;i--){
+
+				buffer[pos+i] = (byte)( '0' + ( l % 10 ));
+
+				l /= 10;
+			}
+
+			pos += digits;
+		}
+	}
+
+	private static class
+	Decoder
+	{
+		private final byte[]	buffer;
+		private int				pos;
+
+		private
+		Decoder(
+			byte[]		_buffer )
+		{
+			buffer	= _buffer;
+		}
+
+		/**
+		 * @return null if the payload needs to go through the generic decoder
+		 */
+
+		private Message
+		decode()
+		{
+			try{
+				if ( buffer.length == 0 || buffer[0] != 'd' ){
+
+					return( null );
+				}
+
+				pos = 1;
+
+				Message	message = new Message();
+
+				int	body_key = -1;
+
+				while( buffer[pos] != 'e' ){
+
+					int	key = readKey( TOP_KEY_BYTES );
+
+					switch( key ){
+
+						case TK_A:
+						case TK_R:{
+
+							if ( body_key != -1 ){
+
+								return( null );
+							}
+
+							body_key = key;
+
+							readBody( message );
+
+							break;
+						}
+						case TK_E:{
+
+							Object	obj = readObject( 0 );
+
+							if ( !( obj instanceof List )){
+
+								return( null );
+							}
+
+							message.error = (List<Object>)obj;
+
+							break;
+						}
+						case TK_Q:{
+
+							int	len = readLength();
+
+							message.method = getKnownString( buffer, pos, len, METHODS );
+
+							pos += len;
+
+							break;
+						}
+						case TK_T:{
+
+							message.id = readBytes();
+
+							break;
+						}
+						case TK_Y:{
+
+							int	len = readLength();
+
+							message.type = getKnownString( buffer, pos, len, TYPES );
+
+							pos += len;
+
+							break;
+						}
+						case TK_Z:{
+
+							readInt();
+
+							message.override_sleeping = true;
+
+							break;
+						}
+						default:{
+
+							return( null );
+						}
+					}
+				}
+
+				if ( ++pos != buffer.length ){
+
+					return( null );
+				}
+
+				if ( message.type == null ){
+
+					message.type = "";
+				}
+
+				if ( message.type.equals( TYPE_QUERY )){
+
+					if ( message.method == null ){
+
+						message.method = "";
+					}
+
+					if ( body_key != TK_A ){
+
+						return( null );
+					}
+				}else{
+
+						// method only applies to queries, body is the reply for replies, there's none for errors
+
+					message.method = null;
+
+					if ( body_key != ( message.type.equals( TYPE_REPLY )?TK_R:-1 )){
+
+						return( null );
+					}
+				}
+
+				return( message );
+
+			}catch( Throwable e ){
+
+					// unknown keys, unexpected types and bounds errors on truncated input, leave it to BDecoder
+
+				return( null );
+			}
+		}
+
+		private void
+		readBody(
+			Message		message )
+
+			throws IOException
+		{
+			if ( buffer[pos++] != 'd' ){
+
+				throw( new IOException( "dictionary expected" ));
+			}
+
+			while( buffer[pos] != 'e' ){
+
+				int	key = readKey( BODY_KEY_BYTES );
+
+				switch( key ){
+
+					case BK_V:{
+
+						message.v		= readBytes();
+						message.version	= decodeVersion( message.v );
+
+						break;
+					}
+					case BK_FLAGS:{
+
+						message.flags = readBytes();
+
+						break;
+					}
+					case BK_ID:{
+
+						message.nid = readBytes();
+
+						break;
+					}
+					case BK_INFO_HASH:{
+
+						message.info_hash = readBytes();
+
+						break;
+					}
+					case BK_NODES:{
+
+						message.nodes = readBytes();
+
+						break;
+					}
+					case BK_NOSEED:{
+
+						message.noseed = readInt();
+
+						break;
+					}
+					case BK_P:{
+
+						Object	obj = readObject( 1 );
+
+						if ( !( obj instanceof Map )){
+
+							throw( new IOException( "dictionary expected" ));
+						}
+
+						message.payload = (Map<String,Object>)obj;
+
+						break;
+					}
+					case BK_PORT:{
+
+						message.port = readInt();
+
+						break;
+					}
+					case BK_SEED:{
+
+						message.seed = readInt();
+
+						break;
+					}
+					case BK_TARGET:{
+
+						message.target = readBytes();
+
+						break;
+					}
+					case BK_TOKEN:{
+
+						message.token = readBytes();
+
+						break;
+					}
+					case BK_VALUES:{
+
+						if ( buffer[pos++] != 'l' ){
+
+							throw( new IOException( "list expected" ));
+						}
+
+						List<byte[]>	values = new ArrayList<>();
+
+						while( buffer[pos] != 'e' ){
+
+							values.add( readBytes());
+						}
+
+						pos++;
+
+						message.values = values;
+
+						break;
+					}
+					default:{
+
+						throw( new IOException( "unknown key" ));
+					}
+				}
+			}
+
+			pos++;
+		}
+
+		/**
+		 * @return the index of the key
+		 */
+
+		private int
+		readKey(
+			byte[][]	keys )
+
+			throws IOException
+		{
+			int	len = readLength();
+
+			for ( int i=0;i<keys.length;i++){
+
+				byte[]	k = keys[i];
+
+				if ( k.length == len ){
+
+					boolean	match = true;
+
+					for ( int j=0;j<len;j++){
+
+						if ( k[j] != buffer[pos+j] ){
+
+							match = false;
+
+							break;
+						}
+					}
+
+					if ( match ){
+
+						pos += len;
+
+						return( i );
+					}
+				}
+			}
+
+			throw( new IOException( "unknown key" ));
+		}
+
+		private byte[]
+		readBytes()
+
+			throws IOException
+		{
+			int	len = readLength();
+
+			byte[]	bytes = Arrays.copyOfRange( buffer, pos, pos + len );
+
+			pos += len;
+
+			return( bytes );
+		}
+
+		private long
+		readInt()
+
+			throws IOException
+		{
+			if ( buffer[pos++] != 'i' ){
+
+				throw( new IOException( "integer expected" ));
+			}
+
+			boolean	neg = buffer[pos] == '-';
+
+			if ( neg ){
+
+				pos++;
+			}
+
+			long	l = readDigits( 'e' );
+
+			if ( l < 0 ){
+
+				throw( new IOException( "invalid integer" ));
+			}
+
+			return( neg?-l:l );
+		}
+
+			// generic form for the azrequest payload and error lists, same shape as BDecoder's
+
+		private Object
+		readObject(
+			int		depth )
+		{
+			if ( depth > MAX_DEPTH ){
+
+				return( null );
+			}
+
+			byte	b = buffer[pos];
+
+			if ( b == 'd' ){
+
+				pos++;
+
+				Map<String,Object>	map = new HashMap<>();
+
+				while( buffer[pos] != 'e' ){
+
+					String	key = readString();
+
+					if ( key == null ){
+
+						return( null );
+					}
+
+					Object	value = readObject( depth+1 );
+
+					if ( value == null ){
+
+						return( null );
+					}
+
+					map.put( key, value );
+				}
+
+				pos++;
+
+				return( map );
+
+			}else if ( b == 'l' ){
+
+				pos++;
+
+				List<Object>	list = new ArrayList<>();
+
+				while( buffer[pos] != 'e' ){
+
+					Object	value = readObject( depth+1 );
+
+					if ( value == null ){
+
+						return( null );
+					}
+
+					list.add( value );
+				}
+
+				pos++;
+
+				return( list );
+
+			}else if ( b == 'i' ){
+
+				pos++;
+
+				boolean	neg = buffer[pos] == '-';
+
+				if ( neg ){
+
+					pos++;
+				}
+
+				long	l = readDigits( 'e' );
+
+				if ( l < 0 ){
+
+					return( null );
+				}
+
+				return( neg?-l:l );
+
+			}else if ( b >= '0' && b <= '9' ){
+
+				try{
+					return( readBytes());
+
+				}catch( IOException e ){
+
+					return( null );
+				}
+			}else{
+
+				return( null );
+			}
+		}
+
+		private String
+		readString()
+		{
+			long	len = readDigits( ':' );
+
+			if ( len < 0 || len > buffer.length - pos ){
+
+				return( null );
+			}
+
+			for ( int i=0;i<len;i++){
+
+				if (( buffer[pos+i] & 0x80 ) != 0 ){
+
+					return( null );
+				}
+			}
+
+			String	str = new String( buffer, pos, (int)len, StandardCharsets.ISO_8859_1 );
+
+			pos += len;
+
+			return( str );
+		}
+
+		private int
+		readLength()
+
+			throws IOException
+		{
+			long	len = readDigits( ':' );
+
+			if ( len < 0 || len > buffer.length - pos ){
+
+				throw( new IOException( "invalid length" ));
+			}
+
+			return((int)len );
+		}
+
+		/**
+		 * @return -1 if invalid
+		 */
+
+		private long
+		readDigits(
+			char	terminator )
+		{
+			long	result	= 0;
+			int		digits	= 0;
+
+			while( true ){
+
+				byte	b = buffer[pos++];
+
+				if ( b == terminator ){
+
+					return( digits==0?-1:result );
+				}
+
+				if ( b < '0' || b > '9' || ++digits > 18 ){
+
+					return( -1 );
+				}
+
+				result = result*10 + ( b - '0' );
+			}
+		}
+	}
+
+		/**
+		 * Round trips each message shape through this codec and through BEncoder/BDecoder, checks they
+		 * agree and compares the time and allocation per message. Run with the BiglyBT core on the classpath.
+		 */
+
+	public static void
+	main(
+		String[]		args )
+	{
+		try{
+			int	iterations = args.length==0?200000:Integer.parseInt( args[0] );
+
+			byte[]	nid		= new byte[32];
+			byte[]	hash	= new byte[20];
+			byte[]	token	= new byte[8];
+			byte[]	tid		= new byte[8];
+
+			Arrays.fill( nid, (byte)1 );
+			Arrays.fill( hash, (byte)2 );
+			Arrays.fill( token, (byte)3 );
+			Arrays.fill( tid, (byte)4 );
+
+			List<Message>	messages = new ArrayList<>();
+
+			messages.add( Message.createQuery( METHOD_PING ));
+			messages.add( Message.createReply());
+
+			Message find_node = Message.createQuery( METHOD_FIND_NODE );
+
+			find_node.setTarget( hash );
+
+			messages.add( find_node );
+
+			Message find_node_reply = Message.createReply();
+
+			find_node_reply.setNodes( new byte[8*NodeInfo.LENGTH] );
+
+			messages.add( find_node_reply );
+
+			Message get_peers = Message.createQuery( METHOD_GET_PEERS );
+
+			get_peers.setInfoHash( hash );
+			get_peers.setNoSeed( true );
+
+			messages.add( get_peers );
+
+			Message get_peers_reply = Message.createReply();
+
+			List<byte[]>	values = new ArrayList<>();
+
+			for ( int i=0;i<16;i++){
+
+				values.add( new byte[32] );
+			}
+
+			get_peers_reply.setToken( token );
+			get_peers_reply.setValues( values );
+			get_peers_reply.setFlags( new byte[2] );
+
+			messages.add( get_peers_reply );
+
+			Message announce = Message.createQuery( METHOD_ANNOUNCE_PEER );
+
+			announce.setInfoHash( hash );
+			announce.setPort( 6881 );
+			announce.setToken( token );
+			announce.setSeed( false );
+
+			messages.add( announce );
+
+			Message az = Message.createQuery( METHOD_AZ_REQUEST );
+
+			Map<String,Object>	payload = new HashMap<>();
+
+			payload.put( "t", 1L );
+			payload.put( "k", hash );
+
+			az.setPayload( payload );
+			az.setToken( token );
+			az.setOverrideSleeping();
+
+			messages.add( az );
+
+			ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+
+			boolean	alloc = tmx instanceof com.sun.management.ThreadMXBean;
+
+			long	tid_self = Thread.currentThread().getId();
+
+			for ( Message m: messages ){
+
+				m.setID( tid );
+				m.setNID( nid );
+				m.setVersion( "AZ" + DHTUtilsI2P.PROTOCOL_VERSION );
+
+				byte[]	typed	= new Encoder().encode( m );
+				byte[]	generic	= BEncoder.encode( m.toMap());
+
+				if ( !Arrays.equals( typed, generic )){
+
+					throw( new Exception( "encoding mismatch for " + m.getString()));
+				}
+
+				Message	decoded	= new Decoder( typed ).decode();
+
+				if ( decoded == null || !Arrays.equals( new Encoder().encode( decoded ), generic )){
+
+					throw( new Exception( "decoding mismatch for " + m.getString()));
+				}
+
+				String	name = m.getMethod()==null?"reply":m.getMethod();
+
+				long[]	t_res = new long[2];
+				long[]	g_res = new long[2];
+
+				for ( int pass=0;pass<2;pass++){
+
+					for ( int which=0;which<2;which++){
+
+						long[]	res = which==0?t_res:g_res;
+
+						long	a_start = alloc?((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes( tid_self ):0;
+						long	t_start = System.nanoTime();
+
+						for ( int i=0;i<iterations;i++){
+
+							if ( which == 0 ){
+
+								decode( encode( m ));
+
+							}else{
+
+								Message.fromMap( BDecoder.decode( BEncoder.encode( m.toMap())));
+							}
+						}
+
+						res[0] = ( System.nanoTime() - t_start )/iterations;
+						res[1] = alloc?( ((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes( tid_self ) - a_start )/iterations:-1;
+					}
+				}
+
+				System.out.println( name + " (" + m.getType() + "), " + typed.length + " bytes: codec=" + t_res[0] + "ns/" + t_res[1] + "B, bencoder=" + g_res[0] + "ns/" + g_res[1] + "B" );
+			}
+
+			System.out.println( getString());
+
+		}catch( Throwable e ){
+
+			e.printStackTrace();
+		}
+	}
+}
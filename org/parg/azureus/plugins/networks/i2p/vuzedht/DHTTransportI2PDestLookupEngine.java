@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.vuzedht;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.biglybt.core.dht.transport.DHTTransportException;
+import com.biglybt.core.util.AERunnable;
+import com.biglybt.core.util.Debug;
+import com.biglybt.core.util.SystemTime;
+import com.biglybt.core.util.ThreadPool;
+
+import net.i2p.data.Destination;
+import net.i2p.data.Hash;
+
+/**
+ * Destination lookups for outgoing DHT requests. Concurrent lookups for the same hash are coalesced
+ * so that all waiters are attached to the single in-flight lookup, and lookups are only handed to a
+ * thread once the relevant priority has budget available - queued requests don't occupy a thread.
+ * A queued low priority lookup is promoted if a high priority waiter attaches to it.
+ */
+
+public class
+DHTTransportI2PDestLookupEngine
+{
+	private static final int MAX_ACTIVE_HP	= 10;
+	private static final int MAX_ACTIVE_LP	= 5;
+
+	private final Resolver			resolver;
+
+	private final ThreadPool		pool = new ThreadPool( "DHTTransportI2P::destlookup", MAX_ACTIVE_HP + MAX_ACTIVE_LP, true );
+
+	private final Map<Long,Lookup>	lookups 	= new HashMap<>();
+
+	private final LinkedList<Lookup>	queue_hp	= new LinkedList<>();
+	private final LinkedList<Lookup>	queue_lp	= new LinkedList<>();
+
+	private int		active_hp;
+	private int		active_lp;
+
+	private long	total_lookups;
+	private long	total_started;
+	private long	total_coalesced;
+	private long	total_promoted;
+	private long	total_ok;
+	private long	total_failed;
+	private long	total_queue_time;
+	private long	total_lookup_time;
+
+	private boolean	destroyed;
+
+	public
+	DHTTransportI2PDestLookupEngine(
+		Resolver		_resolver )
+	{
+		resolver	= _resolver;
+	}
+
+	public void
+	lookup(
+		Hash			hash,
+		boolean			priority,
+		Listener		listener )
+	{
+		long	key = DHTUtilsI2P.getLong( hash.getData(), 0 );
+
+		boolean	was_destroyed;
+
+		synchronized( this ){
+
+			was_destroyed = destroyed;
+
+			if ( !was_destroyed ){
+
+				lookupSupport( key, hash, priority, listener );
+			}
+		}
+
+		if ( was_destroyed ){
+
+			try{
+				listener.lookupFailed( new DHTTransportException( "Transport destroyed" ));
+
+			}catch( Throwable e ){
+
+				Debug.out( e );
+			}
+		}
+	}
+
+	private void
+	lookupSupport(
+		long			key,
+		Hash			hash,
+		boolean			priority,
+		Listener		listener )
+	{
+			// called with monitor held
+
+		Lookup	existing = lookups.get( key );
+
+		if ( existing != null && existing.hash.equals( hash )){
+
+			total_coalesced++;
+
+			existing.listeners.add( listener );
+
+			if ( priority && !existing.priority && !existing.started ){
+
+					// upgrade the queued lookup to the high priority lane
+
+				if ( queue_lp.remove( existing )){
+
+					existing.priority = true;
+
+					queue_hp.add( existing );
+
+					total_promoted++;
+				}
+			}
+
+			dispatch();
+
+			return;
+		}
+
+		Lookup	lookup = new Lookup( key, hash, priority, listener );
+
+			// if there's a key clash with a different hash (unlikely) we just don't
+			// coalesce the new lookup
+
+		if ( existing == null ){
+
+			lookups.put( key, lookup );
+
+		}else{
+
+			lookup.registered = false;
+		}
+
+		total_lookups++;
+
+		if ( priority ){
+
+			queue_hp.add( lookup );
+
+		}else{
+
+			queue_lp.add( lookup );
+		}
+
+		dispatch();
+	}
+
+	private void
+	dispatch()
+	{
+			// called with monitor held
+
+		while( active_hp < MAX_ACTIVE_HP && !queue_hp.isEmpty()){
+
+			start( queue_hp.removeFirst());
+		}
+
+		while( active_lp < MAX_ACTIVE_LP && !queue_lp.isEmpty()){
+
+			start( queue_lp.removeFirst());
+		}
+	}
+
+	private void
+	start(
+		final Lookup	lookup )
+	{
+			// called with monitor held
+
+		lookup.started		= true;
+		lookup.start_time	= SystemTime.getMonotonousTime();
+
+		total_started++;
+		
+		total_queue_time += lookup.start_time - lookup.queue_time;
+
+		if ( lookup.priority ){
+
+			active_hp++;
+
+		}else{
+
+			active_lp++;
+		}
+
+		pool.run(
+			new AERunnable()
+			{
+				@Override
+				public void
+				runSupport()
+				{
+					Destination				dest	= null;
+					DHTTransportException	error	= null;
+
+					try{
+						dest = resolver.resolve( lookup.hash );
+
+						if ( dest == null ){
+
+							error = new DHTTransportException( "Destination lookup failed" );
+						}
+					}catch( DHTTransportException e ){
+
+						error = e;
+
+					}catch( Throwable e ){
+
+						error = new DHTTransportException( "Destination lookup failed", e );
+					}
+
+					complete( lookup, dest, error );
+				}
+			});
+	}
+
+	private void
+	complete(
+		Lookup					lookup,
+		Destination				dest,
+		DHTTransportException	error )
+	{
+		List<Listener>	listeners;
+
+		synchronized( this ){
+
+			if ( lookup.registered ){
+
+				lookups.remove( lookup.key );
+			}
+
+			if ( lookup.priority ){
+
+				active_hp--;
+
+			}else{
+
+				active_lp--;
+			}
+
+			total_lookup_time += SystemTime.getMonotonousTime() - lookup.start_time;
+
+			if ( dest == null ){
+
+				total_failed++;
+
+			}else{
+
+				total_ok++;
+			}
+
+			listeners = lookup.listeners;
+
+			lookup.listeners = null;
+
+			dispatch();
+		}
+
+		for ( Listener l: listeners ){
+
+			try{
+				if ( dest != null ){
+
+					l.lookupComplete( dest );
+
+				}else{
+
+					l.lookupFailed( error );
+				}
+			}catch( Throwable e ){
+
+				Debug.out( e );
+			}
+		}
+	}
+
+	public void
+	destroy()
+	{
+		List<Lookup>	to_fail;
+
+		synchronized( this ){
+
+			destroyed = true;
+
+			to_fail = new ArrayList<>( queue_hp );
+
+			to_fail.addAll( queue_lp );
+
+			queue_hp.clear();
+			queue_lp.clear();
+
+			for ( Lookup l: to_fail ){
+
+				if ( l.registered ){
+
+					lookups.remove( l.key );
+				}
+			}
+		}
+
+		DHTTransportException error = new DHTTransportException( "Transport destroyed" );
+
+		for ( Lookup lookup: to_fail ){
+
+			for ( Listener l: lookup.listeners ){
+
+				try{
+					l.lookupFailed( error );
+
+				}catch( Throwable e ){
+
+					Debug.out( e );
+				}
+			}
+		}
+	}
+
+	public synchronized String
+	getString()
+	{
+		long	completed = total_ok + total_failed;
+
+		return( "lookups=" + total_lookups +
+				",ok=" + total_ok +
+				",fail=" + total_failed +
+				",coalesced=" + total_coalesced +
+				",promoted=" + total_promoted +
+				",active=" + active_hp + "/" + active_lp +
+				",queued=" + queue_hp.size() + "/" + queue_lp.size() +
+				",avg_queue=" + ( total_started==0?0:(total_queue_time/total_started)) +
+				",avg_lookup=" + ( completed==0?0:(total_lookup_time/completed)));
+	}
+
+	private static class
+	Lookup
+	{
+		private final long		key;
+		private final Hash		hash;
+		private final long		queue_time = SystemTime.getMonotonousTime();
+
+		private boolean			priority;
+		private boolean			registered	= true;
+		private boolean			started;
+		private long			start_time;
+
+		private List<Listener>	listeners = new ArrayList<>( 2 );
+
+		private
+		Lookup(
+			long		_key,
+			Hash		_hash,
+			boolean		_priority,
+			Listener	_listener )
+		{
+			key			= _key;
+			hash		= _hash;
+			priority	= _priority;
+
+			listeners.add( _listener );
+		}
+	}
+
+	public interface
+	Resolver
+	{
+			/**
+			 * Blocking resolution, called on a lookup thread
+			 * @return null if lookup failed
+			 */
+
+		public Destination
+		resolve(
+			Hash		hash )
+
+			throws Exception;
+	}
+
+	public interface
+	Listener
+	{
+		public void
+		lookupComplete(
+			Destination		dest );
+
+		public void
+		lookupFailed(
+			DHTTransportException	error );
+	}
+}
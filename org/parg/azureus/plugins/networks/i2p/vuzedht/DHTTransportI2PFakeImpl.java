@@ -183,6 +183,13 @@ DHTTransportI2PFakeImpl
 	{
 		return( stats );
 	}
+	
+	@Override
+	public String
+	getExtendedStats()
+	{
+		return( "" );
+	}
 
 		// direct contact-contact communication
 
@@ -422,6 +429,15 @@ DHTTransportI2PFakeImpl
 		return( null );
 	}
 	
+	public DHTTransportContactI2P
+	importContact(
+		NodeInfo		node,
+		int				version,
+		boolean			is_bootstrap )
+	{
+		return( null );
+	}
+	
 	public DHTTransportContactI2P
 	importContact(
 		byte[]		hash,
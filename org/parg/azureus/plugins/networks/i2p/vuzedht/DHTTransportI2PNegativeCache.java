@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.vuzedht;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Negative cache for failed destination lookups keyed on the first 8 bytes of the destination hash.
+ * Retries back off exponentially from 60 seconds up to 14 minutes. Held in a striped LRU table so
+ * there is no global lock.
+ */
+
+public class
+DHTTransportI2PNegativeCache
+{
+	private static final int	INITIAL_DELAY		= 60*1000;
+	private static final int	MAX_DELAY			= 14*60*1000;
+
+	private final DHTTransportI2PStripedLRU<Entry>	entries;
+
+	private final AtomicLong	denials			= new AtomicLong();
+	private final AtomicLong	retries			= new AtomicLong();
+	private final AtomicLong	failures		= new AtomicLong();
+	private final AtomicLong	evictions		= new AtomicLong();
+
+	public
+	DHTTransportI2PNegativeCache(
+		int		max_entries )
+	{
+		entries = new DHTTransportI2PStripedLRU<>( max_entries );
+	}
+
+	/**
+	 * @return true if a lookup for the key should be denied as it has failed recently
+	 */
+
+	public boolean
+	isDenied(
+		long		key,
+		long		now )
+	{
+		DHTTransportI2PStripedLRU.Stripe<Entry> stripe = entries.getStripe( key );
+
+		int	num_fails;
+
+		synchronized( stripe ){
+
+			Entry entry = stripe.get( key );
+
+			if ( entry == null ){
+
+				return( false );
+			}
+
+			num_fails = entry.num_fails;
+
+			if ( now >= entry.first_fail + getDelay( num_fails )){
+
+					// allow a retry, the fail time gets reset so that concurrent requests for the
+					// same key get denied while this one is in progress
+
+				entry.first_fail = now;
+
+				num_fails = -1;
+			}
+		}
+
+		if ( num_fails < 0 ){
+
+			retries.incrementAndGet();
+
+			return( false );
+
+		}else{
+
+			denials.incrementAndGet();
+
+			return( true );
+		}
+	}
+
+	/**
+	 * @return number of consecutive fails for the key (including this one)
+	 */
+
+	public int
+	lookupFailed(
+		long		key,
+		long		start )
+	{
+		failures.incrementAndGet();
+
+		DHTTransportI2PStripedLRU.Stripe<Entry> stripe = entries.getStripe( key );
+
+		synchronized( stripe ){
+
+			Entry entry = stripe.get( key );
+
+			if ( entry == null ){
+
+				if ( stripe.add( new Entry( key, start ))){
+
+					evictions.incrementAndGet();
+				}
+
+				return( 1 );
+
+			}else{
+
+				return( ++entry.num_fails );
+			}
+		}
+	}
+
+	public void
+	lookupOK(
+		long		key )
+	{
+		DHTTransportI2PStripedLRU.Stripe<Entry> stripe = entries.getStripe( key );
+
+		synchronized( stripe ){
+
+			stripe.remove( key );
+		}
+	}
+
+	public int
+	size()
+	{
+		return( entries.size());
+	}
+
+	public String
+	getString()
+	{
+		return( "entries=" + size() +
+				",denied=" + denials.get() +
+				",retries=" + retries.get() +
+				",fails=" + failures.get() +
+				",evicted=" + evictions.get());
+	}
+
+	private static int
+	getDelay(
+		int		num_fails )
+	{
+		int	delay = INITIAL_DELAY;
+
+		for ( int i=1;i<num_fails;i++){
+
+			delay *= 2;
+
+			if ( delay > MAX_DELAY ){
+
+				delay = MAX_DELAY;
+
+				break;
+			}
+		}
+
+		return( delay );
+	}
+
+	private static class
+	Entry
+		extends DHTTransportI2PStripedLRU.Entry
+	{
+		private long			first_fail;
+		private int				num_fails;
+
+		private
+		Entry(
+			long		_key,
+			long		_first_fail )
+		{
+			super( _key );
+
+			first_fail	= _first_fail;
+			num_fails	= 1;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.vuzedht;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.parg.azureus.plugins.networks.i2p.snarkdht.NID;
+import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
+
+/**
+ * Intern table for the NodeInfos decoded from the compact node lists in find_node/get_peers replies.
+ * The same nodes are returned over and over by different peers so entries are looked up directly in
+ * the reply buffer and an existing NodeInfo is reused if the 54 bytes match, only misses result in
+ * allocation. Held in a striped LRU table as for the negative cache.
+ */
+
+public class
+DHTTransportI2PNodeCache
+{
+	private static final int	HASH_OFFSET			= NID.HASH_LENGTH;
+
+	private final DHTTransportI2PStripedLRU<Entry>	entries;
+
+	private final AtomicLong	hits			= new AtomicLong();
+	private final AtomicLong	misses			= new AtomicLong();
+	private final AtomicLong	evictions		= new AtomicLong();
+
+	public
+	DHTTransportI2PNodeCache(
+		int		max_entries )
+	{
+		entries = new DHTTransportI2PStripedLRU<>( max_entries );
+	}
+
+	/**
+	 * @param compact		buffer holding compact node info
+	 * @param offset		offset of the NodeInfo.LENGTH bytes of the entry
+	 * @throws IllegalArgumentException if the entry is invalid
+	 */
+
+	public NodeInfo
+	intern(
+		byte[]		compact,
+		int			offset )
+	{
+			// the hash part is a SHA-256 so its first 8 bytes are as good a key as any
+
+		long	key = DHTUtilsI2P.getLong( compact, offset + HASH_OFFSET );
+
+		DHTTransportI2PStripedLRU.Stripe<Entry> stripe = entries.getStripe( key );
+
+		synchronized( stripe ){
+
+			Entry	entry = stripe.get( key, e -> matches( e.node, compact, offset ));
+
+			if ( entry != null ){
+
+				hits.incrementAndGet();
+
+				return( entry.node );
+			}
+		}
+
+		misses.incrementAndGet();
+
+			// construct outside the lock, a concurrent miss on the same node just results in
+			// a duplicate entry that ages out
+
+		NodeInfo	node = new NodeInfo( compact, offset );
+
+		synchronized( stripe ){
+
+			if ( stripe.add( new Entry( key, node ))){
+
+				evictions.incrementAndGet();
+			}
+		}
+
+		return( node );
+	}
+
+	public int
+	size()
+	{
+		return( entries.size());
+	}
+
+	public String
+	getString()
+	{
+		return( "entries=" + size() +
+				",hits=" + hits.get() +
+				",misses=" + misses.get() +
+				",evicted=" + evictions.get());
+	}
+
+	private static boolean
+	matches(
+		NodeInfo	node,
+		byte[]		compact,
+		int			offset )
+	{
+		byte[]	data = node.getData();
+
+		for ( int i=0;i<NodeInfo.LENGTH;i++){
+
+			if ( data[i] != compact[offset+i] ){
+
+				return( false );
+			}
+		}
+
+		return( true );
+	}
+
+	private static class
+	Entry
+		extends DHTTransportI2PStripedLRU.Entry
+	{
+		private final NodeInfo	node;
+
+		private
+		Entry(
+			long		_key,
+			NodeInfo	_node )
+		{
+			super( _key );
+
+			node	= _node;
+		}
+	}
+
+		/**
+		 * Decodes simulated find_node replies, 8 entries each drawn at random from a population of
+		 * nodes, with and without the cache and prints the time and bytes allocated per entry.
+		 * Arguments: population, replies
+		 */
+
+	public static void
+	main(
+		String[]		args )
+	{
+		try{
+			int	population	= args.length<1?2000:Integer.parseInt( args[0] );
+			int	replies		= args.length<2?200000:Integer.parseInt( args[1] );
+
+			Random	random = new Random( 0 );
+
+			byte[][]	nodes = new byte[population][NodeInfo.LENGTH];
+
+			for ( byte[] node: nodes ){
+
+					// valid secure NID: first 4 bytes of the hash then 2 bytes of hash ^ port
+
+				random.nextBytes( node );
+
+				int	port = 1 + random.nextInt( 65533 );
+
+				System.arraycopy( node, HASH_OFFSET, node, 0, 6 );
+
+				node[4] ^= (byte)( port >> 8 );
+				node[5] ^= (byte)port;
+
+				node[NodeInfo.LENGTH-2] = (byte)( port >> 8 );
+				node[NodeInfo.LENGTH-1] = (byte)port;
+			}
+
+			byte[][]	reply_data = new byte[1024][8*NodeInfo.LENGTH];
+
+			for ( byte[] reply: reply_data ){
+
+				for ( int i=0;i<8;i++){
+
+					System.arraycopy( nodes[random.nextInt( population )], 0, reply, i*NodeInfo.LENGTH, NodeInfo.LENGTH );
+				}
+			}
+
+			ThreadMXBean	tmx = ManagementFactory.getThreadMXBean();
+
+			boolean	alloc = tmx instanceof com.sun.management.ThreadMXBean;
+
+			long	thread_id = Thread.currentThread().getId();
+
+			DHTTransportI2PNodeCache	cache = new DHTTransportI2PNodeCache( 4096 );
+
+			long	sink = 0;
+
+				// first pass warms up
+
+			for ( int pass=0;pass<2;pass++){
+
+				for ( int which=0;which<2;which++){
+
+					long	a_start = alloc?((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes( thread_id ):0;
+					long	t_start = System.nanoTime();
+
+					for ( int r=0;r<replies;r++){
+
+						byte[]	reply = reply_data[r%reply_data.length];
+
+						for ( int off=0;off<reply.length;off+=NodeInfo.LENGTH ){
+
+							NodeInfo	node = which==0?new NodeInfo( reply, off ):cache.intern( reply, off );
+
+							sink += node.getPort();
+						}
+					}
+
+					long	entries = replies*8L;
+
+					long	elapsed	= System.nanoTime() - t_start;
+					long	bytes	= alloc?((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes( thread_id ) - a_start:-1;
+
+					if ( pass == 1 ){
+
+						System.out.println(
+							( which==0?"new NodeInfo":"intern" ) + ": " + ( elapsed/entries ) + "ns/entry, " +
+							( bytes<0?"?":String.valueOf( bytes/entries )) + "B/entry" + ( which==0?"":( " - " + cache.getString())));
+					}
+				}
+			}
+
+			System.out.println( "population=" + population + ",entries=" + replies*8L + ",sink=" + sink );
+
+		}catch( Throwable e ){
+
+			e.printStackTrace();
+		}
+	}
+}
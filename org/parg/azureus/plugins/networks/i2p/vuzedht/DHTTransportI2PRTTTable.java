@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.vuzedht;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.data.Hash;
+
+/**
+ * Per-node round trip time estimates used to size request timeouts. Tunnel latency varies a lot
+ * between nodes so a single timeout is either far too long for dead nodes or too short for slow ones.
+ * Estimates are smoothed as for TCP (RFC 6298) and the timeout is srtt + 4*rttvar, bounded by the
+ * configured request timeout, backing off on each timeout until a reply is seen. Keyed on the node's
+ * destination hash so that all the contact instances for a node share the estimate, held in a striped
+ * LRU table as this is looked up for every request.
+ */
+
+public class
+DHTTransportI2PRTTTable
+{
+	private static final int	MIN_SAMPLES		= 3;			// use the default timeout until we have this many
+	private static final int	MIN_TIMEOUT		= 5*1000;
+
+	private final DHTTransportI2PStripedLRU<Estimator>	estimators;
+
+	private final AtomicLong	adaptive_requests	= new AtomicLong();
+	private final AtomicLong	default_requests	= new AtomicLong();
+	private final AtomicLong	samples				= new AtomicLong();
+	private final AtomicLong	sample_total		= new AtomicLong();
+
+	public
+	DHTTransportI2PRTTTable(
+		int		max_entries )
+	{
+		estimators = new DHTTransportI2PStripedLRU<>( max_entries );
+	}
+
+	public Estimator
+	getEstimator(
+		Hash		hash )
+	{
+		long	key = DHTUtilsI2P.getLong( hash.getData(), 0 );
+
+		DHTTransportI2PStripedLRU.Stripe<Estimator> stripe = estimators.getStripe( key );
+
+		synchronized( stripe ){
+
+			Estimator	estimator = stripe.get( key, e -> e.hash.equals( hash ));
+
+			if ( estimator == null ){
+
+				estimator = new Estimator( key, hash );
+
+				stripe.add( estimator );
+			}
+
+			return( estimator );
+		}
+	}
+
+	/**
+	 * @param default_timeout	the configured timeout, used until there are enough samples and as an upper bound
+	 */
+
+	public long
+	getTimeout(
+		Estimator	estimator,
+		long		default_timeout )
+	{
+		long	timeout = estimator.getTimeout( default_timeout );
+
+		if ( timeout < default_timeout ){
+
+			adaptive_requests.incrementAndGet();
+
+		}else{
+
+			default_requests.incrementAndGet();
+		}
+
+		return( timeout );
+	}
+
+	public void
+	sample(
+		Estimator	estimator,
+		int			rtt )
+	{
+		if ( rtt >= 0 ){
+
+			samples.incrementAndGet();
+
+			sample_total.addAndGet( rtt );
+		}
+
+		estimator.sample( rtt );
+	}
+
+	public int
+	size()
+	{
+		return( estimators.size());
+	}
+
+	/**
+	 * @return mean of all the samples taken, -1 if none
+	 */
+
+	public long
+	getAverageRTT()
+	{
+		long	num = samples.get();
+
+		return( num==0?-1:( sample_total.get()/num ));
+	}
+
+	public String
+	getString()
+	{
+		return( "nodes=" + size() +
+				",samples=" + samples.get() +
+				",avg_rtt=" + getAverageRTT() +
+				",adaptive=" + adaptive_requests.get() +
+				",default=" + default_requests.get());
+	}
+
+	public static class
+	Estimator
+		extends DHTTransportI2PStripedLRU.Entry
+	{
+		private final Hash	hash;
+
+		private int		srtt;
+		private int		rttvar;
+		private int		num_samples;
+		private int		backoff;
+
+		private
+		Estimator(
+			long		_key,
+			Hash		_hash )
+		{
+			super( _key );
+
+			hash	= _hash;
+		}
+
+		private synchronized void
+		sample(
+			int		rtt )
+		{
+			if ( rtt < 0 ){
+
+				return;
+			}
+
+			if ( num_samples == 0 ){
+
+				srtt	= rtt;
+				rttvar	= rtt/2;
+
+			}else{
+
+				rttvar	= ( 3*rttvar + Math.abs( srtt - rtt ))/4;
+				srtt	= ( 7*srtt + rtt )/8;
+			}
+
+			num_samples++;
+
+			backoff	= 0;
+		}
+
+		/**
+		 * Called when a request to the node has timed out, doubles the timeout until the next reply
+		 */
+
+		public synchronized void
+		timedOut()
+		{
+			if ( backoff < 8 ){
+
+				backoff++;
+			}
+		}
+
+		private synchronized long
+		getTimeout(
+			long		default_timeout )
+		{
+			if ( num_samples < MIN_SAMPLES ){
+
+				return( default_timeout );
+			}
+
+			long	timeout = Math.max( MIN_TIMEOUT, srtt + 4L*rttvar ) << backoff;
+
+			return( Math.min( timeout, default_timeout ));
+		}
+
+		/**
+		 * @return smoothed rtt or -1 if not known
+		 */
+
+		public synchronized int
+		getRTT()
+		{
+			return( num_samples==0?-1:srtt );
+		}
+	}
+}
@@ -30,35 +30,30 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import com.biglybt.core.util.AERunnable;
 import com.biglybt.core.util.AESemaphore;
 import com.biglybt.core.util.Average;
-import com.biglybt.core.util.BDecoder;
-import com.biglybt.core.util.BEncoder;
 import com.biglybt.core.util.ByteFormatter;
 import com.biglybt.core.util.Debug;
 import com.biglybt.core.util.HashWrapper;
 import com.biglybt.core.util.RandomUtils;
 import com.biglybt.core.util.SimpleTimer;
 import com.biglybt.core.util.SystemTime;
-import com.biglybt.core.util.ThreadPool;
 import com.biglybt.core.util.TimerEvent;
 import com.biglybt.core.util.TimerEventPerformer;
 import com.biglybt.core.util.TimerEventPeriodic;
 
+import org.parg.azureus.plugins.networks.i2p.router.I2PHelperSendScheduler;
 import org.parg.azureus.plugins.networks.i2p.router.I2PSMHolder;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NID;
 import org.parg.azureus.plugins.networks.i2p.snarkdht.NodeInfo;
 
 import net.i2p.client.I2PSession;
 import net.i2p.client.I2PSessionMuxedListener;
-import net.i2p.client.SendMessageOptions;
 import net.i2p.client.datagram.I2PDatagramDissector;
 import net.i2p.client.datagram.I2PDatagramMaker;
 import net.i2p.client.datagram.I2PInvalidDatagramException;
@@ -84,7 +79,6 @@ import com.biglybt.core.dht.transport.DHTTransportValue;
 import com.biglybt.core.dht.transport.udp.DHTTransportUDP;
 import com.biglybt.core.dht.transport.util.DHTTransportRequestCounter;
 import com.biglybt.core.dht.transport.util.DHTTransportStatsImpl;
-import com.biglybt.util.MapUtils;
 
 public class 
 DHTTransportI2PRealImpl
@@ -169,8 +163,8 @@ DHTTransportI2PRealImpl
 				}
 			};
 	
-	private ThreadPool	destination_lookup_pool_lp 	= new ThreadPool("DHTTransportI2P::destlookup-lp", 5, true );
-	private ThreadPool	destination_lookup_pool_hp 	= new ThreadPool("DHTTransportI2P::destlookup-hp", 10, true );
+	private final DHTTransportI2PDestLookupEngine	dest_lookup_engine = 
+			new DHTTransportI2PDestLookupEngine(( hash )->resolveDestination( hash ));
 
 	private static final boolean TRACE_DEST_LOOKUPS = false;
 	
@@ -185,17 +179,15 @@ DHTTransportI2PRealImpl
 	
 	private static final int DEST_LOOKUP_NEGATIVE_CACHE_MAX = 8000;
 	
-	private Map<Long,DestLookupNegativeCacheEntry>	dest_lookup_negative_cache =
-			new LinkedHashMap<Long,DestLookupNegativeCacheEntry>(DEST_LOOKUP_NEGATIVE_CACHE_MAX,0.75f,true)
-			{
-				@Override
-				protected boolean
-				removeEldestEntry(
-			   		Map.Entry<Long,DestLookupNegativeCacheEntry> eldest) 
-				{
-					return( size() > DEST_LOOKUP_NEGATIVE_CACHE_MAX );
-				}
-			};
+	private final DHTTransportI2PNegativeCache	dest_lookup_negative_cache = new DHTTransportI2PNegativeCache( DEST_LOOKUP_NEGATIVE_CACHE_MAX );
+	
+	private static final int NODE_CACHE_MAX = 4096;
+	
+	private final DHTTransportI2PNodeCache	node_cache = new DHTTransportI2PNodeCache( NODE_CACHE_MAX );
+	
+	private static final int RTT_TABLE_MAX = 4096;
+	
+	private final DHTTransportI2PRTTTable	rtt_table = new DHTTransportI2PRTTTable( RTT_TABLE_MAX );
 	
 	
 	
@@ -233,7 +225,7 @@ DHTTransportI2PRealImpl
         timer_event = 
 				SimpleTimer.addPeriodicEvent(
 					"DHTTransportI2P:timeouts",
-					5000,
+					REQUEST_TICK_MILLIS,
 					new TimerEventPerformer()
 					{
 						@Override
@@ -273,7 +265,20 @@ DHTTransportI2PRealImpl
 		NodeInfo		node,
 		boolean			is_bootstrap )
 	{
-		DHTTransportContactI2P	contact = new DHTTransportContactI2P( this, node, (byte)0, 0, 0, (byte)0 );
+		return( importContact( node, 0, is_bootstrap ));
+	}
+	
+	/**
+	 * @param version	protocol version if known from an earlier session, 0 otherwise
+	 */
+	
+	public DHTTransportContactI2P
+	importContact(
+		NodeInfo		node,
+		int				version,
+		boolean			is_bootstrap )
+	{
+		DHTTransportContactI2P	contact = new DHTTransportContactI2P( this, node, (byte)version, 0, 0, (byte)0 );
 		
 		request_handler.contactImported( contact, is_bootstrap );
 		
@@ -645,9 +650,19 @@ DHTTransportI2PRealImpl
 		return( stats );
 	}
 	
+	@Override
+	public String
+	getExtendedStats()
+	{
+		return( "lookups: " + dest_lookup_engine.getString() + "; negative cache: " + dest_lookup_negative_cache.getString() + "; node cache: " + node_cache.getString() + "; codec: " + DHTTransportI2PCodec.getString() + "; rtt: " + rtt_table.getString() + "; " + sm_holder.getSendStats());
+	}
+	
 		// RPCs
 	
-	private HashMap<HashWrapper,Request>		requests = new HashMap<HashWrapper, Request>();
+	private static final int REQUEST_TICK_MILLIS	= 1000;
+	
+	private final DHTTransportI2PRequestTable<Request>	requests = 
+			new DHTTransportI2PRequestTable<>( REQUEST_TICK_MILLIS, SystemTime.getMonotonousTime());
 	
 	public void
 	sendPing(
@@ -676,13 +691,7 @@ DHTTransportI2PRealImpl
 		try{
 	        stats.pingSent( null );
 	
-	        Map<String, Object> map = new HashMap<String, Object>();
-	        	        
-	        map.put( "q", "ping" );
-	        
-	        Map<String, Object> args = new HashMap<String, Object>();
-	        
-	        map.put( "a", args );
+	        DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createQuery( "ping" );
 	        
 	        final AESemaphore sem = new AESemaphore( "i2p:wait" );
 	        
@@ -693,7 +702,7 @@ DHTTransportI2PRealImpl
 	        		public void 
 	        		handleReply(
 	        			int		originator_version,
-	        			Map 	reply,
+	        			DHTTransportI2PCodec.Message 	reply,
 	        			int		elapsed ) 
 	        		{	        			
 	        			stats.pingOK();
@@ -713,7 +722,7 @@ DHTTransportI2PRealImpl
 	        			sem.release();
 	        		}
 	        	}, 
-	        	node, map, RPC_TYPE_TWO_WAY, false, false );
+	        	node, message, RPC_TYPE_TWO_WAY, false, false );
 	        
 	        if ( wait_for_reply ){
 	        
@@ -736,13 +745,7 @@ DHTTransportI2PRealImpl
 		try{
 	        stats.pingSent( null );
 
-	        Map<String, Object> map = new HashMap<String, Object>();
-	        
-	        map.put( "q", "ping" );
-	        
-	        Map<String, Object> args = new HashMap<String, Object>();
-	        
-	        map.put( "a", args );
+	        DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createQuery( "ping" );
 	        
 	        sendQuery( 
 	        	new ReplyHandlerAdapter( contact )
@@ -751,7 +754,7 @@ DHTTransportI2PRealImpl
 	        		public void 
 	        		handleReply(
 	        			int		originator_version,
-	        			Map 	reply,
+	        			DHTTransportI2PCodec.Message 	reply,
 	        			int		elapsed ) 
 	        		{
 	        			if ( TRACE ) trace( "good pingReply" );
@@ -775,7 +778,7 @@ DHTTransportI2PRealImpl
 	        			stats.pingFailed();
 	        		}
 	        	}, 
-	        	contact, map, RPC_TYPE_TWO_WAY, false, false );
+	        	contact, message, RPC_TYPE_TWO_WAY, false, false );
 	        	        
 		}catch( Throwable e ){
 			
@@ -806,13 +809,9 @@ DHTTransportI2PRealImpl
 		
 		request_handler.pingRequest( originator );
 
-		Map<String, Object> map = new HashMap<String, Object>();
-		
-		Map<String, Object> resps = new HashMap<String, Object>();
-		
-		map.put("r", resps);
+		DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createReply();
 		
-		sendResponse( originator, message_id, map, true );
+		sendResponse( originator, message_id, message, true );
 	}
 	   
 	public boolean
@@ -825,15 +824,9 @@ DHTTransportI2PRealImpl
 		try{
 	        stats.findNodeSent( null );
 	
-	        Map<String, Object> map = new HashMap<String, Object>();
+	        DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createQuery( "find_node" );
 	        
-	        map.put( "q", "find_node" );
-	        
-	        Map<String, Object> args = new HashMap<String, Object>();
-	        
-	        map.put( "a", args );
-	        
-	        args.put( "target", target );
+	        message.setTarget( target );
 	        
 	        final AESemaphore sem = new AESemaphore( "i2p:wait" );
 	        
@@ -844,14 +837,14 @@ DHTTransportI2PRealImpl
 	        		public void 
 	        		handleReply(
 	        			int		originator_version,
-	        			Map 	reply,
+	        			DHTTransportI2PCodec.Message 	reply,
 	        			int		elapsed )
 	        		{
-	        			byte[]	nodes = (byte[])reply.get( "nodes" );
+	        			byte[]	nodes = reply.getNodes();
 	        				        				        			
 	        			for ( int off = 0; off < nodes.length; off += NodeInfo.LENGTH ){
 	        				
-	        				NodeInfo node = new NodeInfo( nodes, off );
+	        				NodeInfo node = node_cache.intern( nodes, off );
 	        				
 	        				request_handler.contactImported( new DHTTransportContactI2P( DHTTransportI2PRealImpl.this, node, (byte)0, 0, 0, (byte)0 ), false );
 	        			}
@@ -874,7 +867,7 @@ DHTTransportI2PRealImpl
 	        			sem.release();
 	        		}
 	        	}, 
-	        	node, map, RPC_TYPE_TWO_WAY, true, false );
+	        	node, message, RPC_TYPE_TWO_WAY, true, false );
 	        
 	        sem.reserve();
 	        
@@ -949,15 +942,9 @@ DHTTransportI2PRealImpl
 			try{
 		        stats.findNodeSent( null );
 	
-		        Map<String, Object> map = new HashMap<String, Object>();
-		        
-		        map.put( "q", "find_node" );
-		        
-		        Map<String, Object> args = new HashMap<String, Object>();
-		        
-		        map.put( "a", args );
+		        DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createQuery( "find_node" );
 		        
-		        args.put( "target", target );
+		        message.setTarget( target );
 		        
 		        sendQuery( 
 		        	new ReplyHandlerAdapter( contact )
@@ -966,20 +953,20 @@ DHTTransportI2PRealImpl
 		        		public void 
 		        		handleReply(
 		        			int		originator_version,
-		        			Map 	reply,
+		        			DHTTransportI2PCodec.Message 	reply,
 		        			int		elapsed )
 		        		{
 		        			contact.setProtocolVersion((byte)originator_version );
 		        			
-		        			if ( TRACE ) trace( "good findNodeReply: " + reply );
+		        			if ( TRACE ) trace( "good findNodeReply: " + reply.getString());
 		        				        			
 		        			/* no token on findNode
-		        			byte[]	token = (byte[])reply.get( "token" );
+		        			byte[]	token = reply.getToken();
 		        			if ( token != null ){
 		        			}
 		        			*/
 		        			
-		        			byte[]	nodes = (byte[])reply.get( "nodes" );
+		        			byte[]	nodes = reply.getNodes();
 		        			
 		        			DHTTransportContactI2P[]	contacts  = new DHTTransportContactI2P[nodes.length/NodeInfo.LENGTH];
 		        			
@@ -987,7 +974,7 @@ DHTTransportI2PRealImpl
 		        			
 		        			for ( int off = 0; off < nodes.length; off += NodeInfo.LENGTH ){
 		        				
-		        				NodeInfo node = new NodeInfo( nodes, off );
+		        				NodeInfo node = node_cache.intern( nodes, off );
 		        				
 		        				contacts[pos++] = new DHTTransportContactI2P( DHTTransportI2PRealImpl.this, node, (byte)0, 0, 0, (byte)0 );
 		        			}
@@ -1009,7 +996,7 @@ DHTTransportI2PRealImpl
 		        			stats.findNodeFailed();
 		        		}
 		        	}, 
-		        	contact, map, RPC_TYPE_TWO_WAY, priority, false );
+		        	contact, message, RPC_TYPE_TWO_WAY, priority, false );
 		        	        
 			}catch( Throwable e ){
 				
@@ -1044,15 +1031,11 @@ DHTTransportI2PRealImpl
 
 		if ( contacts != null ){
 			
-			Map<String, Object> map = new HashMap<String, Object>();
-			
-			Map<String, Object> resps = new HashMap<String, Object>();
-			
-			map.put( "r", resps);
+			DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createReply();
 	
 			// no token returned for find-node, just find-value
 			// byte[] token = originator.getRandomID2();				
-			// resps.put( "token", token );
+			// message.setToken( token );
 			
 	        byte[] nodes = new byte[contacts.length * NodeInfo.LENGTH];
 	        
@@ -1061,9 +1044,9 @@ DHTTransportI2PRealImpl
 	            System.arraycopy(((DHTTransportContactI2P)contacts[i]).getNode().getData(), 0, nodes, i * NodeInfo.LENGTH, NodeInfo.LENGTH);
 	        }
 	        
-			resps.put( "nodes", nodes );
+			message.setNodes( nodes );
 			
-			sendResponse( originator, message_id, map, true );
+			sendResponse( originator, message_id, message, true );
 		}
 	}
 	
@@ -1081,19 +1064,13 @@ DHTTransportI2PRealImpl
 		try{
 	        stats.findValueSent( null );
 
-	        Map<String, Object> map = new HashMap<String, Object>();
-	        
-	        map.put( "q", "get_peers" );
-	        
-	        Map<String, Object> args = new HashMap<String, Object>();
-	        
-	        map.put( "a", args );
+	        DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createQuery( "get_peers" );
 	        
-	        args.put( "info_hash", target );
+	        message.setInfoHash( target );
 	        
 	        if ( ( flags & DHT.FLAG_SEEDING ) != 0 ){
 	        	
-	        	args.put( "noseed", new Long(1));
+	        	message.setNoSeed( true );
 	        }
 	        
 	        sendQuery( 
@@ -1103,21 +1080,21 @@ DHTTransportI2PRealImpl
 	        		public void 
 	        		handleReply(
 	        			int		originator_version,
-	        			Map 	reply,
+	        			DHTTransportI2PCodec.Message 	reply,
 	        			int		elapsed )
 	        		{
-	        			if ( TRACE ) trace( "good sendFindValue: " + reply );
+	        			if ( TRACE ) trace( "good sendFindValue: " + reply.getString());
 	        			
 	        			contact.setProtocolVersion((byte)originator_version );
 	        			
-	        			byte[]	token = (byte[])reply.get( "token" );
+	        			byte[]	token = reply.getToken();
 	        			
 	        			if ( token != null ){
 	        			
 	        				contact.setRandomID2( token );
 	        			}
 	        			
-	        			byte[]	nodes = (byte[])reply.get( "nodes" );
+	        			byte[]	nodes = reply.getNodes();
 	        			
 	        			if ( nodes != null ){
 	        				
@@ -1127,7 +1104,7 @@ DHTTransportI2PRealImpl
 		        			
 		        			for ( int off = 0; off < nodes.length; off += NodeInfo.LENGTH ){
 		        				
-		        				NodeInfo node = new NodeInfo( nodes, off );
+		        				NodeInfo node = node_cache.intern( nodes, off );
 		        				
 		        				contacts[pos++] = new DHTTransportContactI2P( DHTTransportI2PRealImpl.this, node, (byte)0, 0, 0, (byte)0 );
 		        			}
@@ -1136,7 +1113,7 @@ DHTTransportI2PRealImpl
 		        			
 	        			}else{
 	        			
-	        				List<byte[]> peers = (List<byte[]>)reply.get( "values");
+	        				List<byte[]> peers = reply.getValues();
 	        				
 	        				if ( peers == null ){
 	        					
@@ -1145,7 +1122,7 @@ DHTTransportI2PRealImpl
 	        				
 	        				DHTTransportValue[] values = new DHTTransportValue[peers.size()];
 	        				
-	        				byte[]	flags = (byte[])reply.get( "flags" );
+	        				byte[]	flags = reply.getFlags();
 	        				
 	        				for ( int i=0;i<values.length;i++){
 	        					
@@ -1180,7 +1157,7 @@ DHTTransportI2PRealImpl
 	        			stats.findValueFailed();
 	        		}
 	        	}, 
-	        	contact, map, RPC_TYPE_TWO_WAY, priority, false );
+	        	contact, message, RPC_TYPE_TWO_WAY, priority, false );
 	        	        
 		}catch( Throwable e ){
 			
@@ -1216,15 +1193,11 @@ DHTTransportI2PRealImpl
 
 		if ( reply != null ){
 			
-			Map<String, Object> map = new HashMap<String, Object>();
-			
-			Map<String, Object> resps = new HashMap<String, Object>();
-			
-			map.put( "r", resps);
+			DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createReply();
 	
 			byte[] token = originator.getRandomID2();
 							
-			resps.put( "token", token );
+			message.setToken( token );
 			
 			NodeInfo node = originator.getNode();
 			
@@ -1288,10 +1261,10 @@ DHTTransportI2PRealImpl
 						pos++;
 					}
 									
-					resps.put( "flags", flags );
+					message.setFlags( flags );
 				}
 				
-				resps.put( "values", peers );
+				message.setValues( peers );
 				
 			}else{
 				
@@ -1304,12 +1277,12 @@ DHTTransportI2PRealImpl
 		            System.arraycopy(((DHTTransportContactI2P)contacts[i]).getNode().getData(), 0, nodes, i * NodeInfo.LENGTH, NodeInfo.LENGTH);
 		        }
 		        
-				resps.put( "nodes", nodes );
+				message.setNodes( nodes );
 			}
 			
-			if ( TRACE ) trace( "    findValue->" + map);
+			if ( TRACE ) trace( "    findValue->" + message.getString());
 	
-			sendResponse( originator, message_id, map, true );
+			sendResponse( originator, message_id, message, true );
 		}
 	}
 	
@@ -1475,25 +1448,19 @@ DHTTransportI2PRealImpl
 				}else{
 					
 					try{
-						Map<String, Object> map = new HashMap<String, Object>();
-	
-						map.put( "q", "announce_peer" );
-	
-						Map<String, Object> args = new HashMap<String, Object>();
-	
-						map.put( "a", args );
+						DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createQuery( "announce_peer" );
 	
 						if ( TRACE ) trace( "   storeKey: " + ByteFormatter.encodeString( key ));
 						
-						args.put( "info_hash", key );
+						message.setInfoHash( key );
 	
-						args.put( "port", 6881 );		// not used but for completeness
+						message.setPort( 6881 );		// not used but for completeness
 	
-						args.put( "token", token );
+						message.setToken( token );
 	
 						boolean	seed =  ( values[0].getFlags() & DHT.FLAG_SEEDING ) != 0;
 							
-						args.put( "seed", new Long(seed?1:0));
+						message.setSeed( seed );
 											
 						sendQuery( 
 								new ReplyHandlerAdapter( contact )
@@ -1502,7 +1469,7 @@ DHTTransportI2PRealImpl
 									public void 
 									handleReply(
 										int		originator_version,
-										Map 	reply,
+										DHTTransportI2PCodec.Message 	reply,
 										int		elapsed )
 									{
 										if ( TRACE ) trace( "good sendStoreReply" );
@@ -1532,7 +1499,7 @@ DHTTransportI2PRealImpl
 										}
 									}
 								}, 
-								contact, map, RPC_TYPE_UNREPLIABLE, false, false );		// NOT repliable. Note however that we still get a reply as the target has (or should have) our dest cached against the token...
+								contact, message, RPC_TYPE_UNREPLIABLE, false, false );		// NOT repliable. Note however that we still get a reply as the target has (or should have) our dest cached against the token...
 	
 					}catch( Throwable e ){
 	
@@ -1582,13 +1549,9 @@ DHTTransportI2PRealImpl
 		
 		request_handler.storeRequest( originator, keys, values );
 		
-		Map<String, Object> map = new HashMap<String, Object>();
-		
-		Map<String, Object> resps = new HashMap<String, Object>();
+		DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createReply();
 		
-		map.put( "r", resps);
-		
-		sendResponse( originator, message_id, map, true );
+		sendResponse( originator, message_id, message, true );
 	}
 	
 	
@@ -1604,24 +1567,18 @@ DHTTransportI2PRealImpl
 		if ( TRACE ) trace( "sendAZRequest: " + payload );
 		
 		try{
-	        Map<String, Object> map = new HashMap<String, Object>();
-	        
-	        map.put( "q", "azrequest" );
-	        
-	        Map<String, Object> args = new HashMap<String, Object>();
-	        
-	        map.put( "a", args );
+	        DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createQuery( "azrequest" );
 	        
 	        if ( payload != null ){
 	        
-	        	args.put( "p", payload );
+	        	message.setPayload( payload );
 	        }
 	        
 	        byte[] token = contact.getRandomID2();
 	        
 	        if ( token != null ){
 	        	
-	        	args.put( "token", token );
+	        	message.setToken( token );
 	        }
 	        
         	sendQuery( 
@@ -1647,21 +1604,21 @@ DHTTransportI2PRealImpl
 	        		public void 
 	        		handleReply(
 	        			int					originator_version,
-	        			Map<String,Object> 	reply,
+	        			DHTTransportI2PCodec.Message 	reply,
 	        			int					elapsed )
 	        		{
 	        			if ( TRACE ) trace( "good AZReply" );
 	        			
 	        			contact.setProtocolVersion((byte)originator_version );
 	        			
-	        			byte[] token = (byte[])reply.get( "token" );
+	        			byte[] token = reply.getToken();
 	        			
 	        			if ( token != null ){
 	        				
 	        				contact.setRandomID2( token );
 	        			}
 	        			
-	        			handler.reply( contact, (Map<String,Object>)reply.get( "p" ), elapsed );
+	        			handler.reply( contact, reply.getPayload(), elapsed );
 	        		}
 	        		
 	        		@Override
@@ -1674,7 +1631,7 @@ DHTTransportI2PRealImpl
 	        			handler.failed( contact, error );
 	        		}
 	        	}, 
-	        	contact, map, reply_expected?RPC_TYPE_TWO_WAY:RPC_TYPE_ONE_WAY, priority, override_sleeping );
+	        	contact, message, reply_expected?RPC_TYPE_TWO_WAY:RPC_TYPE_ONE_WAY, priority, override_sleeping );
 	        	        
 		}catch( Throwable e ){
 			
@@ -1694,11 +1651,11 @@ DHTTransportI2PRealImpl
 		DHTTransportContactI2P		originator,
 		int							packet_length,
 		byte[]						message_id,
-		Map<String,Object>			args )
+		DHTTransportI2PCodec.Message	query )
 		
 		throws Exception
 	{		
-		Map<String, Object>	payload_in = (Map<String, Object>)args.get( "p" );
+		Map<String, Object>	payload_in = query.getPayload();
 	
 		if ( TRACE ) trace( "receiveAZRequest: " + payload_in );
 
@@ -1709,7 +1666,7 @@ DHTTransportI2PRealImpl
 		
 		az_request_handler.packetReceived( packet_length );
 		
-		byte[]	token_in = (byte[])args.get( "token" );
+		byte[]	token_in = query.getToken();
 		
 		if ( token_in != null ){
 			
@@ -1722,11 +1679,7 @@ DHTTransportI2PRealImpl
 			
 				// dispatch reply
 			
-			Map<String, Object> map = new HashMap<String, Object>();
-			
-			Map<String, Object> resps = new HashMap<String, Object>();
-			
-			map.put( "r", resps);
+			DHTTransportI2PCodec.Message message = DHTTransportI2PCodec.Message.createReply();
 					
 			byte[] token_out = (byte[])originator.getRandomID2();
 			
@@ -1734,15 +1687,15 @@ DHTTransportI2PRealImpl
 				
 				if ( token_in == null || !Arrays.equals( token_in, token_out )){
 			
-					resps.put( "token", token_out );
+					message.setToken( token_out );
 				}
 			}
 			
 			Map<String, Object> payload_out = result.getReply();
 			
-			resps.put( "p", payload_out );
+			message.setPayload( payload_out );
 			
-			int sent = sendResponse( originator, message_id, map, result.isAdHoc());
+			int sent = sendResponse( originator, message_id, message, result.isAdHoc());
 			
 			az_request_handler.packetSent( sent );
 		}
@@ -1777,7 +1730,7 @@ DHTTransportI2PRealImpl
     sendQuery(
     	ReplyHandlerAdapter			handler,
     	DHTTransportContactI2P		contact,
-    	Map					 		map, 
+    	DHTTransportI2PCodec.Message		message, 
     	int		 					rpc_type,
     	boolean						priority ,
     	boolean						override_sleeping )
@@ -1786,19 +1739,19 @@ DHTTransportI2PRealImpl
     {
 		if ((!override_sleeping) && contact.isSleeping()){
 			
-			throw( new DHTTransportException( "Contact is sleeping, request denied: " + map ));
+			throw( new DHTTransportException( "Contact is sleeping, request denied: " + message.getString()));
 		}
 
 	   	NodeInfo node = contact.getNode();
 	   
-		sendQuery( handler, node, map, rpc_type, priority, override_sleeping );
+		sendQuery( handler, node, message, rpc_type, priority, override_sleeping );
     }
    
     private void 
     sendQuery(
     	final ReplyHandlerAdapter		handler,
     	final NodeInfo					node,
-    	final Map				 		map, 
+    	final DHTTransportI2PCodec.Message	message, 
     	final int	 					rpc_type,
     	final boolean					priority,
     	final boolean					override_sleeping )
@@ -1835,282 +1788,293 @@ DHTTransportI2PRealImpl
     			}
     		}
     		
-    		ThreadPool pool = priority?destination_lookup_pool_hp:destination_lookup_pool_lp;
+    		dest = sm_holder.getCachedDestination( node.getHash());
+    		
+    		if ( dest != null ){
+    			
+    			node.setDestination( dest );
+    			
+    			sendQuery( handler, dest, node.getPort(), message, rpc_type, override_sleeping );
+    			
+    			return;
+    		}
     		
-    		if ( TRACE ) trace( "Scheduling dest lookup: active=" + pool.getRunningCount() + ", queued=" + pool.getQueueSize() + ", priority=" + priority );
+    		if ( TRACE ) trace( "Scheduling dest lookup: priority=" + priority );
 
-    		pool.run(
-    			new AERunnable() 
+    		dest_lookup_engine.lookup(
+    			node.getHash(),
+    			priority,
+    			new DHTTransportI2PDestLookupEngine.Listener()
     			{
-					@Override
-					public void
-					runSupport() 
-					{
-						try{
-							byte[] hash = node.getHash().getData();
-							
-							int i1 = 	((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16) |
-										((hash[2] & 0xff) << 8)  | (hash[3] & 0xff);
-							
-							int i2 = 	((hash[4] & 0xff) << 24) | ((hash[5] & 0xff) << 16) |
-										((hash[6] & 0xff) << 8)  | (hash[7] & 0xff);
-
-							long l_hash = ((i1 & 0xffffffffL) << 32) | (i2 & 0xffffffffL);
+    				@Override
+    				public void
+    				lookupComplete(
+    					Destination		dest )
+    				{
+    					try{
+    						node.setDestination( dest );
+    						
+    						sendQuery( handler, dest, node.getPort(), message, rpc_type, override_sleeping );
+    						
+    					}catch( Throwable e ){
+    						
+    						if ( e instanceof DHTTransportException ){
+    							
+    							handler.handleError((DHTTransportException)e);
+    							
+    						}else{
+    							
+    							handler.handleError( new DHTTransportException( "Destination lookup failed", e ));
+    						}
+    					}
+    				}
+    				
+    				@Override
+    				public void
+    				lookupFailed(
+    					DHTTransportException	error )
+    				{
+    					handler.handleError( error );
+    				}
+    			});
+    		    		
+    	}else{
+    		
+    		sendQuery( handler, dest, node.getPort(), message, rpc_type, override_sleeping );
+    	}
+    }
+    
+    private Destination
+    resolveDestination(
+    	Hash		node_hash )
+    
+    	throws Exception
+    {
+		byte[] hash = node_hash.getData();
+		
+		long l_hash = DHTUtilsI2P.getLong( hash, 0 );
 
-							long	start = SystemTime.getMonotonousTime();
+		long	start = SystemTime.getMonotonousTime();
 
-							synchronized( dest_lookup_negative_cache ){
-								
-								DestLookupNegativeCacheEntry entry = dest_lookup_negative_cache.get( l_hash );
-								
-								if ( entry != null ){
-																		
-									int num_fails = entry.num_fails;
-									
-									int	delay = 60*1000;
-											
-									for ( int i=1;i<num_fails;i++){
-										
-										delay *= 2;
-										
-										if ( delay > 14*60*1000 ){
-											
-											delay = 14*60*1000;
-											
-											break;
-										}
-									}
-									
-									if ( start < entry.first_fail + delay ){
-										
-										if ( TRACE_DEST_LOOKUPS ){
+		if ( dest_lookup_negative_cache.isDenied( l_hash, start )){
+			
+			if ( TRACE_DEST_LOOKUPS ){
 
-											System.out.println( ByteFormatter.encodeString(hash, 0, 8) + ": denied (" + num_fails + ")" );
-										}
-										
-										throw( new DHTTransportException( "Destination lookup failed (negative cache)" ));
-										
-									}else{
-										
-										entry.first_fail = start;
-									}
-								}
-							}
-							
-							if ( TRACE_DEST_LOOKUPS ){
-								
-								synchronized( dest_lookup_rate ){
-									
-									dest_lookup_rate.addValue(1);
-								
-									dest_lookup_count++;
-									
-									if ( start - dest_lookup_count_log > 10*1000 ){
-										
-										dest_lookup_count_log = start;
-	
-										String lta = "";
-										
-										if ( dest_lookup_count_start == 0 ){
-											
-											dest_lookup_count_start = start;
-											
-										}else{
-											
-											long elapsed = start-dest_lookup_count_start;
-											
-											lta = " (" + (dest_lookup_count*1000f)/(elapsed) + ", " + elapsed/(60*1000) + ")";
-										}
-	
-										System.out.println( dest_lookup_rate.getAverage() + ", " + dest_lookup_count + lta + ": hist=" + dest_lookup_tracker.size() + "/" + dest_lookup_consec_fail_count + "/" + dest_lookup_consec_fail_60_count  );
-									}
-								}
-							}
-							
-							
-							//dest_lookup_negative_cache
-							
-							Destination dest = null;
-							
-							try{
-								dest = sm_holder.lookupDest( node.getHash(), DHTUtilsI2P.DEST_LOOKUP_TIMEOUT );
-								
-							}finally{
-								
-								synchronized( dest_lookup_negative_cache ){
+				System.out.println( ByteFormatter.encodeString(hash, 0, 8) + ": denied" );
+			}
+			
+			throw( new DHTTransportException( "Destination lookup failed (negative cache)" ));
+		}
+		
+		if ( TRACE_DEST_LOOKUPS ){
+			
+			synchronized( dest_lookup_rate ){
+				
+				dest_lookup_rate.addValue(1);
+			
+				dest_lookup_count++;
+				
+				if ( start - dest_lookup_count_log > 10*1000 ){
+					
+					dest_lookup_count_log = start;
 
-									if ( dest == null ){
-									
-										DestLookupNegativeCacheEntry entry = dest_lookup_negative_cache.get( l_hash );
-										
-										if ( entry == null ){
-											
-											dest_lookup_negative_cache.put( l_hash, new DestLookupNegativeCacheEntry( start, 1 ));
-											
-										}else{
-											
-											entry.num_fails++;
-										}
-									}else{
-										
-										dest_lookup_negative_cache.remove( l_hash );
-									}
-								}
+					String lta = "";
+					
+					if ( dest_lookup_count_start == 0 ){
+						
+						dest_lookup_count_start = start;
+						
+					}else{
+						
+						long elapsed = start-dest_lookup_count_start;
+						
+						lta = " (" + (dest_lookup_count*1000f)/(elapsed) + ", " + elapsed/(60*1000) + ")";
+					}
 
-								if ( TRACE_DEST_LOOKUPS ){
-									
-	
-									synchronized( dest_lookup_rate ){
-										
-										String mark = dest==null?".":"X";
-										
-										String[] hit = dest_lookup_tracker.get( l_hash );
-										
-										if ( hit == null ){
-											
-											hit = new String[]{ mark, "0", "" };
-											
-											dest_lookup_tracker.put( l_hash, hit );
-											
-										}else{
-											
-											hit[0] += mark;
-										}
-										
-										long now = SystemTime.getMonotonousTime();
-											
-										if ( dest == null ){
-											
-											System.out.println( "fail in " + (( now - start )/1000 ));
-										}
-										String hist = hit[0];
-										
-										String extra = "";
-										
-										if ( hist.endsWith( ".." )){
-											
-											dest_lookup_consec_fail_count++;
-											
-											long prev_fail = Long.parseLong( hit[1]);
-											
-											long secs = (now - prev_fail )/1000;
-											
-											if ( secs > 60 ){
-												
-												dest_lookup_consec_fail_60_count++;
-											}
-											
-											String s = hit[2];
-											
-											s += (s.length()==0?"":",") + secs;
-											
-											hit[2] = s;
-											
-											extra = " (" + s + ")";
-										}
-										
-										if ( dest == null ){
-											
-											hit[1] = String.valueOf( now );
-										}
+					System.out.println( dest_lookup_rate.getAverage() + ", " + dest_lookup_count + lta + ": hist=" + dest_lookup_tracker.size() + "/" + dest_lookup_consec_fail_count + "/" + dest_lookup_consec_fail_60_count  );
+				}
+			}
+		}
+		
+		
+		//dest_lookup_negative_cache
+		
+		Destination dest = null;
+		
+		try{
+			dest = sm_holder.lookupDest( node_hash, DHTUtilsI2P.DEST_LOOKUP_TIMEOUT );
+			
+		}finally{
+			
+			if ( dest == null ){
+			
+				dest_lookup_negative_cache.lookupFailed( l_hash, start );
+				
+			}else{
+				
+				dest_lookup_negative_cache.lookupOK( l_hash );
+			}
 
-										System.out.println( ByteFormatter.encodeString(hash, 0, 8) + ": " + hit[0] + extra);
-									}
-								}
-							}
-							
-							if ( dest != null ){
-            
-								if ( TRACE ) trace( "Destination lookup ok - elapsed=" + (SystemTime.getMonotonousTime()-start));
+			if ( TRACE_DEST_LOOKUPS ){
+				
 
-								node.setDestination( dest );
-								
-					    		sendQuery( handler, dest, node.getPort(), map, rpc_type, override_sleeping );
-					    		
-							}else{
-								
-								throw( new DHTTransportException( "Destination lookup failed" ));
-							}
-						}catch( Throwable e ){
+				synchronized( dest_lookup_rate ){
+					
+					String mark = dest==null?".":"X";
+					
+					String[] hit = dest_lookup_tracker.get( l_hash );
+					
+					if ( hit == null ){
+						
+						hit = new String[]{ mark, "0", "" };
+						
+						dest_lookup_tracker.put( l_hash, hit );
+						
+					}else{
+						
+						hit[0] += mark;
+					}
+					
+					long now = SystemTime.getMonotonousTime();
+						
+					if ( dest == null ){
+						
+						System.out.println( "fail in " + (( now - start )/1000 ));
+					}
+					String hist = hit[0];
+					
+					String extra = "";
+					
+					if ( hist.endsWith( ".." )){
+						
+						dest_lookup_consec_fail_count++;
+						
+						long prev_fail = Long.parseLong( hit[1]);
+						
+						long secs = (now - prev_fail )/1000;
+						
+						if ( secs > 60 ){
 							
-							if ( e instanceof DHTTransportException ){
-								
-								handler.handleError((DHTTransportException)e);
-								
-							}else{
-								
-								handler.handleError( new DHTTransportException( "Destination lookup failed", e ));
-							}
+							dest_lookup_consec_fail_60_count++;
 						}
+						
+						String s = hit[2];
+						
+						s += (s.length()==0?"":",") + secs;
+						
+						hit[2] = s;
+						
+						extra = " (" + s + ")";
 					}
-    			});
-    		    		
-    	}else{
-    		
-    		sendQuery( handler, dest, node.getPort(), map, rpc_type, override_sleeping );
-    	}
+					
+					if ( dest == null ){
+						
+						hit[1] = String.valueOf( now );
+					}
+
+					System.out.println( ByteFormatter.encodeString(hash, 0, 8) + ": " + hit[0] + extra);
+				}
+			}
+		}
+		
+		if ( TRACE && dest != null ) trace( "Destination lookup ok - elapsed=" + (SystemTime.getMonotonousTime()-start));
+		
+		return( dest );
     }
     
+    
     private void 
     sendQuery(
     	ReplyHandlerAdapter			handler,
     	Destination					dest,
     	int							port,
-    	Map				 			map, 
+    	DHTTransportI2PCodec.Message		message, 
     	int		 					rpc_type,
     	boolean						override_sleeping )
     	
     	throws Exception
     {
     	
-	    map.put( "y", "q" );
-	
 	    	// i2p uses 8 byte random message ids and supports receiving up to 16 byte ids
 	
 	    byte [] msg_id = new byte[8];
 	
-	    RandomUtils.nextBytes( msg_id );
-	
-	    map.put("t", msg_id );
+	    long	request_id;
+	    
+	    while( true ){
+	    	
+	    	RandomUtils.nextBytes( msg_id );
+	    	
+	    	request_id = DHTTransportI2PRequestTable.getID( msg_id );
+	    	
+	    	if ( request_id != 0 ){
+	    		
+	    		break;
+	    	}
+	    }
+	    
+	    message.setID( msg_id );
 	
 	    if ( override_sleeping ){
 	    	
-	    	map.put( "z", 0 );
+	    	message.setOverrideSleeping();
 	    }
 	    
-	    Map<String, Object> args = (Map<String, Object>) map.get("a");
-	
-	    args.put("id", my_nid.getData());
+	    message.setNID( my_nid.getData());
 	    	 
-	    encodeVersion( args );
+	    encodeVersion( message );
 	    
 	    if ( rpc_type == RPC_TYPE_UNREPLIABLE ){
 	    	
 	    	port++;
 	    }
 	    
-    	synchronized( requests ){
-	    		
-    		if ( destroyed ){
-    			
-    			throw( new DHTTransportException( "Transport destroyed" ));
-    		}
-    		 
-    			// we treat unreliable as two way as for Vuze peers we will send a reply if we already have a resolved destination available (which we should do as 
-    			// we have got a token from them recently...)
-    		
-    		if ( rpc_type != RPC_TYPE_ONE_WAY ){
-    		
-    			requests.put( new HashWrapper( msg_id ), new Request( dest, handler ));
-    		}
-	    }
+		if ( destroyed ){
+			
+			throw( new DHTTransportException( "Transport destroyed" ));
+		}
+		 
+			// we treat unreliable as two way as for Vuze peers we will send a reply if we already have a resolved destination available (which we should do as 
+			// we have got a token from them recently...)
+		
+		Request request = null;
+		
+		if ( rpc_type != RPC_TYPE_ONE_WAY ){
+		
+			DHTTransportI2PRTTTable.Estimator estimator = rtt_table.getEstimator( dest.calculateHash());
+			
+			request = new Request( request_id, dest, estimator, handler );
+			
+			while( !requests.add( request )){
+				
+					// id clash with an outstanding request, pick another
+				
+				RandomUtils.nextBytes( msg_id );
+				
+				request_id = DHTTransportI2PRequestTable.getID( msg_id );
+				
+				request = new Request( request_id, dest, estimator, handler );
+			}
+			
+			if ( destroyed ){
+				
+					// raced with destroy - if it didn't pick the request up then we have to fail it
+				
+				if ( requests.remove( request_id ) != null ){
+				
+					throw( new DHTTransportException( "Transport destroyed" ));
+				}
+				
+				return;
+			}
+		}
 	    
 	    boolean	ok = false;
 	    
 	    try{
 	    		// override sleeping is used for data requests so we assume they are not adhoc
 	    	
-	    	int res = sendMessage( dest, port, map, rpc_type, !override_sleeping );
+	    	int res = sendMessage( dest, port, message, rpc_type, !override_sleeping, request );
 	    	
 	    	ok	= true;
 	    	
@@ -2124,10 +2088,7 @@ DHTTransportI2PRealImpl
 	    	
 	    	if ( !ok ){
 	    	
-	    		synchronized( requests ){
-	    		
-	    			requests.remove( new HashWrapper( msg_id ));
-	    		}
+	    		requests.remove( request_id );
 	    	}
 	    }
 	}
@@ -2136,7 +2097,7 @@ DHTTransportI2PRealImpl
     sendResponse(
     	DHTTransportContactI2P 		originator, 
     	byte[]						message_id, 
-    	Map							map,
+    	DHTTransportI2PCodec.Message	message,
     	boolean						adhoc )
     	
     	throws Exception
@@ -2152,17 +2113,13 @@ DHTTransportI2PRealImpl
         	return( 0 );
         }
         
-        map.put( "y", "r" );
+        message.setID( message_id );
         
-        map.put( "t", message_id );
+        message.setNID( my_nid.getData());
         
-        Map<String, Object> resps = (Map<String, Object>) map.get("r");
+        encodeVersion( message );
         
-        resps.put( "id", my_nid.getData());
-        
-        encodeVersion( resps );
-        
-        return( sendMessage( dest, node.getPort() + 1, map, RPC_TYPE_UNREPLIABLE, adhoc ));
+        return( sendMessage( dest, node.getPort() + 1, message, RPC_TYPE_UNREPLIABLE, adhoc, null ));
     }
     
     private void
@@ -2181,21 +2138,24 @@ DHTTransportI2PRealImpl
     	}
     }
     
-    private static final int SEND_CRYPTO_TAGS 	= 8;
-    private static final int LOW_CRYPTO_TAGS 	= 4;
-
+    /**
+     * @param request	the request awaiting a reply to this message, failed if the message is dropped
+     * 					after being queued, null if none
+     */
+    
     private int 
     sendMessage(
-    	Destination 			dest, 
+    	final Destination 		dest, 
     	int 					toPort, 
-    	Map					 	map, 
+    	DHTTransportI2PCodec.Message	message, 
     	int		 				rpc_type,
-    	boolean					adhoc )
+    	boolean					adhoc,
+    	final Request			request )
     	
     	throws Exception
     {
 
-        byte[] payload = BEncoder.encode( map );
+        byte[] payload = DHTTransportI2PCodec.encode( message );
         
         	// Always send query port, peer will increment for unsigned replies
         
@@ -2211,24 +2171,52 @@ DHTTransportI2PRealImpl
             }
         }
 
-        SendMessageOptions opts = new SendMessageOptions();
+        	// options are shared per message class by the send scheduler
         
-        opts.setDate( SystemTime.getCurrentTime() + 60*1000);
+        int	send_flags = 0;
         
         if ( adhoc ){
         
-        	opts.setTagsToSend(SEND_CRYPTO_TAGS);       
-        	opts.setTagThreshold(LOW_CRYPTO_TAGS);
+        	send_flags |= I2PHelperSendScheduler.FLAG_ADHOC;
         }
         
         if ( rpc_type == RPC_TYPE_UNREPLIABLE ){
         	
-            opts.setSendLeaseSet( false );
+        	send_flags |= I2PHelperSendScheduler.FLAG_NO_LEASESET;
         }
         
-        stats.total_packets_sent++;
-        stats.total_bytes_sent += payload.length;
+        	// replies are unrepliable and are answering someone else's lookup so go first
+        
+        int	send_priority = rpc_type == RPC_TYPE_UNREPLIABLE?I2PHelperSendScheduler.PRIORITY_HIGH:I2PHelperSendScheduler.PRIORITY_NORMAL;
         
+        I2PHelperSendScheduler.SendListener	send_listener =
+        	new I2PHelperSendScheduler.SendListener()
+        	{
+        		@Override
+        		public void
+        		sent(
+        			int		size )
+        		{
+        			stats.total_packets_sent++;
+        			stats.total_bytes_sent += size;
+        		}
+        		
+        		@Override
+        		public void
+        		failed(
+        			String	reason )
+        		{
+        			trace( dest, "send failed: " + reason );
+        			
+        				// no point waiting for a reply to something that never went
+        			
+        			if ( request != null && requests.remove( request.getID()) == request ){
+        				
+        				request.getHandler().handleError( new DHTTransportException( "Send failed: " + reason ));
+        			}
+        		}
+        	};
+        	
         if ( sm_holder.sendMessage(
            		dest, 
            		payload, 
@@ -2237,9 +2225,11 @@ DHTTransportI2PRealImpl
            		rpc_type != RPC_TYPE_UNREPLIABLE ? I2PSession.PROTO_DATAGRAM : I2PSession.PROTO_DATAGRAM_RAW,
                 fromPort, 
                 toPort, 
-                opts )){
+                send_flags,
+                send_priority,
+                send_listener )){
         	
-        	trace( dest, "send ok" );
+        	trace( dest, "send queued" );
         	
         	return( payload.length );
         	
@@ -2306,25 +2296,13 @@ DHTTransportI2PRealImpl
     	}
     }
 
+    private static final String VERSION_STRING = "AZ" + DHTUtilsI2P.PROTOCOL_VERSION;
+    
     private void
     encodeVersion(
-    	Map		map )
-    {
-    	map.put( "_v", "AZ" +DHTUtilsI2P.PROTOCOL_VERSION );
-    }
-    
-    private int
-    decodeVersion(
-    	Map		map )
+    	DHTTransportI2PCodec.Message		message )
     {
-        String ver_str = MapUtils.getMapString( map, "_v", null );
-
-        if ( ver_str == null || !ver_str.startsWith( "AZ" )){
-        	
-        	return(  0 );
-        }
-                
-        return( Integer.parseInt( ver_str.substring(2)));
+    	message.setVersion( VERSION_STRING );
     }
     
     private void 
@@ -2339,11 +2317,11 @@ DHTTransportI2PRealImpl
     	stats.total_bytes_received += raw_payload_length;
     	
     	try{
-	    	Map		map = BDecoder.decode( payload );
+	    	DHTTransportI2PCodec.Message	message = DHTTransportI2PCodec.decode( payload );
 	
-	        byte[] msg_id = (byte[])map.get( "t" );
+	        byte[] msg_id = message.getID();
 	      
-	        String type = MapUtils.getMapString( map, "y", "" );
+	        String type = message.getType();
 	        
 	        if ( type.equals("q")){
 	        	
@@ -2351,13 +2329,11 @@ DHTTransportI2PRealImpl
 	        	
 	            	// queries must be repliable
 	        	
-	        	if (( generic_flags & DHTTransportUDP.GF_DHT_SLEEPING ) == 0 || map.containsKey( "z" )){
+	        	if (( generic_flags & DHTTransportUDP.GF_DHT_SLEEPING ) == 0 || message.isOverrideSleeping()){
 	        		
-	        		String method = MapUtils.getMapString( map, "q", "" );
-	            
-	        		Map args = (Map)map.get( "a" );
+	        		String method = message.getMethod();
 	            
-	        		receiveQuery( msg_id, from_dest, from_port, raw_payload_length, method, args );
+	        		receiveQuery( msg_id, from_dest, from_port, raw_payload_length, method, message, message.getVersion());
 	        		
 	        	}else{
 	        		
@@ -2365,12 +2341,7 @@ DHTTransportI2PRealImpl
 	        	}
 	        }else if ( type.equals("r") || type.equals("e")){
 	        	  
-	        	Request request;
-	        	
-	        	synchronized( requests ){
-	        		
-	        		request = requests.remove( new HashWrapper( msg_id ));
-	        	}
+	        	Request request = requests.remove( DHTTransportI2PRequestTable.getID( msg_id ));
 	        	
 	        	if ( request != null ){
 	        		
@@ -2378,6 +2349,8 @@ DHTTransportI2PRealImpl
 	        		
 	        		int elapsed = (int)( SystemTime.getMonotonousTime() - request.getStartTime());
 	        		
+	        		rtt_table.sample( request.getEstimator(), elapsed );
+	        		
 	        		if ( TRACE ) trace( "Request took " + elapsed );
 	        		
 	        		ReplyHandlerAdapter reply_handler = request.getHandler();
@@ -2387,17 +2360,15 @@ DHTTransportI2PRealImpl
 	        		try{
 		                if ( type.equals("r")){
 		                	
-		                    Map reply = (Map)map.get( "r" );
-		                                        
-		                    int	contact_version = decodeVersion( reply );
+		                    int	contact_version = message.getVersion();
 		                    		                    
 		                    reply_handler.packetReceived( raw_payload_length );
 		                    
-		                    reply_handler.handleReply( contact_version, reply, elapsed );
+		                    reply_handler.handleReply( contact_version, message, elapsed );
 		                    
 		                }else{
 		                	
-	                		List error = (List)map.get("e");
+	                		List error = message.getError();
 		                    
 	                		reply_handler.handleError( new DHTTransportException( "Received error: " + error ));
 		                }
@@ -2428,7 +2399,8 @@ DHTTransportI2PRealImpl
     	int 			from_port, 
     	int				packet_length,
     	String 			method, 
-    	Map				args )
+    	DHTTransportI2PCodec.Message	query,
+    	int				originator_version )
     	
     	throws Exception
     {
@@ -2441,7 +2413,7 @@ DHTTransportI2PRealImpl
             return;
         }
         
-        byte[] nid = (byte[])args.get("id");
+        byte[] nid = query.getNID();
         
         byte[] token	= null;
         
@@ -2450,10 +2422,12 @@ DHTTransportI2PRealImpl
         if ( dest != null ){
         	
         	node = new NodeInfo(new NID(nid), dest, from_port);
+        	
+        	sm_holder.cacheDestination( node.getHash(), dest );
            
         }else{
         	
-            token = (byte[])args.get("token");
+            token = query.getToken();
 
         	if ( token == null ){
         		
@@ -2475,8 +2449,6 @@ DHTTransportI2PRealImpl
         	}
         }
        
-        int originator_version = decodeVersion( args );
-        
         DHTTransportContactI2P originator = new DHTTransportContactI2P( this, node, (byte)originator_version, 0, 0, (byte)0 );
         
         if ( method.equals("ping")){
@@ -2485,72 +2457,41 @@ DHTTransportI2PRealImpl
       
         }else if ( method.equals("find_node")){
         	
-            byte[] target = (byte[])args.get("target");
+            byte[] target = query.getTarget();
              
             receiveFindNode( originator, msg_id, target );
             
         }else if ( method.equals("get_peers")) {
         	
-            byte[] hash = (byte[])args.get("info_hash");
+            byte[] hash = query.getInfoHash();
            
-            Number n_no_seed = (Number)args.get( "noseed" );
-            
-            boolean no_seed = n_no_seed!=null&&n_no_seed.intValue()!=0;
+            boolean no_seed = query.isNoSeed();
             
             receiveFindValue( originator, msg_id, hash, no_seed );
             
         }else if ( method.equals("announce_peer")) {
         	
-            byte[] hash = (byte[])args.get("info_hash");
+            byte[] hash = query.getInfoHash();
             
             originator.setRandomID2( token );
             
             // this is the "TCP" port, we don't care
             //int port = args.get("port").getInt();
              
-            Number n_is_seed = (Number)args.get( "seed" );
-            
-            boolean is_seed = n_is_seed!=null&&n_is_seed.intValue()!=0;
+            boolean is_seed = query.isSeed();
             
             receiveStore( originator, msg_id, hash, is_seed );
             
         }else if ( method.equals("azrequest")) {
 
-        	receiveAZRequest( originator, packet_length, msg_id, args );
+        	receiveAZRequest( originator, packet_length, msg_id, query );
         }
     }
     
     private void
     checkTimeouts()
     {
-    	List<Request>	timed_out = null;
-    	
-    	synchronized( requests ){
-    		
-    		if ( requests.size() > 0 ){
-    		
-    			long	now = SystemTime.getMonotonousTime();
-    			
-    			Iterator<Request>	it = requests.values().iterator();
-    			
-    			while( it.hasNext()){
-    				
-    				Request	req = it.next();
-    				
-    				if ( now - req.getStartTime() > request_timeout ){
-    					
-    					if ( timed_out == null ){
-    						
-    						timed_out = new ArrayList<Request>();
-    					}
-    					
-    					timed_out.add( req );
-    					
-    					it.remove();
-    				}
-    			}
-    		}
-    	}
+    	List<Request>	timed_out = requests.expire( SystemTime.getMonotonousTime());
     	
     	if ( timed_out != null ){
     		
@@ -2558,6 +2499,8 @@ DHTTransportI2PRealImpl
     		
     		for ( Request r: timed_out ){
     			
+    			r.getEstimator().timedOut();
+    			
     			try{
     				r.getHandler().handleError( new DHTTransportException( "Timeout" ));
     				
@@ -2697,14 +2640,9 @@ DHTTransportI2PRealImpl
 	public void
 	destroy()
 	{
-		List<Request>	to_fail = new ArrayList<Request>();
-		
-		synchronized( requests ){
-			
-			destroyed	= true;			
+		destroyed	= true;			
 
-			to_fail = new ArrayList<Request>( requests.values());
-		}
+		List<Request>	to_fail = requests.removeAll();
 		
 		for ( Request request: to_fail ){
 			
@@ -2718,6 +2656,8 @@ DHTTransportI2PRealImpl
 		}
 		
 		timer_event.cancel();
+		
+		dest_lookup_engine.destroy();
 	}
 	
 	private void
@@ -2778,7 +2718,7 @@ DHTTransportI2PRealImpl
 		public void
 		handleReply(
 			int						originator_version,
-			Map<String,Object>		reply,
+			DHTTransportI2PCodec.Message		reply,
 			int						elapsed );
 		
 		public void
@@ -2788,18 +2728,37 @@ DHTTransportI2PRealImpl
 	
 	private class
 	Request
+		extends DHTTransportI2PRequestTable.Entry
 	{
-		private Destination					dest;
-		private ReplyHandlerAdapter			handler;
+		private Destination							dest;
+		private DHTTransportI2PRTTTable.Estimator	estimator;
+		private ReplyHandlerAdapter					handler;
     	
-    	private long	start_time = SystemTime.getMonotonousTime();
+    	private long	start_time;
+    	
+    	private
+    	Request(
+    		long								_id,
+    		Destination							_dest,
+    		DHTTransportI2PRTTTable.Estimator	_estimator,
+    		ReplyHandlerAdapter					_handler )
+    	{
+    		this( _id, SystemTime.getMonotonousTime(), _dest, _estimator, _handler );
+    	}
     	
     	private
     	Request(
-    		Destination						_dest,
-    		ReplyHandlerAdapter				_handler )
+    		long								_id,
+    		long								_start_time,
+    		Destination							_dest,
+    		DHTTransportI2PRTTTable.Estimator	_estimator,
+    		ReplyHandlerAdapter					_handler )
     	{
+    		super( _id, _start_time + rtt_table.getTimeout( _estimator, request_timeout ));
+    		
+    		start_time	= _start_time;
     		dest		= _dest;
+    		estimator	= _estimator;
     		handler		= _handler;
     	}
     	
@@ -2809,6 +2768,12 @@ DHTTransportI2PRealImpl
     		return( dest );
     	}
     	
+    	private DHTTransportI2PRTTTable.Estimator
+    	getEstimator()
+    	{
+    		return( estimator );
+    	}
+    	
     	private ReplyHandlerAdapter
     	getHandler()
     	{
@@ -2983,20 +2948,4 @@ DHTTransportI2PRealImpl
 			return( DHTLog.getString( value_bytes ));
 		}
 	};
-	
-	static class
-	DestLookupNegativeCacheEntry
-	{
-		private long	first_fail;
-		private int		num_fails;
-		
-		private
-		DestLookupNegativeCacheEntry(
-			long		_first_fail,
-			int			_num_fails )
-		{
-			first_fail	= _first_fail;
-			num_fails	= _num_fails;
-		}
-	}
 }
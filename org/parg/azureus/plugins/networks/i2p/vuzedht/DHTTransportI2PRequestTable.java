@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.vuzedht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pending request table keyed on the 8 byte message id as a primitive long. Lookups are
+ * spread over independently locked stripes so reply threads don't block each other and expiry
+ * is handled by a hashed timer wheel so that both completion and timeout are O(1) rather than
+ * requiring a sweep of every outstanding request.
+ */
+
+public class
+DHTTransportI2PRequestTable<T extends DHTTransportI2PRequestTable.Entry>
+{
+	private static final int STATE_PENDING		= 0;
+	private static final int STATE_COMPLETE		= 1;
+	private static final int STATE_TIMED_OUT	= 2;
+
+	private static final int STRIPE_COUNT		= 32;		// power of 2
+	private static final int STRIPE_INIT_SIZE	= 16;		// power of 2
+
+	private static final int WHEEL_SIZE			= 64;		// power of 2
+
+	private final Stripe[]		stripes = new Stripe[STRIPE_COUNT];
+	private final WheelSlot[]	wheel	= new WheelSlot[WHEEL_SIZE];
+
+	private final long			tick_millis;
+
+	private volatile long		current_tick;
+
+	private final AtomicInteger	size = new AtomicInteger();
+
+	public
+	DHTTransportI2PRequestTable(
+		long		_tick_millis,
+		long		now )
+	{
+		tick_millis	= _tick_millis;
+
+		for ( int i=0;i<STRIPE_COUNT;i++){
+
+			stripes[i] = new Stripe();
+		}
+
+		for ( int i=0;i<WHEEL_SIZE;i++){
+
+			wheel[i] = new WheelSlot();
+		}
+
+		current_tick = now/tick_millis;
+	}
+
+	public static long
+	getID(
+		byte[]		msg_id )
+	{
+		if ( msg_id == null || msg_id.length != 8 ){
+
+			return( 0 );
+		}
+
+		return( DHTUtilsI2P.getLong( msg_id, 0 ));
+	}
+
+	/**
+	 * @return false if an entry with the same id is already pending
+	 */
+
+	public boolean
+	add(
+		T			t )
+	{
+		Entry	entry = t;
+		
+		long	id = entry.id;
+
+		if ( !getStripe( id ).add( entry )){
+
+			return( false );
+		}
+
+		size.incrementAndGet();
+
+		long	expiry_tick = entry.expiry/tick_millis;
+
+		while( true ){
+
+			long	tick = Math.max( expiry_tick, current_tick + 1 );
+
+			WheelSlot	slot = wheel[(int)( tick & ( WHEEL_SIZE-1 ))];
+
+			synchronized( slot ){
+
+					// the cursor is advanced under the slot's lock so if it hasn't reached
+					// the tick yet the entry will be seen on this revolution
+
+				if ( tick > current_tick ){
+
+					entry.next_in_slot	= slot.head;
+					slot.head			= entry;
+
+					return( true );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Claims the pending entry for the id, null if there is none or it has already timed out
+	 */
+
+	@SuppressWarnings("unchecked")
+	public T
+	remove(
+		long		id )
+	{
+		Entry entry = getStripe( id ).remove( id );
+
+		if ( entry == null ){
+
+			return( null );
+		}
+
+		size.decrementAndGet();
+
+		if ( entry.state.compareAndSet( STATE_PENDING, STATE_COMPLETE )){
+
+				// entry stays linked into the wheel until its slot comes round, it is
+				// dropped at that point without further work
+
+			return((T)entry );
+		}
+
+		return( null );
+	}
+
+	/**
+	 * Advances the wheel to 'now' and returns the entries that expired
+	 */
+
+	@SuppressWarnings("unchecked")
+	public List<T>
+	expire(
+		long		now )
+	{
+		List<T>	result = null;
+
+		long	target_tick = now/tick_millis;
+
+		long	tick = current_tick;
+
+			// don't spin the wheel more than one revolution, anything further on will be picked
+			// up by the slot check regardless
+
+		if ( target_tick - tick > WHEEL_SIZE ){
+
+			tick = target_tick - WHEEL_SIZE;
+		}
+
+		while( tick < target_tick ){
+
+			tick++;
+
+			WheelSlot	slot = wheel[(int)( tick & ( WHEEL_SIZE-1 ))];
+
+			Entry	head;
+
+			synchronized( slot ){
+
+				current_tick = tick;
+
+				head 		= slot.head;
+				slot.head	= null;
+			}
+
+			Entry	requeue = null;
+
+			while( head != null ){
+
+				Entry	entry = head;
+
+				head = entry.next_in_slot;
+
+				entry.next_in_slot = null;
+
+				if ( entry.state.get() != STATE_PENDING ){
+
+					continue;
+				}
+
+				if ( entry.expiry > now ){
+
+						// timeout is more than one revolution away
+
+					entry.next_in_slot	= requeue;
+					requeue				= entry;
+
+					continue;
+				}
+
+				if ( entry.state.compareAndSet( STATE_PENDING, STATE_TIMED_OUT )){
+
+					if ( getStripe( entry.id ).remove( entry.id, entry )){
+
+						size.decrementAndGet();
+					}
+
+					if ( result == null ){
+
+						result = new ArrayList<>();
+					}
+
+					result.add((T)entry );
+				}
+			}
+
+			if ( requeue != null ){
+
+				synchronized( slot ){
+
+					while( requeue != null ){
+
+						Entry	entry = requeue;
+
+						requeue = entry.next_in_slot;
+
+						entry.next_in_slot	= slot.head;
+						slot.head			= entry;
+					}
+				}
+			}
+		}
+
+		return( result );
+	}
+
+	/**
+	 * Removes and returns all pending entries
+	 */
+
+	@SuppressWarnings("unchecked")
+	public List<T>
+	removeAll()
+	{
+		List<T>	result = new ArrayList<>();
+
+		for ( Stripe stripe: stripes ){
+
+			List<Entry>	entries = stripe.removeAll();
+
+			for ( Entry entry: entries ){
+
+				size.decrementAndGet();
+
+				if ( entry.state.compareAndSet( STATE_PENDING, STATE_COMPLETE )){
+
+					result.add((T)entry );
+				}
+			}
+		}
+
+		return( result );
+	}
+
+	public int
+	size()
+	{
+		return( size.get());
+	}
+
+	private Stripe
+	getStripe(
+		long		id )
+	{
+		return( stripes[ mix( id ) & ( STRIPE_COUNT-1 )]);
+	}
+
+	private static int
+	mix(
+		long		id )
+	{
+			// ids are random but may not be when coming from a broken peer so spread them anyway
+
+		long	h = id * 0x9E3779B97F4A7C15L;
+
+		return((int)( h ^ ( h >>> 32 )));
+	}
+
+	private static class
+	Stripe
+	{
+		private Entry[]		table 	= new Entry[STRIPE_INIT_SIZE];
+		private int			count;
+
+		private synchronized boolean
+		add(
+			Entry		entry )
+		{
+			long	id = entry.id;
+
+			int		index = ( mix( id ) >>> 5 ) & ( table.length-1 );
+
+			for ( Entry e = table[index]; e != null; e = e.next_in_bucket ){
+
+				if ( e.id == id ){
+
+					return( false );
+				}
+			}
+
+			entry.next_in_bucket 	= table[index];
+			table[index]			= entry;
+
+			count++;
+
+			if ( count > ( table.length * 3 ) / 4 ){
+
+				resize( table.length * 2 );
+			}
+
+			return( true );
+		}
+
+		private synchronized Entry
+		remove(
+			long		id )
+		{
+			int		index = ( mix( id ) >>> 5 ) & ( table.length-1 );
+
+			Entry	prev = null;
+
+			for ( Entry e = table[index]; e != null; e = e.next_in_bucket ){
+
+				if ( e.id == id ){
+
+					if ( prev == null ){
+
+						table[index] = e.next_in_bucket;
+
+					}else{
+
+						prev.next_in_bucket = e.next_in_bucket;
+					}
+
+					e.next_in_bucket = null;
+
+					count--;
+
+					return( e );
+				}
+
+				prev = e;
+			}
+
+			return( null );
+		}
+
+		private synchronized boolean
+		remove(
+			long		id,
+			Entry		entry )
+		{
+			int		index = ( mix( id ) >>> 5 ) & ( table.length-1 );
+
+			Entry	prev = null;
+
+			for ( Entry e = table[index]; e != null; e = e.next_in_bucket ){
+
+				if ( e == entry ){
+
+					if ( prev == null ){
+
+						table[index] = e.next_in_bucket;
+
+					}else{
+
+						prev.next_in_bucket = e.next_in_bucket;
+					}
+
+					e.next_in_bucket = null;
+
+					count--;
+
+					return( true );
+				}
+
+				prev = e;
+			}
+
+			return( false );
+		}
+
+		private synchronized List<Entry>
+		removeAll()
+		{
+			List<Entry>	result = new ArrayList<>( count );
+
+			for ( int i=0;i<table.length;i++){
+
+				Entry e = table[i];
+
+				while( e != null ){
+
+					Entry next = e.next_in_bucket;
+
+					e.next_in_bucket = null;
+
+					result.add( e );
+
+					e = next;
+				}
+
+				table[i] = null;
+			}
+
+			count = 0;
+
+			if ( table.length > STRIPE_INIT_SIZE ){
+
+				table = new Entry[STRIPE_INIT_SIZE];
+			}
+
+			return( result );
+		}
+
+		private void
+		resize(
+			int		new_size )
+		{
+			Entry[]	new_table = new Entry[new_size];
+
+			for ( int i=0;i<table.length;i++){
+
+				Entry e = table[i];
+
+				while( e != null ){
+
+					Entry next = e.next_in_bucket;
+
+					int	index = ( mix( e.id ) >>> 5 ) & ( new_size-1 );
+
+					e.next_in_bucket 	= new_table[index];
+					new_table[index]	= e;
+
+					e = next;
+				}
+			}
+
+			table = new_table;
+		}
+	}
+
+	private static class
+	WheelSlot
+	{
+		private Entry		head;
+	}
+
+	public static abstract class
+	Entry
+	{
+		private final long				id;
+		private final long				expiry;
+
+		private final AtomicInteger		state = new AtomicInteger( STATE_PENDING );
+
+		private Entry		next_in_bucket;
+		private Entry		next_in_slot;
+
+		protected
+		Entry(
+			long		_id,
+			long		_expiry )
+		{
+			id		= _id;
+			expiry	= _expiry;
+		}
+
+		public long
+		getID()
+		{
+			return( id );
+		}
+
+		public long
+		getExpiry()
+		{
+			return( expiry );
+		}
+	}
+}
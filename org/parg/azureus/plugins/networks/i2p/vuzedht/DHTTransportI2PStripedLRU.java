@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) Bigly Software, Inc, All Rights Reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+
+package org.parg.azureus.plugins.networks.i2p.vuzedht;
+
+/**
+ * Bounded LRU table keyed on a long, used by the transport's caches that are hit on every request.
+ * The table is split into independently locked stripes each with its own hash buckets and LRU list so
+ * eviction is approximately LRU across the whole table without a global lock. Entries are intrusive,
+ * users subclass Entry, so nothing is allocated on a hit. Keys are expected to be well distributed
+ * (hash prefixes) and more than one entry may have the same key.
+ * <p>
+ * Callers lock the Stripe for the key and hold the lock across all calls on it.
+ */
+
+class
+DHTTransportI2PStripedLRU<E extends DHTTransportI2PStripedLRU.Entry>
+{
+	private static final int	STRIPE_COUNT		= 16;		// power of 2
+	private static final int	MIN_BUCKETS			= 16;
+
+	private final Stripe<E>[]	stripes;
+
+	@SuppressWarnings("unchecked")
+	DHTTransportI2PStripedLRU(
+		int		max_entries )
+	{
+		int	stripe_max = Math.max( 1, max_entries / STRIPE_COUNT );
+
+		int	buckets = MIN_BUCKETS;
+
+		while( buckets < stripe_max ){
+
+			buckets <<= 1;
+		}
+
+		stripes = new Stripe[STRIPE_COUNT];
+
+		for ( int i=0;i<STRIPE_COUNT;i++){
+
+			stripes[i] = new Stripe<>( stripe_max, buckets );
+		}
+	}
+
+	Stripe<E>
+	getStripe(
+		long		key )
+	{
+		return( stripes[(int)( key ^ ( key >>> 32 )) & ( STRIPE_COUNT-1 )]);
+	}
+
+	int
+	size()
+	{
+		int	size = 0;
+
+		for ( Stripe<E> stripe: stripes ){
+
+			synchronized( stripe ){
+
+				size += stripe.count;
+			}
+		}
+
+		return( size );
+	}
+
+	static class
+	Stripe<E extends Entry>
+	{
+		private final int		max;
+		private final int		mask;
+
+		private final Entry[]	buckets;
+
+			// LRU list, head is least recently used
+
+		private Entry		lru_head;
+		private Entry		lru_tail;
+
+		private int			count;
+
+		private
+		Stripe(
+			int		_max,
+			int		_buckets )
+		{
+			max		= _max;
+			mask	= _buckets - 1;
+			buckets	= new Entry[_buckets];
+		}
+
+		private int
+		index(
+			long	key )
+		{
+			return((int)(( key >>> 32 ) ^ ( key >>> 4 )) & mask );
+		}
+
+		/**
+		 * @return the most recently added entry for the key, marked as most recently used
+		 */
+
+		E
+		get(
+			long		key )
+		{
+			return( get( key, null ));
+		}
+
+		/**
+		 * @param matcher	null to accept any entry with the key
+		 * @return the first entry with the key accepted by the matcher, marked as most recently used
+		 */
+
+		@SuppressWarnings("unchecked")
+		E
+		get(
+			long			key,
+			Matcher<E>		matcher )
+		{
+			for ( Entry e = buckets[index( key )]; e != null; e = e.next_in_bucket ){
+
+				if ( e.key == key && ( matcher == null || matcher.matches((E)e ))){
+
+					if ( e != lru_tail ){
+
+						unlink( e );
+
+						link( e );
+					}
+
+					return((E)e );
+				}
+			}
+
+			return( null );
+		}
+
+		/**
+		 * @return true if the least recently used entry was evicted to make room
+		 */
+
+		boolean
+		add(
+			E		_entry )
+		{
+			Entry	entry = _entry;
+
+			int	index = index( entry.key );
+
+			entry.next_in_bucket	= buckets[index];
+			buckets[index]			= entry;
+
+			link( entry );
+
+			count++;
+
+			if ( count > max ){
+
+				remove( lru_head );
+
+				return( true );
+			}
+
+			return( false );
+		}
+
+		/**
+		 * Removes the most recently added entry for the key, if any
+		 */
+
+		void
+		remove(
+			long		key )
+		{
+			for ( Entry e = buckets[index( key )]; e != null; e = e.next_in_bucket ){
+
+				if ( e.key == key ){
+
+					remove( e );
+
+					return;
+				}
+			}
+		}
+
+		private void
+		remove(
+			Entry		entry )
+		{
+			int	index = index( entry.key );
+
+			Entry	prev = null;
+
+			for ( Entry e = buckets[index]; e != null; e = e.next_in_bucket ){
+
+				if ( e == entry ){
+
+					if ( prev == null ){
+
+						buckets[index] = e.next_in_bucket;
+
+					}else{
+
+						prev.next_in_bucket = e.next_in_bucket;
+					}
+
+					unlink( e );
+
+					count--;
+
+					return;
+				}
+
+				prev = e;
+			}
+		}
+
+		private void
+		link(
+			Entry		e )
+		{
+			e.lru_prev	= lru_tail;
+			e.lru_next	= null;
+
+			if ( lru_tail == null ){
+
+				lru_head = e;
+
+			}else{
+
+				lru_tail.lru_next = e;
+			}
+
+			lru_tail = e;
+		}
+
+		private void
+		unlink(
+			Entry		e )
+		{
+			if ( e.lru_prev == null ){
+
+				lru_head = e.lru_next;
+
+			}else{
+
+				e.lru_prev.lru_next = e.lru_next;
+			}
+
+			if ( e.lru_next == null ){
+
+				lru_tail = e.lru_prev;
+
+			}else{
+
+				e.lru_next.lru_prev = e.lru_prev;
+			}
+
+			e.lru_prev = null;
+			e.lru_next = null;
+		}
+	}
+
+	interface
+	Matcher<E>
+	{
+		boolean
+		matches(
+			E		entry );
+	}
+
+	static abstract class
+	Entry
+	{
+		private final long		key;
+
+			// guarded by the stripe's lock
+
+		private Entry			next_in_bucket;
+		private Entry			lru_prev;
+		private Entry			lru_next;
+
+		Entry(
+			long		_key )
+		{
+			key	= _key;
+		}
+	}
+}
@@ -35,11 +35,17 @@ DHTUtilsI2P
 	public static final int		PROTOCOL_VERSION_AZ_MSGS		= 2;	// support vuze messaging
 	public static final int		PROTOCOL_VERSION_BRIDGE			= 3;	// support DHT bridging
 	public static final int		PROTOCOL_VERSION_ALT_CONTACTS	= 4;	// support alternate contacts
+	public static final int		PROTOCOL_VERSION_COMPACT_AZ		= 5;	// support compact contact/value encoding in az messages
 	
 
-	protected static final byte PROTOCOL_VERSION		= PROTOCOL_VERSION_ALT_CONTACTS;
+	protected static final byte PROTOCOL_VERSION		= PROTOCOL_VERSION_COMPACT_AZ;
 	protected static final byte PROTOCOL_VERSION_MIN	= PROTOCOL_VERSION_INITIAL;
 	
+		// version assumed for contacts we have yet to hear from, anything needing a later version waits
+		// until the real one is picked up from a reply
+	
+	protected static final byte PROTOCOL_VERSION_ASSUMED	= PROTOCOL_VERSION_ALT_CONTACTS;
+	
 	protected static final int		REQUEST_TIMEOUT		= 30*1000;	// from observation requests rarely complete in > 30 sec
 	protected static final int 		DEST_LOOKUP_TIMEOUT = 20*1000;  
 
@@ -143,4 +149,100 @@ DHTUtilsI2P
 		
 		os.write( data, start, length );
 	}
+	
+	protected static void
+	serialiseVarLong(
+		DataOutputStream	os,
+		long				value )
+	
+		throws IOException
+	{
+			// unsigned, 7 bits per byte, low order first
+		
+		while(( value & ~0x7fL ) != 0 ){
+			
+			os.writeByte((int)(( value & 0x7f ) | 0x80 ));
+			
+			value >>>= 7;
+		}
+		
+		os.writeByte((int)value );
+	}
+	
+	protected static long
+	deserialiseVarLong(
+		DataInputStream	is )
+	
+		throws IOException
+	{
+		long	result = 0;
+		
+		for ( int shift=0;shift<64;shift+=7 ){
+			
+			int	b = is.readByte()&0xff;
+			
+			result |= ((long)( b & 0x7f )) << shift;
+			
+			if (( b & 0x80 ) == 0 ){
+				
+				return( result );
+			}
+		}
+		
+		throw( new IOException( "Invalid var-length integer" ));
+	}
+	
+	protected static void
+	serialiseSignedVarLong(
+		DataOutputStream	os,
+		long				value )
+	
+		throws IOException
+	{
+			// zig-zag so small negative values stay small
+		
+		serialiseVarLong( os, ( value << 1 ) ^ ( value >> 63 ));
+	}
+	
+	protected static long
+	deserialiseSignedVarLong(
+		DataInputStream	is )
+	
+		throws IOException
+	{
+		long	value = deserialiseVarLong( is );
+		
+		return(( value >>> 1 ) ^ -( value & 1 ));
+	}
+	
+	protected static int
+	deserialiseVarLength(
+		DataInputStream	is,
+		int				max_length )
+	
+		throws IOException
+	{
+		long	len = deserialiseVarLong( is );
+		
+		if ( len < 0 || len > max_length ){
+			
+			throw( new IOException( "Invalid DHT data length: max=" + max_length + ",actual=" + len ));
+		}
+		
+		return((int)len );
+	}
+	
+	protected static long
+	getLong(
+		byte[]		bytes,
+		int			offset )
+	{
+		int i1 = 	((bytes[offset] & 0xff) << 24) | ((bytes[offset+1] & 0xff) << 16) |
+					((bytes[offset+2] & 0xff) << 8)  | (bytes[offset+3] & 0xff);
+		
+		int i2 = 	((bytes[offset+4] & 0xff) << 24) | ((bytes[offset+5] & 0xff) << 16) |
+					((bytes[offset+6] & 0xff) << 8)  | (bytes[offset+7] & 0xff);
+
+		return(((i1 & 0xffffffffL) << 32) | (i2 & 0xffffffffL));
+	}
 }
@@ -54,6 +54,15 @@ I2PHelperAZDHT
 	waitForInitialisation(
 		long	max_millis );
 	
+		/**
+		 * Invokes the listener once initialisation is complete (successfully or not), immediately 
+		 * if it already is
+		 */
+	
+	public abstract void
+	addInitialisationListener(
+		Runnable	listener );
+	
 	public abstract DHT
 	getDHT()
 	